@@ -30,6 +30,120 @@ public final class Constants implements Serializable {
   public static final String JAVA_RMI_PORT_DEFAULT = "1099";
   public static final String DATAFACTORY_DIRECTORY_ENVIRONMENT = "datafactory.dir";
   public static final String NAMESPACE_PROPERTY = "____NAMESPACE____";
+  public static final String DATAFACTORY_TRANSPORT_ENVIRONMENT = "datafactory.transport";
+  public static final String TRANSPORT_RMI = "rmi";
+  public static final String TRANSPORT_NIO = "nio";
+  public static final String TRANSPORT_SHM = "shm";
+  public static final String DATAFACTORY_NIO_PORT_ENVIRONMENT = "datafactory.nio.port";
+  public static final String DATAFACTORY_NIO_PORT_DEFAULT = "1199";
+  public static final String DATAFACTORY_NIO_HOST_ENVIRONMENT = "datafactory.nio.host";
+  public static final String DATAFACTORY_NIO_WORKERS_ENVIRONMENT = "datafactory.nio.workers";
+  public static final String DATAFACTORY_SHM_DIRECTORY_ENVIRONMENT = "datafactory.shm.directory";
+  public static final String DATAFACTORY_SHM_DIRECTORY_DEFAULT =
+      System.getProperty("java.io.tmpdir") + "/datafactory-shm";
+  public static final String DATAFACTORY_SHM_SIZE_ENVIRONMENT = "datafactory.shm.size";
+  public static final String DATAFACTORY_SHM_SIZE_DEFAULT = "4194304";
+  public static final String DATAFACTORY_TRANSPORT_TIMEOUT_ENVIRONMENT =
+      "datafactory.transport.timeout";
+  public static final String DATAFACTORY_TRANSPORT_TIMEOUT_DEFAULT = "60000";
+  public static final String DATAFACTORY_TRANSPORT_WHITELIST_ENVIRONMENT =
+      "datafactory.transport.whitelist";
+  public static final String DATAFACTORY_TRANSPORT_WHITELIST_DEFAULT = "";
+  public static final String DATAFACTORY_RMI_COMPRESSION_ENVIRONMENT = "datafactory.rmi.compression";
+  public static final String DATAFACTORY_RMI_COMPRESSION_THRESHOLD_ENVIRONMENT =
+      "datafactory.rmi.compression.threshold";
+  public static final String DATAFACTORY_RMI_COMPRESSION_THRESHOLD_DEFAULT = "1024";
+  public static final String COMPRESSION_DEFLATE = "deflate";
+  public static final String DATAFACTORY_CURSOR_TIMEOUT_ENVIRONMENT = "datafactory.cursor.timeout";
+  public static final String DATAFACTORY_CURSOR_TIMEOUT_DEFAULT = "60000";
+  public static final String DATAFACTORY_CURSOR_MAX_ENVIRONMENT = "datafactory.cursor.max";
+  public static final String DATAFACTORY_CURSOR_MAX_DEFAULT = "16";
+  public static final String DATAFACTORY_SNAPSHOT_TIMEOUT_ENVIRONMENT =
+      "datafactory.snapshot.timeout";
+  public static final String DATAFACTORY_SNAPSHOT_TIMEOUT_DEFAULT = "60000";
+  public static final String DATAFACTORY_SNAPSHOT_LIFETIME_ENVIRONMENT =
+      "datafactory.snapshot.lifetime";
+  public static final String DATAFACTORY_SNAPSHOT_LIFETIME_DEFAULT = "600000";
+  public static final String DATAFACTORY_SNAPSHOT_MAX_ENVIRONMENT = "datafactory.snapshot.max";
+  public static final String DATAFACTORY_SNAPSHOT_MAX_DEFAULT = "16";
+  public static final String DATAFACTORY_BATCH_SIZE_ENVIRONMENT = "datafactory.batch.size";
+  public static final String DATAFACTORY_BATCH_SIZE_DEFAULT = "100";
+  public static final String DATAFACTORY_BATCH_LINGER_ENVIRONMENT = "datafactory.batch.linger";
+  public static final String DATAFACTORY_BATCH_LINGER_DEFAULT = "5";
+  public static final String DATAFACTORY_NEAR_CACHE_SIZE_ENVIRONMENT = "datafactory.nearcache.size";
+  public static final String DATAFACTORY_NEAR_CACHE_SIZE_DEFAULT = "0";
+  public static final String DATAFACTORY_NEAR_CACHE_TTL_ENVIRONMENT = "datafactory.nearcache.ttl";
+  public static final String DATAFACTORY_NEAR_CACHE_TTL_DEFAULT = "60000";
+  public static final String DATAFACTORY_DISPATCHER_INTERACTIVE_CONCURRENCY_ENVIRONMENT =
+      "datafactory.dispatcher.interactive.concurrency";
+  public static final String DATAFACTORY_DISPATCHER_INTERACTIVE_CONCURRENCY_DEFAULT =
+      String.valueOf(Runtime.getRuntime().availableProcessors() * 2);
+  public static final String DATAFACTORY_DISPATCHER_INTERACTIVE_QUEUE_ENVIRONMENT =
+      "datafactory.dispatcher.interactive.queue";
+  public static final String DATAFACTORY_DISPATCHER_INTERACTIVE_QUEUE_DEFAULT = "256";
+  public static final String DATAFACTORY_DISPATCHER_BULK_CONCURRENCY_ENVIRONMENT =
+      "datafactory.dispatcher.bulk.concurrency";
+  public static final String DATAFACTORY_DISPATCHER_BULK_CONCURRENCY_DEFAULT =
+      String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+  public static final String DATAFACTORY_DISPATCHER_BULK_QUEUE_ENVIRONMENT =
+      "datafactory.dispatcher.bulk.queue";
+  public static final String DATAFACTORY_DISPATCHER_BULK_QUEUE_DEFAULT = "32";
+  public static final String DATAFACTORY_DISPATCHER_TIMEOUT_ENVIRONMENT =
+      "datafactory.dispatcher.timeout";
+  public static final String DATAFACTORY_DISPATCHER_TIMEOUT_DEFAULT = "5000";
+  public static final String DATAFACTORY_COMMIT_GROUP_SIZE_ENVIRONMENT =
+      "datafactory.commit.group.size";
+  public static final String DATAFACTORY_COMMIT_GROUP_SIZE_DEFAULT = "64";
+  public static final String DATAFACTORY_COMMIT_GROUP_LINGER_ENVIRONMENT =
+      "datafactory.commit.group.linger";
+  public static final String DATAFACTORY_COMMIT_GROUP_LINGER_DEFAULT = "0";
+  public static final String DATAFACTORY_REMOVE_BATCH_ENVIRONMENT = "datafactory.remove.batch";
+  public static final String DATAFACTORY_REMOVE_BATCH_DEFAULT = "1000";
+  public static final String DATAFACTORY_ENVIRONMENT_MAX_OPEN_ENVIRONMENT =
+      "datafactory.environment.max.open";
+  public static final String DATAFACTORY_ENVIRONMENT_MAX_OPEN_DEFAULT = "0";
+  public static final String DATAFACTORY_ENVIRONMENT_IDLE_TIMEOUT_ENVIRONMENT =
+      "datafactory.environment.idle.timeout";
+  public static final String DATAFACTORY_ENVIRONMENT_IDLE_TIMEOUT_DEFAULT = "0";
+  public static final String DATAFACTORY_LOG_CACHE_MODE_ENVIRONMENT = "datafactory.logcache.mode";
+  public static final String DATAFACTORY_LOG_CACHE_MODE_DEFAULT = "private";
+  public static final String DATAFACTORY_LOG_CACHE_BUDGET_ENVIRONMENT =
+      "datafactory.logcache.budget";
+  public static final String DATAFACTORY_LOG_CACHE_BUDGET_DEFAULT = "0";
+  public static final String DATAFACTORY_LOG_CACHE_MIN_QUOTA_ENVIRONMENT =
+      "datafactory.logcache.quota.min";
+  public static final String DATAFACTORY_LOG_CACHE_MIN_QUOTA_DEFAULT = "1048576";
+  public static final String DATAFACTORY_LOG_CACHE_HALF_LIFE_ENVIRONMENT =
+      "datafactory.logcache.halflife";
+  public static final String DATAFACTORY_LOG_CACHE_HALF_LIFE_DEFAULT = "60000";
+  public static final String DATAFACTORY_SHARDS_ENVIRONMENT = "datafactory.shards";
+  public static final String DATAFACTORY_SHARDS_DEFAULT = "";
+  public static final String DATAFACTORY_SHARD_PARALLELISM_ENVIRONMENT =
+      "datafactory.shard.parallelism";
+  public static final String DATAFACTORY_SHARD_PARALLELISM_DEFAULT =
+      String.valueOf(Runtime.getRuntime().availableProcessors());
+  public static final String DATAFACTORY_ENVIRONMENT_PARALLELISM_ENVIRONMENT =
+      "datafactory.environment.parallelism";
+  public static final String DATAFACTORY_ENVIRONMENT_PARALLELISM_DEFAULT =
+      String.valueOf(Runtime.getRuntime().availableProcessors());
+  public static final String DATAFACTORY_WARMUP_ENVIRONMENTS_ENVIRONMENT =
+      "datafactory.warmup.environments";
+  public static final String DATAFACTORY_WARMUP_ENVIRONMENTS_DEFAULT = "";
+  public static final String DATAFACTORY_WARMUP_FILE_ENVIRONMENT = "datafactory.warmup.file";
+  public static final String DATAFACTORY_WARMUP_FILE_DEFAULT = "";
+  public static final String DATAFACTORY_WARMUP_SAVE_INTERVAL_ENVIRONMENT =
+      "datafactory.warmup.save.interval";
+  public static final String DATAFACTORY_WARMUP_SAVE_INTERVAL_DEFAULT = "60000";
+  public static final String DATAFACTORY_WARMUP_QUERIES_ENVIRONMENT = "datafactory.warmup.queries";
+  public static final String DATAFACTORY_WARMUP_QUERIES_DEFAULT = "100";
+  public static final String DATAFACTORY_WARMUP_RECENT_ENVIRONMENT = "datafactory.warmup.recent";
+  public static final String DATAFACTORY_WARMUP_RECENT_DEFAULT = "32";
+  public static final String DATAFACTORY_WARMUP_PARALLELISM_ENVIRONMENT =
+      "datafactory.warmup.parallelism";
+  public static final String DATAFACTORY_WARMUP_PARALLELISM_DEFAULT =
+      String.valueOf(Runtime.getRuntime().availableProcessors());
+  public static final String DATAFACTORY_WARMUP_ASYNC_ENVIRONMENT = "datafactory.warmup.async";
+  public static final String DATAFACTORY_WARMUP_ASYNC_DEFAULT = "false";
 
   private Constants() {
   }
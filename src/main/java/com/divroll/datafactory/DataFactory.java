@@ -20,11 +20,23 @@ import com.divroll.datafactory.database.DatabaseManager;
 import com.divroll.datafactory.database.impl.DatabaseManagerImpl;
 import com.divroll.datafactory.exceptions.DataFactoryException;
 import com.divroll.datafactory.indexers.impl.LuceneIndexerImpl;
+import com.divroll.datafactory.repositories.AsyncEntityStore;
 import com.divroll.datafactory.repositories.EntityStore;
+import com.divroll.datafactory.repositories.WriteBatcher;
+import com.divroll.datafactory.repositories.impl.AsyncEntityStoreImpl;
+import com.divroll.datafactory.repositories.impl.WriteBatcherImpl;
 import com.divroll.datafactory.repositories.impl.EntityStoreImpl;
+import com.divroll.datafactory.repositories.impl.Warmup;
+import com.divroll.datafactory.transport.CompressingRMIClientSocketFactory;
+import com.divroll.datafactory.transport.CompressingRMIServerSocketFactory;
+import com.divroll.datafactory.transport.NioEntityStoreServer;
+import com.divroll.datafactory.transport.SharedMemoryEntityStoreServer;
 import com.godaddy.logging.Logger;
 import com.godaddy.logging.LoggerFactory;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.File;
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
@@ -32,6 +44,8 @@ import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import jetbrains.exodus.bindings.ComparableBinding;
 import lombok.SneakyThrows;
 
@@ -52,7 +66,10 @@ public class DataFactory {
 
   private static DataFactory instance;
   private static Registry registry;
+  private static NioEntityStoreServer nioServer;
+  private static SharedMemoryEntityStoreServer shmServer;
   private static String process;
+  private static volatile Warmup warmup;
 
   private DataFactory() {
     if (instance != null) {
@@ -74,7 +91,24 @@ public class DataFactory {
     return instance;
   }
 
+  /**
+   * Expose the {@linkplain EntityStore} through the transport selected with the
+   * {@code datafactory.transport} system property, either the Java RMI registry (default), the
+   * binary {@linkplain NioEntityStoreServer} or, for clients on the same host, the
+   * {@linkplain SharedMemoryEntityStoreServer}. The store is warmed up before the registry or the
+   * server is started so no client reaches it cold. When the warm-up runs in the background,
+   * health checks should wait for {@code getWarmup().isDone()}.
+   */
   public void register() throws RemoteException, NotBoundException {
+    String transport = System.getProperty(Constants.DATAFACTORY_TRANSPORT_ENVIRONMENT,
+        Constants.TRANSPORT_RMI);
+    if (Constants.TRANSPORT_NIO.equals(transport)) {
+      registerNio();
+      return;
+    } else if (Constants.TRANSPORT_SHM.equals(transport)) {
+      registerSharedMemory();
+      return;
+    }
     String host = System.getProperty(Constants.JAVA_RMI_HOST_ENVIRONMENT);
     if (host == null) {
       System.setProperty(Constants.JAVA_RMI_HOST_ENVIRONMENT, "localhost");
@@ -83,6 +117,9 @@ public class DataFactory {
         Constants.JAVA_RMI_PORT_DEFAULT);
     String port = testPort != null ? testPort :
         System.getProperty(Constants.JAVA_RMI_PORT_ENVIRONMENT, Constants.JAVA_RMI_PORT_DEFAULT);
+    // The store is exported as it is created but stays out of reach until it is bound
+    entityStore = newEntityStore();
+    warmUp();
     if(registry == null) {
       if (port != null) {
         registry = LocateRegistry.createRegistry(Integer.valueOf(port));
@@ -90,8 +127,6 @@ public class DataFactory {
         registry = LocateRegistry.createRegistry(Integer.valueOf(Constants.JAVA_RMI_PORT_DEFAULT));
       }
     }
-    entityStore =
-        new EntityStoreImpl(DatabaseManagerImpl.getInstance(), LuceneIndexerImpl.getInstance());
     if (!Arrays.asList(registry.list()).contains(EntityStore.class.getName())) {
       registry.rebind(EntityStore.class.getName(), instance.entityStore);
     }
@@ -99,11 +134,134 @@ public class DataFactory {
     LOG.info("DataFactory initialized with process id: " + process);
   }
 
+  /**
+   * Create the {@linkplain EntityStore} to expose, exported with compressing socket factories
+   * when {@code datafactory.rmi.compression} is set to {@code deflate}.
+   */
+  private EntityStore newEntityStore() throws RemoteException, NotBoundException {
+    String compression = System.getProperty(Constants.DATAFACTORY_RMI_COMPRESSION_ENVIRONMENT);
+    if (Constants.COMPRESSION_DEFLATE.equals(compression)) {
+      int threshold = Integer.valueOf(System.getProperty(
+          Constants.DATAFACTORY_RMI_COMPRESSION_THRESHOLD_ENVIRONMENT,
+          Constants.DATAFACTORY_RMI_COMPRESSION_THRESHOLD_DEFAULT));
+      return new EntityStoreImpl(DatabaseManagerImpl.getInstance(),
+          LuceneIndexerImpl.getInstance(), 0,
+          new CompressingRMIClientSocketFactory(threshold),
+          new CompressingRMIServerSocketFactory(threshold));
+    }
+    return new EntityStoreImpl(DatabaseManagerImpl.getInstance(), LuceneIndexerImpl.getInstance());
+  }
+
+  /**
+   * Warm up the store once, before it is exposed so no traffic reaches it cold, or in the
+   * background while it already serves requests when {@code datafactory.warmup.async} is set.
+   * Must be called before the registry or server exposing the store is started.
+   */
+  private void warmUp() {
+    if (warmup != null || !(entityStore instanceof EntityStoreImpl)) {
+      return;
+    }
+    EntityStoreImpl store = (EntityStoreImpl) entityStore;
+    Warmup plan = Warmup.fromSystemProperties(store);
+    warmup = plan;
+    int parallelism = Integer.valueOf(System.getProperty(
+        Constants.DATAFACTORY_WARMUP_PARALLELISM_ENVIRONMENT,
+        Constants.DATAFACTORY_WARMUP_PARALLELISM_DEFAULT));
+    Runnable run = () -> plan.run(store, DatabaseManagerImpl.getInstance(), parallelism);
+    if (Boolean.valueOf(System.getProperty(Constants.DATAFACTORY_WARMUP_ASYNC_ENVIRONMENT,
+        Constants.DATAFACTORY_WARMUP_ASYNC_DEFAULT))) {
+      new ThreadFactoryBuilder()
+          .setNameFormat("datafactory-warmup-runner-%d")
+          .setDaemon(true)
+          .build()
+          .newThread(run)
+          .start();
+    } else {
+      run.run();
+    }
+  }
+
+  /**
+   * @return the warm-up of the store, for a health check to report the store ready once it is
+   * done when the warm-up runs in the background, {@code null} before the store is registered
+   */
+  public Warmup getWarmup() {
+    return warmup;
+  }
+
+  private void registerNio() throws RemoteException, NotBoundException {
+    if (entityStore == null) {
+      entityStore = newEntityStore();
+    }
+    warmUp();
+    if (nioServer == null) {
+      int port = Integer.valueOf(System.getProperty(Constants.DATAFACTORY_NIO_PORT_ENVIRONMENT,
+          Constants.DATAFACTORY_NIO_PORT_DEFAULT));
+      int workers = Integer.valueOf(System.getProperty(
+          Constants.DATAFACTORY_NIO_WORKERS_ENVIRONMENT,
+          String.valueOf(Runtime.getRuntime().availableProcessors() * 2)));
+      String host = System.getProperty(Constants.DATAFACTORY_NIO_HOST_ENVIRONMENT,
+          System.getProperty(Constants.JAVA_RMI_HOST_ENVIRONMENT, "localhost"));
+      NioEntityStoreServer server = new NioEntityStoreServer(entityStore, host, port,
+          Executors.newFixedThreadPool(workers, new ThreadFactoryBuilder()
+              .setNameFormat("datafactory-nio-worker-%d")
+              .setDaemon(true)
+              .build()));
+      try {
+        server.start();
+      } catch (IOException e) {
+        throw new RemoteException("Unable to start NIO transport on " + host + ":" + port, e);
+      }
+      nioServer = server;
+    }
+    process = ManagementFactory.getRuntimeMXBean().getName();
+    LOG.info("DataFactory initialized with NIO transport and process id: " + process);
+  }
+
+  private void registerSharedMemory() throws RemoteException, NotBoundException {
+    if (entityStore == null) {
+      entityStore = newEntityStore();
+    }
+    warmUp();
+    if (shmServer == null) {
+      File directory = new File(System.getProperty(Constants.DATAFACTORY_SHM_DIRECTORY_ENVIRONMENT,
+          Constants.DATAFACTORY_SHM_DIRECTORY_DEFAULT));
+      int workers = Integer.valueOf(System.getProperty(
+          Constants.DATAFACTORY_NIO_WORKERS_ENVIRONMENT,
+          String.valueOf(Runtime.getRuntime().availableProcessors() * 2)));
+      SharedMemoryEntityStoreServer server = new SharedMemoryEntityStoreServer(entityStore,
+          directory, Executors.newFixedThreadPool(workers, new ThreadFactoryBuilder()
+              .setNameFormat("datafactory-shm-worker-%d")
+              .setDaemon(true)
+              .build()));
+      try {
+        server.start();
+      } catch (IOException e) {
+        throw new RemoteException("Unable to start shared memory transport in " + directory, e);
+      }
+      shmServer = server;
+    }
+    process = ManagementFactory.getRuntimeMXBean().getName();
+    LOG.info("DataFactory initialized with shared memory transport and process id: " + process);
+  }
+
   /**
    * Unbinds all registered classes from RMI registry and close all Xodus environments.
    */
   @SneakyThrows
   public void release() {
+    if (entityStore instanceof EntityStoreImpl) {
+      // Keep what was hot for the warm-up of the next start
+      ((EntityStoreImpl) entityStore).getHotQueryRecorder().save();
+    }
+    if (nioServer != null) {
+      nioServer.close();
+      nioServer = null;
+    }
+    if (shmServer != null) {
+      shmServer.close();
+      shmServer = null;
+    }
     if (registry != null) {
       String[] classNames = registry.list();
       for (int i = 0; i < classNames.length; i++) {
@@ -123,19 +281,44 @@ public class DataFactory {
   public EntityStore getEntityStore()
       throws DataFactoryException, RemoteException, NotBoundException {
     //Preconditions.checkNotNull(registry, "RMI registry should not be null");
-    if(registry == null) {
+    if(registry == null && nioServer == null && shmServer == null) {
       register();
     }
     if (entityStore == null) {
-      entityStore =
-          new EntityStoreImpl(DatabaseManagerImpl.getInstance(), LuceneIndexerImpl.getInstance());
+      entityStore = newEntityStore();
     }
-    if (!Arrays.asList(registry.list()).contains(EntityStore.class.getName())) {
+    if (registry != null
+        && !Arrays.asList(registry.list()).contains(EntityStore.class.getName())) {
       registry.rebind(EntityStore.class.getName(), entityStore);
     }
     return entityStore;
   }
 
+  /**
+   * Create an {@linkplain AsyncEntityStore} on top of the embedded {@linkplain EntityStore}.
+   *
+   * @param executor    executor to run the store operations
+   * @param maxInFlight maximum number of operations executing at once
+   * @return asynchronous entity store
+   */
+  public AsyncEntityStore getAsyncEntityStore(Executor executor, int maxInFlight)
+      throws DataFactoryException, RemoteException, NotBoundException {
+    return new AsyncEntityStoreImpl(getEntityStore(), executor, maxInFlight);
+  }
+
+  /**
+   * Create a {@linkplain WriteBatcher} on top of the embedded {@linkplain EntityStore}.
+   *
+   * @param executor     executor to send the batches
+   * @param maxBatchSize maximum number of entities of a batch
+   * @param lingerMillis maximum time an entity waits for its batch to fill up
+   * @return write batcher
+   */
+  public WriteBatcher getWriteBatcher(Executor executor, int maxBatchSize, long lingerMillis)
+      throws DataFactoryException, RemoteException, NotBoundException {
+    return new WriteBatcherImpl(getEntityStore(), executor, maxBatchSize, lingerMillis);
+  }
+
   public static void main(final String[] args) throws Exception {
     LOG.info("Staring DataFactory");
     DataFactory dataFactory = getInstance();
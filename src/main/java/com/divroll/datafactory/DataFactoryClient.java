@@ -16,8 +16,21 @@
  */
 package com.divroll.datafactory;
 
+import com.divroll.datafactory.repositories.AsyncEntityStore;
 import com.divroll.datafactory.repositories.EntityStore;
+import com.divroll.datafactory.repositories.WriteBatcher;
+import com.divroll.datafactory.repositories.impl.AsyncEntityStoreImpl;
 import com.divroll.datafactory.repositories.impl.EntityStoreClientImpl;
+import com.divroll.datafactory.repositories.impl.NearCache;
+import com.divroll.datafactory.repositories.impl.WriteBatcherImpl;
+import com.divroll.datafactory.transport.NioEntityStoreClient;
+import com.divroll.datafactory.transport.SharedMemoryEntityStoreClient;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import org.jetbrains.annotations.NotNull;
 
 /**
@@ -30,7 +43,11 @@ public class DataFactoryClient {
   private static DataFactoryClient instance;
   private static final String DEFAULT_HOST = "localhost";
   private static final String DEFAULT_PORT = "1099";
+  private static final int DEFAULT_MAX_IN_FLIGHT = 64;
+  private static final Map<String, DataFactoryClient> clients = new ConcurrentHashMap<>();
   private EntityStore entityStore;
+  private AsyncEntityStore asyncEntityStore;
+  private WriteBatcher writeBatcher;
 
   private DataFactoryClient() {
   }
@@ -39,7 +56,25 @@ public class DataFactoryClient {
     this.entityStore = entityStore;
   }
 
+  /**
+   * Get the {@linkplain DataFactoryClient} for the server configured through system properties,
+   * using the transport selected with {@code datafactory.transport}.
+   *
+   * @return shared client instance
+   */
   public static DataFactoryClient getInstance() {
+    if (Constants.TRANSPORT_NIO.equals(System.getProperty(
+        Constants.DATAFACTORY_TRANSPORT_ENVIRONMENT, Constants.TRANSPORT_RMI))) {
+      String host = System.getProperty(Constants.JAVA_RMI_HOST_ENVIRONMENT, DEFAULT_HOST);
+      String port = System.getProperty(Constants.DATAFACTORY_NIO_PORT_ENVIRONMENT,
+          Constants.DATAFACTORY_NIO_PORT_DEFAULT);
+      return getNioInstance(host, port);
+    } else if (Constants.TRANSPORT_SHM.equals(System.getProperty(
+        Constants.DATAFACTORY_TRANSPORT_ENVIRONMENT))) {
+      return getSharedMemoryInstance(System.getProperty(
+          Constants.DATAFACTORY_SHM_DIRECTORY_ENVIRONMENT,
+          Constants.DATAFACTORY_SHM_DIRECTORY_DEFAULT));
+    }
     String host = System.getProperty(Constants.JAVA_RMI_HOST_ENVIRONMENT);
     if (host == null) {
       host = System.setProperty(Constants.JAVA_RMI_HOST_ENVIRONMENT, DEFAULT_HOST);
@@ -49,14 +84,129 @@ public class DataFactoryClient {
     return getInstance(host, port);
   }
 
+  /**
+   * Get the {@linkplain DataFactoryClient} for the given host and port. Clients are shared so the
+   * remote stub is only looked up once per server.
+   *
+   * @param host
+   * @param port
+   * @return shared client instance
+   */
   public static DataFactoryClient getInstance(@NotNull String host, @NotNull String port) {
-    EntityStore entityStore = new EntityStoreClientImpl(host != null ? host : DEFAULT_HOST,
-        Integer.valueOf(port != null ? port : DEFAULT_PORT));
-    DataFactoryClient instance = new DataFactoryClient(entityStore);
-    return instance;
+    String rmiHost = host != null ? host : DEFAULT_HOST;
+    String rmiPort = port != null ? port : DEFAULT_PORT;
+    return clients.computeIfAbsent(rmiHost + ":" + rmiPort, key -> new DataFactoryClient(
+        new EntityStoreClientImpl(rmiHost, Integer.valueOf(rmiPort),
+            EntityStoreClientImpl.DEFAULT_HEALTH_CHECK_INTERVAL, newNearCache())));
+  }
+
+  /**
+   * @return the near cache configured with {@code datafactory.nearcache.size}, {@code null} when
+   * disabled
+   */
+  private static NearCache newNearCache() {
+    long size = Long.valueOf(System.getProperty(Constants.DATAFACTORY_NEAR_CACHE_SIZE_ENVIRONMENT,
+        Constants.DATAFACTORY_NEAR_CACHE_SIZE_DEFAULT));
+    if (size <= 0) {
+      return null;
+    }
+    return new NearCache(size, Long.valueOf(System.getProperty(
+        Constants.DATAFACTORY_NEAR_CACHE_TTL_ENVIRONMENT,
+        Constants.DATAFACTORY_NEAR_CACHE_TTL_DEFAULT)));
+  }
+
+  /**
+   * Get the {@linkplain DataFactoryClient} talking to a {@code NioEntityStoreServer}. All
+   * requests of the client are multiplexed over a single connection.
+   *
+   * @param host
+   * @param port
+   * @return shared client instance
+   */
+  public static DataFactoryClient getNioInstance(@NotNull String host, @NotNull String port) {
+    String nioHost = host != null ? host : DEFAULT_HOST;
+    String nioPort = port != null ? port : Constants.DATAFACTORY_NIO_PORT_DEFAULT;
+    return clients.computeIfAbsent(Constants.TRANSPORT_NIO + "://" + nioHost + ":" + nioPort,
+        key -> new DataFactoryClient(
+            new NioEntityStoreClient(nioHost, Integer.valueOf(nioPort)).getEntityStore()));
+  }
+
+  /**
+   * Get the {@linkplain DataFactoryClient} talking to a {@code SharedMemoryEntityStoreServer} on
+   * the same host through memory mapped files in {@code directory}.
+   *
+   * @param directory
+   * @return shared client instance
+   */
+  public static DataFactoryClient getSharedMemoryInstance(@NotNull String directory) {
+    int capacity = Integer.valueOf(System.getProperty(Constants.DATAFACTORY_SHM_SIZE_ENVIRONMENT,
+        Constants.DATAFACTORY_SHM_SIZE_DEFAULT));
+    return clients.computeIfAbsent(Constants.TRANSPORT_SHM + "://" + directory,
+        key -> new DataFactoryClient(
+            new SharedMemoryEntityStoreClient(new File(directory), capacity).getEntityStore()));
   }
 
   public EntityStore getEntityStore() {
     return entityStore;
   }
+
+  /**
+   * Get the {@linkplain AsyncEntityStore} of this client running on its own pool of
+   * {@code DEFAULT_MAX_IN_FLIGHT} daemon threads.
+   *
+   * @return shared asynchronous entity store
+   */
+  public synchronized AsyncEntityStore getAsyncEntityStore() {
+    if (asyncEntityStore == null) {
+      asyncEntityStore = getAsyncEntityStore(Executors.newFixedThreadPool(DEFAULT_MAX_IN_FLIGHT,
+          new ThreadFactoryBuilder()
+              .setNameFormat("datafactory-async-%d")
+              .setDaemon(true)
+              .build()), DEFAULT_MAX_IN_FLIGHT);
+    }
+    return asyncEntityStore;
+  }
+
+  /**
+   * Create an {@linkplain AsyncEntityStore} on top of this client.
+   *
+   * @param executor    executor to run the remote calls
+   * @param maxInFlight maximum number of outstanding remote calls
+   * @return asynchronous entity store
+   */
+  public AsyncEntityStore getAsyncEntityStore(Executor executor, int maxInFlight) {
+    return new AsyncEntityStoreImpl(entityStore, executor, maxInFlight);
+  }
+
+  /**
+   * Get the {@linkplain WriteBatcher} of this client, batching up to
+   * {@code datafactory.batch.size} entities or {@code datafactory.batch.linger} milliseconds.
+   *
+   * @return shared write batcher
+   */
+  public synchronized WriteBatcher getWriteBatcher() {
+    if (writeBatcher == null) {
+      writeBatcher = getWriteBatcher(Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+              .setNameFormat("datafactory-batch-%d")
+              .setDaemon(true)
+              .build()),
+          Integer.valueOf(System.getProperty(Constants.DATAFACTORY_BATCH_SIZE_ENVIRONMENT,
+              Constants.DATAFACTORY_BATCH_SIZE_DEFAULT)),
+          Long.valueOf(System.getProperty(Constants.DATAFACTORY_BATCH_LINGER_ENVIRONMENT,
+              Constants.DATAFACTORY_BATCH_LINGER_DEFAULT)));
+    }
+    return writeBatcher;
+  }
+
+  /**
+   * Create a {@linkplain WriteBatcher} on top of this client.
+   *
+   * @param executor     executor to send the batches
+   * @param maxBatchSize maximum number of entities of a batch
+   * @param lingerMillis maximum time an entity waits for its batch to fill up
+   * @return write batcher
+   */
+  public WriteBatcher getWriteBatcher(Executor executor, int maxBatchSize, long lingerMillis) {
+    return new WriteBatcherImpl(entityStore, executor, maxBatchSize, lingerMillis);
+  }
 }
@@ -19,6 +19,7 @@ package com.divroll.datafactory;
 import com.divroll.datafactory.builders.DataFactoryBlobBuilder;
 import com.divroll.datafactory.builders.DataFactoryEntityBuilder;
 import com.divroll.datafactory.builders.queries.BlobQuery;
+import com.divroll.datafactory.builders.queries.FieldQuery;
 import com.divroll.datafactory.builders.queries.LinkQuery;
 import com.divroll.datafactory.builders.DataFactoryBlob;
 import com.divroll.datafactory.builders.DataFactoryEntity;
@@ -32,8 +33,10 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import jetbrains.exodus.entitystore.Entity;
 import jetbrains.exodus.entitystore.EntityIterable;
 import jetbrains.exodus.entitystore.StoreTransaction;
@@ -49,6 +52,7 @@ public class Marshaller {
   private Entity entity;
   private List<LinkQuery> linkQueries;
   private List<BlobQuery> blobQueries;
+  private FieldQuery fieldQuery;
 
   public Marshaller with(@NotNull Entity entity) {
     if (this.entity != null) {
@@ -74,6 +78,14 @@ public class Marshaller {
     return this;
   }
 
+  public Marshaller with(@NotNull FieldQuery fieldQuery) {
+    if (this.fieldQuery != null) {
+      throw new IllegalArgumentException("FieldQuery is already set");
+    }
+    this.fieldQuery = fieldQuery;
+    return this;
+  }
+
   /**
    * Builds a {@linkplain Entity} into a {@linkplain DataFactoryEntity} for remote transmission. This
    * method should be called within a database {@linkplain StoreTransaction}.
@@ -83,7 +95,19 @@ public class Marshaller {
   public DataFactoryEntity build() {
     final DataFactoryEntityBuilder builder = new DataFactoryEntityBuilder();
 
-    entity.getPropertyNames().forEach(propertyName -> {
+    // Only the projected properties are read, so excluded values are never deserialized
+    Iterable<String> propertyNames = entity.getPropertyNames();
+    Set<String> excluded = new HashSet<>();
+    if (fieldQuery != null) {
+      if (!fieldQuery.include().isEmpty()) {
+        propertyNames = fieldQuery.include();
+      }
+      excluded.addAll(fieldQuery.exclude());
+    }
+    propertyNames.forEach(propertyName -> {
+      if (excluded.contains(propertyName)) {
+        return;
+      }
       Comparable propertyValue = entity.getProperty(propertyName);
       if (propertyValue != null) {
         if (propertyValue instanceof EmbeddedEntityIterable) {
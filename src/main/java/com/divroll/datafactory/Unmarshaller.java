@@ -44,6 +44,7 @@ import com.divroll.datafactory.conditions.PropertyMinMaxCondition;
 import com.divroll.datafactory.conditions.PropertyNearbyCondition;
 import com.divroll.datafactory.conditions.PropertyStartsWithCondition;
 import com.divroll.datafactory.conditions.PropertyUniqueCondition;
+import com.divroll.datafactory.database.ReverseLinkIndex;
 import com.divroll.datafactory.exceptions.UnsatisfiedConditionException;
 import com.divroll.datafactory.indexers.LuceneIndexer;
 import com.google.common.collect.Range;
@@ -355,11 +356,11 @@ public class Unmarshaller {
               if (isSet) {
                 entityInContext.getLinks(linkName).forEach(otherEntity -> {
                   //otherEntity.deleteLink(linkName, entityInContext);
-                  entityInContext.deleteLink(linkName, otherEntity);
+                  ReverseLinkIndex.deleteLink(entityInContext, linkName, otherEntity, txn);
                 });
-                entityInContext.setLink(linkName, targetEntity);
+                ReverseLinkIndex.setLink(entityInContext, linkName, targetEntity, txn);
               } else {
-                entityInContext.addLink(linkName, targetEntity);
+                ReverseLinkIndex.addLink(entityInContext, linkName, targetEntity, txn);
               }
             }
           } else if (action instanceof OppositeLinkAction) {
@@ -375,14 +376,14 @@ public class Unmarshaller {
               if (isSet) {
                 Entity otherEntity = sourceEntity.getLink(oppositeLinkName);
                 if (otherEntity != null) {
-                  otherEntity.deleteLink(linkName, sourceEntity);
+                  ReverseLinkIndex.deleteLink(otherEntity, linkName, sourceEntity, txn);
                 }
-                sourceEntity.deleteLink(oppositeLinkName, otherEntity);
-                sourceEntity.setLink(oppositeLinkName, entityInContext);
-                entityInContext.setLink(linkName, sourceEntity);
+                ReverseLinkIndex.deleteLink(sourceEntity, oppositeLinkName, otherEntity, txn);
+                ReverseLinkIndex.setLink(sourceEntity, oppositeLinkName, entityInContext, txn);
+                ReverseLinkIndex.setLink(entityInContext, linkName, sourceEntity, txn);
               } else {
-                sourceEntity.addLink(oppositeLinkName, entityInContext);
-                entityInContext.addLink(linkName, sourceEntity);
+                ReverseLinkIndex.addLink(sourceEntity, oppositeLinkName, entityInContext, txn);
+                ReverseLinkIndex.addLink(entityInContext, linkName, sourceEntity, txn);
               }
             }
           } else if (action instanceof LinkRemoveAction) {
@@ -394,7 +395,7 @@ public class Unmarshaller {
             Entity sourceEntity = entityInContext;
             EntityId targetEntityId = txn.toEntityId(targetId);
             Entity targetEntity = txn.getEntity(targetEntityId);
-            sourceEntity.deleteLink(linkName, targetEntity);
+            ReverseLinkIndex.deleteLink(sourceEntity, linkName, targetEntity, txn);
           } else if (action instanceof OppositeLinkRemoveAction) {
             OppositeLinkRemoveAction removeAction = (OppositeLinkRemoveAction) action;
             String linkName = removeAction.linkName();
@@ -404,8 +405,8 @@ public class Unmarshaller {
                 .intersect(txn.findWithLinks(entityInContext.getType(), linkName,
                     oppositeEntityType, oppositeLinkName))
                 .forEach(linkedEntity -> {
-                  linkedEntity.deleteLink(oppositeLinkName, entityInContext);
-                  entityInContext.deleteLink(linkName, linkedEntity);
+                  ReverseLinkIndex.deleteLink(linkedEntity, oppositeLinkName, entityInContext, txn);
+                  ReverseLinkIndex.deleteLink(entityInContext, linkName, linkedEntity, txn);
                 });
           } else if (action instanceof LinkNewEntityAction) {
             LinkNewEntityAction newLinkAction = (LinkNewEntityAction) action;
@@ -416,11 +417,11 @@ public class Unmarshaller {
             if (isSet) {
               entityInContext.getLinks(linkName).forEach(otherEntity -> {
                 //otherEntity.deleteLink(linkName, entityInContext);
-                entityInContext.deleteLink(linkName, otherEntity);
+                ReverseLinkIndex.deleteLink(entityInContext, linkName, otherEntity, txn);
               });
-              entityInContext.setLink(linkName, targetEntity);
+              ReverseLinkIndex.setLink(entityInContext, linkName, targetEntity, txn);
             } else {
-              entityInContext.addLink(linkName, targetEntity);
+              ReverseLinkIndex.addLink(entityInContext, linkName, targetEntity, txn);
             }
           } else if (action instanceof BlobRenameAction) {
             BlobRenameAction blobRenameAction = (BlobRenameAction) action;
@@ -477,7 +478,8 @@ public class Unmarshaller {
             entityInContext.deleteProperty(propertyName);
           } else if (action instanceof CustomAction) {
             CustomAction customAction = (CustomAction) action;
-            customAction.execute(entityInContext);
+            // Links made by the action must reach the reverse link index
+            customAction.execute(ReverseLinkIndex.indexed(entityInContext, txn));
           } else {
             throw new IllegalArgumentException("Invalid entity action");
           }
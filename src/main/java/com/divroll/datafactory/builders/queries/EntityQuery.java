@@ -49,6 +49,19 @@ public interface EntityQuery extends Serializable {
   @Nullable
   String entityId();
 
+  /**
+   * Indicates the entities to get by id, all within one read transaction. Takes precedence over
+   * {@code entityId}, ids of entities that do not exist are skipped and {@code offset} and
+   * {@code max} are ignored.
+   *
+   * @return ids of the {@linkplain DataFactoryEntity} to get, in the order to return them
+   */
+  @Nullable
+  @Value.Default
+  default List<String> entityIds() {
+    return new ArrayList<>();
+  }
+
   /**
    * Indicates the {@code linkNames} to use in the query
    *
@@ -71,6 +84,14 @@ public interface EntityQuery extends Serializable {
     return new ArrayList<>();
   }
 
+  /**
+   * Indicates the properties to return, all properties are returned if not set
+   *
+   * @return properties of {@linkplain DataFactoryEntity} to include or exclude
+   */
+  @Nullable
+  FieldQuery fields();
+
   /**
    * Indicates the query should return only the first entity found
    *
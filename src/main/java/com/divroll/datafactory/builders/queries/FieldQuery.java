@@ -0,0 +1,56 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.builders.queries;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import org.immutables.value.Value;
+
+/**
+ * Projection of the properties returned by an {@linkplain EntityQuery}. Properties left out are
+ * neither read from the store nor sent to the client.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+@Value.Immutable
+@Value.Style(visibility = Value.Style.ImplementationVisibility.PRIVATE)
+public interface FieldQuery extends Serializable {
+
+  /**
+   * Names of the only properties to return, all properties are returned when empty
+   *
+   * @return property names to include
+   */
+  @Value.Default
+  default List<String> include() {
+    return new ArrayList<>();
+  }
+
+  /**
+   * Names of the properties not to return
+   *
+   * @return property names to exclude
+   */
+  @Value.Default
+  default List<String> exclude() {
+    return new ArrayList<>();
+  }
+
+}
@@ -16,6 +16,7 @@
  */
 package com.divroll.datafactory.database;
 
+import java.util.Map;
 import jetbrains.exodus.entitystore.PersistentEntityStore;
 import jetbrains.exodus.entitystore.StoreTransactionalExecutable;
 import jetbrains.exodus.env.ContextualEnvironment;
@@ -38,9 +39,41 @@ public interface DatabaseManager {
   void transactPersistentEntityStore(String dir, boolean isReadOnly,
       StoreTransactionalExecutable tx);
 
+  /**
+   * Open a read-only snapshot of the entity store of the environment that can be used across
+   * calls and threads until it is closed.
+   */
+  ReadSnapshot openReadSnapshot(String dir);
+
   void transactionContextualStore(String dir, String store, StoreTransactionalExecutable tx);
 
   void closeEnvironment(String dir);
 
   void closeEnvironments();
+
+  /**
+   * @return number of environments currently open
+   */
+  int getOpenEnvironmentCount();
+
+  /**
+   * @return number of transactions and snapshots that found their environment open
+   */
+  long getEnvironmentHitCount();
+
+  /**
+   * @return number of transactions and snapshots that had to open their environment
+   */
+  long getEnvironmentMissCount();
+
+  /**
+   * @return number of environments closed for being idle or over the open environment cap
+   */
+  long getEnvironmentEvictionCount();
+
+  /**
+   * @return log cache bytes each open environment may use, environments sharing one cache all
+   * report the size of that cache
+   */
+  Map<String, Long> getLogCacheSizes();
 }
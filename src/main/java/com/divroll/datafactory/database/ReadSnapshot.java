@@ -0,0 +1,96 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.database;
+
+import java.io.Closeable;
+import jetbrains.exodus.entitystore.PersistentEntityStore;
+import jetbrains.exodus.entitystore.PersistentEntityStoreImpl;
+import jetbrains.exodus.entitystore.PersistentStoreTransaction;
+import jetbrains.exodus.entitystore.StoreTransactionalComputable;
+
+/**
+ * A read-only Xodus transaction that outlives a single call. Xodus binds transactions to the
+ * thread that started them, so the snapshot is detached right after it begins and attached to
+ * whichever thread calls {@linkplain #compute(StoreTransactionalComputable)}, which lets
+ * consecutive remote calls served by different threads read the same consistent view.
+ * Snapshots pin old log files until closed and should not be kept open longer than needed.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public final class ReadSnapshot implements Closeable {
+
+  private final PersistentEntityStoreImpl store;
+  private final PersistentStoreTransaction txn;
+  private final Runnable onClose;
+  private boolean closed;
+
+  private ReadSnapshot(PersistentEntityStoreImpl store, PersistentStoreTransaction txn,
+      Runnable onClose) {
+    this.store = store;
+    this.txn = txn;
+    this.onClose = onClose;
+  }
+
+  public static ReadSnapshot open(PersistentEntityStore entityStore) {
+    return open(entityStore, () -> {
+    });
+  }
+
+  /**
+   * Open a snapshot that runs {@code onClose} once it is closed.
+   */
+  public static ReadSnapshot open(PersistentEntityStore entityStore, Runnable onClose) {
+    PersistentEntityStoreImpl store = (PersistentEntityStoreImpl) entityStore;
+    PersistentStoreTransaction txn = store.beginReadonlyTransaction();
+    store.unregisterTransaction(txn);
+    return new ReadSnapshot(store, txn, onClose);
+  }
+
+  /**
+   * Run the computable against the snapshot on the calling thread.
+   */
+  public synchronized <T> T compute(StoreTransactionalComputable<T> computable) {
+    if (closed) {
+      throw new IllegalStateException("Snapshot is already closed");
+    }
+    store.registerTransaction(txn);
+    try {
+      return computable.compute(txn);
+    } finally {
+      store.unregisterTransaction(txn);
+    }
+  }
+
+  public synchronized boolean isClosed() {
+    return closed;
+  }
+
+  @Override public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      store.registerTransaction(txn);
+      txn.abort();
+    } finally {
+      onClose.run();
+    }
+  }
+}
@@ -0,0 +1,328 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.database;
+
+import com.divroll.datafactory.database.impl.DatabaseManagerImpl;
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import jetbrains.exodus.ByteIterable;
+import jetbrains.exodus.bindings.StringBinding;
+import jetbrains.exodus.entitystore.Entity;
+import jetbrains.exodus.entitystore.EntityId;
+import jetbrains.exodus.entitystore.PersistentEntityStore;
+import jetbrains.exodus.entitystore.PersistentStoreTransaction;
+import jetbrains.exodus.entitystore.StoreTransaction;
+import jetbrains.exodus.env.Cursor;
+import jetbrains.exodus.env.Environment;
+import jetbrains.exodus.env.Store;
+import jetbrains.exodus.env.StoreConfig;
+import jetbrains.exodus.env.Transaction;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Index of the links pointing to each entity, kept in a store of the environment next to the
+ * entity store so it is updated in the same transaction as the links. Removing an entity then
+ * unlinks only its actual referrers instead of searching every entity type and link name.
+ *
+ * <p>Links must be changed through the methods of this class, or through an entity wrapped with
+ * {@linkplain #indexed(Entity, StoreTransaction)}, to keep the index up to date. The
+ * index is created with new environments; environments created before it have none until
+ * {@linkplain #rebuild(StoreTransaction)} runs, e.g. from the command line with the environment
+ * directories as arguments. Until then {@linkplain #isBuilt(StoreTransaction)} is {@code false}
+ * and callers fall back to searching.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public final class ReverseLinkIndex {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ReverseLinkIndex.class);
+  private static final String STORE_NAME = "datafactory.reverseLinks";
+  private static final char SEPARATOR = ' ';
+
+  private ReverseLinkIndex() {
+  }
+
+  /**
+   * A link from the referrer to the entity the index was searched for.
+   */
+  public static final class Referrer {
+    private final String entityId;
+    private final String linkName;
+
+    private Referrer(String entityId, String linkName) {
+      this.entityId = entityId;
+      this.linkName = linkName;
+    }
+
+    public String getEntityId() {
+      return entityId;
+    }
+
+    public String getLinkName() {
+      return linkName;
+    }
+  }
+
+  /**
+   * Create the index if the entity store is still empty, in which case there is nothing to index
+   * yet.
+   */
+  public static void initialize(StoreTransaction txn) {
+    if (txn.getEntityTypes().isEmpty()) {
+      environment(txn).openStore(STORE_NAME, StoreConfig.WITH_DUPLICATES, transaction(txn));
+    }
+  }
+
+  public static boolean isBuilt(StoreTransaction txn) {
+    return environment(txn).storeExists(STORE_NAME, transaction(txn));
+  }
+
+  public static boolean addLink(Entity source, String linkName, Entity target,
+      StoreTransaction txn) {
+    boolean added = source.addLink(linkName, target);
+    if (added) {
+      put(source, linkName, target.getId(), txn);
+    }
+    return added;
+  }
+
+  public static boolean setLink(Entity source, String linkName, @Nullable Entity target,
+      StoreTransaction txn) {
+    Set<EntityId> previous = targets(source, linkName);
+    boolean changed = source.setLink(linkName, target);
+    Set<EntityId> current = targets(source, linkName);
+    for (EntityId entityId : previous) {
+      if (!current.contains(entityId)) {
+        remove(source, linkName, entityId, txn);
+      }
+    }
+    for (EntityId entityId : current) {
+      if (!previous.contains(entityId)) {
+        put(source, linkName, entityId, txn);
+      }
+    }
+    return changed;
+  }
+
+  public static boolean deleteLink(Entity source, String linkName, @Nullable Entity target,
+      StoreTransaction txn) {
+    boolean deleted = source.deleteLink(linkName, target);
+    if (deleted && target != null) {
+      remove(source, linkName, target.getId(), txn);
+    }
+    return deleted;
+  }
+
+  /**
+   * Delete all links of the entity.
+   */
+  public static void deleteLinks(Entity source, StoreTransaction txn) {
+    for (String linkName : source.getLinkNames()) {
+      deleteLinks(source, linkName, txn);
+    }
+  }
+
+  /**
+   * Delete the links of the entity with the given name.
+   */
+  public static void deleteLinks(Entity source, String linkName, StoreTransaction txn) {
+    Set<EntityId> targets = targets(source, linkName);
+    source.deleteLinks(linkName);
+    targets.forEach(target -> remove(source, linkName, target, txn));
+  }
+
+  /**
+   * Wrap the entity so the links changed through it, e.g. by a
+   * {@linkplain com.divroll.datafactory.actions.CustomAction}, keep the index up to date.
+   */
+  public static Entity indexed(Entity entity, StoreTransaction txn) {
+    return (Entity) Proxy.newProxyInstance(Entity.class.getClassLoader(),
+        new Class<?>[] {Entity.class}, new IndexedEntity(entity, txn));
+  }
+
+  private static final class IndexedEntity implements InvocationHandler {
+    private final Entity entity;
+    private final StoreTransaction txn;
+
+    IndexedEntity(Entity entity, StoreTransaction txn) {
+      this.entity = entity;
+      this.txn = txn;
+    }
+
+    @Override public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      switch (method.getName()) {
+        case "addLink":
+          return addLink(entity, (String) args[0], (Entity) unwrap(args[1]), txn);
+        case "setLink":
+          return setLink(entity, (String) args[0], (Entity) unwrap(args[1]), txn);
+        case "deleteLink":
+          return deleteLink(entity, (String) args[0], (Entity) unwrap(args[1]), txn);
+        case "deleteLinks":
+          deleteLinks(entity, (String) args[0], txn);
+          return null;
+        case "equals":
+          return entity.equals(unwrap(args[0]));
+        case "delete":
+          deleteLinks(entity, txn);
+          return entity.delete();
+        default:
+          try {
+            return method.invoke(entity, args);
+          } catch (InvocationTargetException e) {
+            throw e.getCause();
+          }
+      }
+    }
+
+    private static Object unwrap(Object object) {
+      if (object != null && Proxy.isProxyClass(object.getClass())
+          && Proxy.getInvocationHandler(object) instanceof IndexedEntity) {
+        return ((IndexedEntity) Proxy.getInvocationHandler(object)).entity;
+      }
+      return object;
+    }
+  }
+
+  /**
+   * @return the links pointing to the entity, empty if the index is not built
+   */
+  public static List<Referrer> findReferrers(Entity target, StoreTransaction txn) {
+    List<Referrer> referrers = new ArrayList<>();
+    Store store = store(txn);
+    if (store == null) {
+      return referrers;
+    }
+    try (Cursor cursor = store.openCursor(transaction(txn))) {
+      ByteIterable key = key(target.getId());
+      if (cursor.getSearchKey(key) != null) {
+        do {
+          String value = StringBinding.entryToString(cursor.getValue());
+          int separator = value.indexOf(SEPARATOR);
+          referrers.add(new Referrer(value.substring(0, separator),
+              value.substring(separator + 1)));
+        } while (cursor.getNextDup());
+      }
+    }
+    return referrers;
+  }
+
+  /**
+   * Drop the entries of a removed entity that may be left after its referrers were unlinked.
+   */
+  public static void forget(EntityId target, StoreTransaction txn) {
+    Store store = store(txn);
+    if (store != null) {
+      store.delete(transaction(txn), key(target));
+    }
+  }
+
+  /**
+   * Index the links of every entity, replacing the current index if any.
+   *
+   * @return number of links indexed
+   */
+  public static long rebuild(StoreTransaction txn) {
+    Environment environment = environment(txn);
+    Transaction transaction = transaction(txn);
+    if (environment.storeExists(STORE_NAME, transaction)) {
+      environment.truncateStore(STORE_NAME, transaction);
+    }
+    Store store = environment.openStore(STORE_NAME, StoreConfig.WITH_DUPLICATES, transaction);
+    long count = 0;
+    for (String entityType : txn.getEntityTypes()) {
+      for (Entity source : txn.getAll(entityType)) {
+        for (String linkName : source.getLinkNames()) {
+          for (Entity target : source.getLinks(linkName)) {
+            store.put(transaction, key(target.getId()), value(source, linkName));
+            count++;
+          }
+        }
+      }
+    }
+    return count;
+  }
+
+  private static Set<EntityId> targets(Entity source, String linkName) {
+    Set<EntityId> targets = new HashSet<>();
+    source.getLinks(linkName).forEach(target -> targets.add(target.getId()));
+    return targets;
+  }
+
+  private static void put(Entity source, String linkName, EntityId target,
+      StoreTransaction txn) {
+    Store store = store(txn);
+    if (store != null) {
+      store.put(transaction(txn), key(target), value(source, linkName));
+    }
+  }
+
+  private static void remove(Entity source, String linkName, EntityId target,
+      StoreTransaction txn) {
+    Store store = store(txn);
+    if (store != null) {
+      try (Cursor cursor = store.openCursor(transaction(txn))) {
+        if (cursor.getSearchBoth(key(target), value(source, linkName))) {
+          cursor.deleteCurrent();
+        }
+      }
+    }
+  }
+
+  @Nullable private static Store store(StoreTransaction txn) {
+    return environment(txn).openStore(STORE_NAME, StoreConfig.WITH_DUPLICATES, transaction(txn),
+        false);
+  }
+
+  private static ByteIterable key(EntityId entityId) {
+    return StringBinding.stringToEntry(entityId.toString());
+  }
+
+  private static ByteIterable value(Entity source, String linkName) {
+    return StringBinding.stringToEntry(source.getId().toString() + SEPARATOR + linkName);
+  }
+
+  private static Environment environment(StoreTransaction txn) {
+    return ((PersistentEntityStore) txn.getStore()).getEnvironment();
+  }
+
+  private static Transaction transaction(StoreTransaction txn) {
+    return ((PersistentStoreTransaction) txn).getEnvironmentTransaction();
+  }
+
+  /**
+   * Rebuild the index of the environments in the given directories.
+   */
+  public static void main(final String[] args) {
+    DatabaseManager manager = DatabaseManagerImpl.getInstance();
+    for (String dir : args) {
+      manager.transactPersistentEntityStore(dir, false, txn -> {
+        LOG.info("Indexed " + rebuild(txn) + " links of " + dir);
+      });
+    }
+    manager.closeEnvironments();
+  }
+}
@@ -16,6 +16,7 @@
  */
 package com.divroll.datafactory.database.impl;
 
+import com.divroll.datafactory.Constants;
 import com.divroll.datafactory.GeoPoint;
 import com.divroll.datafactory.LocalTimeRange;
 import com.divroll.datafactory.bindings.EmbeddedEntityBinding;
@@ -23,19 +24,34 @@ import com.divroll.datafactory.bindings.GeoPointBinding;
 import com.divroll.datafactory.bindings.LocalTimeBinding;
 import com.divroll.datafactory.bindings.LocalTimeRangeBinding;
 import com.divroll.datafactory.database.DatabaseManager;
+import com.divroll.datafactory.database.ReadSnapshot;
+import com.divroll.datafactory.database.ReverseLinkIndex;
+import com.divroll.datafactory.exceptions.DataFactoryException;
 import com.divroll.datafactory.exceptions.ThrowingConsumer;
 import com.divroll.datafactory.properties.EmbeddedArrayIterable;
 import com.divroll.datafactory.properties.EmbeddedEntityIterable;
 import com.godaddy.logging.Logger;
 import com.godaddy.logging.LoggerFactory;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import jetbrains.exodus.bindings.ComparableBinding;
@@ -71,43 +87,74 @@ public final class DatabaseManagerImpl implements DatabaseManager {
   private static final int DEFAULT_LOCK_TIMEOUT = 30000;
   private static final String DEFAULT_ENTITYSTORE_NAME = "persistentEntityStore";
 
-  Map<String, ContextualEnvironment> contextualEnvironmentMap;
-  Map<String, ExodusDirectory> exodusDirectoryMap;
-  Map<String, Environment> environmentMap;
-  Map<String, PersistentEntityStore> entityStoreMap;
+  /**
+   * Environments, entity stores and directories by environment path. Each is opened once, on first
+   * use, by the first caller while callers of other environments open theirs in parallel.
+   */
+  private final ConcurrentMap<String, Registration<Environment>> environmentMap =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Registration<PersistentEntityStore>> entityStoreMap =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Registration<ExodusDirectory>> exodusDirectoryMap =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Usage> usageMap = new ConcurrentHashMap<>();
 
-  private static DatabaseManagerImpl instance;
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+  private volatile int maxOpenEnvironments;
+  private volatile long idleTimeoutMillis;
+  private volatile LogCacheBudget logCacheBudget;
+  private ScheduledExecutorService sweeper;
+  private ScheduledFuture<?> sweep;
+  private ScheduledFuture<?> rebalance;
+
+  private static volatile DatabaseManagerImpl instance;
 
   private DatabaseManagerImpl() {
     if (instance != null) {
       throw new RuntimeException("Only one instance of DatabaseManager is allowed");
     }
-    entityStoreMap = new HashMap<>();
-    environmentMap = new HashMap<>();
-    contextualEnvironmentMap = new HashMap<>();
-    exodusDirectoryMap = new HashMap<>();
+    configureEviction(
+        Integer.valueOf(System.getProperty(
+            Constants.DATAFACTORY_ENVIRONMENT_MAX_OPEN_ENVIRONMENT,
+            Constants.DATAFACTORY_ENVIRONMENT_MAX_OPEN_DEFAULT)),
+        Long.valueOf(System.getProperty(
+            Constants.DATAFACTORY_ENVIRONMENT_IDLE_TIMEOUT_ENVIRONMENT,
+            Constants.DATAFACTORY_ENVIRONMENT_IDLE_TIMEOUT_DEFAULT)));
+    configureLogCache(LogCacheBudget.fromSystemProperties());
   }
 
   public static DatabaseManagerImpl getInstance() {
-    if (instance == null) {
-      instance = new DatabaseManagerImpl();
+    DatabaseManagerImpl result = instance;
+    if (result == null) {
+      synchronized (DatabaseManagerImpl.class) {
+        result = instance;
+        if (result == null) {
+          result = new DatabaseManagerImpl();
+          instance = result;
+        }
+      }
     }
-    return instance;
+    return result;
   }
 
   @Override
   public Environment getEnvironment(String dir, boolean isContextual) {
-    Environment environment = environmentMap.get(dir);
-    if (environment == null) {
+    return environmentMap.computeIfAbsent(dir, key -> new Registration<>(() -> {
       EnvironmentConfig config = new EnvironmentConfig();
-      config.setLogCacheShared(false);
       config.setEnvCloseForcedly(true);
       config.setManagementEnabled(false);
       config.setLogLockTimeout(DEFAULT_LOCK_TIMEOUT);
-      environment = deleteLockingProcessAndGetEnvironment(dir, config, isContextual);
-      environmentMap.put(dir, environment);
-    }
-    return environment;
+      LogCacheBudget budget = logCacheBudget;
+      budget.configure(key, config);
+      Environment environment = deleteLockingProcessAndGetEnvironment(key, config, isContextual);
+      if (environment == null) {
+        budget.release(key);
+        throw new DataFactoryException("Unable to open environment " + key);
+      }
+      return environment;
+    })).get();
   }
 
   @Override
@@ -118,14 +165,12 @@ public final class DatabaseManagerImpl implements DatabaseManager {
 
   @Override public PersistentEntityStore getPersistentEntityStore(String dir, String storeName,
       boolean isReadOnly) {
-    PersistentEntityStore entityStore = entityStoreMap.get(dir);
-    if (entityStore == null) {
-      Environment environment = getEnvironment(dir, false);
+    return entityStoreMap.computeIfAbsent(dir, key -> new Registration<>(() -> {
+      Environment environment = getEnvironment(key, false);
       final PersistentEntityStoreConfig config = new PersistentEntityStoreConfig()
           .setRefactoringHeavyLinks(true)
-          .setDebugSearchForIncomingLinksOnDelete(true)
           .setManagementEnabled(false);
-      entityStore =
+      PersistentEntityStore entityStore =
           PersistentEntityStores.newInstance(config, environment,
               storeName != null ? storeName : DEFAULT_ENTITYSTORE_NAME);
       entityStore.executeInTransaction(
@@ -140,29 +185,45 @@ public final class DatabaseManagerImpl implements DatabaseManager {
                 txn, GeoPoint.class, GeoPointBinding.BINDING);
             ((PersistentEntityStore) txn.getStore()).registerCustomPropertyType(
                 txn, LocalTimeRange.class, LocalTimeRangeBinding.BINDING);
-            entityStoreMap.put(dir,
-                ((PersistentEntityStore) txn.getStore()));
+            ReverseLinkIndex.initialize(txn);
           });
-    }
-    return entityStore;
+      return entityStore;
+    })).get();
   }
 
   @Override public ExodusDirectory getExodusDirectory(String dir) {
-    ContextualEnvironment env = (ContextualEnvironment) getEnvironment(dir, true);
-    ExodusDirectory exodusDirectory = exodusDirectoryMap.get(dir);
-    if(exodusDirectory == null) {
-      exodusDirectory = new ExodusDirectory(env, VfsConfig.DEFAULT, StoreConfig.WITHOUT_DUPLICATES_WITH_PREFIXING, new ExodusDirectoryConfig());
-      exodusDirectoryMap.put(dir, exodusDirectory);
-    }
-    return exodusDirectoryMap.get(dir);
+    return exodusDirectoryMap.computeIfAbsent(dir, key -> new Registration<>(() -> {
+      ContextualEnvironment env = (ContextualEnvironment) getEnvironment(key, true);
+      return new ExodusDirectory(env, VfsConfig.DEFAULT,
+          StoreConfig.WITHOUT_DUPLICATES_WITH_PREFIXING, new ExodusDirectoryConfig());
+    })).get();
   }
 
   @Override
   public void transactPersistentEntityStore(String dir, boolean isReadOnly,
       StoreTransactionalExecutable txn) {
-    final PersistentEntityStore entityStore =
-        getPersistentEntityStore(dir, isReadOnly);
-    entityStore.executeInTransaction(txn);
+    Usage usage = acquire(dir);
+    try {
+      final PersistentEntityStore entityStore =
+          getPersistentEntityStore(dir, isReadOnly);
+      if (isReadOnly) {
+        entityStore.executeInReadonlyTransaction(txn);
+      } else {
+        entityStore.executeInTransaction(txn);
+      }
+    } finally {
+      usage.release();
+    }
+  }
+
+  @Override public ReadSnapshot openReadSnapshot(String dir) {
+    Usage usage = acquire(dir);
+    try {
+      return ReadSnapshot.open(getPersistentEntityStore(dir, true), usage::release);
+    } catch (RuntimeException e) {
+      usage.release();
+      throw e;
+    }
   }
 
   @Override public void transactionContextualStore(String dir, String store, StoreTransactionalExecutable tx) {
@@ -171,16 +232,195 @@ public final class DatabaseManagerImpl implements DatabaseManager {
   }
 
   @Override public void closeEnvironment(String dir) {
-    PersistentEntityStore entityStore = entityStoreMap.get(dir);
-    entityStore.getEnvironment().close();
-    entityStore.close();
+    // Unregister first so later callers open the environment again
+    exodusDirectoryMap.remove(dir);
+    Registration<PersistentEntityStore> entityStore = entityStoreMap.remove(dir);
+    Registration<Environment> environment = environmentMap.remove(dir);
+    if (entityStore != null && entityStore.peek() != null) {
+      entityStore.peek().getEnvironment().close();
+      entityStore.peek().close();
+    } else if (environment != null && environment.peek() != null) {
+      environment.peek().close();
+    }
+    logCacheBudget.release(dir);
   }
 
   @Override public void closeEnvironments() {
-    entityStoreMap.forEach((dir, entityStore) -> {
-      entityStore.getEnvironment().close();
-      entityStore.close();
+    new ArrayList<>(environmentMap.keySet()).forEach(this::closeEnvironment);
+  }
+
+  @Override public int getOpenEnvironmentCount() {
+    return (int) environmentMap.values().stream()
+        .filter(environment -> environment.peek() != null)
+        .count();
+  }
+
+  @Override public long getEnvironmentHitCount() {
+    return hitCount.get();
+  }
+
+  @Override public long getEnvironmentMissCount() {
+    return missCount.get();
+  }
+
+  @Override public long getEnvironmentEvictionCount() {
+    return evictionCount.get();
+  }
+
+  @Override public Map<String, Long> getLogCacheSizes() {
+    Map<String, Long> sizes = new HashMap<>();
+    environmentMap.forEach((dir, registration) -> {
+      Environment environment = registration.peek();
+      if (environment != null) {
+        EnvironmentConfig config = environment.getEnvironmentConfig();
+        Long memoryUsage = config.getMemoryUsage();
+        sizes.put(dir, memoryUsage != null && memoryUsage > 0 ? memoryUsage
+            : Runtime.getRuntime().maxMemory() * config.getMemoryUsagePercentage() / 100);
+      }
     });
+    return sizes;
+  }
+
+  /**
+   * Set the log cache budget of environments opened from now on, see {@linkplain LogCacheBudget}.
+   * With {@linkplain LogCacheBudget.Mode#QUOTA} the quotas are rebalanced every half-life by
+   * closing idle environments far from their quota, they reopen with it on their next use.
+   */
+  public synchronized void configureLogCache(LogCacheBudget logCacheBudget) {
+    this.logCacheBudget = logCacheBudget;
+    if (rebalance != null) {
+      rebalance.cancel(false);
+      rebalance = null;
+    }
+    if (logCacheBudget.getMode() == LogCacheBudget.Mode.QUOTA) {
+      long period = logCacheBudget.getHalfLifeMillis();
+      rebalance = sweeper().scheduleWithFixedDelay(this::rebalanceLogCache, period, period,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Limit the number of open environments. Environments without transactions or snapshots in
+   * progress are closed, least recently used first, when more than {@code maxOpenEnvironments}
+   * are open or when idle for longer than {@code idleTimeoutMillis}, and are reopened on their
+   * next use. Zero disables either limit.
+   */
+  public synchronized void configureEviction(int maxOpenEnvironments, long idleTimeoutMillis) {
+    Preconditions.checkArgument(maxOpenEnvironments >= 0,
+        "maxOpenEnvironments should not be negative");
+    Preconditions.checkArgument(idleTimeoutMillis >= 0, "idleTimeoutMillis should not be negative");
+    this.maxOpenEnvironments = maxOpenEnvironments;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    if (sweep != null) {
+      sweep.cancel(false);
+      sweep = null;
+    }
+    if (idleTimeoutMillis > 0) {
+      long period = Math.max(1, idleTimeoutMillis / 2);
+      sweep = sweeper().scheduleWithFixedDelay(this::evictIdle, period, period,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private synchronized ScheduledExecutorService sweeper() {
+    if (sweeper == null) {
+      sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("datafactory-environment-sweeper-%d")
+          .setDaemon(true)
+          .build());
+    }
+    return sweeper;
+  }
+
+  /**
+   * Mark the environment as in use so it is not evicted until released.
+   */
+  private Usage acquire(String dir) {
+    Usage usage = usageMap.computeIfAbsent(dir, Usage::new);
+    usage.acquire();
+    logCacheBudget.recordAccess(dir);
+    Registration<PersistentEntityStore> entityStore = entityStoreMap.get(dir);
+    if (entityStore != null && entityStore.peek() != null) {
+      hitCount.incrementAndGet();
+    } else {
+      missCount.incrementAndGet();
+      if (maxOpenEnvironments > 0 || logCacheBudget.getMode() == LogCacheBudget.Mode.QUOTA) {
+        try {
+          // Open before evicting so the new environment counts towards the limits
+          getPersistentEntityStore(dir, false);
+          evictOverCapacity();
+        } catch (RuntimeException e) {
+          usage.release();
+          throw e;
+        }
+      }
+    }
+    return usage;
+  }
+
+  /**
+   * Close the least recently used environments over the cap, then the least frequently used over
+   * the log cache budget.
+   */
+  private void evictOverCapacity() {
+    while (true) {
+      Comparator<Usage> order;
+      if (maxOpenEnvironments > 0 && getOpenEnvironmentCount() > maxOpenEnvironments) {
+        order = Comparator.comparingLong(Usage::lastAccess);
+      } else if (logCacheBudget.getOverBudgetBytes() > 0) {
+        LogCacheBudget budget = logCacheBudget;
+        order = Comparator.comparingLong(usage -> budget.getAccessCount(usage.dir));
+      } else {
+        return;
+      }
+      Usage victim = environmentMap.keySet().stream()
+          .map(dir -> usageMap.computeIfAbsent(dir, Usage::new))
+          .filter(Usage::isIdle)
+          .min(order)
+          .orElse(null);
+      // Environments in use are never closed, the limits are exceeded until they are released
+      if (victim == null || !evict(victim)) {
+        return;
+      }
+    }
+  }
+
+  private void evictIdle() {
+    try {
+      long idleSince = System.currentTimeMillis() - idleTimeoutMillis;
+      new ArrayList<>(environmentMap.keySet()).stream()
+          .map(dir -> usageMap.computeIfAbsent(dir, Usage::new))
+          .filter(usage -> usage.isIdle() && usage.lastAccess() < idleSince)
+          .forEach(this::evict);
+    } catch (RuntimeException e) {
+      LOG.error("Unable to evict idle environments", e);
+    }
+  }
+
+  /**
+   * Close the idle environments whose log cache quota is far from what their recent use would
+   * get them now.
+   */
+  private void rebalanceLogCache() {
+    try {
+      logCacheBudget.rebalance().stream()
+          .map(dir -> usageMap.computeIfAbsent(dir, Usage::new))
+          .forEach(this::evict);
+    } catch (RuntimeException e) {
+      LOG.error("Unable to rebalance log cache quotas", e);
+    }
+  }
+
+  private boolean evict(Usage usage) {
+    synchronized (usage) {
+      if (!usage.isIdle() || !environmentMap.containsKey(usage.dir)) {
+        return false;
+      }
+      closeEnvironment(usage.dir);
+    }
+    evictionCount.incrementAndGet();
+    LOG.info("Closed environment " + usage.dir);
+    return true;
   }
 
   private Environment deleteLockingProcessAndGetEnvironment(String dir,
@@ -251,4 +491,70 @@ public final class DatabaseManagerImpl implements DatabaseManager {
       }
     };
   }
+
+  /**
+   * Transactions and snapshots in progress on an environment and when it was last used. The
+   * environment is closed only while holding this lock with no transactions in progress.
+   */
+  private static final class Usage {
+    private final String dir;
+    private int inFlight;
+    private long lastAccess = System.currentTimeMillis();
+
+    private Usage(String dir) {
+      this.dir = dir;
+    }
+
+    private synchronized void acquire() {
+      inFlight++;
+      lastAccess = System.currentTimeMillis();
+    }
+
+    private synchronized void release() {
+      inFlight--;
+      lastAccess = System.currentTimeMillis();
+    }
+
+    private synchronized boolean isIdle() {
+      return inFlight == 0;
+    }
+
+    private synchronized long lastAccess() {
+      return lastAccess;
+    }
+  }
+
+  /**
+   * A resource opened on the first call to {@linkplain #get()}. Only that call opens it, concurrent
+   * callers wait for it. If opening fails, the next call tries again.
+   */
+  private static final class Registration<T> {
+    private final Supplier<T> opener;
+    private volatile T value;
+
+    private Registration(Supplier<T> opener) {
+      this.opener = opener;
+    }
+
+    private T get() {
+      T result = value;
+      if (result == null) {
+        synchronized (this) {
+          result = value;
+          if (result == null) {
+            result = opener.get();
+            value = result;
+          }
+        }
+      }
+      return result;
+    }
+
+    /**
+     * @return the resource, or {@code null} if it is not open yet
+     */
+    private T peek() {
+      return value;
+    }
+  }
 }
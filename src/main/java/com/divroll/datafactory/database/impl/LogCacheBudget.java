@@ -0,0 +1,243 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.database.impl;
+
+import com.divroll.datafactory.Constants;
+import com.google.common.base.Preconditions;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.exodus.env.EnvironmentConfig;
+
+/**
+ * One memory budget for the Xodus log caches of all environments opened by
+ * {@linkplain DatabaseManagerImpl}. Xodus sizes a log cache once, when its environment opens, so
+ * the budget is applied at that time:
+ *
+ * <ul>
+ *   <li>{@linkplain Mode#PRIVATE} gives every environment its own cache of the Xodus default size,
+ *   the budget is not enforced</li>
+ *   <li>{@linkplain Mode#SHARED} makes all environments use one cache the size of the budget</li>
+ *   <li>{@linkplain Mode#QUOTA} gives every environment its own cache sized by how often it was
+ *   used recently relative to the other open environments, but never more than a fair share of
+ *   the budget so there is room for the next environment to open</li>
+ * </ul>
+ *
+ * Access counts halve every half-life and are dropped once their environment is closed. As the
+ * counts change, {@linkplain #rebalance()} tells which open environments are far enough from their
+ * quota to be worth reopening.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class LogCacheBudget {
+
+  public enum Mode {
+    PRIVATE,
+    SHARED,
+    QUOTA
+  }
+
+  private final Mode mode;
+  private final long budgetBytes;
+  private final long minQuotaBytes;
+  private final long halfLifeMillis;
+
+  private final ConcurrentMap<String, AtomicLong> accessCounts = new ConcurrentHashMap<>();
+  private final Map<String, Long> quotas = new HashMap<>();
+  private long decayedAt = System.currentTimeMillis();
+
+  public LogCacheBudget(Mode mode, long budgetBytes, long minQuotaBytes) {
+    this(mode, budgetBytes, minQuotaBytes,
+        Long.valueOf(Constants.DATAFACTORY_LOG_CACHE_HALF_LIFE_DEFAULT));
+  }
+
+  public LogCacheBudget(Mode mode, long budgetBytes, long minQuotaBytes, long halfLifeMillis) {
+    Preconditions.checkArgument(budgetBytes >= 0, "budgetBytes should not be negative");
+    Preconditions.checkArgument(mode != Mode.QUOTA || budgetBytes >= minQuotaBytes,
+        "budgetBytes should not be less than minQuotaBytes");
+    Preconditions.checkArgument(minQuotaBytes > 0, "minQuotaBytes should be greater than zero");
+    Preconditions.checkArgument(halfLifeMillis > 0, "halfLifeMillis should be greater than zero");
+    this.mode = mode;
+    this.budgetBytes = budgetBytes;
+    this.minQuotaBytes = minQuotaBytes;
+    this.halfLifeMillis = halfLifeMillis;
+  }
+
+  public static LogCacheBudget fromSystemProperties() {
+    return new LogCacheBudget(
+        Mode.valueOf(System.getProperty(Constants.DATAFACTORY_LOG_CACHE_MODE_ENVIRONMENT,
+            Constants.DATAFACTORY_LOG_CACHE_MODE_DEFAULT).toUpperCase()),
+        Long.valueOf(System.getProperty(Constants.DATAFACTORY_LOG_CACHE_BUDGET_ENVIRONMENT,
+            Constants.DATAFACTORY_LOG_CACHE_BUDGET_DEFAULT)),
+        Long.valueOf(System.getProperty(Constants.DATAFACTORY_LOG_CACHE_MIN_QUOTA_ENVIRONMENT,
+            Constants.DATAFACTORY_LOG_CACHE_MIN_QUOTA_DEFAULT)),
+        Long.valueOf(System.getProperty(Constants.DATAFACTORY_LOG_CACHE_HALF_LIFE_ENVIRONMENT,
+            Constants.DATAFACTORY_LOG_CACHE_HALF_LIFE_DEFAULT)));
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  public long getBudgetBytes() {
+    return budgetBytes;
+  }
+
+  public long getHalfLifeMillis() {
+    return halfLifeMillis;
+  }
+
+  /**
+   * Count a use of the environment towards its share of the budget.
+   */
+  public void recordAccess(String dir) {
+    accessCounts.computeIfAbsent(dir, key -> new AtomicLong()).incrementAndGet();
+  }
+
+  /**
+   * Size the log cache of an environment about to be opened.
+   */
+  public synchronized void configure(String dir, EnvironmentConfig config) {
+    switch (mode) {
+      case SHARED:
+        config.setLogCacheShared(true);
+        if (budgetBytes > 0) {
+          config.setMemoryUsage(budgetBytes);
+        }
+        break;
+      case QUOTA:
+        config.setLogCacheShared(false);
+        decay();
+        long quota = quota(dir);
+        config.setMemoryUsage(quota);
+        quotas.put(dir, quota);
+        break;
+      default:
+        config.setLogCacheShared(false);
+    }
+  }
+
+  /**
+   * Return the quota of a closed environment to the budget.
+   */
+  public synchronized void release(String dir) {
+    quotas.remove(dir);
+  }
+
+  /**
+   * Decay the access counts and compare the quota of every open environment with the one it would
+   * get if reopened now.
+   *
+   * @return open environments with less than half or more than twice the quota they would get,
+   * closing them lets them reopen with it
+   */
+  public synchronized Set<String> rebalance() {
+    Set<String> unbalanced = new HashSet<>();
+    if (mode != Mode.QUOTA) {
+      return unbalanced;
+    }
+    decay();
+    long allocated = quotas.values().stream().mapToLong(Long::longValue).sum();
+    quotas.forEach((dir, quota) -> {
+      long target = target(dir, quotas.keySet());
+      if (quota > 2 * target
+          || (2 * quota < target && budgetBytes - allocated + quota >= target)) {
+        unbalanced.add(dir);
+      }
+    });
+    return unbalanced;
+  }
+
+  /**
+   * @return bytes allocated to open environments over the budget, zero if within it
+   */
+  public synchronized long getOverBudgetBytes() {
+    if (mode != Mode.QUOTA) {
+      return 0;
+    }
+    long allocated = quotas.values().stream().mapToLong(Long::longValue).sum();
+    return Math.max(0, allocated - budgetBytes);
+  }
+
+  /**
+   * @return log cache bytes allocated to each open environment in {@linkplain Mode#QUOTA}
+   */
+  public synchronized Map<String, Long> getQuotas() {
+    return Collections.unmodifiableMap(new HashMap<>(quotas));
+  }
+
+  public long getAccessCount(String dir) {
+    AtomicLong count = accessCounts.get(dir);
+    return count != null ? count.get() : 0;
+  }
+
+  /**
+   * Halve the access counts for every half-life elapsed since they were last decayed and drop
+   * those of environments that are no longer open.
+   */
+  private void decay() {
+    long now = System.currentTimeMillis();
+    long halfLives = (now - decayedAt) / halfLifeMillis;
+    if (halfLives == 0) {
+      return;
+    }
+    decayedAt += halfLives * halfLifeMillis;
+    int shift = (int) Math.min(halfLives, Long.SIZE - 1);
+    accessCounts.forEach((dir, count) -> count.updateAndGet(accesses -> accesses >> shift));
+    accessCounts.keySet().removeIf(dir -> !quotas.containsKey(dir));
+  }
+
+  /**
+   * The quota the environment would get if opened next to the other open ones, limited to what
+   * they leave unallocated but never less than the minimum quota. The minimum may take the budget
+   * over, in which case {@linkplain #getOverBudgetBytes()} tells how much has to be closed.
+   */
+  private long quota(String dir) {
+    Set<String> open = new HashSet<>(quotas.keySet());
+    open.add(dir);
+    long allocated = 0;
+    for (Map.Entry<String, Long> other : quotas.entrySet()) {
+      if (!other.getKey().equals(dir)) {
+        allocated += other.getValue();
+      }
+    }
+    return Math.max(minQuotaBytes, Math.min(target(dir, open), budgetBytes - allocated));
+  }
+
+  /**
+   * The share of the budget proportional to the recent accesses of the environment among the open
+   * ones, capped at a fair share that leaves room for one more environment.
+   */
+  private long target(String dir, Collection<String> open) {
+    long accesses = Math.max(1, getAccessCount(dir));
+    long total = 0;
+    for (String other : open) {
+      total += Math.max(1, getAccessCount(other));
+    }
+    long share = (long) (budgetBytes * ((double) accesses / total));
+    long fairShare = budgetBytes / (open.size() + 1);
+    return Math.max(minQuotaBytes, Math.min(share, fairShare));
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.exceptions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Thrown when a request spanning several environments failed in some of them. Each environment
+ * commits in its own transaction, so the writes to the committed environments stand while those
+ * to the failed environments were rolled back, only the failed ones should be retried.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class PartialFailureException extends DataFactoryException {
+
+  private final List<String> committedEnvironments;
+  private final Map<String, String> failedEnvironments;
+
+  /**
+   * @param committedEnvironments environments whose transactions committed
+   * @param failures              error of each environment whose transaction failed
+   */
+  public PartialFailureException(List<String> committedEnvironments,
+      Map<String, Throwable> failures) {
+    super("Failed in " + failures.size() + " of "
+        + (committedEnvironments.size() + failures.size()) + " environments: " + failures);
+    this.committedEnvironments = new ArrayList<>(committedEnvironments);
+    this.failedEnvironments = new LinkedHashMap<>();
+    failures.forEach((environment, error) -> failedEnvironments.put(environment,
+        error.toString()));
+  }
+
+  public List<String> getCommittedEnvironments() {
+    return Collections.unmodifiableList(committedEnvironments);
+  }
+
+  /**
+   * @return the error message of each failed environment
+   */
+  public Map<String, String> getFailedEnvironments() {
+    return Collections.unmodifiableMap(failedEnvironments);
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.exceptions;
+
+/**
+ * Thrown when the server is too busy to accept a request. Nothing was executed, so the request
+ * can safely be retried after backing off.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class RequestRejectedException extends DataFactoryException {
+
+  private final String lane;
+
+  public RequestRejectedException(String lane, String reason) {
+    super("Request rejected by the " + lane + " lane: " + reason);
+    this.lane = lane;
+  }
+
+  public String getLane() {
+    return lane;
+  }
+
+  public boolean isRetryable() {
+    return true;
+  }
+}
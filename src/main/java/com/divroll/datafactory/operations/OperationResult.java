@@ -0,0 +1,40 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.operations;
+
+import com.divroll.datafactory.builders.DataFactoryEntities;
+import java.io.Serializable;
+import javax.annotation.Nullable;
+import org.immutables.value.Value;
+
+/**
+ * Result of a single {@linkplain Operation}, saves and gets return the entities while removes and
+ * property operations return whether they succeeded.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+@Value.Immutable
+@Value.Style(visibility = Value.Style.ImplementationVisibility.PRIVATE)
+public interface OperationResult extends Serializable {
+  @Nullable
+  DataFactoryEntities entities();
+
+  @Nullable
+  Boolean success();
+}
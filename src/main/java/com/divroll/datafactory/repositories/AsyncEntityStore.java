@@ -0,0 +1,101 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories;
+
+import com.divroll.datafactory.builders.DataFactoryEntities;
+import com.divroll.datafactory.builders.DataFactoryEntity;
+import com.divroll.datafactory.builders.DataFactoryEntityTypes;
+import com.divroll.datafactory.builders.DataFactoryProperty;
+import com.divroll.datafactory.builders.ResponseMode;
+import com.divroll.datafactory.builders.queries.EntityQuery;
+import com.divroll.datafactory.builders.queries.EntityTypeQuery;
+import com.divroll.datafactory.operations.Operation;
+import com.divroll.datafactory.operations.OperationResults;
+import io.vavr.control.Option;
+import java.util.concurrent.CompletableFuture;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Non-blocking counterpart of {@linkplain EntityStore}. Every operation is submitted to an
+ * executor and completes the returned {@linkplain CompletableFuture} with the result of the
+ * underlying {@linkplain EntityStore} call, or exceptionally with the error it raised.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public interface AsyncEntityStore {
+
+  CompletableFuture<Option<DataFactoryEntity>> saveEntity(@NotNull DataFactoryEntity entity);
+
+  CompletableFuture<Option<DataFactoryEntities>> saveEntities(
+      @NotNull DataFactoryEntity[] entities);
+
+  CompletableFuture<Option<DataFactoryEntity>> saveEntity(@NotNull DataFactoryEntity entity,
+      @NotNull ResponseMode responseMode);
+
+  CompletableFuture<Option<DataFactoryEntities>> saveEntities(
+      @NotNull DataFactoryEntity[] entities, @NotNull ResponseMode responseMode);
+
+  CompletableFuture<Option<DataFactoryEntity>> getEntity(@NotNull EntityQuery query);
+
+  CompletableFuture<Option<DataFactoryEntities>> getEntities(@NotNull EntityQuery query);
+
+  CompletableFuture<Long> count(@NotNull EntityQuery query);
+
+  CompletableFuture<Boolean> exists(@NotNull EntityQuery query);
+
+  CompletableFuture<String> openCursor(@NotNull EntityQuery query);
+
+  CompletableFuture<Option<DataFactoryEntities>> nextBatch(@NotNull String cursorId,
+      @NotNull Integer batchSize);
+
+  CompletableFuture<Boolean> closeCursor(@NotNull String cursorId);
+
+  CompletableFuture<String> openSnapshot(@NotNull String environment);
+
+  CompletableFuture<Option<DataFactoryEntities>> getEntities(@NotNull String snapshotId,
+      @NotNull EntityQuery query);
+
+  CompletableFuture<Long> count(@NotNull String snapshotId, @NotNull EntityQuery query);
+
+  CompletableFuture<Boolean> closeSnapshot(@NotNull String snapshotId);
+
+  CompletableFuture<Option<OperationResults>> execute(@NotNull Operation[] operations);
+
+  CompletableFuture<Boolean> removeEntity(@NotNull EntityQuery query);
+
+  CompletableFuture<Boolean> removeEntities(@NotNull EntityQuery[] queries);
+
+  CompletableFuture<Boolean> saveProperty(@NotNull DataFactoryProperty property);
+
+  CompletableFuture<Boolean> removeProperty(@NotNull DataFactoryProperty property);
+
+  CompletableFuture<Boolean> removeEntityType(@NotNull EntityQuery query);
+
+  CompletableFuture<Option<DataFactoryEntityTypes>> getEntityTypes(EntityTypeQuery query);
+
+  /**
+   * @return number of requests currently executing against the underlying store
+   */
+  int inFlight();
+
+  /**
+   * @return number of requests waiting for an in-flight slot
+   */
+  int pending();
+}
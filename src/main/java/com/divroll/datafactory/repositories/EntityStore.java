@@ -20,9 +20,12 @@ import com.divroll.datafactory.builders.DataFactoryEntities;
 import com.divroll.datafactory.builders.DataFactoryEntity;
 import com.divroll.datafactory.builders.DataFactoryEntityTypes;
 import com.divroll.datafactory.builders.DataFactoryProperty;
+import com.divroll.datafactory.builders.ResponseMode;
 import com.divroll.datafactory.builders.queries.EntityQuery;
 import com.divroll.datafactory.builders.queries.EntityTypeQuery;
 import com.divroll.datafactory.exceptions.DataFactoryException;
+import com.divroll.datafactory.operations.Operation;
+import com.divroll.datafactory.operations.OperationResults;
 import io.vavr.control.Option;
 import java.rmi.NotBoundException;
 import java.rmi.Remote;
@@ -42,12 +45,148 @@ public interface EntityStore extends Remote {
   Option<DataFactoryEntities> saveEntities(@NotNull DataFactoryEntity[] entities)
       throws DataFactoryException, NotBoundException, RemoteException;
 
+  /**
+   * Save an entity, returning only what {@code responseMode} asks for. Reading back the saved
+   * entity is skipped for {@linkplain ResponseMode#ID} and {@linkplain ResponseMode#NONE}, which
+   * shortens the write transaction and the response.
+   *
+   * @param entity
+   * @param responseMode
+   * @return the saved entity, none for {@linkplain ResponseMode#NONE}
+   * @throws NotBoundException
+   * @throws RemoteException
+   */
+  Option<DataFactoryEntity> saveEntity(@NotNull DataFactoryEntity entity,
+      @NotNull ResponseMode responseMode)
+      throws DataFactoryException, NotBoundException, RemoteException;
+
+  /**
+   * Save entities, returning only what {@code responseMode} asks for.
+   *
+   * @param entities
+   * @param responseMode
+   * @return the saved entities in order, empty for {@linkplain ResponseMode#NONE}
+   * @throws NotBoundException
+   * @throws RemoteException
+   */
+  Option<DataFactoryEntities> saveEntities(@NotNull DataFactoryEntity[] entities,
+      @NotNull ResponseMode responseMode)
+      throws DataFactoryException, NotBoundException, RemoteException;
+
   Option<DataFactoryEntity> getEntity(@NotNull EntityQuery query)
       throws DataFactoryException, NotBoundException, RemoteException;
 
   Option<DataFactoryEntities> getEntities(@NotNull EntityQuery query)
       throws DataFactoryException, NotBoundException, RemoteException;
 
+  /**
+   * Count the entities matching the query without reading them, {@code offset} and {@code max}
+   * are ignored.
+   *
+   * @param query
+   * @return number of entities matching the query
+   * @throws NotBoundException
+   * @throws RemoteException
+   */
+  Long count(@NotNull EntityQuery query)
+      throws DataFactoryException, NotBoundException, RemoteException;
+
+  /**
+   * Check if any entity matches the query without reading it.
+   *
+   * @param query
+   * @return {@code true} if at least one entity matches the query
+   * @throws NotBoundException
+   * @throws RemoteException
+   */
+  Boolean exists(@NotNull EntityQuery query)
+      throws DataFactoryException, NotBoundException, RemoteException;
+
+  /**
+   * Open a server side cursor over the entities matching the query, starting at its
+   * {@code offset}. The query {@code max} is ignored, the cursor streams the whole result from a
+   * consistent read snapshot. Cursors left idle are closed by the server.
+   *
+   * @param query
+   * @return id of the cursor
+   * @throws NotBoundException
+   * @throws RemoteException
+   */
+  String openCursor(@NotNull EntityQuery query)
+      throws DataFactoryException, NotBoundException, RemoteException;
+
+  /**
+   * Read the next batch of entities of a cursor, the cursor is closed once it is exhausted.
+   *
+   * @param cursorId
+   * @param batchSize maximum number of entities to return
+   * @return the batch, with {@code count} holding the total number of entities of the cursor
+   * @throws NotBoundException
+   * @throws RemoteException
+   */
+  Option<DataFactoryEntities> nextBatch(@NotNull String cursorId, @NotNull Integer batchSize)
+      throws DataFactoryException, NotBoundException, RemoteException;
+
+  /**
+   * Close a cursor and release its read snapshot
+   *
+   * @param cursorId
+   * @return {@code true} if the cursor was open
+   * @throws NotBoundException
+   * @throws RemoteException
+   */
+  Boolean closeCursor(@NotNull String cursorId)
+      throws DataFactoryException, NotBoundException, RemoteException;
+
+  /**
+   * Open a snapshot session on the environment. Queries run with the id of the session read the
+   * state of the environment as it was when the session was opened, e.g. to export a large result
+   * page by page or to count and read entities consistently, without holding up writers. Sessions
+   * left idle or open for too long are closed by the server.
+   *
+   * @param environment
+   * @return id of the session
+   * @throws NotBoundException
+   * @throws RemoteException
+   */
+  String openSnapshot(@NotNull String environment)
+      throws DataFactoryException, NotBoundException, RemoteException;
+
+  /**
+   * Get the entities matching the query from a snapshot session
+   *
+   * @param snapshotId
+   * @param query      query of the environment of the session
+   * @return
+   * @throws NotBoundException
+   * @throws RemoteException
+   */
+  Option<DataFactoryEntities> getEntities(@NotNull String snapshotId, @NotNull EntityQuery query)
+      throws DataFactoryException, NotBoundException, RemoteException;
+
+  /**
+   * Count the entities matching the query in a snapshot session
+   *
+   * @param snapshotId
+   * @param query      query of the environment of the session
+   * @return number of entities matching the query
+   * @throws NotBoundException
+   * @throws RemoteException
+   */
+  Long count(@NotNull String snapshotId, @NotNull EntityQuery query)
+      throws DataFactoryException, NotBoundException, RemoteException;
+
+  /**
+   * Close a snapshot session and release its snapshot
+   *
+   * @param snapshotId
+   * @return {@code true} if the session was open
+   * @throws NotBoundException
+   * @throws RemoteException
+   */
+  Boolean closeSnapshot(@NotNull String snapshotId)
+      throws DataFactoryException, NotBoundException, RemoteException;
+
   /**
    * Remove entities matching the query
    *
@@ -60,7 +199,13 @@ public interface EntityStore extends Remote {
       throws DataFactoryException, NotBoundException, RemoteException;
 
   /**
-   * Remove entities matching the list of queries
+   * Remove entities matching the list of queries. A query removes the entities of its
+   * {@code entityIds} or {@code entityId} if given, else all entities of its type within its name
+   * space. Links of other entities to the removed ones are removed too. Large removals are split
+   * into transactions of at most {@code datafactory.remove.batch} entities, so a failure may leave
+   * the earlier batches removed. Environments are removed from in parallel, when some of several
+   * environments fail a {@linkplain com.divroll.datafactory.exceptions.PartialFailureException}
+   * tells which ones.
    *
    * @param queries
    * @return
@@ -81,4 +226,44 @@ public interface EntityStore extends Remote {
 
   Option<DataFactoryEntityTypes> getEntityTypes(EntityTypeQuery query)
       throws DataFactoryException, NotBoundException, RemoteException;
+
+  /**
+   * Run a batch of operations in order, within one transaction per environment, so a request
+   * reading, checking and saving entities takes a single round trip. Each operation sees the
+   * changes of the preceding operations of its environment, the environments themselves run in
+   * parallel. When an operation fails the transaction of its environment is rolled back while the
+   * other environments still commit. The error is thrown as is if the batch has one environment,
+   * else a {@linkplain com.divroll.datafactory.exceptions.PartialFailureException} tells which
+   * environments committed.
+   *
+   * @param operations
+   * @return the result of each operation, in order
+   * @throws NotBoundException
+   * @throws RemoteException
+   */
+  Option<OperationResults> execute(@NotNull Operation[] operations)
+      throws DataFactoryException, NotBoundException, RemoteException;
+
+  /**
+   * Register a listener notified of the entities changed by each committed write, see
+   * {@linkplain InvalidationListener}.
+   *
+   * @param listener
+   * @return {@code true} if the listener was not registered yet
+   * @throws NotBoundException
+   * @throws RemoteException
+   */
+  Boolean addInvalidationListener(@NotNull InvalidationListener listener)
+      throws DataFactoryException, NotBoundException, RemoteException;
+
+  /**
+   * Unregister a listener added with {@code addInvalidationListener}
+   *
+   * @param listener
+   * @return {@code true} if the listener was registered
+   * @throws NotBoundException
+   * @throws RemoteException
+   */
+  Boolean removeInvalidationListener(@NotNull InvalidationListener listener)
+      throws DataFactoryException, NotBoundException, RemoteException;
 }
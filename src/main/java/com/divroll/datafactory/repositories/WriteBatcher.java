@@ -0,0 +1,58 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories;
+
+import com.divroll.datafactory.builders.DataFactoryEntity;
+import io.vavr.control.Option;
+import java.util.concurrent.CompletableFuture;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Write-behind batcher coalescing {@code saveEntity} calls of many threads into
+ * {@code saveEntities} calls of the underlying {@linkplain EntityStore}, so a burst of single
+ * saves costs one round trip and one transaction per environment.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public interface WriteBatcher extends AutoCloseable {
+
+  /**
+   * Queue an entity to be saved with the next batch of its environment.
+   *
+   * @param entity
+   * @return future completed with the saved entity, empty if it was saved but not returned, or
+   * exceptionally with the error raised saving it
+   */
+  CompletableFuture<Option<DataFactoryEntity>> saveEntity(@NotNull DataFactoryEntity entity);
+
+  /**
+   * Send all queued entities without waiting for the batches to fill up.
+   */
+  void flush();
+
+  /**
+   * @return number of entities waiting to be sent
+   */
+  int pending();
+
+  /**
+   * Flush the queued entities and stop accepting new ones.
+   */
+  @Override void close();
+}
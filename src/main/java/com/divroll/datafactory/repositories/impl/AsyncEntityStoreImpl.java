@@ -0,0 +1,237 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories.impl;
+
+import com.divroll.datafactory.builders.DataFactoryEntities;
+import com.divroll.datafactory.builders.DataFactoryEntity;
+import com.divroll.datafactory.builders.DataFactoryEntityTypes;
+import com.divroll.datafactory.builders.DataFactoryProperty;
+import com.divroll.datafactory.builders.ResponseMode;
+import com.divroll.datafactory.builders.queries.EntityQuery;
+import com.divroll.datafactory.builders.queries.EntityTypeQuery;
+import com.divroll.datafactory.exceptions.RequestRejectedException;
+import com.divroll.datafactory.operations.Operation;
+import com.divroll.datafactory.operations.OperationResults;
+import com.divroll.datafactory.repositories.AsyncEntityStore;
+import com.divroll.datafactory.repositories.EntityStore;
+import com.google.common.base.Preconditions;
+import io.vavr.control.Option;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * {@linkplain AsyncEntityStore} in front of any {@linkplain EntityStore}, either the remote
+ * {@linkplain EntityStoreClientImpl} or the embedded {@linkplain EntityStoreImpl}. At most
+ * {@code maxInFlight} requests run against the underlying store at a time, the rest are queued
+ * without holding a thread and dispatched as in-flight requests complete.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class AsyncEntityStoreImpl implements AsyncEntityStore {
+
+  private final EntityStore entityStore;
+  private final Executor executor;
+  private final int maxInFlight;
+  private final Semaphore permits;
+  private final Queue<Task<?>> queue = new ConcurrentLinkedQueue<>();
+
+  public AsyncEntityStoreImpl(@NotNull EntityStore entityStore, @NotNull Executor executor,
+      int maxInFlight) {
+    Preconditions.checkArgument(maxInFlight > 0, "maxInFlight should be greater than zero");
+    this.entityStore = entityStore;
+    this.executor = executor;
+    this.maxInFlight = maxInFlight;
+    this.permits = new Semaphore(maxInFlight);
+  }
+
+  @Override
+  public CompletableFuture<Option<DataFactoryEntity>> saveEntity(
+      @NotNull DataFactoryEntity entity) {
+    return submit(() -> entityStore.saveEntity(entity));
+  }
+
+  @Override public CompletableFuture<Option<DataFactoryEntities>> saveEntities(
+      @NotNull DataFactoryEntity[] entities) {
+    return submit(() -> entityStore.saveEntities(entities));
+  }
+
+  @Override public CompletableFuture<Option<DataFactoryEntity>> saveEntity(
+      @NotNull DataFactoryEntity entity, @NotNull ResponseMode responseMode) {
+    return submit(() -> entityStore.saveEntity(entity, responseMode));
+  }
+
+  @Override public CompletableFuture<Option<DataFactoryEntities>> saveEntities(
+      @NotNull DataFactoryEntity[] entities, @NotNull ResponseMode responseMode) {
+    return submit(() -> entityStore.saveEntities(entities, responseMode));
+  }
+
+  @Override
+  public CompletableFuture<Option<DataFactoryEntity>> getEntity(@NotNull EntityQuery query) {
+    return submit(() -> entityStore.getEntity(query));
+  }
+
+  @Override
+  public CompletableFuture<Option<DataFactoryEntities>> getEntities(@NotNull EntityQuery query) {
+    return submit(() -> entityStore.getEntities(query));
+  }
+
+  @Override public CompletableFuture<Long> count(@NotNull EntityQuery query) {
+    return submit(() -> entityStore.count(query));
+  }
+
+  @Override public CompletableFuture<Boolean> exists(@NotNull EntityQuery query) {
+    return submit(() -> entityStore.exists(query));
+  }
+
+  @Override public CompletableFuture<String> openCursor(@NotNull EntityQuery query) {
+    return submit(() -> entityStore.openCursor(query));
+  }
+
+  @Override public CompletableFuture<Option<DataFactoryEntities>> nextBatch(
+      @NotNull String cursorId, @NotNull Integer batchSize) {
+    return submit(() -> entityStore.nextBatch(cursorId, batchSize));
+  }
+
+  @Override public CompletableFuture<Boolean> closeCursor(@NotNull String cursorId) {
+    return submit(() -> entityStore.closeCursor(cursorId));
+  }
+
+  @Override public CompletableFuture<String> openSnapshot(@NotNull String environment) {
+    return submit(() -> entityStore.openSnapshot(environment));
+  }
+
+  @Override public CompletableFuture<Option<DataFactoryEntities>> getEntities(
+      @NotNull String snapshotId, @NotNull EntityQuery query) {
+    return submit(() -> entityStore.getEntities(snapshotId, query));
+  }
+
+  @Override public CompletableFuture<Long> count(@NotNull String snapshotId,
+      @NotNull EntityQuery query) {
+    return submit(() -> entityStore.count(snapshotId, query));
+  }
+
+  @Override public CompletableFuture<Boolean> closeSnapshot(@NotNull String snapshotId) {
+    return submit(() -> entityStore.closeSnapshot(snapshotId));
+  }
+
+  @Override public CompletableFuture<Option<OperationResults>> execute(
+      @NotNull Operation[] operations) {
+    return submit(() -> entityStore.execute(operations));
+  }
+
+  @Override public CompletableFuture<Boolean> removeEntity(@NotNull EntityQuery query) {
+    return submit(() -> entityStore.removeEntity(query));
+  }
+
+  @Override public CompletableFuture<Boolean> removeEntities(@NotNull EntityQuery[] queries) {
+    return submit(() -> entityStore.removeEntities(queries));
+  }
+
+  @Override public CompletableFuture<Boolean> saveProperty(@NotNull DataFactoryProperty property) {
+    return submit(() -> entityStore.saveProperty(property));
+  }
+
+  @Override
+  public CompletableFuture<Boolean> removeProperty(@NotNull DataFactoryProperty property) {
+    return submit(() -> entityStore.removeProperty(property));
+  }
+
+  @Override public CompletableFuture<Boolean> removeEntityType(@NotNull EntityQuery query) {
+    return submit(() -> entityStore.removeEntityType(query));
+  }
+
+  @Override
+  public CompletableFuture<Option<DataFactoryEntityTypes>> getEntityTypes(EntityTypeQuery query) {
+    return submit(() -> entityStore.getEntityTypes(query));
+  }
+
+  @Override public int inFlight() {
+    return maxInFlight - permits.availablePermits();
+  }
+
+  @Override public int pending() {
+    return queue.size();
+  }
+
+  private <T> CompletableFuture<T> submit(StoreCall<T> call) {
+    Task<T> task = new Task<>(call);
+    queue.add(task);
+    dispatch();
+    return task.future;
+  }
+
+  /**
+   * Hand queued requests to the executor while there are free in-flight slots. The queue is
+   * re-checked after a slot is given back so a request queued concurrently is never stranded.
+   */
+  private void dispatch() {
+    while (!queue.isEmpty() && permits.tryAcquire()) {
+      Task<?> task = queue.poll();
+      if (task == null) {
+        permits.release();
+        continue;
+      }
+      try {
+        executor.execute(task);
+      } catch (RejectedExecutionException e) {
+        // Saturated executor, fail fast rather than blocking the caller with the remote call
+        task.reject(new RequestRejectedException("async", "executor rejected the request"));
+      }
+    }
+  }
+
+  /**
+   * A queued call, holding an in-flight slot from the time it is handed to the executor until it
+   * completes.
+   */
+  private final class Task<T> implements Runnable {
+    private final StoreCall<T> call;
+    private final CompletableFuture<T> future = new CompletableFuture<>();
+
+    private Task(StoreCall<T> call) {
+      this.call = call;
+    }
+
+    @Override public void run() {
+      try {
+        future.complete(call.call());
+      } catch (Throwable e) {
+        future.completeExceptionally(e);
+      } finally {
+        permits.release();
+        dispatch();
+      }
+    }
+
+    private void reject(Throwable error) {
+      future.completeExceptionally(error);
+      permits.release();
+    }
+  }
+
+  @FunctionalInterface
+  private interface StoreCall<T> {
+    T call() throws Exception;
+  }
+}
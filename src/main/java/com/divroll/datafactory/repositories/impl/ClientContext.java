@@ -0,0 +1,65 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories.impl;
+
+import java.rmi.server.RemoteServer;
+import java.rmi.server.ServerNotActiveException;
+
+/**
+ * Identifies the client making the current {@linkplain EntityStoreImpl} call, which owns the
+ * cursors and snapshots it opens. Transports that keep a connection per client, i.e. the NIO and
+ * shared memory transports, set the id of the connection around each call. Java RMI has no notion
+ * of a connection, so RMI calls are keyed on the host of the caller and embedded calls on
+ * {@code local}.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public final class ClientContext {
+
+  private static final ThreadLocal<String> CLIENT = new ThreadLocal<>();
+
+  private ClientContext() {
+  }
+
+  /**
+   * Make {@code client} the caller of the calls made by this thread until {@linkplain #exit()}.
+   */
+  public static void enter(String client) {
+    CLIENT.set(client);
+  }
+
+  public static void exit() {
+    CLIENT.remove();
+  }
+
+  /**
+   * @return id of the client making the current call
+   */
+  public static String current() {
+    String client = CLIENT.get();
+    if (client != null) {
+      return client;
+    }
+    try {
+      return "rmi:" + RemoteServer.getClientHost();
+    } catch (ServerNotActiveException e) {
+      return "local";
+    }
+  }
+}
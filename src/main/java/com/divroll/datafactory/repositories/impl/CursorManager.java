@@ -0,0 +1,201 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories.impl;
+
+import com.divroll.datafactory.builders.DataFactoryEntities;
+import com.divroll.datafactory.builders.DataFactoryEntitiesBuilder;
+import com.divroll.datafactory.builders.DataFactoryEntity;
+import com.divroll.datafactory.database.ReadSnapshot;
+import com.divroll.datafactory.exceptions.DataFactoryException;
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import jetbrains.exodus.entitystore.Entity;
+import jetbrains.exodus.entitystore.EntityIterable;
+import jetbrains.exodus.entitystore.StoreTransaction;
+
+/**
+ * Keeps the server side cursors opened through
+ * {@linkplain com.divroll.datafactory.repositories.EntityStore#openCursor}. Each cursor iterates
+ * the query result on its own {@linkplain ReadSnapshot} so consecutive batches are consistent
+ * and the query is evaluated only once. Cursors idle for longer than the timeout are closed by a
+ * background reaper and a client may only hold a limited number of cursors at a time. A cursor
+ * belongs to the {@linkplain ClientContext client} that opened it, to any other client it does
+ * not exist.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class CursorManager {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CursorManager.class);
+
+  private final long idleTimeout;
+  private final int maxCursorsPerClient;
+  private final Map<String, Cursor> cursors = new ConcurrentHashMap<>();
+  private ScheduledExecutorService reaper;
+
+  public CursorManager(long idleTimeout, int maxCursorsPerClient) {
+    Preconditions.checkArgument(idleTimeout > 0, "Cursor idle timeout should be positive");
+    Preconditions.checkArgument(maxCursorsPerClient > 0, "Cursor limit should be positive");
+    this.idleTimeout = idleTimeout;
+    this.maxCursorsPerClient = maxCursorsPerClient;
+  }
+
+  /**
+   * Open a cursor over the entities returned by {@code query} evaluated on the snapshot, starting
+   * at {@code offset}. The cursor takes ownership of the snapshot.
+   *
+   * @return id of the new cursor
+   */
+  public synchronized String open(String client, ReadSnapshot snapshot,
+      Function<StoreTransaction, EntityIterable> query, int offset,
+      Function<Entity, DataFactoryEntity> marshaller) {
+    long open = cursors.values().stream().filter(cursor -> cursor.client.equals(client)).count();
+    if (open >= maxCursorsPerClient) {
+      throw new DataFactoryException(
+          "Client " + client + " reached the limit of " + maxCursorsPerClient + " open cursors");
+    }
+    Cursor cursor = snapshot.compute(txn -> {
+      EntityIterable result = query.apply(txn);
+      return new Cursor(client, snapshot, result.skip(offset).iterator(), result.size(), offset,
+          marshaller);
+    });
+    String cursorId = UUID.randomUUID().toString();
+    cursors.put(cursorId, cursor);
+    startReaper();
+    return cursorId;
+  }
+
+  /**
+   * Read the next batch of entities, the cursor is closed once it is exhausted.
+   */
+  public DataFactoryEntities next(String client, String cursorId, int batchSize) {
+    Preconditions.checkArgument(batchSize > 0, "Batch size should be positive");
+    Cursor cursor = cursors.get(cursorId);
+    if (cursor == null || !cursor.client.equals(client)) {
+      throw new DataFactoryException("Cursor " + cursorId + " does not exist or has expired");
+    }
+    synchronized (cursor) {
+      if (cursor.snapshot.isClosed()) {
+        throw new DataFactoryException("Cursor " + cursorId + " does not exist or has expired");
+      }
+      cursor.lastAccess = System.currentTimeMillis();
+      List<DataFactoryEntity> entities = cursor.snapshot.compute(txn -> {
+        List<DataFactoryEntity> batch = new ArrayList<>(batchSize);
+        while (batch.size() < batchSize && cursor.iterator.hasNext()) {
+          batch.add(cursor.marshaller.apply(cursor.iterator.next()));
+        }
+        cursor.exhausted = !cursor.iterator.hasNext();
+        return batch;
+      });
+      int offset = cursor.position;
+      cursor.position += entities.size();
+      if (cursor.exhausted) {
+        close(cursorId);
+      }
+      return new DataFactoryEntitiesBuilder()
+          .entities(entities)
+          .offset(offset)
+          .max(batchSize)
+          .count(cursor.count)
+          .build();
+    }
+  }
+
+  /**
+   * Close a cursor of the client.
+   *
+   * @return {@code true} if the client had the cursor open
+   */
+  public boolean close(String client, String cursorId) {
+    Cursor cursor = cursors.get(cursorId);
+    if (cursor == null || !cursor.client.equals(client)) {
+      return false;
+    }
+    return close(cursorId);
+  }
+
+  private boolean close(String cursorId) {
+    Cursor cursor = cursors.remove(cursorId);
+    if (cursor == null) {
+      return false;
+    }
+    synchronized (cursor) {
+      cursor.snapshot.close();
+    }
+    return true;
+  }
+
+  public int openCursors() {
+    return cursors.size();
+  }
+
+  private void startReaper() {
+    if (reaper == null) {
+      reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("datafactory-cursor-reaper-%d")
+          .setDaemon(true)
+          .build());
+      long period = Math.max(idleTimeout / 2, 100);
+      reaper.scheduleAtFixedRate(this::reap, period, period, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void reap() {
+    long now = System.currentTimeMillis();
+    cursors.forEach((cursorId, cursor) -> {
+      if (now - cursor.lastAccess > idleTimeout) {
+        LOG.info("Closing idle cursor " + cursorId + " of client " + cursor.client);
+        close(cursorId);
+      }
+    });
+  }
+
+  private static class Cursor {
+    private final String client;
+    private final ReadSnapshot snapshot;
+    private final Iterator<Entity> iterator;
+    private final long count;
+    private final Function<Entity, DataFactoryEntity> marshaller;
+    private volatile long lastAccess = System.currentTimeMillis();
+    private int position;
+    private boolean exhausted;
+
+    Cursor(String client, ReadSnapshot snapshot, Iterator<Entity> iterator, long count,
+        int position, Function<Entity, DataFactoryEntity> marshaller) {
+      this.client = client;
+      this.snapshot = snapshot;
+      this.iterator = iterator;
+      this.count = count;
+      this.position = position;
+      this.marshaller = marshaller;
+    }
+  }
+}
@@ -20,27 +20,62 @@ import com.divroll.datafactory.builders.DataFactoryEntities;
 import com.divroll.datafactory.builders.DataFactoryEntity;
 import com.divroll.datafactory.builders.DataFactoryEntityTypes;
 import com.divroll.datafactory.builders.DataFactoryProperty;
+import com.divroll.datafactory.builders.ResponseMode;
 import com.divroll.datafactory.builders.queries.EntityQuery;
 import com.divroll.datafactory.builders.queries.EntityTypeQuery;
 import com.divroll.datafactory.exceptions.DataFactoryException;
+import com.divroll.datafactory.operations.GetEntitiesOperation;
+import com.divroll.datafactory.operations.Operation;
+import com.divroll.datafactory.operations.OperationResults;
+import com.divroll.datafactory.operations.SaveEntityOperation;
 import com.divroll.datafactory.repositories.EntityStore;
+import com.divroll.datafactory.repositories.InvalidationListener;
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
 import io.vavr.control.Option;
+import java.rmi.ConnectException;
+import java.rmi.NoSuchObjectException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
-import java.util.Optional;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import org.jetbrains.annotations.NotNull;
 
 /**
+ * Client side {@linkplain EntityStore} that looks up the remote stub once and shares it across
+ * threads. The stub is health-checked against the registry at most once every
+ * {@code healthCheckInterval} milliseconds and is transparently looked up again when the server
+ * was restarted or the call fails with {@linkplain NoSuchObjectException} or
+ * {@linkplain ConnectException}, both of which guarantee the call never reached the server.
+ * <p>
+ * With a {@linkplain NearCache} entities looked up by id are served locally until the server
+ * invalidates them. The cache is registered on every stub the client binds to and cleared
+ * whenever it binds to a new one, as invalidations may have been missed meanwhile.
+ *
  * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
  * @version 0-SNAPSHOT
  * @since 0-SNAPSHOT
  */
 public class EntityStoreClientImpl implements EntityStore {
 
+  private static final Logger LOG = LoggerFactory.getLogger(EntityStoreClientImpl.class);
+  public static final long DEFAULT_HEALTH_CHECK_INTERVAL = 60000L;
+
   private Integer port;
   private String host;
+  private long healthCheckInterval = DEFAULT_HEALTH_CHECK_INTERVAL;
+
+  private NearCache nearCache;
+
+  private volatile EntityStore stub;
+  private volatile long lastHealthCheck;
+
+  private final AtomicLong lookupCount = new AtomicLong();
+  private final AtomicLong reconnectCount = new AtomicLong();
 
   private EntityStoreClientImpl() {
 
@@ -51,84 +86,354 @@ public class EntityStoreClientImpl implements EntityStore {
     this.port = port;
   }
 
+  public EntityStoreClientImpl(String host, Integer port, long healthCheckInterval) {
+    this(host, port);
+    this.healthCheckInterval = healthCheckInterval;
+  }
+
+  public EntityStoreClientImpl(String host, Integer port, long healthCheckInterval,
+      NearCache nearCache) {
+    this(host, port, healthCheckInterval);
+    this.nearCache = nearCache;
+  }
+
   @Override public Option<DataFactoryEntity> saveEntity(@NotNull DataFactoryEntity entity)
       throws DataFactoryException, NotBoundException, RemoteException {
-    Registry registry = LocateRegistry.getRegistry(host, port);
-    EntityStore entityStore =
-        (EntityStore) registry.lookup(EntityStore.class.getName());
-    return entityStore.saveEntity(entity);
+    try {
+      return invoke(entityStore -> entityStore.saveEntity(entity));
+    } finally {
+      invalidate(new DataFactoryEntity[] {entity});
+    }
   }
 
   @Override
   public Option<DataFactoryEntities> saveEntities(@NotNull DataFactoryEntity[] entities)
       throws DataFactoryException, NotBoundException, RemoteException {
-    Registry registry = LocateRegistry.getRegistry(host, port);
-    EntityStore entityStore =
-        (EntityStore) registry.lookup(EntityStore.class.getName());
-    return entityStore.saveEntities(entities);
+    try {
+      return invoke(entityStore -> entityStore.saveEntities(entities));
+    } finally {
+      invalidate(entities);
+    }
+  }
+
+  @Override public Option<DataFactoryEntity> saveEntity(@NotNull DataFactoryEntity entity,
+      @NotNull ResponseMode responseMode)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    try {
+      return invoke(entityStore -> entityStore.saveEntity(entity, responseMode));
+    } finally {
+      invalidate(new DataFactoryEntity[] {entity});
+    }
+  }
+
+  @Override public Option<DataFactoryEntities> saveEntities(@NotNull DataFactoryEntity[] entities,
+      @NotNull ResponseMode responseMode)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    try {
+      return invoke(entityStore -> entityStore.saveEntities(entities, responseMode));
+    } finally {
+      invalidate(entities);
+    }
   }
 
   @Override public Option<DataFactoryEntity> getEntity(@NotNull EntityQuery query)
       throws DataFactoryException, NotBoundException, RemoteException {
-    Registry registry = LocateRegistry.getRegistry(host, port);
-    EntityStore entityStore =
-        (EntityStore) registry.lookup(EntityStore.class.getName());
-    return entityStore.getEntity(query);
+    if (nearCache != null && NearCache.isCacheable(query)) {
+      return nearCache.get(query, () -> invoke(entityStore -> entityStore.getEntity(query)));
+    }
+    return invoke(entityStore -> entityStore.getEntity(query));
   }
 
   @Override public Option<DataFactoryEntities> getEntities(@NotNull EntityQuery query)
       throws DataFactoryException, NotBoundException, RemoteException {
-    Registry registry = LocateRegistry.getRegistry(host, port);
-    EntityStore entityStore =
-        (EntityStore) registry.lookup(EntityStore.class.getName());
-    return entityStore.getEntities(query);
+    return invoke(entityStore -> entityStore.getEntities(query));
+  }
+
+  @Override public Long count(@NotNull EntityQuery query)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    return invoke(entityStore -> entityStore.count(query));
+  }
+
+  @Override public Boolean exists(@NotNull EntityQuery query)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    return invoke(entityStore -> entityStore.exists(query));
+  }
+
+  @Override public String openCursor(@NotNull EntityQuery query)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    return invoke(entityStore -> entityStore.openCursor(query));
+  }
+
+  @Override public Option<DataFactoryEntities> nextBatch(@NotNull String cursorId,
+      @NotNull Integer batchSize) throws DataFactoryException, NotBoundException, RemoteException {
+    return invoke(entityStore -> entityStore.nextBatch(cursorId, batchSize));
+  }
+
+  @Override public Boolean closeCursor(@NotNull String cursorId)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    return invoke(entityStore -> entityStore.closeCursor(cursorId));
+  }
+
+  @Override public String openSnapshot(@NotNull String environment)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    return invoke(entityStore -> entityStore.openSnapshot(environment));
+  }
+
+  @Override public Option<DataFactoryEntities> getEntities(@NotNull String snapshotId,
+      @NotNull EntityQuery query) throws DataFactoryException, NotBoundException, RemoteException {
+    return invoke(entityStore -> entityStore.getEntities(snapshotId, query));
+  }
+
+  @Override public Long count(@NotNull String snapshotId, @NotNull EntityQuery query)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    return invoke(entityStore -> entityStore.count(snapshotId, query));
+  }
+
+  @Override public Boolean closeSnapshot(@NotNull String snapshotId)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    return invoke(entityStore -> entityStore.closeSnapshot(snapshotId));
   }
 
   @Override public Boolean removeEntity(@NotNull EntityQuery query)
       throws DataFactoryException, NotBoundException, RemoteException {
-    Registry registry = LocateRegistry.getRegistry(host, port);
-    EntityStore entityStore =
-        (EntityStore) registry.lookup(EntityStore.class.getName());
-    return entityStore.removeEntity(query);
+    try {
+      return invoke(entityStore -> entityStore.removeEntity(query));
+    } finally {
+      invalidate(query.environment());
+    }
   }
 
   @Override public Boolean removeEntities(@NotNull EntityQuery[] queries)
       throws DataFactoryException, NotBoundException, RemoteException {
-    Registry registry = LocateRegistry.getRegistry(host, port);
-    EntityStore entityStore =
-        (EntityStore) registry.lookup(EntityStore.class.getName());
-    return entityStore.removeEntities(queries);
+    try {
+      return invoke(entityStore -> entityStore.removeEntities(queries));
+    } finally {
+      Arrays.stream(queries).map(EntityQuery::environment).distinct().forEach(this::invalidate);
+    }
   }
 
   @Override public Boolean saveProperty(@NotNull DataFactoryProperty property)
       throws DataFactoryException, NotBoundException, RemoteException {
-    Registry registry = LocateRegistry.getRegistry(host, port);
-    EntityStore entityStore =
-        (EntityStore) registry.lookup(EntityStore.class.getName());
-    return entityStore.saveProperty(property);
+    try {
+      return invoke(entityStore -> entityStore.saveProperty(property));
+    } finally {
+      invalidate(property.environment());
+    }
   }
 
   @Override public Boolean removeProperty(@NotNull DataFactoryProperty property)
       throws DataFactoryException, NotBoundException, RemoteException {
-    Registry registry = LocateRegistry.getRegistry(host, port);
-    EntityStore entityStore =
-        (EntityStore) registry.lookup(EntityStore.class.getName());
-    return entityStore.removeProperty(property);
+    try {
+      return invoke(entityStore -> entityStore.removeProperty(property));
+    } finally {
+      invalidate(property.environment());
+    }
   }
 
   @Override public Boolean removeEntityType(@NotNull EntityQuery query)
       throws DataFactoryException, NotBoundException, RemoteException {
-    Registry registry = LocateRegistry.getRegistry(host, port);
-    EntityStore entityStore =
-        (EntityStore) registry.lookup(EntityStore.class.getName());
-    return entityStore.removeEntityType(query);
+    try {
+      return invoke(entityStore -> entityStore.removeEntityType(query));
+    } finally {
+      invalidate(query.environment());
+    }
   }
 
   @Override public Option<DataFactoryEntityTypes> getEntityTypes(EntityTypeQuery query)
       throws DataFactoryException, NotBoundException, RemoteException {
-      Registry registry = LocateRegistry.getRegistry(host, port);
-      EntityStore entityStore =
-          (EntityStore) registry.lookup(EntityStore.class.getName());
-      return entityStore.getEntityTypes(query);
+    return invoke(entityStore -> entityStore.getEntityTypes(query));
+  }
+
+  @Override public Option<OperationResults> execute(@NotNull Operation[] operations)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    try {
+      return invoke(entityStore -> entityStore.execute(operations));
+    } finally {
+      for (Operation operation : operations) {
+        if (operation instanceof SaveEntityOperation) {
+          invalidate(new DataFactoryEntity[] {((SaveEntityOperation) operation).entity()});
+        } else if (!(operation instanceof GetEntitiesOperation)) {
+          invalidate(operation.environment());
+        }
+      }
+    }
+  }
+
+  @Override public Boolean addInvalidationListener(@NotNull InvalidationListener listener)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    return invoke(entityStore -> entityStore.addInvalidationListener(listener));
+  }
+
+  @Override public Boolean removeInvalidationListener(@NotNull InvalidationListener listener)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    return invoke(entityStore -> entityStore.removeInvalidationListener(listener));
+  }
+
+  /**
+   * @return the near cache of this client, {@code null} if it has none
+   */
+  public NearCache getNearCache() {
+    return nearCache;
+  }
+
+  /**
+   * Checks that the cached stub still refers to the object bound in the registry, looking it up
+   * again when the server has been restarted or the stub was never resolved. The invalidation
+   * listener of the near cache is registered again, should the server have dropped it the
+   * invalidations since are lost and the cache is cleared.
+   *
+   * @return {@code true} if the cached stub was still valid
+   * @throws NotBoundException
+   * @throws RemoteException
+   */
+  public boolean checkHealth() throws NotBoundException, RemoteException {
+    lastHealthCheck = System.currentTimeMillis();
+    EntityStore current = stub;
+    EntityStore bound = lookup();
+    if (current != null && current.equals(bound)) {
+      reattach(current);
+      return true;
+    }
+    synchronized (this) {
+      if (stub == current) {
+        if (current != null) {
+          reconnectCount.incrementAndGet();
+          LOG.info("EntityStore stub at " + host + ":" + port + " is stale, rebinding");
+        }
+        stub = attach(bound);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return number of registry lookups made by this client
+   */
+  public long getLookupCount() {
+    return lookupCount.get();
+  }
+
+  /**
+   * @return number of times a stale stub was replaced
+   */
+  public long getReconnectCount() {
+    return reconnectCount.get();
+  }
+
+  private <T> T invoke(RemoteCall<T> call)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    EntityStore entityStore = getStub();
+    try {
+      return call.apply(entityStore);
+    } catch (NoSuchObjectException | ConnectException e) {
+      LOG.warn("EntityStore stub at " + host + ":" + port + " failed, rebinding: "
+          + e.getMessage());
+      return call.apply(rebind(entityStore));
+    }
+  }
+
+  private EntityStore getStub() throws NotBoundException, RemoteException {
+    EntityStore entityStore = stub;
+    if (entityStore == null) {
+      synchronized (this) {
+        entityStore = stub;
+        if (entityStore == null) {
+          entityStore = attach(lookup());
+          stub = entityStore;
+          lastHealthCheck = System.currentTimeMillis();
+        }
+      }
+    } else if (healthCheckInterval > 0
+        && System.currentTimeMillis() - lastHealthCheck > healthCheckInterval) {
+      checkHealth();
+      entityStore = stub;
+    }
+    return entityStore;
+  }
+
+  private synchronized EntityStore rebind(EntityStore failed)
+      throws NotBoundException, RemoteException {
+    if (stub == failed) {
+      reconnectCount.incrementAndGet();
+      stub = attach(lookup());
+      lastHealthCheck = System.currentTimeMillis();
+    }
+    return stub;
+  }
+
+  /**
+   * Register the near cache on a newly bound stub, caching stays off if that fails.
+   */
+  private EntityStore attach(EntityStore entityStore) {
+    if (nearCache != null) {
+      nearCache.setAttached(false);
+      nearCache.clear();
+      try {
+        entityStore.addInvalidationListener(nearCache.listener());
+        nearCache.setAttached(true);
+      } catch (Exception e) {
+        LOG.warn("Near cache disabled, cannot register invalidation listener at " + host + ":"
+            + port + ": " + e.getMessage());
+      }
+    }
+    return entityStore;
+  }
+
+  /**
+   * Make sure the near cache is still registered on the stub. The registration is idempotent, a
+   * listener the server dropped is added back and the entries it may have missed are cleared.
+   */
+  private void reattach(EntityStore entityStore) {
+    if (nearCache == null) {
+      return;
+    }
+    try {
+      if (entityStore.addInvalidationListener(nearCache.listener())) {
+        LOG.info("Invalidation listener at " + host + ":" + port + " was dropped, clearing");
+        nearCache.clear();
+      }
+      nearCache.setAttached(true);
+    } catch (Exception e) {
+      nearCache.setAttached(false);
+      nearCache.clear();
+      LOG.warn("Near cache disabled, cannot register invalidation listener at " + host + ":"
+          + port + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Drop the entities a write of this client touches without waiting for the server to push the
+   * invalidation.
+   */
+  private void invalidate(DataFactoryEntity[] entities) {
+    if (nearCache != null) {
+      for (DataFactoryEntity entity : entities) {
+        List<String> entityIds = new ArrayList<>();
+        if (entity.entityId() != null) {
+          entityIds.add(entity.entityId());
+        }
+        nearCache.invalidate(entity.environment(),
+            InvalidationPublisher.addLinkedIds(entity, entityIds)
+                ? entityIds.toArray(new String[0]) : null);
+      }
+    }
+  }
+
+  private void invalidate(String environment) {
+    if (nearCache != null) {
+      nearCache.invalidate(environment, null);
+    }
+  }
+
+  private EntityStore lookup() throws NotBoundException, RemoteException {
+    lookupCount.incrementAndGet();
+    Registry registry = LocateRegistry.getRegistry(host, port);
+    return (EntityStore) registry.lookup(EntityStore.class.getName());
+  }
+
+  @FunctionalInterface
+  private interface RemoteCall<T> {
+    T apply(EntityStore entityStore)
+        throws DataFactoryException, NotBoundException, RemoteException;
   }
 }
@@ -24,44 +24,75 @@ import com.divroll.datafactory.actions.PropertyRenameAction;
 import com.divroll.datafactory.builders.DataFactoryEntities;
 import com.divroll.datafactory.builders.DataFactoryEntitiesBuilder;
 import com.divroll.datafactory.builders.DataFactoryEntity;
+import com.divroll.datafactory.builders.DataFactoryEntityBuilder;
 import com.divroll.datafactory.builders.DataFactoryEntityType;
 import com.divroll.datafactory.builders.DataFactoryEntityTypeBuilder;
 import com.divroll.datafactory.builders.DataFactoryEntityTypes;
 import com.divroll.datafactory.builders.DataFactoryEntityTypesBuilder;
 import com.divroll.datafactory.builders.DataFactoryProperty;
+import com.divroll.datafactory.builders.ResponseMode;
 import com.divroll.datafactory.builders.queries.BlobQuery;
 import com.divroll.datafactory.builders.queries.EntityQuery;
+import com.divroll.datafactory.builders.queries.EntityQueryBuilder;
 import com.divroll.datafactory.builders.queries.EntityTypeQuery;
 import com.divroll.datafactory.builders.queries.LinkQuery;
 import com.divroll.datafactory.conditions.UnsatisfiedCondition;
 import com.divroll.datafactory.database.DatabaseManager;
+import com.divroll.datafactory.database.ReadSnapshot;
+import com.divroll.datafactory.database.ReverseLinkIndex;
 import com.divroll.datafactory.exceptions.DataFactoryException;
+import com.divroll.datafactory.exceptions.PartialFailureException;
 import com.divroll.datafactory.indexers.LuceneIndexer;
-import com.divroll.datafactory.properties.EmbeddedArrayIterable;
+import com.divroll.datafactory.operations.GetEntitiesOperation;
+import com.divroll.datafactory.operations.Operation;
+import com.divroll.datafactory.operations.OperationResult;
+import com.divroll.datafactory.operations.OperationResultBuilder;
+import com.divroll.datafactory.operations.OperationResults;
+import com.divroll.datafactory.operations.OperationResultsBuilder;
+import com.divroll.datafactory.operations.RemoveEntitiesOperation;
+import com.divroll.datafactory.operations.RemovePropertyOperation;
+import com.divroll.datafactory.operations.SaveEntityOperation;
+import com.divroll.datafactory.operations.SaveEntityOperationBuilder;
+import com.divroll.datafactory.operations.SavePropertyOperation;
 import com.divroll.datafactory.properties.EmbeddedEntityIterable;
 import com.divroll.datafactory.repositories.EntityStore;
+import com.divroll.datafactory.repositories.InvalidationListener;
+import com.divroll.datafactory.repositories.impl.RequestDispatcher.Lane;
 import com.godaddy.logging.Logger;
 import com.godaddy.logging.LoggerFactory;
 import com.google.common.collect.FluentIterable;
+import com.google.common.collect.Lists;
 import com.healthmarketscience.rmiio.RemoteInputStreamClient;
 import io.vavr.control.Option;
 import io.vavr.control.Try;
 import java.io.InputStream;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import jetbrains.exodus.entitystore.Entity;
 import jetbrains.exodus.entitystore.EntityId;
 import jetbrains.exodus.entitystore.EntityIterable;
+import jetbrains.exodus.entitystore.EntityRemovedInDatabaseException;
 import jetbrains.exodus.entitystore.PersistentEntityStoreImpl;
 import jetbrains.exodus.entitystore.PersistentStoreTransaction;
+import jetbrains.exodus.entitystore.StoreTransaction;
+import jetbrains.exodus.entitystore.StoreTransactionalExecutable;
 import org.jetbrains.annotations.NotNull;
 import util.ComparableHashMap;
 
@@ -82,375 +113,908 @@ public class EntityStoreImpl extends StoreBaseImpl implements EntityStore {
 
   private LuceneIndexer searchIndexer;
 
+  private final InvalidationPublisher invalidations = new InvalidationPublisher();
+
+  private final RequestDispatcher dispatcher = RequestDispatcher.fromSystemProperties();
+
+  private final GroupCommitter committer;
+
+  private final ShardRouter shards = ShardRouter.fromSystemProperties();
+
+  private final EnvironmentExecutor environments = EnvironmentExecutor.fromSystemProperties();
+
+  private final HotQueryRecorder hotQueries = HotQueryRecorder.fromSystemProperties();
+
+  private final CursorManager cursors = new CursorManager(
+      Long.valueOf(System.getProperty(Constants.DATAFACTORY_CURSOR_TIMEOUT_ENVIRONMENT,
+          Constants.DATAFACTORY_CURSOR_TIMEOUT_DEFAULT)),
+      Integer.valueOf(System.getProperty(Constants.DATAFACTORY_CURSOR_MAX_ENVIRONMENT,
+          Constants.DATAFACTORY_CURSOR_MAX_DEFAULT)));
+
+  private final SnapshotManager snapshots = new SnapshotManager(
+      Long.valueOf(System.getProperty(Constants.DATAFACTORY_SNAPSHOT_TIMEOUT_ENVIRONMENT,
+          Constants.DATAFACTORY_SNAPSHOT_TIMEOUT_DEFAULT)),
+      Long.valueOf(System.getProperty(Constants.DATAFACTORY_SNAPSHOT_LIFETIME_ENVIRONMENT,
+          Constants.DATAFACTORY_SNAPSHOT_LIFETIME_DEFAULT)),
+      Integer.valueOf(System.getProperty(Constants.DATAFACTORY_SNAPSHOT_MAX_ENVIRONMENT,
+          Constants.DATAFACTORY_SNAPSHOT_MAX_DEFAULT)));
+
   public EntityStoreImpl(DatabaseManager databaseManager, LuceneIndexer searchIndexer)
       throws DataFactoryException, NotBoundException, RemoteException {
     this.manager = databaseManager;
     this.searchIndexer = searchIndexer;
+    this.committer = GroupCommitter.fromSystemProperties(databaseManager);
+  }
+
+  /**
+   * Create an {@linkplain EntityStore} exported with custom socket factories, e.g. to compress
+   * the RMI traffic.
+   */
+  public EntityStoreImpl(DatabaseManager databaseManager, LuceneIndexer searchIndexer, int port,
+      RMIClientSocketFactory csf, RMIServerSocketFactory ssf)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    super(port, csf, ssf);
+    this.manager = databaseManager;
+    this.searchIndexer = searchIndexer;
+    this.committer = GroupCommitter.fromSystemProperties(databaseManager);
   }
 
   @Override public Option<DataFactoryEntity> saveEntity(@NotNull DataFactoryEntity entity)
       throws DataFactoryException, NotBoundException, RemoteException {
-    DataFactoryEntities dataFactoryEntities = saveEntities(new DataFactoryEntity[] {entity}).get();
-    return Option.of(dataFactoryEntities.entities().stream().findFirst().get());
+    return saveEntity(entity, ResponseMode.ENTITY);
   }
 
   @Override
   public Option<DataFactoryEntities> saveEntities(@NotNull DataFactoryEntity[] entities)
       throws DataFactoryException, NotBoundException, RemoteException {
-    Map<String, List<DataFactoryEntity>> envIdOrderedEntities = sort(entities);
-    Iterator<String> it = envIdOrderedEntities.keySet().iterator();
-    AtomicReference<DataFactoryEntities> finalResult = new AtomicReference<>(null);
-    while (it.hasNext()) {
-      String dir = it.next();
-      List<DataFactoryEntity> dataFactoryEntityList = envIdOrderedEntities.get(dir);
-      manager.transactPersistentEntityStore(dir, false, txn -> {
-
-        List<DataFactoryEntity> resultEntities = new ArrayList<>();
-        dataFactoryEntityList.forEach(entity -> {
-
-          /**
-           * Build a {@linkplain Entity} in context of a referenced scoped entities based on the
-           * {@code namespace}
-           */
+    return saveEntities(entities, ResponseMode.ENTITY);
+  }
 
-          final AtomicReference<EntityIterable> reference = new AtomicReference<>();
-          final Entity entityInContext = Unmarshaller.buildContexedEntity(entity, reference, txn);
-
-          /**
-           * Filter the {@linkplain EntityIterable} reference scoped
-           */
-          reference.set(
-              Unmarshaller.filterContext(reference, entity.filters(), entity.entityType(), txn));
-
-          /**
-           * Process entity conditions, if there are no {@linkplain UnsatisfiedCondition}
-           * process the actions, blobs and properties
-           */
-          processUnsatisfiedConditions(reference, entity.conditions(), entityInContext, txn);
-
-          /**
-           * Process entity actions within the context of the {@linkplain Entity}
-           */
-          processActions(entity, reference, entityInContext, txn);
-
-          entity.blobs().forEach(remoteBlob -> {
-            InputStream blobStream =
-                Try.of(() -> RemoteInputStreamClient.wrap(remoteBlob.blobStream())).getOrNull();
-            entityInContext.setBlob(remoteBlob.blobName(), blobStream);
-          });
-
-          /**
-           * Process properties to save or update.
-           * Saving null value for a property effectively deletes the property
-           */
-
-          Iterator<String> propertyIterator = entity.propertyMap().keySet().iterator();
-          while (propertyIterator.hasNext()) {
-            String key = propertyIterator.next();
-            Comparable value = entity.propertyMap().get(key);
-            entityInContext.setProperty(key, value);
-          }
+  @Override public Option<DataFactoryEntity> saveEntity(@NotNull DataFactoryEntity entity,
+      @NotNull ResponseMode responseMode)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    return dispatcher.call(Lane.INTERACTIVE, () -> {
+      DataFactoryEntities dataFactoryEntities =
+          saveEntities(new DataFactoryEntity[] {entity}, responseMode).get();
+      return Option.ofOptional(dataFactoryEntities.entities().stream().findFirst());
+    });
+  }
 
-          resultEntities.add(new Marshaller()
-              .with(entityInContext)
-              .build());
-        });
-        finalResult.set(new DataFactoryEntitiesBuilder()
-            .entities(resultEntities)
-            .build());
-      });
-    }
-    return Option.of(finalResult.get());
+  @Override public Option<DataFactoryEntities> saveEntities(@NotNull DataFactoryEntity[] entities,
+      @NotNull ResponseMode responseMode)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    return dispatcher.call(Lane.BULK, () -> {
+      Operation[] operations = new Operation[entities.length];
+      for (int i = 0; i < entities.length; i++) {
+        operations[i] = new SaveEntityOperationBuilder()
+            .entity(entities[i])
+            .responseMode(responseMode)
+            .build();
+      }
+      OperationResult[] results = executeAll(operations);
+      DataFactoryEntitiesBuilder builder = new DataFactoryEntitiesBuilder();
+      for (OperationResult result : results) {
+        builder.addAllEntities(result.entities().entities());
+      }
+      return Option.of(builder.build());
+    });
+  }
+
+  @Override public Option<OperationResults> execute(@NotNull Operation[] operations)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    return dispatcher.call(Lane.BULK, () -> Option.of(new OperationResultsBuilder()
+        .addResults(executeAll(operations))
+        .build()));
   }
 
   @Override public Option<DataFactoryEntity> getEntity(@NotNull EntityQuery query)
       throws DataFactoryException, NotBoundException, RemoteException {
-    Option<DataFactoryEntities> optional = getEntities(query);
-    if (optional.isDefined()) {
-      return Option.of(optional.get().entities().stream().findFirst().get());
-    } else {
-      return Option.none();
-    }
+    return dispatcher.call(Lane.INTERACTIVE, () -> {
+      Option<DataFactoryEntities> optional = getEntities(query);
+      if (optional.isDefined()) {
+        return Option.of(optional.get().entities().stream().findFirst().get());
+      } else {
+        return Option.none();
+      }
+    });
   }
 
   @Override
   public Option<DataFactoryEntities> getEntities(@NotNull EntityQuery query)
       throws DataFactoryException, NotBoundException, RemoteException {
+    return dispatcher.call(Lane.INTERACTIVE, () -> {
+      hotQueries.record(query);
+      if (shards.isSharded(query.environment())) {
+        return Option.of(shards.gather(query, scatter(query, this::getEntities)));
+      }
+      AtomicReference<DataFactoryEntities> result = new AtomicReference<>();
+      manager.transactPersistentEntityStore(query.environment(), true, txn -> {
+        result.set(getEntities(query, txn));
+      });
+      return Option.of(result.get());
+    });
+  }
 
-    String dir = query.environment();
-    AtomicReference<String> entityType = new AtomicReference<>(query.entityType());
-    String nameSpace = query.nameSpace();
-
-    List<DataFactoryEntity> remoteEntities = new ArrayList<>();
-
-    AtomicReference<Long> count = new AtomicReference<>(0L);
-
-    manager.transactPersistentEntityStore(dir, true, txn -> {
+  @Override public Long count(@NotNull EntityQuery query)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    return dispatcher.call(Lane.INTERACTIVE, () -> {
+      hotQueries.record(query);
+      if (shards.isSharded(query.environment())) {
+        return scatter(query, this::count).stream()
+            .filter(count -> count != null)
+            .mapToLong(Long::longValue)
+            .sum();
+      }
+      AtomicReference<Long> count = new AtomicReference<>();
+      manager.transactPersistentEntityStore(query.environment(), true, txn -> {
+        count.set(count(query, txn));
+      });
+      return count.get();
+    });
+  }
 
-      AtomicReference<EntityIterable> result = new AtomicReference<>();
-      if (nameSpace != null && !nameSpace.isEmpty() && entityType.get() != null) {
-        result.set(txn.getAll(entityType.get())
-            .intersect(txn.find(entityType.get(), Constants.NAMESPACE_PROPERTY, nameSpace)));
-      } else if (entityType.get() != null) {
-        result.set(txn.getAll(entityType.get()));
+  @Override public Boolean exists(@NotNull EntityQuery query)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    return dispatcher.call(Lane.INTERACTIVE, () -> {
+      if (shards.isSharded(query.environment())) {
+        return scatter(query, this::exists).stream().anyMatch(Boolean.TRUE::equals);
       }
+      AtomicReference<Boolean> exists = new AtomicReference<>();
+      manager.transactPersistentEntityStore(query.environment(), true, txn -> {
+        exists.set(exists(query, txn));
+      });
+      return exists.get();
+    });
+  }
 
-      if (query.entityId() == null && entityType.get() == null) {
-        throw new IllegalArgumentException("Either entity ID or entity type must be present");
-      } else if (query.entityId() == null) {
-        processConditions(searchIndexer, entityType.get(), query.conditions(), result, txn);
+  @Override public String openCursor(@NotNull EntityQuery query)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    return dispatcher.call(Lane.INTERACTIVE, () -> {
+      shards.checkUnsharded(query.environment(), "Cursors");
+      ReadSnapshot snapshot = manager.openReadSnapshot(query.environment());
+      try {
+        return cursors.open(ClientContext.current(), snapshot,
+            txn -> findSorted(query, txn), query.offset(), entity -> marshall(entity, query));
+      } catch (RuntimeException e) {
+        snapshot.close();
+        throw e;
       }
+    });
+  }
 
-      if (query.entityId() != null) {
-        // Query by id encompasses name spacing
-        EntityId idOfEntity = txn.toEntityId(query.entityId());
-        final Entity entity = txn.getEntity(idOfEntity);
-        entityType.set(entity.getType());
-        remoteEntities.add(new Marshaller().with(entity)
-            .with(FluentIterable.from(query.blobQueries()).toArray(BlobQuery.class))
-            .with(FluentIterable.from(query.linkQueries()).toArray(LinkQuery.class))
-            .build());
-        count.set(1L);
-      } else {
-        result.set(
-            Unmarshaller.filterContext(result, query.filters(), entityType.get(), txn));
-        count.set(result.get().size());
-        result.set(result.get().skip(query.offset()).take(query.max()));
-
-        for (Entity entity : result.get()) {
-          final Map<String, Comparable> comparableMap = new LinkedHashMap<>();
-          for (String property : entity.getPropertyNames()) {
-            Comparable value = entity.getProperty(property);
-            if (value != null) {
-              if (value != null) {
-                if (value instanceof EmbeddedEntityIterable) {
-                  comparableMap.put(property, ((EmbeddedEntityIterable) value).asObject());
-                } else if (value instanceof EmbeddedArrayIterable) {
-                  comparableMap.put(
-                      property, (Comparable) ((EmbeddedArrayIterable) value).asObject());
-                } else {
-                  comparableMap.put(property, value);
-                }
-              }
-            }
-          }
-          remoteEntities.add(new Marshaller().with(entity)
-              .with(FluentIterable.from(query.blobQueries()).toArray(BlobQuery.class))
-              .with(FluentIterable.from(query.linkQueries()).toArray(LinkQuery.class))
-              .build());
-        }
+  @Override public String openSnapshot(@NotNull String environment)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    return dispatcher.call(Lane.INTERACTIVE, () -> {
+      shards.checkUnsharded(environment, "Snapshots");
+      ReadSnapshot snapshot = manager.openReadSnapshot(environment);
+      try {
+        return snapshots.open(ClientContext.current(), environment, snapshot);
+      } catch (RuntimeException e) {
+        snapshot.close();
+        throw e;
       }
     });
+  }
 
-    return Option.of(new DataFactoryEntitiesBuilder()
-        .entities(remoteEntities)
-        .offset(query.offset())
-        .max(query.max())
-        .count(count.get())
-        .build());
+  @Override public Option<DataFactoryEntities> getEntities(@NotNull String snapshotId,
+      @NotNull EntityQuery query) throws DataFactoryException, NotBoundException, RemoteException {
+    return dispatcher.call(Lane.INTERACTIVE, () -> Option.of(
+        snapshots.compute(ClientContext.current(), snapshotId, query.environment(),
+            txn -> getEntities(query, txn))));
   }
 
-  @Override public Boolean removeEntity(@NotNull EntityQuery query)
+  @Override public Long count(@NotNull String snapshotId, @NotNull EntityQuery query)
       throws DataFactoryException, NotBoundException, RemoteException {
-    return removeEntities(new EntityQuery[] {query});
+    return dispatcher.call(Lane.INTERACTIVE,
+        () -> snapshots.compute(ClientContext.current(), snapshotId, query.environment(),
+            txn -> count(query, txn)));
   }
 
-  @Override public Boolean removeEntities(@NotNull EntityQuery[] queries)
+  @Override public Boolean closeSnapshot(@NotNull String snapshotId)
       throws DataFactoryException, NotBoundException, RemoteException {
-    final boolean[] success = {false};
-
-    Map<String, List<EntityQuery>> dirOrderedQueries = sort(queries);
-    Iterator<String> it = dirOrderedQueries.keySet().iterator();
-    while (it.hasNext()) {
-      String dir = it.next();
-      List<EntityQuery> queryList = dirOrderedQueries.get(dir);
-      manager.transactPersistentEntityStore(dir, false, txn -> {
-        queryList.forEach(query -> {
-          String entityType = query.entityType();
-          String nameSpace = query.nameSpace();
-          EntityIterable result = null;
-          if (nameSpace != null && !nameSpace.isEmpty()) {
-            result =
-                txn.findWithProp(entityType, Constants.NAMESPACE_PROPERTY)
-                    .intersect(txn.find(entityType, Constants.NAMESPACE_PROPERTY, nameSpace));
-          } else {
-            result =
-                txn.getAll(entityType)
-                    .minus(txn.findWithProp(entityType, Constants.NAMESPACE_PROPERTY));
-          }
-          final boolean[] hasError = {false};
-          for (Entity entity : result) {
+    return snapshots.close(ClientContext.current(), snapshotId);
+  }
 
-            entity.getLinkNames().forEach(linkName -> {
-              Entity linked = entity.getLink(linkName);
-              entity.deleteLink(linkName, linked);
-            });
-
-            // TODO: This is a performance issue
-            final List<String> allLinkNames = ((PersistentEntityStoreImpl) txn.getStore())
-                .getAllLinkNames(
-                    (PersistentStoreTransaction) txn.getStore().getCurrentTransaction());
-            for (final String entityType1 : txn.getEntityTypes()) {
-              for (final String linkName : allLinkNames) {
-                for (final Entity referrer : txn.findLinks(entityType1, entity, linkName)) {
-                  referrer.deleteLink(linkName, entity);
-                }
-              }
-            }
+  @Override public Option<DataFactoryEntities> nextBatch(@NotNull String cursorId,
+      @NotNull Integer batchSize) throws DataFactoryException, NotBoundException, RemoteException {
+    return dispatcher.call(Lane.INTERACTIVE, () -> Option.of(
+        cursors.next(ClientContext.current(), cursorId, batchSize)));
+  }
 
-            entity.getBlobNames().forEach(blobName -> {
-              entity.deleteBlob(blobName);
-            });
+  @Override public Boolean closeCursor(@NotNull String cursorId)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    return cursors.close(ClientContext.current(), cursorId);
+  }
+
+  @Override public Boolean removeEntity(@NotNull EntityQuery query)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    return dispatcher.call(Lane.INTERACTIVE, () -> removeEntities(new EntityQuery[] {query}));
+  }
 
-            if (!entity.delete()) {
-              hasError[0] = true;
+  @Override public Boolean removeEntities(@NotNull EntityQuery[] queries)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    return dispatcher.call(Lane.BULK, () -> {
+      int batchSize = Integer.valueOf(System.getProperty(
+          Constants.DATAFACTORY_REMOVE_BATCH_ENVIRONMENT,
+          Constants.DATAFACTORY_REMOVE_BATCH_DEFAULT));
+      AtomicBoolean success = new AtomicBoolean(true);
+      EntityQuery[] routed = shards.route(queries);
+      Map<String, List<Integer>> dirOrderedQueries = sort(routed, EntityQuery::environment);
+      environments.run(dirOrderedQueries.keySet(), dir -> {
+        List<Integer> indexes = dirOrderedQueries.get(dir);
+        try {
+          for (Integer index : indexes) {
+            // Each batch is removed in its own transaction so large removals do not hold the
+            // write lock for long
+            for (EntityQuery batch : partition(routed[index], batchSize)) {
+              boolean[] more = {true};
+              while (more[0]) {
+                manager.transactPersistentEntityStore(dir, false, txn -> {
+                  List<Entity> entities = findRemovable(batch, batchSize, txn);
+                  boolean removed = removeEntities(entities, txn);
+                  if (!removed) {
+                    success.set(false);
+                  }
+                  // Removal by type continues until a batch comes back short
+                  more[0] = removed && batch.entityId() == null && !hasEntityIds(batch)
+                      && entities.size() == batchSize;
+                });
+              }
             }
           }
-          success[0] = !hasError[0];
-        });
+        } finally {
+          // Links of referrers are removed too
+          invalidations.publish(shards.getEnvironment(dir), null);
+        }
       });
-    }
-
-    return success[0];
+      return success.get();
+    });
   }
 
   @Override public Boolean saveProperty(@NotNull DataFactoryProperty property)
       throws DataFactoryException, NotBoundException, RemoteException {
-    String dir = property.environment();
-    String entityType = property.entityType();
-    String nameSpace = property.nameSpace();
-    AtomicReference<Boolean> updated = new AtomicReference<>(false);
-    manager.transactPersistentEntityStore(dir, false, txn -> {
-      final AtomicReference<EntityIterable> reference = new AtomicReference<>();
-      if (nameSpace != null) {
-        reference.set(
-            txn.getAll(entityType)
-                .intersect(
-                    txn.find(entityType, Constants.NAMESPACE_PROPERTY, nameSpace)));
-      } else {
-        reference.set(txn.getAll(entityType));
+    return dispatcher.call(Lane.BULK, () -> {
+      String environment = property.environment();
+      AtomicReference<Boolean> updated = new AtomicReference<>(false);
+      for (String dir : shards.getDirectories(environment)) {
+        manager.transactPersistentEntityStore(dir, false, txn -> {
+          updated.set(saveProperty(property, txn));
+        });
       }
-      property.propertyActions().forEach(entityPropertyAction -> {
-        if (entityPropertyAction instanceof PropertyRenameAction) {
-          reference.set(reference.get().intersect(txn.getAll(entityType)));
-          EntityIterable entities = reference.get();
-          String propertyName = ((PropertyRenameAction) entityPropertyAction).propertyName();
-          String newPropertyName = ((PropertyRenameAction) entityPropertyAction).newPropertyName();
-          Boolean overwrite = ((PropertyRenameAction) entityPropertyAction).overwrite();
-          entities.forEach(entity -> {
-            if (entity.getProperty(newPropertyName) != null && !overwrite) {
-              throw new IllegalArgumentException(
-                  "Conflicting property " + newPropertyName + " exists");
-            }
-            Comparable propertyValue = entity.getProperty(propertyName);
-            entity.deleteProperty(propertyName);
-            entity.setProperty(propertyName, propertyValue);
-          });
-        }
-      });
-      updated.set(true);
+      invalidations.publish(environment, null);
+      return updated.get();
     });
-    return updated.get();
   }
 
   @Override public Boolean removeProperty(@NotNull DataFactoryProperty property)
       throws DataFactoryException, NotBoundException, RemoteException {
-    String dir = property.environment();
-    String entityType = property.entityType();
-    String nameSpace = property.nameSpace();
-    AtomicReference<Boolean> removed = new AtomicReference<>(false);
-    manager.transactPersistentEntityStore(dir, false, txn -> {
-      final AtomicReference<EntityIterable> reference = new AtomicReference<>();
-      if (nameSpace != null) {
-        reference.set(
-            txn.getAll(entityType)
-                .intersect(
-                    txn.find(entityType, Constants.NAMESPACE_PROPERTY, nameSpace)));
-      } else {
-        reference.set(txn.getAll(entityType));
+    return dispatcher.call(Lane.BULK, () -> {
+      String environment = property.environment();
+      AtomicReference<Boolean> removed = new AtomicReference<>(false);
+      for (String dir : shards.getDirectories(environment)) {
+        manager.transactPersistentEntityStore(dir, false, txn -> {
+          removed.set(removeProperty(property, txn));
+        });
       }
-      property.propertyActions().forEach(entityPropertyAction -> {
-        if (entityPropertyAction instanceof PropertyRemoveAction) {
-          reference.set(reference.get().intersect(txn.getAll(entityType)));
-          String propertyName = ((PropertyRemoveAction) entityPropertyAction).propertyName();
-          reference.set(reference.get().intersect(txn.findWithProp(entityType, propertyName)));
-          reference.get().forEach(entity -> {
-            entity.deleteProperty(propertyName);
-          });
-        } else {
-          throw new IllegalArgumentException("Invalid property action");
-        }
-      });
-      removed.set(true);
+      invalidations.publish(environment, null);
+      return removed.get();
     });
-    return removed.get();
   }
 
   @Override
   public Boolean removeEntityType(@NotNull EntityQuery query)
       throws RemoteException, NotBoundException {
-    final boolean[] success = {false};
+    return dispatcher.call(Lane.BULK, () -> {
+      final boolean[] success = {false};
 
-    String dir = query.environment();
-    String entityType = query.entityType();
-    String nameSpace = query.nameSpace();
+      String dir = query.environment();
+      String entityType = query.entityType();
+      String nameSpace = query.nameSpace();
 
-    manager.transactPersistentEntityStore(dir, false, txn -> {
-      final AtomicReference<EntityIterable> reference = new AtomicReference<>();
-      if (nameSpace != null) {
-        reference.set(
-            txn.getAll(entityType)
-                .intersect(
-                    txn.find(entityType, Constants.NAMESPACE_PROPERTY, nameSpace)));
-      } else {
-        reference.set(txn.getAll(entityType));
-      }
-      EntityIterable result = reference.get();
-      for (Entity entity : result) {
-        entity.getLinkNames().forEach(linkName -> {
-          Entity linked = entity.getLink(linkName);
-          entity.deleteLink(linkName, linked);
-        });
-        // TODO: This is a performance issue
-        final List<String> allLinkNames = ((PersistentEntityStoreImpl) txn.getStore())
-            .getAllLinkNames((PersistentStoreTransaction) txn.getStore().getCurrentTransaction());
-        for (final String entityType1 : txn.getEntityTypes()) {
-          for (final String linkName : allLinkNames) {
-            for (final Entity referrer : txn.findLinks(entityType1, entity, linkName)) {
-              referrer.deleteLink(linkName, entity);
-            }
+      for (String shardDir : shards.getDirectories(dir)) {
+        manager.transactPersistentEntityStore(shardDir, false, txn -> {
+          final AtomicReference<EntityIterable> reference = new AtomicReference<>();
+          if (nameSpace != null) {
+            reference.set(
+                txn.getAll(entityType)
+                    .intersect(
+                        txn.find(entityType, Constants.NAMESPACE_PROPERTY, nameSpace)));
+          } else {
+            reference.set(txn.getAll(entityType));
           }
-        }
+          EntityIterable result = reference.get();
+          for (Entity entity : result) {
+            ReverseLinkIndex.deleteLinks(entity, txn);
+            unlinkReferrers(Collections.singletonList(entity), txn);
+          }
+        });
       }
+      invalidations.publish(dir, null);
+      return success[0];
     });
-    return success[0];
   }
 
   @Override public Option<DataFactoryEntityTypes> getEntityTypes(EntityTypeQuery query)
       throws DataFactoryException, NotBoundException, RemoteException {
-    AtomicReference<DataFactoryEntityTypes> atomicReference = new AtomicReference<>();
-    manager.transactPersistentEntityStore(query.environment(), true, txn -> {
-      List<String> entityTypes = txn.getEntityTypes();
-      Long count = null;
-      if(query.count()) {
-        EntityIterable entities = txn.getAll(query.entityType());
-        count = entities.size();
+    return dispatcher.call(Lane.INTERACTIVE, () -> {
+      Set<String> entityTypes = new LinkedHashSet<>();
+      AtomicReference<Long> count = new AtomicReference<>();
+      for (String dir : shards.getDirectories(query.environment())) {
+        manager.transactPersistentEntityStore(dir, true, txn -> {
+          if (txn.getEntityTypes() != null) {
+            entityTypes.addAll(txn.getEntityTypes());
+          }
+          if(query.count()) {
+            EntityIterable entities = txn.getAll(query.entityType());
+            count.set((count.get() != null ? count.get() : 0L) + entities.size());
+          }
+        });
       }
       List<DataFactoryEntityType> dataFactoryEntityTypeList = new ArrayList<>();
-      if (entityTypes != null) {
-        for (String entityType : entityTypes) {
-          dataFactoryEntityTypeList.add(new DataFactoryEntityTypeBuilder()
-              .entityTypeName(entityType)
-              .build());
-        }
+      for (String entityType : entityTypes) {
+        dataFactoryEntityTypeList.add(new DataFactoryEntityTypeBuilder()
+            .entityTypeName(entityType)
+            .build());
       }
       DataFactoryEntityTypes dataFactoryEntityTypes = new DataFactoryEntityTypesBuilder()
           .entityTypes(dataFactoryEntityTypeList)
-          .entityCount(count)
+          .entityCount(count.get())
           .build();
-      atomicReference.set(dataFactoryEntityTypes);
+      return Option.of(dataFactoryEntityTypes);
     });
-    return Option.of(atomicReference.get());
+  }
+
+  /**
+   * @return the dispatcher admitting requests to this store, e.g. to read its queue metrics
+   */
+  public RequestDispatcher getDispatcher() {
+    return dispatcher;
+  }
+
+  /**
+   * @return the committer grouping concurrent writes, e.g. to read its commit metrics
+   */
+  public GroupCommitter getGroupCommitter() {
+    return committer;
+  }
+
+  /**
+   * @return the router of sharded environments, e.g. to find the directories of an environment
+   */
+  public ShardRouter getShardRouter() {
+    return shards;
+  }
+
+  /**
+   * @return the recorder of the hot queries and recent environments, e.g. to plan a
+   * {@linkplain Warmup}
+   */
+  public HotQueryRecorder getHotQueryRecorder() {
+    return hotQueries;
+  }
+
+  @Override public Boolean addInvalidationListener(@NotNull InvalidationListener listener)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    return invalidations.addListener(listener);
+  }
+
+  @Override public Boolean removeInvalidationListener(@NotNull InvalidationListener listener)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    return invalidations.removeListener(listener);
+  }
+
+  /**
+   * Run the operations within one transaction per environment, or per shard of sharded
+   * environments. The environments run in parallel, the operations of an environment in order.
+   *
+   * @return the results in the order of the operations
+   * @throws PartialFailureException if some of several environments failed
+   */
+  private OperationResult[] executeAll(Operation[] operations) {
+    OperationResult[] results = new OperationResult[operations.length];
+    Operation[] routed = shards.route(operations);
+    Map<String, List<Integer>> envOrderedOperations = sort(routed, Operation::environment);
+    environments.run(envOrderedOperations.keySet(), dir -> {
+      List<Integer> indexes = envOrderedOperations.get(dir);
+      boolean isReadOnly = indexes.stream()
+          .allMatch(index -> routed[index] instanceof GetEntitiesOperation);
+      StoreTransactionalExecutable write =
+          txn -> indexes.forEach(index -> results[index] = execute(routed[index], txn));
+      if (isReadOnly || hasBlobs(indexes, routed)) {
+        // Blob streams can only be read once so these writes cannot be run again in a group
+        manager.transactPersistentEntityStore(dir, isReadOnly, write);
+      } else {
+        committer.commit(dir, write);
+      }
+      String environment = shards.getEnvironment(dir);
+      hotQueries.recordEnvironment(environment);
+      int shard = shards.getShard(dir);
+      if (shard >= 0) {
+        indexes.forEach(index ->
+            results[index] = shards.globalize(results[index], environment, shard));
+      }
+      if (!isReadOnly) {
+        // The operations as given carry the qualified ids of sharded environments
+        invalidations.publish(environment, touchedIds(indexes, operations));
+      }
+    });
+    return results;
+  }
+
+  private static boolean hasBlobs(List<Integer> indexes, Operation[] operations) {
+    return indexes.stream()
+        .map(index -> operations[index])
+        .anyMatch(operation -> operation instanceof SaveEntityOperation
+            && !((SaveEntityOperation) operation).entity().blobs().isEmpty());
+  }
+
+  /**
+   * Run an operation, this method should be called within a database transaction.
+   */
+  private OperationResult execute(Operation operation, StoreTransaction txn) {
+    if (operation instanceof SaveEntityOperation) {
+      SaveEntityOperation save = (SaveEntityOperation) operation;
+      DataFactoryEntity saved = saveEntity(save.entity(), save.responseMode(), txn);
+      DataFactoryEntitiesBuilder entities = new DataFactoryEntitiesBuilder();
+      if (saved != null) {
+        entities.addEntities(saved);
+      }
+      return new OperationResultBuilder()
+          .entities(entities.build())
+          .build();
+    } else if (operation instanceof GetEntitiesOperation) {
+      EntityQuery query = ((GetEntitiesOperation) operation).query();
+      return new OperationResultBuilder()
+          .entities(getEntities(query, txn))
+          .build();
+    } else if (operation instanceof RemoveEntitiesOperation) {
+      EntityQuery query = ((RemoveEntitiesOperation) operation).query();
+      return new OperationResultBuilder()
+          .success(removeEntities(query, txn))
+          .build();
+    } else if (operation instanceof SavePropertyOperation) {
+      DataFactoryProperty property = ((SavePropertyOperation) operation).property();
+      return new OperationResultBuilder()
+          .success(saveProperty(property, txn))
+          .build();
+    } else if (operation instanceof RemovePropertyOperation) {
+      DataFactoryProperty property = ((RemovePropertyOperation) operation).property();
+      return new OperationResultBuilder()
+          .success(removeProperty(property, txn))
+          .build();
+    } else {
+      throw new IllegalArgumentException("Invalid operation " + operation.getClass().getName());
+    }
+  }
+
+  /**
+   * Save an entity, this method should be called within a database transaction.
+   *
+   * @return the saved entity as requested by {@code responseMode}, {@code null} for
+   * {@linkplain ResponseMode#NONE}
+   */
+  private DataFactoryEntity saveEntity(DataFactoryEntity entity, ResponseMode responseMode,
+      StoreTransaction txn) {
+    /**
+     * Build a {@linkplain Entity} in context of a referenced scoped entities based on the
+     * {@code namespace}
+     */
+
+    final AtomicReference<EntityIterable> reference = new AtomicReference<>();
+    final Entity entityInContext = Unmarshaller.buildContexedEntity(entity, reference, txn);
+
+    /**
+     * Filter the {@linkplain EntityIterable} reference scoped
+     */
+    reference.set(
+        Unmarshaller.filterContext(reference, entity.filters(), entity.entityType(), txn));
+
+    /**
+     * Process entity conditions, if there are no {@linkplain UnsatisfiedCondition}
+     * process the actions, blobs and properties
+     */
+    processUnsatisfiedConditions(reference, entity.conditions(), entityInContext, txn);
+
+    /**
+     * Process entity actions within the context of the {@linkplain Entity}
+     */
+    processActions(entity, reference, entityInContext, txn);
+
+    entity.blobs().forEach(remoteBlob -> {
+      InputStream blobStream =
+          Try.of(() -> RemoteInputStreamClient.wrap(remoteBlob.blobStream())).getOrNull();
+      entityInContext.setBlob(remoteBlob.blobName(), blobStream);
+    });
+
+    /**
+     * Process properties to save or update.
+     * Saving null value for a property effectively deletes the property
+     */
+
+    Iterator<String> propertyIterator = entity.propertyMap().keySet().iterator();
+    while (propertyIterator.hasNext()) {
+      String key = propertyIterator.next();
+      Comparable value = entity.propertyMap().get(key);
+      entityInContext.setProperty(key, value);
+    }
+
+    switch (responseMode) {
+      case NONE:
+        return null;
+      case ID:
+        return new DataFactoryEntityBuilder()
+            .environment(entityInContext.getStore().getLocation())
+            .entityType(entityInContext.getType())
+            .entityId(entityInContext.getId().toString())
+            .build();
+      default:
+        return new Marshaller()
+            .with(entityInContext)
+            .build();
+    }
+  }
+
+  /**
+   * Get the entities matching the query, this method should be called within a database
+   * transaction.
+   */
+  private DataFactoryEntities getEntities(EntityQuery query, StoreTransaction txn) {
+    List<DataFactoryEntity> remoteEntities = new ArrayList<>();
+    long count;
+    if (hasEntityIds(query)) {
+      for (String entityId : query.entityIds()) {
+        Entity entity = findById(entityId, txn);
+        if (entity != null) {
+          remoteEntities.add(marshall(entity, query));
+        }
+      }
+      count = remoteEntities.size();
+    } else if (query.entityId() != null) {
+      // Query by id encompasses name spacing
+      EntityId idOfEntity = txn.toEntityId(query.entityId());
+      final Entity entity = txn.getEntity(idOfEntity);
+      remoteEntities.add(marshall(entity, query));
+      count = 1L;
+    } else {
+      EntityIterable result = findSorted(query, txn);
+      count = result.size();
+      for (Entity entity : result.skip(query.offset()).take(query.max())) {
+        remoteEntities.add(marshall(entity, query));
+      }
+    }
+    return new DataFactoryEntitiesBuilder()
+        .entities(remoteEntities)
+        .offset(query.offset())
+        .max(query.max())
+        .count(count)
+        .build();
+  }
+
+  /**
+   * Remove the entities matching the query along with their links, this method should be called
+   * within a database transaction.
+   *
+   * @return {@code false} if an entity could not be deleted
+   */
+  private boolean removeEntities(EntityQuery query, StoreTransaction txn) {
+    return removeEntities(findRemovable(query, Integer.MAX_VALUE, txn), txn);
+  }
+
+  /**
+   * Count the entities matching the query, this method should be called within a database
+   * transaction.
+   */
+  private long count(EntityQuery query, StoreTransaction txn) {
+    if (hasEntityIds(query)) {
+      return query.entityIds().stream()
+          .filter(entityId -> findById(entityId, txn) != null)
+          .count();
+    } else if (query.entityId() != null) {
+      return findById(query.entityId(), txn) != null ? 1L : 0L;
+    }
+    return findEntities(query, txn).size();
+  }
+
+  /**
+   * Run the query on each shard of its environment in parallel, each in its own read-only
+   * transaction.
+   *
+   * @return the results by shard, {@code null} for shards holding none of the queried ids
+   */
+  private <T> List<T> scatter(EntityQuery query,
+      BiFunction<EntityQuery, StoreTransaction, T> read) {
+    return shards.scatter(query.environment(), shard -> {
+      EntityQuery shardQuery = shards.localize(query, shard);
+      if (shardQuery == null) {
+        return null;
+      }
+      AtomicReference<T> result = new AtomicReference<>();
+      manager.transactPersistentEntityStore(shardQuery.environment(), true, txn -> {
+        result.set(read.apply(shardQuery, txn));
+      });
+      return result.get();
+    });
+  }
+
+  /**
+   * Check whether any entity matches the query, this method should be called within a database
+   * transaction.
+   */
+  private boolean exists(EntityQuery query, StoreTransaction txn) {
+    if (hasEntityIds(query)) {
+      return query.entityIds().stream().anyMatch(entityId -> findById(entityId, txn) != null);
+    } else if (query.entityId() != null) {
+      return findById(query.entityId(), txn) != null;
+    }
+    return !findEntities(query, txn).isEmpty();
+  }
+
+  /**
+   * Find the entities removed by the query: the entities of {@code entityIds} or
+   * {@code entityId} if given, else the entities of the type within the name space.
+   *
+   * @param limit maximum number of entities to return when removing by type
+   */
+  private static List<Entity> findRemovable(EntityQuery query, int limit,
+      StoreTransaction txn) {
+    List<Entity> entities = new ArrayList<>();
+    if (hasEntityIds(query)) {
+      for (String entityId : query.entityIds()) {
+        Entity entity = findById(entityId, txn);
+        if (entity != null) {
+          entities.add(entity);
+        }
+      }
+    } else if (query.entityId() != null) {
+      Entity entity = findById(query.entityId(), txn);
+      if (entity != null) {
+        entities.add(entity);
+      }
+    } else {
+      String entityType = query.entityType();
+      String nameSpace = query.nameSpace();
+      EntityIterable result;
+      if (nameSpace != null && !nameSpace.isEmpty()) {
+        result =
+            txn.findWithProp(entityType, Constants.NAMESPACE_PROPERTY)
+                .intersect(txn.find(entityType, Constants.NAMESPACE_PROPERTY, nameSpace));
+      } else {
+        result =
+            txn.getAll(entityType)
+                .minus(txn.findWithProp(entityType, Constants.NAMESPACE_PROPERTY));
+      }
+      result.take(limit).forEach(entities::add);
+    }
+    return entities;
+  }
+
+  /**
+   * Remove the entities along with their blobs, their links and the links of other entities to
+   * them. This method should be called within a database transaction.
+   *
+   * @return {@code false} if an entity could not be deleted
+   */
+  private static boolean removeEntities(List<Entity> entities, StoreTransaction txn) {
+    if (entities.isEmpty()) {
+      return true;
+    }
+    unlinkReferrers(entities, txn);
+    boolean success = true;
+    for (Entity entity : entities) {
+      ReverseLinkIndex.deleteLinks(entity, txn);
+      entity.getBlobNames().forEach(entity::deleteBlob);
+      if (!entity.delete()) {
+        success = false;
+      }
+      ReverseLinkIndex.forget(entity.getId(), txn);
+    }
+    return success;
+  }
+
+  /**
+   * Delete the links of other entities to the given ones. With the reverse link index only the
+   * actual referrers are visited, without it every entity type and link name is searched, once
+   * for the whole set rather than for each entity.
+   */
+  private static void unlinkReferrers(List<Entity> targets, StoreTransaction txn) {
+    if (ReverseLinkIndex.isBuilt(txn)) {
+      for (Entity target : targets) {
+        for (ReverseLinkIndex.Referrer referrer : ReverseLinkIndex.findReferrers(target, txn)) {
+          Entity entity = findById(referrer.getEntityId(), txn);
+          if (entity != null) {
+            ReverseLinkIndex.deleteLink(entity, referrer.getLinkName(), target, txn);
+          }
+        }
+      }
+      return;
+    }
+    Set<EntityId> targetIds = new HashSet<>();
+    targets.forEach(entity -> targetIds.add(entity.getId()));
+    EntityIterable removed = union(targets, 0, targets.size(), txn);
+    final List<String> allLinkNames = ((PersistentEntityStoreImpl) txn.getStore())
+        .getAllLinkNames((PersistentStoreTransaction) txn.getStore().getCurrentTransaction());
+    for (final String entityType : txn.getEntityTypes()) {
+      for (final String linkName : allLinkNames) {
+        List<Entity> referrers = new ArrayList<>();
+        txn.findLinks(entityType, removed, linkName).forEach(referrers::add);
+        for (Entity referrer : referrers) {
+          List<Entity> linked = new ArrayList<>();
+          referrer.getLinks(linkName).forEach(linked::add);
+          for (Entity target : linked) {
+            if (targetIds.contains(target.getId())) {
+              referrer.deleteLink(linkName, target);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Union of the singleton iterables of the entities from {@code from} to {@code to}, built as a
+   * balanced tree so large sets do not nest deeply.
+   */
+  private static EntityIterable union(List<Entity> entities, int from, int to,
+      StoreTransaction txn) {
+    if (to - from == 1) {
+      return txn.getSingletonIterable(entities.get(from));
+    }
+    int middle = (from + to) >>> 1;
+    return union(entities, from, middle, txn).union(union(entities, middle, to, txn));
+  }
+
+  /**
+   * Apply the property actions to the entities of the type, this method should be called within
+   * a database transaction.
+   */
+  private boolean saveProperty(DataFactoryProperty property, StoreTransaction txn) {
+    String entityType = property.entityType();
+    String nameSpace = property.nameSpace();
+    final AtomicReference<EntityIterable> reference = new AtomicReference<>();
+    if (nameSpace != null) {
+      reference.set(
+          txn.getAll(entityType)
+              .intersect(
+                  txn.find(entityType, Constants.NAMESPACE_PROPERTY, nameSpace)));
+    } else {
+      reference.set(txn.getAll(entityType));
+    }
+    property.propertyActions().forEach(entityPropertyAction -> {
+      if (entityPropertyAction instanceof PropertyRenameAction) {
+        reference.set(reference.get().intersect(txn.getAll(entityType)));
+        EntityIterable entities = reference.get();
+        String propertyName = ((PropertyRenameAction) entityPropertyAction).propertyName();
+        String newPropertyName = ((PropertyRenameAction) entityPropertyAction).newPropertyName();
+        Boolean overwrite = ((PropertyRenameAction) entityPropertyAction).overwrite();
+        entities.forEach(entity -> {
+          if (entity.getProperty(newPropertyName) != null && !overwrite) {
+            throw new IllegalArgumentException(
+                "Conflicting property " + newPropertyName + " exists");
+          }
+          Comparable propertyValue = entity.getProperty(propertyName);
+          entity.deleteProperty(propertyName);
+          entity.setProperty(propertyName, propertyValue);
+        });
+      }
+    });
+    return true;
+  }
+
+  /**
+   * Remove properties from the entities of the type, this method should be called within a
+   * database transaction.
+   */
+  private boolean removeProperty(DataFactoryProperty property, StoreTransaction txn) {
+    String entityType = property.entityType();
+    String nameSpace = property.nameSpace();
+    final AtomicReference<EntityIterable> reference = new AtomicReference<>();
+    if (nameSpace != null) {
+      reference.set(
+          txn.getAll(entityType)
+              .intersect(
+                  txn.find(entityType, Constants.NAMESPACE_PROPERTY, nameSpace)));
+    } else {
+      reference.set(txn.getAll(entityType));
+    }
+    property.propertyActions().forEach(entityPropertyAction -> {
+      if (entityPropertyAction instanceof PropertyRemoveAction) {
+        reference.set(reference.get().intersect(txn.getAll(entityType)));
+        String propertyName = ((PropertyRemoveAction) entityPropertyAction).propertyName();
+        reference.set(reference.get().intersect(txn.findWithProp(entityType, propertyName)));
+        reference.get().forEach(entity -> {
+          entity.deleteProperty(propertyName);
+        });
+      } else {
+        throw new IllegalArgumentException("Invalid property action");
+      }
+    });
+    return true;
+  }
+
+  /**
+   * Collect the ids of the entities changed by the operations at {@code indexes}.
+   *
+   * @return the ids, or {@code null} when entities not known up front changed, e.g. through
+   * opposite links, removals or property operations
+   */
+  private static String[] touchedIds(List<Integer> indexes, Operation[] operations) {
+    List<String> entityIds = new ArrayList<>();
+    for (Integer index : indexes) {
+      Operation operation = operations[index];
+      if (operation instanceof GetEntitiesOperation) {
+        continue;
+      } else if (!(operation instanceof SaveEntityOperation)) {
+        return null;
+      }
+      DataFactoryEntity entity = ((SaveEntityOperation) operation).entity();
+      if (!InvalidationPublisher.addLinkedIds(entity, entityIds)) {
+        return null;
+      }
+      // Entities created by the save cannot be cached anywhere yet
+      if (entity.entityId() != null) {
+        entityIds.add(entity.entityId());
+      }
+    }
+    return entityIds.toArray(new String[0]);
+  }
+
+  /**
+   * Build the {@linkplain EntityIterable} of entities matching the type, namespace, conditions and
+   * filters of the query. This method should be called within a database transaction.
+   */
+  private EntityIterable findEntities(EntityQuery query, StoreTransaction txn) {
+    String entityType = query.entityType();
+    String nameSpace = query.nameSpace();
+    if (entityType == null) {
+      throw new IllegalArgumentException("Either entity ID or entity type must be present");
+    }
+    AtomicReference<EntityIterable> result = new AtomicReference<>();
+    if (nameSpace != null && !nameSpace.isEmpty()) {
+      result.set(txn.getAll(entityType)
+          .intersect(txn.find(entityType, Constants.NAMESPACE_PROPERTY, nameSpace)));
+    } else {
+      result.set(txn.getAll(entityType));
+    }
+    processConditions(searchIndexer, entityType, query.conditions(), result, txn);
+    return Unmarshaller.filterContext(result, query.filters(), entityType, txn);
+  }
+
+  /**
+   * Same as {@linkplain #findEntities}, in the order of the sort property of the query if any.
+   * Only used where the entities are read, counting them does not need the sort.
+   */
+  private EntityIterable findSorted(EntityQuery query, StoreTransaction txn) {
+    EntityIterable found = findEntities(query, txn);
+    if (query.sort() != null) {
+      return txn.sort(query.entityType(), query.sort(), found,
+          !Boolean.FALSE.equals(query.sortAscending()));
+    }
+    return found;
+  }
+
+  private static boolean hasEntityIds(EntityQuery query) {
+    return query.entityIds() != null && !query.entityIds().isEmpty();
+  }
+
+  /**
+   * @return the entity, or {@code null} if it does not exist
+   */
+  private static Entity findById(String entityId, StoreTransaction txn) {
+    try {
+      return txn.getEntity(txn.toEntityId(entityId));
+    } catch (EntityRemovedInDatabaseException e) {
+      return null;
+    }
+  }
+
+  private static DataFactoryEntity marshall(Entity entity, EntityQuery query) {
+    Marshaller marshaller = new Marshaller().with(entity)
+        .with(FluentIterable.from(query.blobQueries()).toArray(BlobQuery.class))
+        .with(FluentIterable.from(query.linkQueries()).toArray(LinkQuery.class));
+    if (query.fields() != null) {
+      marshaller.with(query.fields());
+    }
+    return marshaller.build();
   }
 
   /**
@@ -473,36 +1037,36 @@ public class EntityStoreImpl extends StoreBaseImpl implements EntityStore {
   //}
 
   /**
-   * Sort an array of {@linkplain DataFactoryEntity} by Application ID.
+   * Sort an array of items by environment, environments are kept in order of first appearance.
    *
-   * @param entities
-   * @return
+   * @param items
+   * @param environment
+   * @return the indexes of the items of each environment
    */
-  private static Map<String, List<DataFactoryEntity>> sort(DataFactoryEntity[] entities) {
-    Map<String, List<DataFactoryEntity>> dirOrderedEntities = new HashMap<>();
-    Arrays.asList(entities).forEach(remoteEntity -> {
-      String dir = remoteEntity.environment();
-      List<DataFactoryEntity> dataFactoryEntityUpdates = dirOrderedEntities.get(dir);
-      if (dataFactoryEntityUpdates == null) {
-        dataFactoryEntityUpdates = new ArrayList<>();
-      }
-      dataFactoryEntityUpdates.add(remoteEntity);
-      dirOrderedEntities.put(dir, dataFactoryEntityUpdates);
-    });
-    return dirOrderedEntities;
+  private static <T> Map<String, List<Integer>> sort(T[] items, Function<T, String> environment) {
+    Map<String, List<Integer>> dirOrderedItems = new LinkedHashMap<>();
+    for (int i = 0; i < items.length; i++) {
+      dirOrderedItems.computeIfAbsent(environment.apply(items[i]), dir -> new ArrayList<>())
+          .add(i);
+    }
+    return dirOrderedItems;
   }
 
-  private static Map<String, List<EntityQuery>> sort(EntityQuery[] entities) {
-    Map<String, List<EntityQuery>> appOrderedQueries = new HashMap<>();
-    Arrays.asList(entities).forEach(remoteEntity -> {
-      String dir = remoteEntity.environment();
-      List<EntityQuery> entityQueries = appOrderedQueries.get(dir);
-      if (entityQueries == null) {
-        entityQueries = new ArrayList<>();
-      }
-      entityQueries.add(remoteEntity);
-    });
-    return appOrderedQueries;
+  /**
+   * Split a removal by ids into queries of at most {@code batchSize} ids.
+   */
+  private static List<EntityQuery> partition(EntityQuery query, int batchSize) {
+    if (query.entityIds() == null || query.entityIds().size() <= batchSize) {
+      return Collections.singletonList(query);
+    }
+    List<EntityQuery> batches = new ArrayList<>();
+    for (List<String> entityIds : Lists.partition(query.entityIds(), batchSize)) {
+      batches.add(new EntityQueryBuilder()
+          .from(query)
+          .entityIds(entityIds)
+          .build());
+    }
+    return batches;
   }
 
   private Comparable asObject(EmbeddedEntityIterable entityIterable) {
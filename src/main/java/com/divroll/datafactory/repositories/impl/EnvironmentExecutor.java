@@ -0,0 +1,140 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories.impl;
+
+import com.divroll.datafactory.Constants;
+import com.divroll.datafactory.exceptions.PartialFailureException;
+import com.divroll.datafactory.exceptions.Throwing;
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Runs the per environment parts of a request in parallel. Each environment has its own Xodus
+ * writer, so a request touching many environments takes about as long as its slowest commit
+ * rather than the sum of them. The calling thread runs the first environment while the others
+ * run on a shared pool bounded by {@code datafactory.environment.parallelism}.
+ *
+ * <p>Every environment runs to the end even if another fails. A failure of the only environment
+ * of a request is rethrown as is, otherwise a {@linkplain PartialFailureException} tells which
+ * environments committed and which did not.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class EnvironmentExecutor {
+
+  private static final Logger LOG = LoggerFactory.getLogger(EnvironmentExecutor.class);
+
+  private final ExecutorService executor;
+
+  /**
+   * @param parallelism number of pool threads, {@code 1} to run the environments one after
+   *                    another on the calling thread
+   */
+  public EnvironmentExecutor(int parallelism) {
+    Preconditions.checkArgument(parallelism > 0, "parallelism should be greater than zero");
+    this.executor = parallelism > 1 ? Executors.newFixedThreadPool(parallelism,
+        new ThreadFactoryBuilder()
+            .setNameFormat("datafactory-environment-worker-%d")
+            .setDaemon(true)
+            .build()) : null;
+  }
+
+  public static EnvironmentExecutor fromSystemProperties() {
+    return new EnvironmentExecutor(Integer.valueOf(System.getProperty(
+        Constants.DATAFACTORY_ENVIRONMENT_PARALLELISM_ENVIRONMENT,
+        Constants.DATAFACTORY_ENVIRONMENT_PARALLELISM_DEFAULT)));
+  }
+
+  /**
+   * Run the task for each environment and return once all of them are done.
+   *
+   * @throws PartialFailureException if the task failed for some of several environments
+   */
+  public void run(Collection<String> environments, Consumer<String> task) {
+    List<String> dirs = new ArrayList<>(environments);
+    if (dirs.size() == 1) {
+      task.accept(dirs.get(0));
+      return;
+    }
+    List<Future<?>> futures = new ArrayList<>();
+    if (executor != null) {
+      for (String dir : dirs.subList(1, dirs.size())) {
+        futures.add(executor.submit(() -> task.accept(dir)));
+      }
+    }
+    List<String> committed = new ArrayList<>();
+    Map<String, Throwable> failures = new LinkedHashMap<>();
+    for (int i = 0; i < dirs.size(); i++) {
+      String dir = dirs.get(i);
+      try {
+        if (i == 0 || executor == null) {
+          task.accept(dir);
+        } else {
+          await(futures.get(i - 1));
+        }
+        committed.add(dir);
+      } catch (ExecutionException e) {
+        failures.put(dir, e.getCause());
+      } catch (RuntimeException | Error e) {
+        failures.put(dir, e);
+      }
+    }
+    if (failures.isEmpty()) {
+      return;
+    } else if (committed.isEmpty() && failures.size() == 1) {
+      Throwing.sneakyThrow(failures.values().iterator().next());
+    }
+    failures.forEach((dir, error) -> LOG.error("Request failed in environment " + dir, error));
+    throw new PartialFailureException(committed, failures);
+  }
+
+  /**
+   * Wait for the task without giving up on interrupts, since its transaction may still commit.
+   * The interrupt status is restored once the task is done.
+   */
+  private static void await(Future<?> future) throws ExecutionException {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          future.get();
+          return;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories.impl;
+
+import com.divroll.datafactory.Constants;
+import com.divroll.datafactory.database.DatabaseManager;
+import com.divroll.datafactory.exceptions.Throwing;
+import com.google.common.base.Preconditions;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.exodus.entitystore.StoreTransactionalExecutable;
+
+/**
+ * Combines the writes of concurrent requests on the same environment into shared transactions.
+ * Xodus commits one writer at a time, so instead of each request running and flushing its own
+ * transaction the requests queue up per environment and one of the calling threads, the leader,
+ * runs a group of them in one transaction while the others wait for it. There are no extra
+ * threads: whoever finds the environment idle leads the next group.
+ *
+ * <p>Each request stays all or nothing. Xodus transactions have no save points, so when a request
+ * of the group fails the transaction is reverted and the rest of the group is run again without
+ * it. Requests run in the order they arrived and see the writes of the requests before them, as
+ * if they ran one after another.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class GroupCommitter {
+
+  private final DatabaseManager manager;
+  private final int maxGroupSize;
+  private final long lingerMillis;
+  private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+
+  private final AtomicLong commitCount = new AtomicLong();
+  private final AtomicLong requestCount = new AtomicLong();
+
+  /**
+   * @param maxGroupSize maximum number of requests committed together
+   * @param lingerMillis time the leader waits for more requests before running a group that is
+   *                     not full, zero to run whatever queued up while the previous group ran
+   */
+  public GroupCommitter(DatabaseManager manager, int maxGroupSize, long lingerMillis) {
+    Preconditions.checkArgument(maxGroupSize > 0, "maxGroupSize should be greater than zero");
+    Preconditions.checkArgument(lingerMillis >= 0, "lingerMillis should not be negative");
+    this.manager = manager;
+    this.maxGroupSize = maxGroupSize;
+    this.lingerMillis = lingerMillis;
+  }
+
+  public static GroupCommitter fromSystemProperties(DatabaseManager manager) {
+    return new GroupCommitter(manager,
+        Integer.valueOf(System.getProperty(Constants.DATAFACTORY_COMMIT_GROUP_SIZE_ENVIRONMENT,
+            Constants.DATAFACTORY_COMMIT_GROUP_SIZE_DEFAULT)),
+        Long.valueOf(System.getProperty(Constants.DATAFACTORY_COMMIT_GROUP_LINGER_ENVIRONMENT,
+            Constants.DATAFACTORY_COMMIT_GROUP_LINGER_DEFAULT)));
+  }
+
+  /**
+   * Run the write in a transaction of the environment, possibly shared with other requests, and
+   * return once it is committed. The write may run more than once and should only change the
+   * store. Exceptions it throws are rethrown to the caller and undo only its own changes.
+   */
+  public void commit(String dir, StoreTransactionalExecutable write) {
+    Request request = new Request(write);
+    Lane lane = lanes.computeIfAbsent(dir, key -> new Lane());
+    boolean interrupted = false;
+    synchronized (lane) {
+      lane.queue.add(request);
+      if (lane.lingering && lane.queue.size() >= maxGroupSize) {
+        // The group is full, the leader need not wait for more
+        lane.notifyAll();
+      }
+    }
+    while (!request.done) {
+      List<Request> group = new ArrayList<>();
+      synchronized (lane) {
+        while (!request.done && lane.committing) {
+          try {
+            lane.wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+        if (request.done) {
+          break;
+        }
+        lane.committing = true;
+        if (lingerMillis > 0 && linger(lane)) {
+          interrupted = true;
+        }
+        while (group.size() < maxGroupSize && !lane.queue.isEmpty()) {
+          group.add(lane.queue.poll());
+        }
+      }
+      try {
+        run(dir, group);
+      } finally {
+        synchronized (lane) {
+          lane.committing = false;
+          lane.notifyAll();
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (request.error != null) {
+      Throwing.sneakyThrow(request.error);
+    }
+  }
+
+  /**
+   * Wait, as the leader, until the group is full or the linger time is up. Wakeups before either,
+   * spurious or of requests that do not fill the group, do not cut the wait short.
+   *
+   * @return whether the thread was interrupted while waiting
+   */
+  private boolean linger(Lane lane) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+    boolean interrupted = false;
+    lane.lingering = true;
+    long remaining;
+    while (lane.queue.size() < maxGroupSize
+        && (remaining = deadline - System.nanoTime()) > 0) {
+      try {
+        TimeUnit.NANOSECONDS.timedWait(lane, remaining);
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    lane.lingering = false;
+    return interrupted;
+  }
+
+  /**
+   * @return number of transactions committed
+   */
+  public long getCommitCount() {
+    return commitCount.get();
+  }
+
+  /**
+   * @return number of requests committed, divided by {@linkplain #getCommitCount()} the average
+   * group size
+   */
+  public long getRequestCount() {
+    return requestCount.get();
+  }
+
+  private void run(String dir, List<Request> group) {
+    List<Request> live = new ArrayList<>(group);
+    try {
+      manager.transactPersistentEntityStore(dir, false, txn -> {
+        // Runs again from the start if the flush conflicts or a request fails
+        int index = 0;
+        while (index < live.size()) {
+          Request request = live.get(index);
+          try {
+            request.write.execute(txn);
+            index++;
+          } catch (Throwable e) {
+            request.error = e;
+            live.remove(index);
+            txn.revert();
+            index = 0;
+          }
+        }
+      });
+      if (!live.isEmpty()) {
+        commitCount.incrementAndGet();
+        requestCount.addAndGet(live.size());
+      }
+    } catch (Throwable e) {
+      // The transaction itself failed, none of the group is committed
+      live.forEach(request -> request.error = e);
+    } finally {
+      group.forEach(request -> request.done = true);
+    }
+  }
+
+  private static class Lane {
+    private final Deque<Request> queue = new ArrayDeque<>();
+    private boolean committing;
+    private boolean lingering;
+  }
+
+  private static class Request {
+    private final StoreTransactionalExecutable write;
+    private volatile Throwable error;
+    private volatile boolean done;
+
+    Request(StoreTransactionalExecutable write) {
+      this.write = write;
+    }
+  }
+}
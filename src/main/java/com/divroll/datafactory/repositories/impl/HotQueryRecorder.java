@@ -0,0 +1,245 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories.impl;
+
+import com.divroll.datafactory.Constants;
+import com.divroll.datafactory.builders.queries.EntityQuery;
+import com.divroll.datafactory.builders.queries.EntityQueryBuilder;
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Records the queries an {@linkplain com.divroll.datafactory.repositories.EntityStore} serves
+ * most often and the environments it used last, so that a {@linkplain Warmup} can replay them
+ * after a restart. Only queries by type are recorded, queries by id do not benefit from the
+ * Xodus query cache, and pages of a query are recorded as its first page. Recording is lock-free
+ * as it happens on every request. The recording is kept in {@code datafactory.warmup.file} if
+ * set, saved every {@code datafactory.warmup.save.interval} milliseconds and loaded back on
+ * startup.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class HotQueryRecorder {
+
+  private static final Logger LOG = LoggerFactory.getLogger(HotQueryRecorder.class);
+
+  /** Number of entities of the first page of a query, the one replayed by the warm-up. */
+  private static final int PAGE_SIZE = 100;
+
+  private final int maxQueries;
+  private final int maxEnvironments;
+  private final Map<EntityQuery, LongAdder> queryCounts = new ConcurrentHashMap<>();
+  // Last time each environment was used, in nanoseconds
+  private final Map<String, AtomicLong> recentEnvironments = new ConcurrentHashMap<>();
+  private final File file;
+  private ScheduledExecutorService saver;
+
+  /**
+   * @param maxQueries      number of most frequent queries to keep
+   * @param maxEnvironments number of most recently used environments to keep
+   * @param file            file to keep the recording in, {@code null} to keep it in memory only
+   */
+  public HotQueryRecorder(int maxQueries, int maxEnvironments, File file) {
+    Preconditions.checkArgument(maxQueries >= 0, "maxQueries should not be negative");
+    Preconditions.checkArgument(maxEnvironments >= 0, "maxEnvironments should not be negative");
+    this.maxQueries = maxQueries;
+    this.maxEnvironments = maxEnvironments;
+    this.file = file;
+  }
+
+  public static HotQueryRecorder fromSystemProperties() {
+    String path = System.getProperty(Constants.DATAFACTORY_WARMUP_FILE_ENVIRONMENT,
+        Constants.DATAFACTORY_WARMUP_FILE_DEFAULT);
+    HotQueryRecorder recorder = new HotQueryRecorder(
+        Integer.valueOf(System.getProperty(Constants.DATAFACTORY_WARMUP_QUERIES_ENVIRONMENT,
+            Constants.DATAFACTORY_WARMUP_QUERIES_DEFAULT)),
+        Integer.valueOf(System.getProperty(Constants.DATAFACTORY_WARMUP_RECENT_ENVIRONMENT,
+            Constants.DATAFACTORY_WARMUP_RECENT_DEFAULT)),
+        path.isEmpty() ? null : new File(path));
+    recorder.load();
+    recorder.startSaving(Long.valueOf(System.getProperty(
+        Constants.DATAFACTORY_WARMUP_SAVE_INTERVAL_ENVIRONMENT,
+        Constants.DATAFACTORY_WARMUP_SAVE_INTERVAL_DEFAULT)));
+    return recorder;
+  }
+
+  /**
+   * Record a query served by the store.
+   */
+  public void record(EntityQuery query) {
+    recordEnvironment(query.environment());
+    if (maxQueries == 0 || query.entityId() != null
+        || (query.entityIds() != null && !query.entityIds().isEmpty())) {
+      return;
+    }
+    EntityQuery key = firstPage(query);
+    // Only look up without locking, computeIfAbsent locks the bin of the key in Java 8
+    LongAdder count = queryCounts.get(key);
+    if (count == null) {
+      count = queryCounts.computeIfAbsent(key, k -> new LongAdder());
+    }
+    count.increment();
+    if (queryCounts.size() > maxQueries * 4) {
+      // Forget the rare queries so the recording stays bounded
+      List<EntityQuery> hot = getQueries();
+      queryCounts.keySet().retainAll(hot);
+    }
+  }
+
+  /**
+   * Record the use of an environment.
+   */
+  public void recordEnvironment(String environment) {
+    if (environment == null || maxEnvironments == 0) {
+      return;
+    }
+    AtomicLong lastUse = recentEnvironments.get(environment);
+    if (lastUse == null) {
+      lastUse = recentEnvironments.computeIfAbsent(environment, key -> new AtomicLong());
+    }
+    lastUse.lazySet(System.nanoTime());
+    if (recentEnvironments.size() > maxEnvironments * 4) {
+      // Forget the environments not used lately so the recording stays bounded
+      List<String> recent = getEnvironments();
+      recentEnvironments.keySet().retainAll(recent);
+    }
+  }
+
+  /**
+   * @return the most frequent queries, most frequent first
+   */
+  public List<EntityQuery> getQueries() {
+    return queryCounts.entrySet().stream()
+        .sorted((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()))
+        .limit(maxQueries)
+        .map(Map.Entry::getKey)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * @return the most recently used environments, most recent first
+   */
+  public List<String> getEnvironments() {
+    return recentEnvironments.entrySet().stream()
+        .sorted((a, b) -> Long.compare(b.getValue().get(), a.getValue().get()))
+        .limit(maxEnvironments)
+        .map(Map.Entry::getKey)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Write the recording to its file, replacing the previous one at once so a crash while saving
+   * does not lose it.
+   */
+  public synchronized void save() {
+    if (file == null) {
+      return;
+    }
+    LinkedHashMap<EntityQuery, Long> queries = new LinkedHashMap<>();
+    getQueries().forEach(query -> {
+      LongAdder count = queryCounts.get(query);
+      queries.put(query, count != null ? count.sum() : 1L);
+    });
+    ArrayList<String> environments = new ArrayList<>(getEnvironments());
+    File parent = file.getAbsoluteFile().getParentFile();
+    try {
+      if (parent != null) {
+        parent.mkdirs();
+      }
+      File temp = new File(parent, file.getName() + ".tmp");
+      try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(temp))) {
+        out.writeObject(environments);
+        out.writeObject(queries);
+      }
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOG.error("Unable to save hot queries to " + file, e);
+    }
+  }
+
+  /**
+   * Read back the recording of a previous run, if any.
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized void load() {
+    if (file == null || !file.exists()) {
+      return;
+    }
+    try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(file))) {
+      List<String> environments = (List<String>) in.readObject();
+      Map<EntityQuery, Long> queries = (Map<EntityQuery, Long>) in.readObject();
+      // Saved most recent first, recorded oldest first to keep the order
+      for (int i = environments.size() - 1; i >= 0; i--) {
+        recordEnvironment(environments.get(i));
+      }
+      queries.forEach((query, count) ->
+          queryCounts.computeIfAbsent(query, key -> new LongAdder()).add(count));
+    } catch (IOException | ClassNotFoundException | ClassCastException e) {
+      LOG.warn("Ignoring unreadable hot queries in " + file + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * @return the query without its paging, so all pages of a query count as the same query
+   */
+  private static EntityQuery firstPage(EntityQuery query) {
+    if (query.offset() == 0 && query.max() == PAGE_SIZE) {
+      return query;
+    }
+    return new EntityQueryBuilder()
+        .from(query)
+        .offset(0)
+        .max(PAGE_SIZE)
+        .build();
+  }
+
+  private synchronized void startSaving(long intervalMillis) {
+    if (file == null || intervalMillis <= 0 || saver != null) {
+      return;
+    }
+    saver = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("datafactory-warmup-saver-%d")
+        .setDaemon(true)
+        .build());
+    saver.scheduleWithFixedDelay(this::save, intervalMillis, intervalMillis,
+        TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories.impl;
+
+import com.divroll.datafactory.actions.EntityAction;
+import com.divroll.datafactory.actions.LinkAction;
+import com.divroll.datafactory.actions.LinkRemoveAction;
+import com.divroll.datafactory.actions.OppositeLinkAction;
+import com.divroll.datafactory.actions.OppositeLinkRemoveAction;
+import com.divroll.datafactory.builders.DataFactoryEntity;
+import com.divroll.datafactory.repositories.InvalidationListener;
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.rmi.RemoteException;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Pushes invalidations to the registered {@linkplain InvalidationListener}s. Invalidations are
+ * delivered in commit order from a single thread so writers never wait on slow clients, and a
+ * listener that can no longer be reached is dropped until its client registers it again, see
+ * {@linkplain EntityStoreClientImpl#checkHealth()}.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class InvalidationPublisher {
+
+  private static final Logger LOG = LoggerFactory.getLogger(InvalidationPublisher.class);
+
+  private final Set<InvalidationListener> listeners = new CopyOnWriteArraySet<>();
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder()
+          .setNameFormat("datafactory-invalidation-%d")
+          .setDaemon(true)
+          .build());
+
+  public boolean addListener(InvalidationListener listener) {
+    return listeners.add(listener);
+  }
+
+  public boolean removeListener(InvalidationListener listener) {
+    return listeners.remove(listener);
+  }
+
+  public int listeners() {
+    return listeners.size();
+  }
+
+  /**
+   * Add the ids of the other entities changed by the actions of a saved entity.
+   *
+   * @return {@code false} when opposite links changed entities not known up front
+   */
+  public static boolean addLinkedIds(DataFactoryEntity entity, Collection<String> entityIds) {
+    for (EntityAction action : entity.actions()) {
+      if (action instanceof OppositeLinkAction || action instanceof OppositeLinkRemoveAction) {
+        return false;
+      } else if (action instanceof LinkAction) {
+        entityIds.add(((LinkAction) action).otherEntityId());
+      } else if (action instanceof LinkRemoveAction) {
+        entityIds.add(((LinkRemoveAction) action).otherEntityId());
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Publish the changed entities of an environment.
+   *
+   * @param environment
+   * @param entityIds   ids of the changed entities, {@code null} to invalidate the environment
+   */
+  public void publish(String environment, String[] entityIds) {
+    if (listeners.isEmpty() || (entityIds != null && entityIds.length == 0)) {
+      return;
+    }
+    executor.execute(() -> listeners.forEach(listener -> {
+      try {
+        listener.invalidate(environment, entityIds);
+      } catch (RemoteException e) {
+        LOG.warn("Dropping unreachable invalidation listener: " + e.getMessage());
+        listeners.remove(listener);
+      } catch (RuntimeException e) {
+        LOG.error("Invalidation listener failed", e);
+      }
+    }));
+  }
+}
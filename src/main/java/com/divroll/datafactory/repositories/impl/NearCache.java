@@ -0,0 +1,189 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories.impl;
+
+import com.divroll.datafactory.builders.DataFactoryEntity;
+import com.divroll.datafactory.builders.queries.EntityQuery;
+import com.divroll.datafactory.exceptions.DataFactoryException;
+import com.divroll.datafactory.repositories.InvalidationListener;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.vavr.control.Option;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded client side cache of {@linkplain DataFactoryEntity} looked up by id, kept coherent by
+ * the invalidations the server pushes to it as an {@linkplain InvalidationListener}. Entries are
+ * evicted least recently used first and expire after {@code ttlMillis} as a safety net for
+ * invalidations lost while the listener was unreachable.
+ * <p>
+ * Only queries by {@code entityId} without links, blobs, filters or conditions are cached, their
+ * result only depends on the entity itself.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class NearCache implements InvalidationListener {
+
+  private static final char SEPARATOR = '\u0000';
+
+  private final Cache<String, DataFactoryEntity> cache;
+  private final AtomicLong invalidations = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private volatile boolean attached;
+  private boolean exported;
+
+  public NearCache(long maximumSize, long ttlMillis) {
+    Preconditions.checkArgument(maximumSize > 0, "maximumSize should be greater than zero");
+    CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().maximumSize(maximumSize);
+    if (ttlMillis > 0) {
+      builder.expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS);
+    }
+    this.cache = builder.build();
+  }
+
+  public static boolean isCacheable(EntityQuery query) {
+    return query.entityId() != null
+        && isEmpty(query.entityIds())
+        && query.fields() == null
+        && isEmpty(query.linkQueries())
+        && isEmpty(query.blobQueries())
+        && isEmpty(query.filters())
+        && isEmpty(query.conditions());
+  }
+
+  /**
+   * Get the entity from the cache, loading and caching it on a miss. Nothing is cached while the
+   * cache is not attached to a server, or when an invalidation arrived while loading.
+   */
+  public Option<DataFactoryEntity> get(EntityQuery query, Loader loader)
+      throws DataFactoryException, NotBoundException, RemoteException {
+    String key = key(query.environment(), query.entityId());
+    if (attached) {
+      DataFactoryEntity entity = cache.getIfPresent(key);
+      if (entity != null) {
+        hits.incrementAndGet();
+        return Option.of(entity);
+      }
+    }
+    misses.incrementAndGet();
+    long sequence = invalidations.get();
+    Option<DataFactoryEntity> loaded = loader.load();
+    if (attached && loaded != null && loaded.isDefined()) {
+      synchronized (this) {
+        if (sequence == invalidations.get()) {
+          cache.put(key, loaded.get());
+        }
+      }
+    }
+    return loaded;
+  }
+
+  @Override public void invalidate(String environment, String[] entityIds) {
+    synchronized (this) {
+      invalidations.incrementAndGet();
+      if (entityIds == null) {
+        String prefix = environment + SEPARATOR;
+        cache.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+      } else {
+        for (String entityId : entityIds) {
+          cache.invalidate(key(environment, entityId));
+        }
+      }
+    }
+  }
+
+  /**
+   * Drop every entry, e.g. when the invalidations of a server may have been missed.
+   */
+  public void clear() {
+    synchronized (this) {
+      invalidations.incrementAndGet();
+      cache.invalidateAll();
+    }
+  }
+
+  /**
+   * @return the listener to register on the server, exporting it on first use
+   */
+  public synchronized InvalidationListener listener() throws RemoteException {
+    if (!exported) {
+      UnicastRemoteObject.exportObject(this, 0);
+      exported = true;
+    }
+    return this;
+  }
+
+  /**
+   * Mark whether the cache receives the invalidations of the server it caches.
+   */
+  public void setAttached(boolean attached) {
+    this.attached = attached;
+  }
+
+  public boolean isAttached() {
+    return attached;
+  }
+
+  public synchronized void close() {
+    attached = false;
+    cache.invalidateAll();
+    if (exported) {
+      try {
+        UnicastRemoteObject.unexportObject(this, true);
+      } catch (NoSuchObjectException e) {
+        // already unexported
+      }
+      exported = false;
+    }
+  }
+
+  public long size() {
+    return cache.size();
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  private static String key(String environment, String entityId) {
+    return environment + SEPARATOR + entityId;
+  }
+
+  private static boolean isEmpty(Collection<?> collection) {
+    return collection == null || collection.isEmpty();
+  }
+
+  @FunctionalInterface
+  public interface Loader {
+    Option<DataFactoryEntity> load()
+        throws DataFactoryException, NotBoundException, RemoteException;
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories.impl;
+
+import com.divroll.datafactory.Constants;
+import com.divroll.datafactory.exceptions.RequestRejectedException;
+import com.google.common.base.Preconditions;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission control for the requests served by {@linkplain EntityStoreImpl}. The RMI runtime runs
+ * every call on its own thread, so instead of handing the work to another pool the dispatcher
+ * gates the calling thread: each {@linkplain Lane} lets a bounded number of requests run at a time
+ * and a bounded number wait for their turn. A request that finds the queue full, or that waits
+ * longer than the timeout, is rejected with a {@linkplain RequestRejectedException} before any
+ * work is done so the client can back off and retry.
+ *
+ * <p>Calls made while already holding a lane, e.g. {@code saveEntity} delegating to
+ * {@code saveEntities}, run directly so a request never waits on itself.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class RequestDispatcher {
+
+  public enum Lane {
+    /** Single entity reads and writes, latency sensitive. */
+    INTERACTIVE,
+    /** Batches and operations that scan whole entity types. */
+    BULK
+  }
+
+  @FunctionalInterface
+  public interface Request<T> {
+    T call() throws RemoteException, NotBoundException;
+  }
+
+  private static final ThreadLocal<Boolean> DISPATCHED = ThreadLocal.withInitial(() -> false);
+
+  private final Map<Lane, LaneState> lanes = new EnumMap<>(Lane.class);
+
+  private final long timeoutMillis;
+
+  public RequestDispatcher(int interactiveConcurrency, int interactiveQueue,
+      int bulkConcurrency, int bulkQueue, long timeoutMillis) {
+    Preconditions.checkArgument(timeoutMillis >= 0, "timeoutMillis should not be negative");
+    this.timeoutMillis = timeoutMillis;
+    lanes.put(Lane.INTERACTIVE, new LaneState(interactiveConcurrency, interactiveQueue));
+    lanes.put(Lane.BULK, new LaneState(bulkConcurrency, bulkQueue));
+  }
+
+  /**
+   * Create a dispatcher configured from the {@code datafactory.dispatcher.*} system properties.
+   */
+  public static RequestDispatcher fromSystemProperties() {
+    return new RequestDispatcher(
+        Integer.valueOf(System.getProperty(
+            Constants.DATAFACTORY_DISPATCHER_INTERACTIVE_CONCURRENCY_ENVIRONMENT,
+            Constants.DATAFACTORY_DISPATCHER_INTERACTIVE_CONCURRENCY_DEFAULT)),
+        Integer.valueOf(System.getProperty(
+            Constants.DATAFACTORY_DISPATCHER_INTERACTIVE_QUEUE_ENVIRONMENT,
+            Constants.DATAFACTORY_DISPATCHER_INTERACTIVE_QUEUE_DEFAULT)),
+        Integer.valueOf(System.getProperty(
+            Constants.DATAFACTORY_DISPATCHER_BULK_CONCURRENCY_ENVIRONMENT,
+            Constants.DATAFACTORY_DISPATCHER_BULK_CONCURRENCY_DEFAULT)),
+        Integer.valueOf(System.getProperty(
+            Constants.DATAFACTORY_DISPATCHER_BULK_QUEUE_ENVIRONMENT,
+            Constants.DATAFACTORY_DISPATCHER_BULK_QUEUE_DEFAULT)),
+        Long.valueOf(System.getProperty(
+            Constants.DATAFACTORY_DISPATCHER_TIMEOUT_ENVIRONMENT,
+            Constants.DATAFACTORY_DISPATCHER_TIMEOUT_DEFAULT)));
+  }
+
+  /**
+   * Run the request on the calling thread once the lane admits it.
+   *
+   * @throws RequestRejectedException if the lane is saturated
+   */
+  public <T> T call(Lane lane, Request<T> request) throws RemoteException, NotBoundException {
+    if (DISPATCHED.get()) {
+      return request.call();
+    }
+    LaneState state = lanes.get(lane);
+    state.acquire(lane);
+    DISPATCHED.set(true);
+    try {
+      return request.call();
+    } finally {
+      DISPATCHED.set(false);
+      state.permits.release();
+    }
+  }
+
+  /**
+   * @return number of requests waiting to be admitted
+   */
+  public int getQueueDepth(Lane lane) {
+    return lanes.get(lane).waiting.get();
+  }
+
+  /**
+   * @return number of requests currently running
+   */
+  public int getActiveCount(Lane lane) {
+    LaneState state = lanes.get(lane);
+    return state.concurrency - state.permits.availablePermits();
+  }
+
+  public long getAdmittedCount(Lane lane) {
+    return lanes.get(lane).admitted.sum();
+  }
+
+  public long getRejectedCount(Lane lane) {
+    return lanes.get(lane).rejected.sum();
+  }
+
+  /**
+   * @return average time admitted requests spent waiting, in milliseconds
+   */
+  public double getAverageWaitMillis(Lane lane) {
+    LaneState state = lanes.get(lane);
+    long admitted = state.admitted.sum();
+    return admitted == 0 ? 0 : state.waitNanos.sum() / (admitted * 1000000.0);
+  }
+
+  /**
+   * @return longest time an admitted request spent waiting, in milliseconds
+   */
+  public long getMaxWaitMillis(Lane lane) {
+    return TimeUnit.NANOSECONDS.toMillis(lanes.get(lane).maxWaitNanos.get());
+  }
+
+  private final class LaneState {
+    private final int concurrency;
+    private final int maxQueue;
+    private final Semaphore permits;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    private LaneState(int concurrency, int maxQueue) {
+      Preconditions.checkArgument(concurrency > 0, "concurrency should be greater than zero");
+      Preconditions.checkArgument(maxQueue >= 0, "queue size should not be negative");
+      this.concurrency = concurrency;
+      this.maxQueue = maxQueue;
+      this.permits = new Semaphore(concurrency, true);
+    }
+
+    private void acquire(Lane lane) {
+      long start = System.nanoTime();
+      try {
+        if (!permits.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+          if (waiting.incrementAndGet() > maxQueue) {
+            waiting.decrementAndGet();
+            throw reject(lane, "queue is full");
+          }
+          try {
+            if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+              throw reject(lane, "not admitted within " + timeoutMillis + " ms");
+            }
+          } finally {
+            waiting.decrementAndGet();
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw reject(lane, "interrupted while waiting");
+      }
+      long waited = System.nanoTime() - start;
+      admitted.increment();
+      waitNanos.add(waited);
+      maxWaitNanos.accumulateAndGet(waited, Math::max);
+    }
+
+    private RequestRejectedException reject(Lane lane, String reason) {
+      rejected.increment();
+      return new RequestRejectedException(lane.name().toLowerCase(), reason);
+    }
+  }
+}
@@ -0,0 +1,585 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories.impl;
+
+import com.divroll.datafactory.Constants;
+import com.divroll.datafactory.actions.EntityAction;
+import com.divroll.datafactory.actions.ImmutableLinkAction;
+import com.divroll.datafactory.actions.ImmutableLinkRemoveAction;
+import com.divroll.datafactory.actions.ImmutableOppositeLinkAction;
+import com.divroll.datafactory.actions.LinkAction;
+import com.divroll.datafactory.actions.LinkRemoveAction;
+import com.divroll.datafactory.actions.OppositeLinkAction;
+import com.divroll.datafactory.builders.DataFactoryEntities;
+import com.divroll.datafactory.builders.DataFactoryEntitiesBuilder;
+import com.divroll.datafactory.builders.DataFactoryEntity;
+import com.divroll.datafactory.builders.DataFactoryEntityBuilder;
+import com.divroll.datafactory.builders.queries.EntityQuery;
+import com.divroll.datafactory.builders.queries.EntityQueryBuilder;
+import com.divroll.datafactory.builders.queries.FieldQuery;
+import com.divroll.datafactory.builders.queries.FieldQueryBuilder;
+import com.divroll.datafactory.builders.queries.LinkQuery;
+import com.divroll.datafactory.builders.queries.LinkQueryBuilder;
+import com.divroll.datafactory.exceptions.DataFactoryException;
+import com.divroll.datafactory.exceptions.Throwing;
+import com.divroll.datafactory.operations.Operation;
+import com.divroll.datafactory.operations.OperationResult;
+import com.divroll.datafactory.operations.OperationResultBuilder;
+import com.divroll.datafactory.operations.SaveEntityOperation;
+import com.divroll.datafactory.operations.SaveEntityOperationBuilder;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * Partitions the entities of a logical environment across several Xodus environments, the
+ * shards, so that writes to one logical environment are not serialized behind a single writer
+ * lock and log. The shards of an environment are the directories {@code shard-0} to
+ * {@code shard-N} under it, configured through {@code datafactory.shards} as a comma separated
+ * list of {@code environment=count}.
+ *
+ * <p>Entity ids of a sharded environment are qualified with their shard, {@code shard:localId},
+ * so an id alone finds its shard. Saves of existing entities go to the shard of their id, new
+ * entities go to the shard of the entities they link to, else to the shard of their name space
+ * hash, else round robin. Links cannot cross shards. Queries by type are scattered to every shard
+ * in parallel, the calling thread querying the first shard and a pool bounded by
+ * {@code datafactory.shard.parallelism} the others, and the pages gathered back in sort order.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class ShardRouter {
+
+  private static final String SHARD_DIRECTORY = "shard-";
+  private static final char ID_SEPARATOR = ':';
+
+  private final Map<String, Integer> shardCounts;
+  private final Map<String, String> environments = new HashMap<>();
+  private final Map<String, Integer> shards = new HashMap<>();
+  private final AtomicInteger nextShard = new AtomicInteger();
+  private final ExecutorService executor;
+
+  /**
+   * @param shardCounts number of shards of each sharded environment
+   */
+  public ShardRouter(Map<String, Integer> shardCounts) {
+    this(shardCounts, Integer.valueOf(Constants.DATAFACTORY_SHARD_PARALLELISM_DEFAULT));
+  }
+
+  /**
+   * @param shardCounts number of shards of each sharded environment
+   * @param parallelism number of pool threads, {@code 1} to query the shards one after another on
+   *                    the calling thread
+   */
+  public ShardRouter(Map<String, Integer> shardCounts, int parallelism) {
+    shardCounts.forEach((environment, count) ->
+        Preconditions.checkArgument(count > 0, "Shard count of " + environment
+            + " should be greater than zero"));
+    Preconditions.checkArgument(parallelism > 0, "parallelism should be greater than zero");
+    this.executor = parallelism > 1 ? Executors.newFixedThreadPool(parallelism,
+        new ThreadFactoryBuilder()
+            .setNameFormat("datafactory-shard-worker-%d")
+            .setDaemon(true)
+            .build()) : null;
+    this.shardCounts = new HashMap<>(shardCounts);
+    this.shardCounts.forEach((environment, count) -> {
+      for (int shard = 0; shard < count; shard++) {
+        String dir = getDirectory(environment, shard);
+        environments.put(dir, environment);
+        shards.put(dir, shard);
+      }
+    });
+  }
+
+  public static ShardRouter fromSystemProperties() {
+    return new ShardRouter(parse(System.getProperty(Constants.DATAFACTORY_SHARDS_ENVIRONMENT,
+        Constants.DATAFACTORY_SHARDS_DEFAULT)), Integer.valueOf(System.getProperty(
+        Constants.DATAFACTORY_SHARD_PARALLELISM_ENVIRONMENT,
+        Constants.DATAFACTORY_SHARD_PARALLELISM_DEFAULT)));
+  }
+
+  /**
+   * Parse a list of {@code environment=count} separated by commas.
+   */
+  static Map<String, Integer> parse(String value) {
+    Map<String, Integer> shardCounts = new LinkedHashMap<>();
+    for (String entry : value.split(",")) {
+      if (entry.trim().isEmpty()) {
+        continue;
+      }
+      int separator = entry.lastIndexOf('=');
+      if (separator < 0) {
+        throw new DataFactoryException("Invalid shard configuration " + entry);
+      }
+      shardCounts.put(entry.substring(0, separator).trim(),
+          Integer.valueOf(entry.substring(separator + 1).trim()));
+    }
+    return shardCounts;
+  }
+
+  public boolean isSharded(String environment) {
+    return environment != null && shardCounts.containsKey(environment);
+  }
+
+  /**
+   * @return the number of shards of the environment, {@code 1} if it is not sharded
+   */
+  public int getShardCount(String environment) {
+    return shardCounts.getOrDefault(environment, 1);
+  }
+
+  public String getDirectory(String environment, int shard) {
+    return new File(environment, SHARD_DIRECTORY + shard).getPath();
+  }
+
+  /**
+   * @return the directories holding the entities of the environment, the environment itself if it
+   * is not sharded
+   */
+  public List<String> getDirectories(String environment) {
+    if (!isSharded(environment)) {
+      return Collections.singletonList(environment);
+    }
+    List<String> dirs = new ArrayList<>();
+    for (int shard = 0; shard < getShardCount(environment); shard++) {
+      dirs.add(getDirectory(environment, shard));
+    }
+    return dirs;
+  }
+
+  /**
+   * @return the logical environment of a shard directory, else the directory itself
+   */
+  public String getEnvironment(String dir) {
+    return environments.getOrDefault(dir, dir);
+  }
+
+  /**
+   * @return the shard of a shard directory, {@code -1} for other directories
+   */
+  public int getShard(String dir) {
+    return shards.getOrDefault(dir, -1);
+  }
+
+  /**
+   * Fail features that need a single Xodus environment, e.g. cursors and snapshots.
+   */
+  public void checkUnsharded(String environment, String feature) {
+    if (isSharded(environment)) {
+      throw new DataFactoryException(feature + " are not supported on sharded environment "
+          + environment);
+    }
+  }
+
+  /**
+   * @return the shard of a qualified entity id
+   */
+  public int getShard(String environment, String entityId) {
+    int separator = entityId.indexOf(ID_SEPARATOR);
+    int shard;
+    try {
+      shard = separator > 0 ? Integer.parseInt(entityId.substring(0, separator)) : -1;
+    } catch (NumberFormatException e) {
+      shard = -1;
+    }
+    if (shard < 0 || shard >= getShardCount(environment)) {
+      throw new DataFactoryException("Invalid entity id " + entityId + " of sharded environment "
+          + environment);
+    }
+    return shard;
+  }
+
+  /**
+   * @return the id of the entity within its shard
+   * @throws DataFactoryException if the entity is on another shard
+   */
+  public String localId(String environment, String entityId, int shard) {
+    if (getShard(environment, entityId) != shard) {
+      throw new DataFactoryException("Entity " + entityId + " is not on shard " + shard + " of "
+          + environment + ", links across shards are not supported");
+    }
+    return entityId.substring(entityId.indexOf(ID_SEPARATOR) + 1);
+  }
+
+  public static String globalId(int shard, String localId) {
+    return shard + String.valueOf(ID_SEPARATOR) + localId;
+  }
+
+  /**
+   * @return the shard owning the entity
+   */
+  public int route(DataFactoryEntity entity) {
+    int shard = place(entity);
+    return shard >= 0
+        ? shard : Math.floorMod(nextShard.getAndIncrement(), getShardCount(entity.environment()));
+  }
+
+  /**
+   * @return the shard the entity goes to by its id, the entities it links to or its name space,
+   * {@code -1} if it has none of them and goes to any shard round robin
+   */
+  public int place(DataFactoryEntity entity) {
+    String environment = entity.environment();
+    if (entity.entityId() != null) {
+      return getShard(environment, entity.entityId());
+    }
+    for (EntityAction action : actionsOf(entity)) {
+      String linkedId = linkedId(action);
+      if (linkedId != null) {
+        return getShard(environment, linkedId);
+      }
+    }
+    Object nameSpace = entity.nameSpace() != null
+        ? entity.nameSpace() : entity.propertyMap().get(Constants.NAMESPACE_PROPERTY);
+    if (nameSpace != null) {
+      return Math.floorMod(nameSpace.hashCode(), getShardCount(environment));
+    }
+    return -1;
+  }
+
+  /**
+   * Route the saves of sharded environments to their shards, other operations are left as they
+   * are.
+   *
+   * @return the operations, with the environment of routed saves set to their shard directory
+   * @throws DataFactoryException for operations other than saves on sharded environments
+   */
+  public Operation[] route(Operation[] operations) {
+    Operation[] routed = operations.clone();
+    for (int i = 0; i < operations.length; i++) {
+      Operation operation = operations[i];
+      if (!isSharded(operation.environment())) {
+        continue;
+      } else if (!(operation instanceof SaveEntityOperation)) {
+        throw new DataFactoryException("Only saves can be batched on sharded environment "
+            + operation.environment());
+      }
+      SaveEntityOperation save = (SaveEntityOperation) operation;
+      routed[i] = new SaveEntityOperationBuilder()
+          .from(save)
+          .entity(localize(save.entity(), route(save.entity())))
+          .build();
+    }
+    return routed;
+  }
+
+  /**
+   * Expand the queries of sharded environments into one query per shard holding their entities.
+   */
+  public EntityQuery[] route(EntityQuery[] queries) {
+    List<EntityQuery> routed = new ArrayList<>();
+    for (EntityQuery query : queries) {
+      if (!isSharded(query.environment())) {
+        routed.add(query);
+        continue;
+      }
+      for (int shard = 0; shard < getShardCount(query.environment()); shard++) {
+        EntityQuery shardQuery = localize(query, shard);
+        if (shardQuery != null) {
+          routed.add(shardQuery);
+        }
+      }
+    }
+    return routed.toArray(new EntityQuery[0]);
+  }
+
+  /**
+   * Rewrite an entity of a sharded environment into one of the shard, with local ids.
+   */
+  public DataFactoryEntity localize(DataFactoryEntity entity, int shard) {
+    String environment = entity.environment();
+    List<EntityAction> actions = new ArrayList<>();
+    for (EntityAction action : actionsOf(entity)) {
+      if (action instanceof LinkAction) {
+        LinkAction link = (LinkAction) action;
+        action = ImmutableLinkAction.copyOf(link)
+            .withOtherEntityId(localId(environment, link.otherEntityId(), shard));
+      } else if (action instanceof LinkRemoveAction) {
+        LinkRemoveAction link = (LinkRemoveAction) action;
+        action = ImmutableLinkRemoveAction.copyOf(link)
+            .withOtherEntityId(localId(environment, link.otherEntityId(), shard));
+      } else if (action instanceof OppositeLinkAction) {
+        OppositeLinkAction link = (OppositeLinkAction) action;
+        action = ImmutableOppositeLinkAction.copyOf(link)
+            .withOppositeEntityId(localId(environment, link.oppositeEntityId(), shard));
+      }
+      actions.add(action);
+    }
+    return new DataFactoryEntityBuilder()
+        .from(entity)
+        .environment(getDirectory(environment, shard))
+        .entityId(entity.entityId() != null ? localId(environment, entity.entityId(), shard) : null)
+        .actions(actions)
+        .build();
+  }
+
+  /**
+   * Rewrite a query of a sharded environment into one of the shard. Queries by id only keep the
+   * ids of the shard, queries by type fetch the first {@code offset + max} entities of the shard
+   * since any of them may be on the gathered page.
+   *
+   * @return the query of the shard, {@code null} if none of the queried ids are on it
+   */
+  public EntityQuery localize(EntityQuery query, int shard) {
+    String environment = query.environment();
+    EntityQueryBuilder builder = new EntityQueryBuilder()
+        .from(query)
+        .environment(getDirectory(environment, shard));
+    if (query.entityIds() != null && !query.entityIds().isEmpty()) {
+      List<String> entityIds = new ArrayList<>();
+      for (String entityId : query.entityIds()) {
+        if (getShard(environment, entityId) == shard) {
+          entityIds.add(localId(environment, entityId, shard));
+        }
+      }
+      if (entityIds.isEmpty()) {
+        return null;
+      }
+      builder.entityIds(entityIds);
+    } else if (query.entityId() != null) {
+      if (getShard(environment, query.entityId()) != shard) {
+        return null;
+      }
+      builder.entityId(localId(environment, query.entityId(), shard));
+    } else {
+      builder.offset(0)
+          .max((int) Math.min(Integer.MAX_VALUE, (long) query.offset() + query.max()));
+      if (query.sort() != null && !returnsProperty(query.fields(), query.sort())) {
+        builder.fields(withProperty(query.fields(), query.sort()));
+      }
+    }
+    List<LinkQuery> linkQueries = new ArrayList<>();
+    for (LinkQuery linkQuery : query.linkQueries()) {
+      if (linkQuery.targetEntityId() != null) {
+        linkQuery = new LinkQueryBuilder()
+            .from(linkQuery)
+            .targetEntityId(localId(environment, linkQuery.targetEntityId(), shard))
+            .build();
+      }
+      linkQueries.add(linkQuery);
+    }
+    return builder.linkQueries(linkQueries).build();
+  }
+
+  /**
+   * Restore the logical environment and the qualified ids of an entity read from a shard.
+   */
+  public DataFactoryEntity globalize(DataFactoryEntity entity, String environment, int shard) {
+    DataFactoryEntityBuilder builder = new DataFactoryEntityBuilder()
+        .from(entity)
+        .environment(environment)
+        .entityId(entity.entityId() != null ? globalId(shard, entity.entityId()) : null);
+    if (entity.links() != null && !entity.links().isEmpty()) {
+      Multimap<String, DataFactoryEntity> links = ArrayListMultimap.create();
+      entity.links().forEach((linkName, linked) ->
+          links.put(linkName, globalize(linked, environment, shard)));
+      builder.links(links);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Restore the logical environment and the qualified ids of the entities of a result read from a
+   * shard.
+   */
+  public OperationResult globalize(OperationResult result, String environment, int shard) {
+    if (result.entities() == null) {
+      return result;
+    }
+    List<DataFactoryEntity> entities = new ArrayList<>();
+    result.entities().entities().forEach(entity ->
+        entities.add(globalize(entity, environment, shard)));
+    return new OperationResultBuilder()
+        .from(result)
+        .entities(new DataFactoryEntitiesBuilder()
+            .from(result.entities())
+            .entities(entities)
+            .build())
+        .build();
+  }
+
+  /**
+   * Gather the results of a query from the shards, {@code null} for shards that were not queried,
+   * into the result the query would have on a single environment.
+   */
+  public DataFactoryEntities gather(EntityQuery query, List<DataFactoryEntities> results) {
+    String environment = query.environment();
+    List<DataFactoryEntity> entities = new ArrayList<>();
+    long count = 0;
+    for (int shard = 0; shard < results.size(); shard++) {
+      DataFactoryEntities result = results.get(shard);
+      if (result == null) {
+        continue;
+      }
+      count += result.count() != null ? result.count() : result.entities().size();
+      for (DataFactoryEntity entity : result.entities()) {
+        entities.add(globalize(entity, environment, shard));
+      }
+    }
+    if (query.entityIds() != null && !query.entityIds().isEmpty()) {
+      Map<String, Integer> order = new HashMap<>();
+      for (int i = 0; i < query.entityIds().size(); i++) {
+        order.putIfAbsent(query.entityIds().get(i), i);
+      }
+      entities.sort(Comparator.comparing(entity -> order.get(entity.entityId())));
+    } else if (query.entityId() == null) {
+      String sort = query.sort();
+      if (sort != null) {
+        // Each shard is sorted already, the stable sort keeps the order of equal entities
+        Comparator<Comparable> order = Comparator.naturalOrder();
+        if (Boolean.FALSE.equals(query.sortAscending())) {
+          order = order.reversed();
+        }
+        Comparator<Comparable> nullsLast = Comparator.nullsLast(order);
+        entities.sort((a, b) -> nullsLast.compare(
+            a.propertyMap().get(sort), b.propertyMap().get(sort)));
+      }
+      int from = Math.min(query.offset(), entities.size());
+      int to = (int) Math.min(entities.size(), (long) from + query.max());
+      entities = new ArrayList<>(entities.subList(from, to));
+      if (sort != null && !returnsProperty(query.fields(), sort)) {
+        List<DataFactoryEntity> projected = new ArrayList<>();
+        for (DataFactoryEntity entity : entities) {
+          Map<String, Comparable> propertyMap = new LinkedHashMap<>(entity.propertyMap());
+          propertyMap.remove(sort);
+          projected.add(new DataFactoryEntityBuilder()
+              .from(entity)
+              .propertyMap(propertyMap)
+              .build());
+        }
+        entities = projected;
+      }
+    }
+    return new DataFactoryEntitiesBuilder()
+        .entities(entities)
+        .offset(query.offset())
+        .max(query.max())
+        .count(count)
+        .sort(query.sort())
+        .isAscendingSort(query.sortAscending())
+        .build();
+  }
+
+  /**
+   * Run the task for each shard of the environment in parallel, the first shard on the calling
+   * thread.
+   *
+   * @return the results of the task by shard
+   */
+  public <T> List<T> scatter(String environment, IntFunction<T> task) {
+    int shardCount = getShardCount(environment);
+    if (shardCount == 1) {
+      return Collections.singletonList(task.apply(0));
+    }
+    List<Future<T>> futures = new ArrayList<>();
+    if (executor != null) {
+      for (int shard = 1; shard < shardCount; shard++) {
+        int index = shard;
+        futures.add(executor.submit(() -> task.apply(index)));
+      }
+    }
+    List<T> results = new ArrayList<>();
+    Throwable error = null;
+    boolean interrupted = false;
+    for (int shard = 0; shard < shardCount; shard++) {
+      if (shard == 0 || executor == null) {
+        try {
+          results.add(task.apply(shard));
+        } catch (RuntimeException | Error e) {
+          if (error == null) {
+            error = e;
+          }
+          results.add(null);
+        }
+        continue;
+      }
+      Future<T> future = futures.get(shard - 1);
+      while (true) {
+        try {
+          results.add(future.get());
+          break;
+        } catch (ExecutionException e) {
+          if (error == null) {
+            error = e.getCause();
+          }
+          results.add(null);
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (error != null) {
+      Throwing.sneakyThrow(error);
+    }
+    return results;
+  }
+
+  private static List<EntityAction> actionsOf(DataFactoryEntity entity) {
+    return entity.actions() != null ? entity.actions() : Collections.emptyList();
+  }
+
+  private static String linkedId(EntityAction action) {
+    if (action instanceof LinkAction) {
+      return ((LinkAction) action).otherEntityId();
+    } else if (action instanceof LinkRemoveAction) {
+      return ((LinkRemoveAction) action).otherEntityId();
+    } else if (action instanceof OppositeLinkAction) {
+      return ((OppositeLinkAction) action).oppositeEntityId();
+    }
+    return null;
+  }
+
+  private static boolean returnsProperty(FieldQuery fields, String propertyName) {
+    return fields == null
+        || ((fields.include().isEmpty() || fields.include().contains(propertyName))
+        && !fields.exclude().contains(propertyName));
+  }
+
+  private static FieldQuery withProperty(FieldQuery fields, String propertyName) {
+    List<String> include = new ArrayList<>(fields.include());
+    if (!include.isEmpty() && !include.contains(propertyName)) {
+      include.add(propertyName);
+    }
+    List<String> exclude = new ArrayList<>(fields.exclude());
+    exclude.remove(propertyName);
+    return new FieldQueryBuilder()
+        .from(fields)
+        .include(include)
+        .exclude(exclude)
+        .build();
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories.impl;
+
+import com.divroll.datafactory.database.ReadSnapshot;
+import com.divroll.datafactory.exceptions.DataFactoryException;
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import jetbrains.exodus.entitystore.StoreTransactionalComputable;
+
+/**
+ * Keeps the snapshot sessions opened through
+ * {@linkplain com.divroll.datafactory.repositories.EntityStore#openSnapshot}. Every query of a
+ * session reads the same {@linkplain ReadSnapshot}, so pages and counts agree with each other
+ * while writers go on committing. Sessions idle for longer than the timeout, or older than their
+ * lifetime, are closed by a background reaper since open snapshots keep Xodus from reclaiming old
+ * log files. A client may only hold a limited number of sessions at a time. A session belongs to
+ * the {@linkplain ClientContext client} that opened it, to any other client it does not exist.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class SnapshotManager {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SnapshotManager.class);
+
+  private final long idleTimeout;
+  private final long lifetime;
+  private final int maxSessionsPerClient;
+  private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+  private ScheduledExecutorService reaper;
+
+  public SnapshotManager(long idleTimeout, long lifetime, int maxSessionsPerClient) {
+    Preconditions.checkArgument(idleTimeout > 0, "Snapshot idle timeout should be positive");
+    Preconditions.checkArgument(lifetime > 0, "Snapshot lifetime should be positive");
+    Preconditions.checkArgument(maxSessionsPerClient > 0, "Snapshot limit should be positive");
+    this.idleTimeout = idleTimeout;
+    this.lifetime = lifetime;
+    this.maxSessionsPerClient = maxSessionsPerClient;
+  }
+
+  /**
+   * Register a session over the snapshot of the environment, the session takes ownership of the
+   * snapshot.
+   *
+   * @return id of the new session
+   */
+  public synchronized String open(String client, String environment, ReadSnapshot snapshot) {
+    long open = sessions.values().stream().filter(session -> session.client.equals(client)).count();
+    if (open >= maxSessionsPerClient) {
+      throw new DataFactoryException(
+          "Client " + client + " reached the limit of " + maxSessionsPerClient
+              + " open snapshots");
+    }
+    String snapshotId = UUID.randomUUID().toString();
+    sessions.put(snapshotId, new Session(client, environment, snapshot));
+    startReaper();
+    return snapshotId;
+  }
+
+  /**
+   * Run the computable on the snapshot of the session.
+   *
+   * @param environment environment of the query, which should be that of the session
+   */
+  public <T> T compute(String client, String snapshotId, String environment,
+      StoreTransactionalComputable<T> computable) {
+    Session session = sessions.get(snapshotId);
+    if (session == null || !session.client.equals(client)) {
+      throw new DataFactoryException("Snapshot " + snapshotId + " does not exist or has expired");
+    }
+    if (!session.environment.equals(environment)) {
+      throw new DataFactoryException(
+          "Snapshot " + snapshotId + " is not of environment " + environment);
+    }
+    session.lastAccess = System.currentTimeMillis();
+    try {
+      return session.snapshot.compute(computable);
+    } catch (IllegalStateException e) {
+      throw new DataFactoryException("Snapshot " + snapshotId + " does not exist or has expired");
+    }
+  }
+
+  /**
+   * Close a session of the client.
+   *
+   * @return {@code true} if the client had the session open
+   */
+  public boolean close(String client, String snapshotId) {
+    Session session = sessions.get(snapshotId);
+    if (session == null || !session.client.equals(client)) {
+      return false;
+    }
+    return close(snapshotId);
+  }
+
+  private boolean close(String snapshotId) {
+    Session session = sessions.remove(snapshotId);
+    if (session == null) {
+      return false;
+    }
+    session.snapshot.close();
+    return true;
+  }
+
+  public int openSnapshots() {
+    return sessions.size();
+  }
+
+  private void startReaper() {
+    if (reaper == null) {
+      reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("datafactory-snapshot-reaper-%d")
+          .setDaemon(true)
+          .build());
+      long period = Math.max(Math.min(idleTimeout, lifetime) / 2, 100);
+      reaper.scheduleAtFixedRate(this::reap, period, period, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void reap() {
+    long now = System.currentTimeMillis();
+    sessions.forEach((snapshotId, session) -> {
+      if (now - session.lastAccess > idleTimeout || now - session.created > lifetime) {
+        LOG.info("Closing expired snapshot " + snapshotId + " of client " + session.client);
+        close(snapshotId);
+      }
+    });
+  }
+
+  private static class Session {
+    private final String client;
+    private final String environment;
+    private final ReadSnapshot snapshot;
+    private final long created = System.currentTimeMillis();
+    private volatile long lastAccess = created;
+
+    Session(String client, String environment, ReadSnapshot snapshot) {
+      this.client = client;
+      this.environment = environment;
+      this.snapshot = snapshot;
+    }
+  }
+}
@@ -22,6 +22,8 @@ import com.divroll.datafactory.properties.EmbeddedEntityIterable;
 import com.godaddy.logging.Logger;
 import com.godaddy.logging.LoggerFactory;
 import java.rmi.RemoteException;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
 import java.rmi.server.UnicastRemoteObject;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -45,6 +47,11 @@ public abstract class StoreBaseImpl<T> extends UnicastRemoteObject {
   public StoreBaseImpl() throws RemoteException {
   }
 
+  public StoreBaseImpl(int port, RMIClientSocketFactory csf, RMIServerSocketFactory ssf)
+      throws RemoteException {
+    super(port, csf, ssf);
+  }
+
   public static <T> void removeDuplicates(ComparableLinkedList<T> list) {
     int size = list.size();
     int out = 0;
@@ -0,0 +1,202 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories.impl;
+
+import com.divroll.datafactory.Constants;
+import com.divroll.datafactory.builders.queries.EntityQuery;
+import com.divroll.datafactory.database.DatabaseManager;
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Warms up an {@linkplain EntityStoreImpl} after a restart so the first requests of each tenant
+ * do not pay for opening its environment, registering its property types and filling the Xodus
+ * caches. The configured environments, {@code datafactory.warmup.environments}, and those the
+ * {@linkplain HotQueryRecorder} saw used last are opened in parallel, then the recorded hot
+ * queries of each environment are replayed.
+ *
+ * <p>Progress is reported through {@linkplain #getCompleted()} out of {@linkplain #getTotal()}
+ * steps and {@linkplain #isDone()}, e.g. for a health check that keeps load balancers from
+ * routing traffic until the warm-up finished. A step that fails is logged and counted, it does not
+ * stop the warm-up.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class Warmup {
+
+  private static final Logger LOG = LoggerFactory.getLogger(Warmup.class);
+
+  private final Map<String, List<EntityQuery>> plan = new LinkedHashMap<>();
+  private final int total;
+  private final AtomicInteger completed = new AtomicInteger();
+  private final AtomicInteger failed = new AtomicInteger();
+  private final CountDownLatch done = new CountDownLatch(1);
+  private volatile boolean started;
+
+  /**
+   * @param environments environments to open, in order of priority
+   * @param queries      queries to replay, in order of priority
+   */
+  public Warmup(List<String> environments, List<EntityQuery> queries) {
+    environments.forEach(environment -> plan.put(environment, new ArrayList<>()));
+    queries.forEach(query ->
+        plan.computeIfAbsent(query.environment(), key -> new ArrayList<>()).add(query));
+    this.total = plan.size() + queries.size();
+  }
+
+  /**
+   * Plan the warm-up of the configured environments and of the recording of the store.
+   */
+  public static Warmup fromSystemProperties(EntityStoreImpl entityStore) {
+    Set<String> environments = new LinkedHashSet<>();
+    for (String environment : System.getProperty(
+        Constants.DATAFACTORY_WARMUP_ENVIRONMENTS_ENVIRONMENT,
+        Constants.DATAFACTORY_WARMUP_ENVIRONMENTS_DEFAULT).split(",")) {
+      if (!environment.trim().isEmpty()) {
+        environments.add(environment.trim());
+      }
+    }
+    HotQueryRecorder recorder = entityStore.getHotQueryRecorder();
+    environments.addAll(recorder.getEnvironments());
+    return new Warmup(new ArrayList<>(environments), recorder.getQueries());
+  }
+
+  /**
+   * Open the environments and replay the queries on {@code parallelism} threads, returning once
+   * all of them are done.
+   */
+  public void run(EntityStoreImpl entityStore, DatabaseManager manager, int parallelism) {
+    Preconditions.checkArgument(parallelism > 0, "parallelism should be greater than zero");
+    synchronized (this) {
+      Preconditions.checkState(!started, "Warm-up already started");
+      started = true;
+    }
+    long start = System.currentTimeMillis();
+    LOG.info("Warming up " + plan.size() + " environments and " + (total - plan.size())
+        + " queries");
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+        new ThreadFactoryBuilder()
+            .setNameFormat("datafactory-warmup-%d")
+            .setDaemon(true)
+            .build());
+    try {
+      plan.forEach((environment, queries) -> executor.execute(() -> {
+        // Queries can only warm the caches of an environment that opened
+        if (step("environment " + environment, () -> {
+          for (String dir : entityStore.getShardRouter().getDirectories(environment)) {
+            manager.transactPersistentEntityStore(dir, true, txn -> {
+            });
+          }
+        })) {
+          queries.forEach(query -> step("query on " + environment,
+              () -> entityStore.getEntities(query)));
+        } else {
+          completed.addAndGet(queries.size());
+          failed.addAndGet(queries.size());
+        }
+      }));
+      executor.shutdown();
+      boolean interrupted = false;
+      while (true) {
+        try {
+          if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+            break;
+          }
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    } finally {
+      executor.shutdownNow();
+      done.countDown();
+    }
+    LOG.info("Warm-up finished in " + (System.currentTimeMillis() - start) + " ms, "
+        + failed.get() + " of " + total + " steps failed");
+  }
+
+  /**
+   * @return number of environments to open plus queries to replay
+   */
+  public int getTotal() {
+    return total;
+  }
+
+  /**
+   * @return number of steps done, whether they succeeded or not
+   */
+  public int getCompleted() {
+    return completed.get();
+  }
+
+  public int getFailed() {
+    return failed.get();
+  }
+
+  /**
+   * @return whether the warm-up finished, requests can be routed to the store from then on
+   */
+  public boolean isDone() {
+    return done.getCount() == 0;
+  }
+
+  /**
+   * Wait for the warm-up to finish.
+   *
+   * @return {@code false} if it did not finish in time
+   */
+  public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+    return done.await(timeout, unit);
+  }
+
+  private boolean step(String name, Step step) {
+    try {
+      step.run();
+      return true;
+    } catch (Exception e) {
+      failed.incrementAndGet();
+      LOG.warn("Warm-up of " + name + " failed: " + e.getMessage());
+      return false;
+    } finally {
+      int count = completed.incrementAndGet();
+      if (count % Math.max(1, total / 10) == 0 || count == total) {
+        LOG.info("Warm-up progress " + count + "/" + total);
+      }
+    }
+  }
+
+  private interface Step {
+    void run() throws Exception;
+  }
+}
@@ -0,0 +1,285 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories.impl;
+
+import com.divroll.datafactory.Constants;
+import com.divroll.datafactory.builders.DataFactoryEntities;
+import com.divroll.datafactory.builders.DataFactoryEntity;
+import com.divroll.datafactory.exceptions.DataFactoryException;
+import com.divroll.datafactory.exceptions.PartialFailureException;
+import com.divroll.datafactory.exceptions.RequestRejectedException;
+import com.divroll.datafactory.exceptions.UnsatisfiedConditionException;
+import com.divroll.datafactory.repositories.EntityStore;
+import com.divroll.datafactory.repositories.WriteBatcher;
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.vavr.control.Option;
+import java.rmi.ConnectException;
+import java.rmi.NoSuchObjectException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * {@linkplain WriteBatcher} in front of any {@linkplain EntityStore}. Entities are buffered per
+ * environment and sent with a single {@code saveEntities} call once {@code maxBatchSize} entities
+ * are queued or {@code lingerMillis} elapsed since the first one, whichever comes first.
+ * <p>
+ * A batch of an environment is committed in a single transaction. When the server rejects it
+ * because of one of its entities, e.g. one with an unsatisfied condition, none of them were saved
+ * and each of them is retried on its own so the failing entity only fails its own caller. The
+ * same goes for a batch that never reached the server. Any other failure, which may have happened
+ * after the batch was committed or means the server is too busy, fails the whole batch as
+ * retrying it entity by entity could save them twice or only add to the load. A batch the
+ * executor rejects is not sent and fails with a {@linkplain RequestRejectedException}.
+ * <p>
+ * A batch of a sharded environment commits one transaction per shard. When only some of them
+ * commit, the entities are matched to their shards by {@linkplain ShardRouter#place}: those of
+ * committed shards succeed, with an empty result as the server does not return them, and those of
+ * rolled back shards are retried on their own. Entities placed round robin cannot be matched and
+ * fail with the {@linkplain PartialFailureException}.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class WriteBatcherImpl implements WriteBatcher {
+
+  private static final Logger LOG = LoggerFactory.getLogger(WriteBatcherImpl.class);
+
+  private final EntityStore entityStore;
+  private final Executor executor;
+  private final ShardRouter shards;
+  private final int maxBatchSize;
+  private final long lingerMillis;
+  private final ScheduledExecutorService timer;
+  private final Map<String, List<PendingSave>> buffers = new LinkedHashMap<>();
+  private int pending;
+  private boolean closed;
+
+  /**
+   * @param entityStore  store the batches are sent to
+   * @param executor     executor to send the batches
+   * @param maxBatchSize maximum number of entities of a batch
+   * @param lingerMillis maximum time an entity waits for its batch to fill up
+   */
+  public WriteBatcherImpl(@NotNull EntityStore entityStore, @NotNull Executor executor,
+      int maxBatchSize, long lingerMillis) {
+    this(entityStore, executor, maxBatchSize, lingerMillis, new ShardRouter(
+        ShardRouter.parse(System.getProperty(Constants.DATAFACTORY_SHARDS_ENVIRONMENT,
+            Constants.DATAFACTORY_SHARDS_DEFAULT)), 1));
+  }
+
+  /**
+   * @param shards shards of the environments as configured on the server
+   */
+  public WriteBatcherImpl(@NotNull EntityStore entityStore, @NotNull Executor executor,
+      int maxBatchSize, long lingerMillis, @NotNull ShardRouter shards) {
+    Preconditions.checkArgument(maxBatchSize > 0, "maxBatchSize should be greater than zero");
+    Preconditions.checkArgument(lingerMillis >= 0, "lingerMillis should not be negative");
+    this.entityStore = entityStore;
+    this.executor = executor;
+    this.shards = shards;
+    this.maxBatchSize = maxBatchSize;
+    this.lingerMillis = lingerMillis;
+    this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("datafactory-batcher-%d")
+        .setDaemon(true)
+        .build());
+  }
+
+  @Override public CompletableFuture<Option<DataFactoryEntity>> saveEntity(
+      @NotNull DataFactoryEntity entity) {
+    PendingSave save = new PendingSave(entity);
+    String environment = entity.environment();
+    List<PendingSave> full = null;
+    synchronized (this) {
+      if (closed) {
+        save.future.completeExceptionally(new DataFactoryException("Write batcher is closed"));
+        return save.future;
+      }
+      List<PendingSave> buffer = buffers.get(environment);
+      if (buffer == null) {
+        List<PendingSave> created = new ArrayList<>();
+        buffers.put(environment, created);
+        if (maxBatchSize > 1) {
+          timer.schedule(() -> flush(environment, created), lingerMillis, TimeUnit.MILLISECONDS);
+        }
+        buffer = created;
+      }
+      buffer.add(save);
+      pending++;
+      if (buffer.size() >= maxBatchSize) {
+        full = take(environment);
+      }
+    }
+    if (full != null) {
+      send(full);
+    }
+    return save.future;
+  }
+
+  @Override public void flush() {
+    List<List<PendingSave>> batches = new ArrayList<>();
+    synchronized (this) {
+      new ArrayList<>(buffers.keySet()).forEach(environment -> batches.add(take(environment)));
+    }
+    batches.forEach(this::send);
+  }
+
+  @Override public synchronized int pending() {
+    return pending;
+  }
+
+  @Override public void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    flush();
+    timer.shutdown();
+  }
+
+  /**
+   * Send the buffer the linger timer was scheduled for, unless it was already taken and the
+   * environment buffers the next batch meanwhile.
+   */
+  private void flush(String environment, List<PendingSave> buffer) {
+    List<PendingSave> batch = null;
+    synchronized (this) {
+      if (buffers.get(environment) == buffer) {
+        batch = take(environment);
+      }
+    }
+    if (batch != null) {
+      send(batch);
+    }
+  }
+
+  /**
+   * Remove the buffer of an environment.
+   */
+  private List<PendingSave> take(String environment) {
+    List<PendingSave> batch = buffers.remove(environment);
+    if (batch != null) {
+      pending -= batch.size();
+    }
+    return batch;
+  }
+
+  private void send(List<PendingSave> batch) {
+    try {
+      executor.execute(() -> saveBatch(batch));
+    } catch (RejectedExecutionException e) {
+      LOG.warn("Batch of " + batch.size() + " entities rejected: " + e.getMessage());
+      RequestRejectedException rejected =
+          new RequestRejectedException("batcher", "sender executor rejected the batch");
+      batch.forEach(save -> save.future.completeExceptionally(rejected));
+    }
+  }
+
+  private void saveBatch(List<PendingSave> batch) {
+    if (batch.size() == 1) {
+      saveOne(batch.get(0));
+      return;
+    }
+    DataFactoryEntity[] entities = new DataFactoryEntity[batch.size()];
+    for (int i = 0; i < entities.length; i++) {
+      entities[i] = batch.get(i).entity;
+    }
+    List<DataFactoryEntity> saved;
+    try {
+      DataFactoryEntities result = entityStore.saveEntities(entities).get();
+      saved = result.entities();
+    } catch (PartialFailureException e) {
+      LOG.warn("Batch of " + entities.length + " entities failed in part: " + e.getMessage());
+      batch.forEach(save -> savePartially(save, e));
+      return;
+    } catch (Throwable e) {
+      if (isRetryableOneByOne(e)) {
+        LOG.debug("Batch of " + entities.length + " entities failed, saving them one by one", e);
+        batch.forEach(this::saveOne);
+      } else {
+        LOG.warn("Batch of " + entities.length + " entities failed: " + e.getMessage());
+        batch.forEach(save -> save.future.completeExceptionally(e));
+      }
+      return;
+    }
+    for (int i = 0; i < entities.length; i++) {
+      batch.get(i).future.complete(Option.of(saved.get(i)));
+    }
+  }
+
+  /**
+   * @return whether nothing of the batch was saved because it never reached the server or one of
+   * its entities is invalid
+   */
+  private static boolean isRetryableOneByOne(Throwable e) {
+    return e instanceof ConnectException
+        || e instanceof NoSuchObjectException
+        || e instanceof UnsatisfiedConditionException
+        || e instanceof IllegalArgumentException;
+  }
+
+  /**
+   * Complete an entity of a batch that committed in some shards only.
+   */
+  private void savePartially(PendingSave save, PartialFailureException e) {
+    String dir = null;
+    try {
+      int shard = shards.place(save.entity);
+      if (shard >= 0) {
+        dir = shards.getDirectory(save.entity.environment(), shard);
+      }
+    } catch (DataFactoryException invalid) {
+      // Not an id of the shards, the entity cannot be matched
+    }
+    if (dir != null && e.getCommittedEnvironments().contains(dir)) {
+      save.future.complete(Option.none());
+    } else if (dir != null && e.getFailedEnvironments().containsKey(dir)) {
+      saveOne(save);
+    } else {
+      save.future.completeExceptionally(e);
+    }
+  }
+
+  private void saveOne(PendingSave save) {
+    try {
+      save.future.complete(entityStore.saveEntity(save.entity));
+    } catch (Throwable e) {
+      save.future.completeExceptionally(e);
+    }
+  }
+
+  private static class PendingSave {
+    private final DataFactoryEntity entity;
+    private final CompletableFuture<Option<DataFactoryEntity>> future = new CompletableFuture<>();
+
+    PendingSave(DataFactoryEntity entity) {
+      this.entity = entity;
+    }
+  }
+}
@@ -0,0 +1,620 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.transport;
+
+import com.divroll.datafactory.builders.DataFactoryEntities;
+import com.divroll.datafactory.builders.DataFactoryEntitiesBuilder;
+import com.divroll.datafactory.builders.DataFactoryEntity;
+import com.divroll.datafactory.builders.DataFactoryEntityBuilder;
+import com.divroll.datafactory.builders.queries.EntityQuery;
+import com.divroll.datafactory.builders.queries.EntityQueryBuilder;
+import com.divroll.datafactory.builders.queries.FieldQuery;
+import com.divroll.datafactory.builders.queries.FieldQueryBuilder;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Multimap;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary form of {@linkplain DataFactoryEntity}, {@linkplain DataFactoryEntities} and
+ * {@linkplain EntityQuery} for the binary transports. Default Java serialization writes the
+ * class descriptors of the generated Immutables classes and of Guava collections, and the full
+ * UTF of every property name, for every entity of a page. This codec instead writes:
+ * <ul>
+ *   <li>lengths and numbers as varints,</li>
+ *   <li>property names, entity types, link names and environments once per object graph,
+ *   referring to repeated occurrences by index,</li>
+ *   <li>Xodus entity ids, e.g. {@code 3-1024}, as two varints.</li>
+ * </ul>
+ * Values this codec does not know, such as actions or conditions, fall back to Java
+ * serialization within the same stream.
+ *
+ * <p>Objects are substituted with a {@linkplain CompactForm} by the stream returned by
+ * {@linkplain #output(OutputStream)}. Decoding needs no special stream as the form resolves
+ * back to the original object.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public final class CompactCodec {
+
+  private CompactCodec() {
+  }
+
+  /**
+   * @return an {@linkplain ObjectOutputStream} writing entities and queries in compact form
+   */
+  public static ObjectOutputStream output(OutputStream out) throws IOException {
+    return new CompactObjectOutputStream(out);
+  }
+
+  private static final class CompactObjectOutputStream extends ObjectOutputStream {
+    private CompactObjectOutputStream(OutputStream out) throws IOException {
+      super(out);
+      enableReplaceObject(true);
+    }
+
+    @Override protected Object replaceObject(Object obj) {
+      if (obj instanceof DataFactoryEntity
+          || obj instanceof DataFactoryEntities
+          || obj instanceof EntityQuery) {
+        return new CompactForm(obj);
+      }
+      return obj;
+    }
+  }
+
+  /**
+   * Serialized stand-in for an entity, a page of entities or a query.
+   */
+  public static final class CompactForm implements Externalizable {
+    private static final long serialVersionUID = 1L;
+
+    private static final byte VERSION = 3;
+    private static final byte ENTITY = 1;
+    private static final byte ENTITIES = 2;
+    private static final byte QUERY = 3;
+
+    private Object value;
+
+    /**
+     * Used by {@linkplain Externalizable} deserialization only.
+     */
+    public CompactForm() {
+    }
+
+    CompactForm(Object value) {
+      this.value = value;
+    }
+
+    @Override public void writeExternal(ObjectOutput out) throws IOException {
+      out.writeByte(VERSION);
+      Writer writer = new Writer(out);
+      if (value instanceof DataFactoryEntity) {
+        out.writeByte(ENTITY);
+        writer.entity((DataFactoryEntity) value);
+      } else if (value instanceof DataFactoryEntities) {
+        out.writeByte(ENTITIES);
+        writer.entities((DataFactoryEntities) value);
+      } else {
+        out.writeByte(QUERY);
+        writer.query((EntityQuery) value);
+      }
+    }
+
+    @Override public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+      byte version = in.readByte();
+      if (version != VERSION) {
+        throw new InvalidObjectException("Unsupported compact form version " + version);
+      }
+      Reader reader = new Reader(in);
+      byte kind = in.readByte();
+      switch (kind) {
+        case ENTITY:
+          value = reader.entity();
+          break;
+        case ENTITIES:
+          value = reader.entities();
+          break;
+        case QUERY:
+          value = reader.query();
+          break;
+        default:
+          throw new InvalidObjectException("Unknown compact form " + kind);
+      }
+    }
+
+    private Object readResolve() {
+      return value;
+    }
+  }
+
+  private static final byte NULL = 0;
+  private static final byte STRING = 1;
+  private static final byte INT = 2;
+  private static final byte LONG = 3;
+  private static final byte DOUBLE = 4;
+  private static final byte FLOAT = 5;
+  private static final byte TRUE = 6;
+  private static final byte FALSE = 7;
+  private static final byte OBJECT = 8;
+
+  private static final byte ID_STRING = 1;
+  private static final byte ID_NUMERIC = 2;
+
+  private static final class Writer {
+    private final ObjectOutput out;
+    private final Map<String, Integer> symbols = new HashMap<>();
+
+    private Writer(ObjectOutput out) {
+      this.out = out;
+    }
+
+    private void entity(DataFactoryEntity entity) throws IOException {
+      symbol(entity.environment());
+      symbol(entity.entityType());
+      symbol(entity.nameSpace());
+      entityId(entity.entityId());
+      Map<String, Comparable> propertyMap = entity.propertyMap();
+      varint(propertyMap.size());
+      for (Map.Entry<String, Comparable> entry : propertyMap.entrySet()) {
+        symbol(entry.getKey());
+        value(entry.getValue());
+      }
+      list(entity.blobs());
+      Multimap<String, DataFactoryEntity> links = entity.links();
+      if (links == null) {
+        varint(0);
+      } else {
+        varint(links.keySet().size() + 1);
+        for (Map.Entry<String, Collection<DataFactoryEntity>> entry : links.asMap().entrySet()) {
+          symbol(entry.getKey());
+          varint(entry.getValue().size());
+          for (DataFactoryEntity linked : entry.getValue()) {
+            entity(linked);
+          }
+        }
+      }
+      symbols(entity.blobNames());
+      symbols(entity.linkNames());
+      list(entity.actions());
+      list(entity.filters());
+      list(entity.conditions());
+    }
+
+    private void entities(DataFactoryEntities entities) throws IOException {
+      varint(entities.entities().size());
+      for (DataFactoryEntity entity : entities.entities()) {
+        entity(entity);
+      }
+      value(entities.offset());
+      value(entities.max());
+      value(entities.count());
+      symbol(entities.sort());
+      value(entities.isAscendingSort());
+    }
+
+    private void query(EntityQuery query) throws IOException {
+      symbol(query.environment());
+      symbol(query.nameSpace());
+      symbol(query.entityType());
+      entityId(query.entityId());
+      entityIds(query.entityIds());
+      list(query.linkQueries());
+      list(query.blobQueries());
+      fields(query.fields());
+      value(query.first());
+      value(query.last());
+      list(query.filters());
+      list(query.conditions());
+      value(query.offset());
+      value(query.max());
+      symbol(query.sort());
+      value(query.sortAscending());
+    }
+
+    private void fields(FieldQuery fields) throws IOException {
+      if (fields == null) {
+        varint(0);
+        return;
+      }
+      varint(1);
+      symbols(fields.include().toArray(new String[0]));
+      symbols(fields.exclude().toArray(new String[0]));
+    }
+
+    /**
+     * Write a string that is likely to repeat, 0 is null, 1 is followed by a new string and
+     * n refers to the (n - 2)th string written before.
+     */
+    private void symbol(String symbol) throws IOException {
+      if (symbol == null) {
+        varint(0);
+        return;
+      }
+      Integer index = symbols.get(symbol);
+      if (index != null) {
+        varint(index + 2);
+      } else {
+        symbols.put(symbol, symbols.size());
+        varint(1);
+        string(symbol);
+      }
+    }
+
+    private void symbols(String[] symbols) throws IOException {
+      if (symbols == null) {
+        varint(0);
+        return;
+      }
+      varint(symbols.length + 1);
+      for (String symbol : symbols) {
+        symbol(symbol);
+      }
+    }
+
+    private void entityId(String entityId) throws IOException {
+      if (entityId == null) {
+        out.writeByte(NULL);
+        return;
+      }
+      int separator = entityId.indexOf('-');
+      if (separator > 0) {
+        String typeId = entityId.substring(0, separator);
+        String localId = entityId.substring(separator + 1);
+        if (isCanonicalNumber(typeId) && isCanonicalNumber(localId)) {
+          out.writeByte(ID_NUMERIC);
+          varlong(Long.parseLong(typeId));
+          varlong(Long.parseLong(localId));
+          return;
+        }
+      }
+      out.writeByte(ID_STRING);
+      string(entityId);
+    }
+
+    private void entityIds(List<String> entityIds) throws IOException {
+      if (entityIds == null) {
+        varint(0);
+        return;
+      }
+      varint(entityIds.size() + 1);
+      for (String entityId : entityIds) {
+        entityId(entityId);
+      }
+    }
+
+    private void value(Object value) throws IOException {
+      if (value == null) {
+        out.writeByte(NULL);
+      } else if (value instanceof String) {
+        out.writeByte(STRING);
+        string((String) value);
+      } else if (value instanceof Integer) {
+        out.writeByte(INT);
+        varint(zigzag((Integer) value));
+      } else if (value instanceof Long) {
+        out.writeByte(LONG);
+        varlong(zigzag((Long) value));
+      } else if (value instanceof Double) {
+        out.writeByte(DOUBLE);
+        out.writeDouble((Double) value);
+      } else if (value instanceof Float) {
+        out.writeByte(FLOAT);
+        out.writeFloat((Float) value);
+      } else if (value instanceof Boolean) {
+        out.writeByte((Boolean) value ? TRUE : FALSE);
+      } else {
+        out.writeByte(OBJECT);
+        out.writeObject(value);
+      }
+    }
+
+    private void list(List<?> list) throws IOException {
+      if (list == null) {
+        varint(0);
+      } else if (list.isEmpty()) {
+        varint(1);
+      } else {
+        varint(2);
+        out.writeObject(new ArrayList<>(list));
+      }
+    }
+
+    private void string(String string) throws IOException {
+      byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+      varint(bytes.length);
+      out.write(bytes);
+    }
+
+    private void varint(int value) throws IOException {
+      while ((value & ~0x7F) != 0) {
+        out.writeByte((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      out.writeByte(value);
+    }
+
+    private void varlong(long value) throws IOException {
+      while ((value & ~0x7FL) != 0) {
+        out.writeByte((int) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      out.writeByte((int) value);
+    }
+  }
+
+  private static final class Reader {
+    private final ObjectInput in;
+    private final List<String> symbols = new ArrayList<>();
+
+    private Reader(ObjectInput in) {
+      this.in = in;
+    }
+
+    private DataFactoryEntity entity() throws IOException, ClassNotFoundException {
+      DataFactoryEntityBuilder builder = new DataFactoryEntityBuilder();
+      String environment = symbol();
+      if (environment != null) {
+        builder.environment(environment);
+      }
+      builder.entityType(symbol());
+      builder.nameSpace(symbol());
+      builder.entityId(entityId());
+      int properties = varint();
+      Map<String, Comparable> propertyMap = new LinkedHashMap<>();
+      for (int i = 0; i < properties; i++) {
+        propertyMap.put(symbol(), (Comparable) value());
+      }
+      builder.propertyMap(propertyMap);
+      builder.blobs(list());
+      int linkNames = varint();
+      if (linkNames == 0) {
+        builder.links(null);
+      } else {
+        Multimap<String, DataFactoryEntity> links = ArrayListMultimap.create();
+        for (int i = 1; i < linkNames; i++) {
+          String linkName = symbol();
+          int count = varint();
+          for (int j = 0; j < count; j++) {
+            links.put(linkName, entity());
+          }
+        }
+        builder.links(links);
+      }
+      builder.blobNames(symbols());
+      builder.linkNames(symbols());
+      builder.actions(list());
+      builder.filters(list());
+      builder.conditions(list());
+      return builder.build();
+    }
+
+    private DataFactoryEntities entities() throws IOException, ClassNotFoundException {
+      DataFactoryEntitiesBuilder builder = new DataFactoryEntitiesBuilder();
+      int count = varint();
+      List<DataFactoryEntity> entities = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        entities.add(entity());
+      }
+      return builder.entities(entities)
+          .offset((Integer) value())
+          .max((Integer) value())
+          .count((Long) value())
+          .sort(symbol())
+          .isAscendingSort((Boolean) value())
+          .build();
+    }
+
+    private EntityQuery query() throws IOException, ClassNotFoundException {
+      EntityQueryBuilder builder = new EntityQueryBuilder();
+      String environment = symbol();
+      if (environment != null) {
+        builder.environment(environment);
+      }
+      return builder.nameSpace(symbol())
+          .entityType(symbol())
+          .entityId(entityId())
+          .entityIds(entityIds())
+          .linkQueries(list())
+          .blobQueries(list())
+          .fields(fields())
+          .first((Boolean) value())
+          .last((Boolean) value())
+          .filters(list())
+          .conditions(list())
+          .offset((Integer) value())
+          .max((Integer) value())
+          .sort(symbol())
+          .sortAscending((Boolean) value())
+          .build();
+    }
+
+    private FieldQuery fields() throws IOException {
+      if (varint() == 0) {
+        return null;
+      }
+      return new FieldQueryBuilder()
+          .include(Arrays.asList(symbols()))
+          .exclude(Arrays.asList(symbols()))
+          .build();
+    }
+
+    private String symbol() throws IOException {
+      int index = varint();
+      if (index == 0) {
+        return null;
+      } else if (index == 1) {
+        String symbol = string();
+        symbols.add(symbol);
+        return symbol;
+      } else if (index - 2 < symbols.size()) {
+        return symbols.get(index - 2);
+      }
+      throw new InvalidObjectException("Unknown symbol " + index);
+    }
+
+    private String[] symbols() throws IOException {
+      int length = varint();
+      if (length == 0) {
+        return null;
+      }
+      String[] symbols = new String[length - 1];
+      for (int i = 0; i < symbols.length; i++) {
+        symbols[i] = symbol();
+      }
+      return symbols;
+    }
+
+    private String entityId() throws IOException {
+      byte tag = in.readByte();
+      switch (tag) {
+        case NULL:
+          return null;
+        case ID_NUMERIC:
+          return varlong() + "-" + varlong();
+        case ID_STRING:
+          return string();
+        default:
+          throw new InvalidObjectException("Unknown entity id tag " + tag);
+      }
+    }
+
+    private List<String> entityIds() throws IOException {
+      int length = varint();
+      if (length == 0) {
+        return null;
+      }
+      List<String> entityIds = new ArrayList<>(length - 1);
+      for (int i = 1; i < length; i++) {
+        entityIds.add(entityId());
+      }
+      return entityIds;
+    }
+
+    private Object value() throws IOException, ClassNotFoundException {
+      byte tag = in.readByte();
+      switch (tag) {
+        case NULL:
+          return null;
+        case STRING:
+          return string();
+        case INT:
+          return unzigzag(varint());
+        case LONG:
+          return unzigzag(varlong());
+        case DOUBLE:
+          return in.readDouble();
+        case FLOAT:
+          return in.readFloat();
+        case TRUE:
+          return Boolean.TRUE;
+        case FALSE:
+          return Boolean.FALSE;
+        case OBJECT:
+          return in.readObject();
+        default:
+          throw new InvalidObjectException("Unknown value tag " + tag);
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> List<T> list() throws IOException, ClassNotFoundException {
+      int tag = varint();
+      if (tag == 0) {
+        return null;
+      } else if (tag == 1) {
+        return new ArrayList<>();
+      }
+      return (List<T>) in.readObject();
+    }
+
+    private String string() throws IOException {
+      byte[] bytes = new byte[varint()];
+      in.readFully(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int varint() throws IOException {
+      int value = 0;
+      for (int shift = 0; shift < 35; shift += 7) {
+        byte b = in.readByte();
+        value |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new InvalidObjectException("Malformed varint");
+    }
+
+    private long varlong() throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 70; shift += 7) {
+        byte b = in.readByte();
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new InvalidObjectException("Malformed varlong");
+    }
+  }
+
+  private static boolean isCanonicalNumber(String value) {
+    int length = value.length();
+    if (length == 0 || length > 18 || (length > 1 && value.charAt(0) == '0')) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (c < '0' || c > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int zigzag(int value) {
+    return (value << 1) ^ (value >> 31);
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static int unzigzag(int value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
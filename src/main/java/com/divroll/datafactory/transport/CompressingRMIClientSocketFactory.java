@@ -0,0 +1,54 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.transport;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.Socket;
+import java.rmi.server.RMIClientSocketFactory;
+
+/**
+ * Client half of the compressing socket factory pair, serialized into the stub of the exported
+ * {@linkplain com.divroll.datafactory.repositories.EntityStore} so clients compress as well.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class CompressingRMIClientSocketFactory implements RMIClientSocketFactory, Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int threshold;
+
+  public CompressingRMIClientSocketFactory(int threshold) {
+    this.threshold = threshold;
+  }
+
+  @Override public Socket createSocket(String host, int port) throws IOException {
+    return new CompressingSocket(host, port, threshold);
+  }
+
+  @Override public boolean equals(Object o) {
+    return o instanceof CompressingRMIClientSocketFactory
+        && ((CompressingRMIClientSocketFactory) o).threshold == threshold;
+  }
+
+  @Override public int hashCode() {
+    return threshold;
+  }
+}
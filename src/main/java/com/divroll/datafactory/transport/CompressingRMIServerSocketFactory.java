@@ -0,0 +1,58 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.transport;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMIServerSocketFactory;
+
+/**
+ * Server half of the compressing socket factory pair, accepted connections exchange the same
+ * block format as {@linkplain CompressingRMIClientSocketFactory} sockets.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class CompressingRMIServerSocketFactory implements RMIServerSocketFactory {
+
+  private final int threshold;
+
+  public CompressingRMIServerSocketFactory(int threshold) {
+    this.threshold = threshold;
+  }
+
+  @Override public ServerSocket createServerSocket(int port) throws IOException {
+    return new ServerSocket(port) {
+      @Override public Socket accept() throws IOException {
+        Socket socket = new CompressingSocket(threshold);
+        implAccept(socket);
+        return socket;
+      }
+    };
+  }
+
+  @Override public boolean equals(Object o) {
+    return o instanceof CompressingRMIServerSocketFactory
+        && ((CompressingRMIServerSocketFactory) o).threshold == threshold;
+  }
+
+  @Override public int hashCode() {
+    return threshold;
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.transport;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@linkplain Socket} whose streams exchange Deflate compressed blocks. Writes are buffered and
+ * emitted as one block on every {@code flush()}, which Java RMI issues at the end of each call
+ * and return message, or when the buffer fills up. Blocks smaller than the threshold, or that do
+ * not shrink, are sent as is. Every block is preceded by an {@code int} header holding its wire
+ * length with the high bit set for compressed blocks.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class CompressingSocket extends Socket {
+
+  private static final int BLOCK_SIZE = 64 * 1024;
+  private static final int COMPRESSED = 0x80000000;
+
+  private final int threshold;
+  private InputStream inputStream;
+  private OutputStream outputStream;
+
+  public CompressingSocket(int threshold) {
+    this.threshold = threshold;
+  }
+
+  public CompressingSocket(String host, int port, int threshold) throws IOException {
+    super(host, port);
+    this.threshold = threshold;
+  }
+
+  @Override public synchronized InputStream getInputStream() throws IOException {
+    if (inputStream == null) {
+      inputStream = new DecompressingInputStream(super.getInputStream());
+    }
+    return inputStream;
+  }
+
+  @Override public synchronized OutputStream getOutputStream() throws IOException {
+    if (outputStream == null) {
+      outputStream = new CompressingOutputStream(super.getOutputStream(), threshold);
+    }
+    return outputStream;
+  }
+
+  static class CompressingOutputStream extends FilterOutputStream {
+    private final int threshold;
+    private final byte[] buffer = new byte[BLOCK_SIZE];
+    private final byte[] compressed = new byte[BLOCK_SIZE];
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private int count;
+
+    CompressingOutputStream(OutputStream out, int threshold) {
+      super(out);
+      this.threshold = threshold;
+    }
+
+    @Override public synchronized void write(int b) throws IOException {
+      if (count == buffer.length) {
+        writeBlock();
+      }
+      buffer[count++] = (byte) b;
+    }
+
+    @Override public synchronized void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (count == buffer.length) {
+          writeBlock();
+        }
+        int chunk = Math.min(len, buffer.length - count);
+        System.arraycopy(b, off, buffer, count, chunk);
+        count += chunk;
+        off += chunk;
+        len -= chunk;
+      }
+    }
+
+    @Override public synchronized void flush() throws IOException {
+      writeBlock();
+      out.flush();
+    }
+
+    @Override public void close() throws IOException {
+      try {
+        flush();
+      } finally {
+        deflater.end();
+        out.close();
+      }
+    }
+
+    private void writeBlock() throws IOException {
+      if (count == 0) {
+        return;
+      }
+      int length = 0;
+      if (count >= threshold) {
+        deflater.reset();
+        deflater.setInput(buffer, 0, count);
+        deflater.finish();
+        length = deflater.deflate(compressed);
+        if (!deflater.finished()) {
+          // Incompressible, the output did not fit in a block
+          length = 0;
+        }
+      }
+      if (length > 0 && length < count) {
+        writeHeader(length | COMPRESSED);
+        out.write(compressed, 0, length);
+        CompressionStats.record(count, length, true);
+      } else {
+        writeHeader(count);
+        out.write(buffer, 0, count);
+        CompressionStats.record(count, count, false);
+      }
+      count = 0;
+    }
+
+    private void writeHeader(int header) throws IOException {
+      out.write(header >>> 24);
+      out.write(header >>> 16);
+      out.write(header >>> 8);
+      out.write(header);
+    }
+  }
+
+  static class DecompressingInputStream extends InputStream {
+    private final DataInputStream in;
+    private final Inflater inflater = new Inflater();
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private final byte[] buffer = new byte[BLOCK_SIZE];
+    private int position;
+    private int count;
+
+    DecompressingInputStream(InputStream in) {
+      this.in = new DataInputStream(in);
+    }
+
+    @Override public synchronized int read() throws IOException {
+      if (position == count && !readBlock()) {
+        return -1;
+      }
+      return buffer[position++] & 0xff;
+    }
+
+    @Override public synchronized int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (position == count && !readBlock()) {
+        return -1;
+      }
+      int chunk = Math.min(len, count - position);
+      System.arraycopy(buffer, position, b, off, chunk);
+      position += chunk;
+      return chunk;
+    }
+
+    @Override public synchronized int available() {
+      return count - position;
+    }
+
+    @Override public void close() throws IOException {
+      inflater.end();
+      in.close();
+    }
+
+    private boolean readBlock() throws IOException {
+      int header;
+      try {
+        header = in.readInt();
+      } catch (EOFException e) {
+        return false;
+      }
+      int length = header & ~COMPRESSED;
+      if (length > BLOCK_SIZE) {
+        throw new IOException("Invalid compressed block length " + length);
+      }
+      if ((header & COMPRESSED) != 0) {
+        in.readFully(block, 0, length);
+        inflater.reset();
+        inflater.setInput(block, 0, length);
+        try {
+          count = inflater.inflate(buffer);
+        } catch (DataFormatException e) {
+          throw new IOException(e);
+        }
+      } else {
+        in.readFully(buffer, 0, length);
+        count = length;
+      }
+      position = 0;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.transport;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide counters of the traffic written through the compressing socket factories.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public final class CompressionStats {
+
+  private static final AtomicLong rawBytes = new AtomicLong();
+  private static final AtomicLong wireBytes = new AtomicLong();
+  private static final AtomicLong compressedBlocks = new AtomicLong();
+  private static final AtomicLong uncompressedBlocks = new AtomicLong();
+
+  private CompressionStats() {
+  }
+
+  static void record(int raw, int wire, boolean compressed) {
+    rawBytes.addAndGet(raw);
+    wireBytes.addAndGet(wire);
+    if (compressed) {
+      compressedBlocks.incrementAndGet();
+    } else {
+      uncompressedBlocks.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return bytes handed to the compressing streams
+   */
+  public static long rawBytes() {
+    return rawBytes.get();
+  }
+
+  /**
+   * @return bytes actually written to the network, excluding block headers
+   */
+  public static long wireBytes() {
+    return wireBytes.get();
+  }
+
+  public static long compressedBlocks() {
+    return compressedBlocks.get();
+  }
+
+  public static long uncompressedBlocks() {
+    return uncompressedBlocks.get();
+  }
+
+  /**
+   * @return ratio of raw to written bytes, {@code 1.0} when nothing was written yet
+   */
+  public static double compressionRatio() {
+    long wire = wireBytes.get();
+    return wire == 0 ? 1.0 : (double) rawBytes.get() / wire;
+  }
+
+  public static void reset() {
+    rawBytes.set(0);
+    wireBytes.set(0);
+    compressedBlocks.set(0);
+    uncompressedBlocks.set(0);
+  }
+}
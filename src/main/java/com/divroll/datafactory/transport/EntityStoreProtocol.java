@@ -0,0 +1,308 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.transport;
+
+import com.divroll.datafactory.Constants;
+import com.divroll.datafactory.repositories.EntityStore;
+import com.divroll.datafactory.repositories.impl.ClientContext;
+import com.google.common.hash.Hashing;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Length-prefixed binary framing shared by the socket and shared memory transports of
+ * {@linkplain EntityStore}. Every frame is laid out as
+ *
+ * <pre>
+ * int   length     number of bytes following this field
+ * long  requestId  correlates responses with requests on a multiplexed connection
+ * byte  kind       {@code REQUEST}, {@code RESPONSE}, {@code ERROR} or {@code HANDSHAKE}
+ * short methodId   index of the {@linkplain EntityStore} method being called
+ * byte[] payload   call arguments, return value or thrown exception
+ * </pre>
+ *
+ * Payloads are Java serialized, with entities and queries written by {@linkplain CompactCodec}.
+ * Only classes of the packages {@linkplain EntityStore} calls are made of, and those listed in
+ * {@code datafactory.transport.whitelist}, are deserialized.
+ *
+ * Method ids are derived from the {@linkplain EntityStore} interface itself so client and server
+ * agree on them as long as they run the same version of the interface. The first frame each side
+ * sends on a connection is a {@code HANDSHAKE} carrying {@linkplain #INTERFACE_HASH}, a connection
+ * between different versions is refused before any call is made.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public final class EntityStoreProtocol {
+
+  public static final byte REQUEST = 0;
+  public static final byte RESPONSE = 1;
+  public static final byte ERROR = 2;
+  public static final byte HANDSHAKE = 3;
+
+  public static final int LENGTH_SIZE = 4;
+  public static final int HEADER_SIZE = 8 + 1 + 2;
+  public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+  private static final List<Method> METHODS;
+  private static final Map<Method, Short> METHOD_IDS = new HashMap<>();
+
+  /**
+   * Hash of the {@linkplain EntityStore} method signatures the method ids are assigned from.
+   */
+  public static final long INTERFACE_HASH;
+
+  private static final List<String> WHITELIST = Arrays.asList(
+      "java.lang.", "java.util.", "java.math.", "java.time.", "java.io.", "java.net.",
+      "java.rmi.", "com.divroll.datafactory.", "com.google.common.collect.", "io.vavr.",
+      "com.healthmarketscience.rmiio.", "jetbrains.exodus.");
+
+  static {
+    List<Method> methods = new ArrayList<>(Arrays.asList(EntityStore.class.getMethods()));
+    methods.sort(Comparator.comparing(Method::toGenericString));
+    METHODS = methods;
+    for (short i = 0; i < methods.size(); i++) {
+      METHOD_IDS.put(methods.get(i), i);
+    }
+    INTERFACE_HASH = Hashing.sha256().hashString(methods.stream()
+        .map(Method::toGenericString)
+        .collect(Collectors.joining("\n")), StandardCharsets.UTF_8).asLong();
+  }
+
+  private EntityStoreProtocol() {
+  }
+
+  public static short methodId(Method method) {
+    Short methodId = METHOD_IDS.get(method);
+    if (methodId == null) {
+      throw new IllegalArgumentException("Not an EntityStore method: " + method);
+    }
+    return methodId;
+  }
+
+  public static Method method(short methodId) {
+    if (methodId < 0 || methodId >= METHODS.size()) {
+      throw new IllegalArgumentException("Unknown EntityStore method id " + methodId);
+    }
+    return METHODS.get(methodId);
+  }
+
+  /**
+   * Encode a complete frame, including the length prefix, ready to be written.
+   */
+  public static ByteBuffer encode(long requestId, byte kind, short methodId, Object payload)
+      throws IOException {
+    byte[] bytes = serialize(payload);
+    ByteBuffer buffer = ByteBuffer.allocate(LENGTH_SIZE + HEADER_SIZE + bytes.length);
+    buffer.putInt(HEADER_SIZE + bytes.length);
+    buffer.putLong(requestId);
+    buffer.put(kind);
+    buffer.putShort(methodId);
+    buffer.put(bytes);
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Encode the {@code HANDSHAKE} frame opening a connection.
+   */
+  public static ByteBuffer handshake() throws IOException {
+    return encode(0, HANDSHAKE, (short) 0, INTERFACE_HASH);
+  }
+
+  /**
+   * Check that the first frame received on a connection is a {@code HANDSHAKE} from a peer using
+   * the same version of the {@linkplain EntityStore} interface.
+   *
+   * @throws IOException if it is not, the connection should be closed
+   */
+  public static void checkHandshake(Frame frame) throws IOException {
+    Object payload = frame.payload();
+    if (frame.kind() == ERROR && payload instanceof Throwable) {
+      throw new IOException("Handshake refused: " + ((Throwable) payload).getMessage());
+    }
+    if (frame.kind() != HANDSHAKE || !(payload instanceof Long)) {
+      throw new IOException("Expected a handshake, got a frame of kind " + frame.kind());
+    }
+    if ((Long) payload != INTERFACE_HASH) {
+      throw new IOException("EntityStore interface mismatch, peer has "
+          + Long.toHexString((Long) payload) + " and this side "
+          + Long.toHexString(INTERFACE_HASH));
+    }
+  }
+
+  /**
+   * Decode the frame body that follows the length prefix.
+   *
+   * @param body buffer positioned at the request id, limited to the end of the frame
+   */
+  public static Frame decode(ByteBuffer body) {
+    long requestId = body.getLong();
+    byte kind = body.get();
+    short methodId = body.getShort();
+    byte[] payload = new byte[body.remaining()];
+    body.get(payload);
+    return new Frame(requestId, kind, methodId, payload);
+  }
+
+  /**
+   * Execute a decoded request against the {@linkplain EntityStore} and encode the response frame,
+   * an {@code ERROR} frame carries the exception thrown by the store.
+   *
+   * @param client id of the connection the request came in on
+   */
+  public static ByteBuffer dispatch(EntityStore entityStore, String client, Frame request)
+      throws IOException {
+    Object result;
+    byte kind = RESPONSE;
+    ClientContext.enter(client);
+    try {
+      Object[] args = (Object[]) request.payload();
+      result = method(request.methodId()).invoke(entityStore, args);
+    } catch (InvocationTargetException e) {
+      result = e.getCause();
+      kind = ERROR;
+    } catch (Exception e) {
+      result = e;
+      kind = ERROR;
+    } finally {
+      ClientContext.exit();
+    }
+    try {
+      return encode(request.requestId(), kind, request.methodId(), result);
+    } catch (IOException e) {
+      return encode(request.requestId(), ERROR, request.methodId(),
+          new IOException("Unable to encode response: " + e.getMessage()));
+    }
+  }
+
+  public static byte[] serialize(Object object) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = CompactCodec.output(bytes)) {
+      out.writeObject(object);
+    }
+    return bytes.toByteArray();
+  }
+
+  public static Object deserialize(byte[] bytes) throws IOException {
+    try (ObjectInputStream in = new WhitelistObjectInputStream(new ByteArrayInputStream(bytes))) {
+      return in.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * @return whether instances of the class may be deserialized from a frame
+   */
+  static boolean isWhitelisted(String className) {
+    String name = className;
+    while (name.startsWith("[")) {
+      name = name.substring(1);
+    }
+    if (name.startsWith("L") && name.endsWith(";")) {
+      name = name.substring(1, name.length() - 1);
+    } else if (name.length() == 1) {
+      // Primitive array component
+      return true;
+    }
+    String allowed = name;
+    return WHITELIST.stream().anyMatch(allowed::startsWith)
+        || Arrays.stream(System.getProperty(Constants.DATAFACTORY_TRANSPORT_WHITELIST_ENVIRONMENT,
+            Constants.DATAFACTORY_TRANSPORT_WHITELIST_DEFAULT).split(","))
+        .map(String::trim)
+        .anyMatch(prefix -> !prefix.isEmpty() && allowed.startsWith(prefix));
+  }
+
+  /**
+   * Refuses to resolve classes that are not whitelisted, before any of their instances is read.
+   */
+  private static final class WhitelistObjectInputStream extends ObjectInputStream {
+    private WhitelistObjectInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+
+    @Override protected Class<?> resolveClass(ObjectStreamClass desc)
+        throws IOException, ClassNotFoundException {
+      if (!isWhitelisted(desc.getName())) {
+        throw new InvalidClassException(desc.getName(), "Not whitelisted for deserialization");
+      }
+      return super.resolveClass(desc);
+    }
+
+    @Override protected Class<?> resolveProxyClass(String[] interfaces)
+        throws IOException, ClassNotFoundException {
+      for (String name : interfaces) {
+        if (!isWhitelisted(name)) {
+          throw new InvalidClassException(name, "Not whitelisted for deserialization");
+        }
+      }
+      return super.resolveProxyClass(interfaces);
+    }
+  }
+
+  /**
+   * A decoded frame, the payload is deserialized on first access.
+   */
+  public static final class Frame {
+    private final long requestId;
+    private final byte kind;
+    private final short methodId;
+    private final byte[] bytes;
+
+    Frame(long requestId, byte kind, short methodId, byte[] bytes) {
+      this.requestId = requestId;
+      this.kind = kind;
+      this.methodId = methodId;
+      this.bytes = bytes;
+    }
+
+    public long requestId() {
+      return requestId;
+    }
+
+    public byte kind() {
+      return kind;
+    }
+
+    public short methodId() {
+      return methodId;
+    }
+
+    public Object payload() throws IOException {
+      return deserialize(bytes);
+    }
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.transport;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Ordered and volatile access to memory mapped files shared between processes, which
+ * {@linkplain MappedByteBuffer} does not provide. A value published with an ordered put is only
+ * seen by a volatile get once all the writes preceding the put are visible too.
+ * <p>
+ * Java 8 has no public fence, so {@linkplain #fence()} writes then reads a volatile field. No
+ * memory access may move after a volatile write that precedes it or before a volatile read that
+ * follows it, and a volatile write is never reordered with the volatile read after it, which
+ * makes the pair a full fence. HotSpot emits it as a locked instruction on x86 and a store-release
+ * followed by a load-acquire on ARM, so the ordering also holds for the other process mapping the
+ * file. Values are accessed at aligned offsets, which the hardware reads and writes atomically.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+final class MappedMemory {
+
+  private static volatile int fence;
+
+  private MappedMemory() {
+  }
+
+  static long getLongVolatile(ByteBuffer buffer, int index) {
+    long value = buffer.getLong(index);
+    fence();
+    return value;
+  }
+
+  static void putLongOrdered(ByteBuffer buffer, int index, long value) {
+    fence();
+    buffer.putLong(index, value);
+  }
+
+  static int getIntVolatile(ByteBuffer buffer, int index) {
+    int value = buffer.getInt(index);
+    fence();
+    return value;
+  }
+
+  static void putIntOrdered(ByteBuffer buffer, int index, int value) {
+    fence();
+    buffer.putInt(index, value);
+  }
+
+  private static int fence() {
+    fence = 1;
+    return fence;
+  }
+}
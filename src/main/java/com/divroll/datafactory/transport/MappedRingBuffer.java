@@ -0,0 +1,144 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.transport;
+
+import com.google.common.base.Preconditions;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Single producer, single consumer ring buffer of length-prefixed frames over a region of a
+ * memory mapped file, the producer and the consumer may live in different processes. The region
+ * starts with the consumer position and the producer position, each on its own cache line,
+ * followed by {@code capacity} bytes of data. Positions only grow, a frame may wrap around the
+ * end of the data.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+final class MappedRingBuffer {
+
+  static final int HEADER_SIZE = 128;
+  private static final int HEAD_OFFSET = 0;
+  private static final int TAIL_OFFSET = 64;
+
+  private final MappedByteBuffer file;
+  private final ByteBuffer data;
+  private final int headIndex;
+  private final int tailIndex;
+  private final int capacity;
+  private final int mask;
+
+  MappedRingBuffer(MappedByteBuffer file, int offset, int capacity) {
+    Preconditions.checkArgument(Integer.bitCount(capacity) == 1,
+        "capacity should be a power of two");
+    this.file = file;
+    this.capacity = capacity;
+    this.mask = capacity - 1;
+    this.headIndex = offset + HEAD_OFFSET;
+    this.tailIndex = offset + TAIL_OFFSET;
+    ByteBuffer region = file.duplicate();
+    region.limit(offset + HEADER_SIZE + capacity);
+    region.position(offset + HEADER_SIZE);
+    this.data = region.slice();
+  }
+
+  /**
+   * @return number of bytes a ring of the given capacity occupies in the file
+   */
+  static int size(int capacity) {
+    return HEADER_SIZE + capacity;
+  }
+
+  int capacity() {
+    return capacity;
+  }
+
+  /**
+   * Append a frame, including its length prefix, if there is room for it.
+   *
+   * @return {@code false} if the ring is too full to take the frame now
+   */
+  boolean offer(ByteBuffer frame) {
+    int length = frame.remaining();
+    Preconditions.checkArgument(length <= capacity,
+        "Frame of " + length + " bytes exceeds the ring capacity of " + capacity);
+    long tail = MappedMemory.getLongVolatile(file, tailIndex);
+    long head = MappedMemory.getLongVolatile(file, headIndex);
+    if (tail + length - head > capacity) {
+      return false;
+    }
+    write(tail, frame);
+    MappedMemory.putLongOrdered(file, tailIndex, tail + length);
+    return true;
+  }
+
+  /**
+   * Take the next frame.
+   *
+   * @return the frame body following the length prefix, {@code null} if the ring is empty
+   */
+  ByteBuffer poll() {
+    long head = MappedMemory.getLongVolatile(file, headIndex);
+    long tail = MappedMemory.getLongVolatile(file, tailIndex);
+    if (head == tail) {
+      return null;
+    }
+    ByteBuffer length = ByteBuffer.allocate(EntityStoreProtocol.LENGTH_SIZE);
+    read(head, length);
+    int bodyLength = length.getInt(0);
+    if (bodyLength < 0 || bodyLength > tail - head - EntityStoreProtocol.LENGTH_SIZE) {
+      throw new IllegalStateException("Corrupted ring buffer, frame length " + bodyLength);
+    }
+    ByteBuffer body = ByteBuffer.allocate(bodyLength);
+    read(head + EntityStoreProtocol.LENGTH_SIZE, body);
+    MappedMemory.putLongOrdered(file, headIndex,
+        head + EntityStoreProtocol.LENGTH_SIZE + bodyLength);
+    body.flip();
+    return body;
+  }
+
+  private void write(long position, ByteBuffer source) {
+    ByteBuffer target = data.duplicate();
+    int index = (int) (position & mask);
+    int first = Math.min(source.remaining(), capacity - index);
+    ByteBuffer part = source.duplicate();
+    part.limit(part.position() + first);
+    target.position(index);
+    target.put(part);
+    source.position(source.position() + first);
+    if (source.hasRemaining()) {
+      target.position(0);
+      target.put(source);
+    }
+  }
+
+  private void read(long position, ByteBuffer target) {
+    ByteBuffer source = data.duplicate();
+    int index = (int) (position & mask);
+    int first = Math.min(target.remaining(), capacity - index);
+    source.position(index);
+    source.limit(index + first);
+    target.put(source);
+    if (target.hasRemaining()) {
+      source.clear();
+      source.limit(target.remaining());
+      target.put(source);
+    }
+  }
+}
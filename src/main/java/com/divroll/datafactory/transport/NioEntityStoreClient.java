@@ -0,0 +1,269 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.transport;
+
+import com.divroll.datafactory.Constants;
+import com.divroll.datafactory.repositories.EntityStore;
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.divroll.datafactory.transport.EntityStoreProtocol.ERROR;
+import static com.divroll.datafactory.transport.EntityStoreProtocol.HEADER_SIZE;
+import static com.divroll.datafactory.transport.EntityStoreProtocol.LENGTH_SIZE;
+import static com.divroll.datafactory.transport.EntityStoreProtocol.MAX_FRAME_SIZE;
+import static com.divroll.datafactory.transport.EntityStoreProtocol.REQUEST;
+
+/**
+ * Client of the {@linkplain NioEntityStoreServer}. All calls made through
+ * {@linkplain #getEntityStore()} share a single connection, each request is tagged with an id
+ * and any number of them may be outstanding at a time. The connection is opened on first use
+ * and re-opened on the next call after it was lost, a server built against another version of
+ * {@linkplain EntityStore} refuses it at the handshake. A call that gets no response within the
+ * timeout, {@code datafactory.transport.timeout} milliseconds by default, fails with a
+ * {@linkplain RemoteException}.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class NioEntityStoreClient implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(NioEntityStoreClient.class);
+
+  private final String host;
+  private final int port;
+  private final long timeout;
+  private final EntityStore entityStore;
+  private final AtomicLong requestIds = new AtomicLong();
+
+  private volatile Connection connection;
+
+  public NioEntityStoreClient(String host, int port) {
+    this(host, port, Long.valueOf(System.getProperty(
+        Constants.DATAFACTORY_TRANSPORT_TIMEOUT_ENVIRONMENT,
+        Constants.DATAFACTORY_TRANSPORT_TIMEOUT_DEFAULT)));
+  }
+
+  /**
+   * @param timeout milliseconds to wait for the response of a call
+   */
+  public NioEntityStoreClient(String host, int port, long timeout) {
+    this.host = host;
+    this.port = port;
+    this.timeout = timeout;
+    this.entityStore = (EntityStore) Proxy.newProxyInstance(EntityStore.class.getClassLoader(),
+        new Class[] {EntityStore.class}, (proxy, method, args) -> {
+          if (method.getDeclaringClass() == Object.class) {
+            return invokeObjectMethod(proxy, method, args);
+          }
+          return invoke(method, args);
+        });
+  }
+
+  public EntityStore getEntityStore() {
+    return entityStore;
+  }
+
+  @Override public synchronized void close() throws IOException {
+    if (connection != null) {
+      connection.channel.close();
+      connection = null;
+    }
+  }
+
+  private Object invoke(Method method, Object[] args) throws Throwable {
+    long requestId = requestIds.incrementAndGet();
+    CompletableFuture<EntityStoreProtocol.Frame> future = new CompletableFuture<>();
+    Connection current = null;
+    try {
+      ByteBuffer frame = EntityStoreProtocol.encode(requestId, REQUEST,
+          EntityStoreProtocol.methodId(method), args != null ? args : new Object[0]);
+      current = connect();
+      // Registered with the connection it is written to, so only its loss fails the call
+      current.register(requestId, future);
+      synchronized (current.writeLock) {
+        try {
+          while (frame.hasRemaining()) {
+            current.channel.write(frame);
+          }
+        } catch (IOException e) {
+          current.channel.close();
+          throw e;
+        }
+      }
+      EntityStoreProtocol.Frame response = future.get(timeout, TimeUnit.MILLISECONDS);
+      Object payload = response.payload();
+      if (response.kind() == ERROR) {
+        throw (Throwable) payload;
+      }
+      return payload;
+    } catch (RemoteException e) {
+      throw e;
+    } catch (ExecutionException e) {
+      throw new RemoteException("EntityStore call failed", e.getCause());
+    } catch (TimeoutException e) {
+      throw new RemoteException("EntityStore call timed out after " + timeout + " ms");
+    } catch (IOException e) {
+      throw new RemoteException("EntityStore call failed", e);
+    } finally {
+      if (current != null) {
+        current.pending.remove(requestId);
+      }
+    }
+  }
+
+  private synchronized Connection connect() throws IOException {
+    if (connection == null || !connection.channel.isOpen()) {
+      SocketChannel socketChannel;
+      try {
+        socketChannel = SocketChannel.open(new InetSocketAddress(host, port));
+        socketChannel.socket().setTcpNoDelay(true);
+      } catch (IOException e) {
+        throw new ConnectException("Unable to connect to " + host + ":" + port, e);
+      }
+      Connection opened = new Connection(socketChannel);
+      Thread reader = new Thread(() -> read(opened), "datafactory-nio-client-" + port);
+      reader.setDaemon(true);
+      try {
+        ByteBuffer handshake = EntityStoreProtocol.handshake();
+        while (handshake.hasRemaining()) {
+          socketChannel.write(handshake);
+        }
+        reader.start();
+        opened.handshake.get(timeout, TimeUnit.MILLISECONDS);
+      } catch (IOException | ExecutionException | TimeoutException e) {
+        socketChannel.close();
+        Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+        throw new ConnectException("Unable to connect to " + host + ":" + port + ": "
+            + (cause instanceof TimeoutException
+            ? "handshake timed out after " + timeout + " ms" : cause.getMessage()));
+      } catch (InterruptedException e) {
+        socketChannel.close();
+        Thread.currentThread().interrupt();
+        throw new ConnectException("Interrupted connecting to " + host + ":" + port);
+      }
+      connection = opened;
+    }
+    return connection;
+  }
+
+  private void read(Connection opened) {
+    ByteBuffer length = ByteBuffer.allocate(LENGTH_SIZE);
+    try {
+      while (true) {
+        length.clear();
+        readFully(opened.channel, length);
+        int frameLength = length.getInt(0);
+        if (frameLength < HEADER_SIZE || frameLength > MAX_FRAME_SIZE) {
+          throw new IOException("Invalid frame length " + frameLength);
+        }
+        ByteBuffer body = ByteBuffer.allocate(frameLength);
+        readFully(opened.channel, body);
+        body.flip();
+        EntityStoreProtocol.Frame frame = EntityStoreProtocol.decode(body);
+        if (!opened.handshake.isDone()) {
+          EntityStoreProtocol.checkHandshake(frame);
+          opened.handshake.complete(null);
+          continue;
+        }
+        CompletableFuture<EntityStoreProtocol.Frame> future =
+            opened.pending.get(frame.requestId());
+        if (future != null) {
+          future.complete(frame);
+        }
+      }
+    } catch (IOException e) {
+      LOG.warn("Connection to " + host + ":" + port + " lost: " + e.getMessage());
+      try {
+        opened.channel.close();
+      } catch (IOException ignore) {
+      }
+      opened.handshake.completeExceptionally(e);
+      opened.fail(e);
+    }
+  }
+
+  /**
+   * A socket to the server and the requests waiting for a response on it.
+   */
+  private static final class Connection {
+    private final SocketChannel channel;
+    private final Map<Long, CompletableFuture<EntityStoreProtocol.Frame>> pending =
+        new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private final CompletableFuture<Void> handshake = new CompletableFuture<>();
+    private IOException failure;
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    /**
+     * Wait for the response of a request about to be written.
+     *
+     * @throws ConnectException if the connection is already lost, the request was not sent
+     */
+    synchronized void register(long requestId, CompletableFuture<EntityStoreProtocol.Frame> future)
+        throws ConnectException {
+      if (failure != null) {
+        throw new ConnectException("Connection lost: " + failure.getMessage());
+      }
+      pending.put(requestId, future);
+    }
+
+    synchronized void fail(IOException cause) {
+      failure = cause;
+      pending.values().forEach(future -> future.completeExceptionally(cause));
+    }
+  }
+
+  private static void readFully(SocketChannel socketChannel, ByteBuffer buffer)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (socketChannel.read(buffer) < 0) {
+        throw new IOException("Connection closed by peer");
+      }
+    }
+  }
+
+  private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+    switch (method.getName()) {
+      case "equals":
+        return proxy == args[0];
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      default:
+        return "NioEntityStoreClient[" + host + ":" + port + "]";
+    }
+  }
+}
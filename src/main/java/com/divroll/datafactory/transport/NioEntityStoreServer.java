@@ -0,0 +1,316 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.transport;
+
+import com.divroll.datafactory.Constants;
+import com.divroll.datafactory.exceptions.RequestRejectedException;
+import com.divroll.datafactory.repositories.EntityStore;
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.divroll.datafactory.transport.EntityStoreProtocol.HEADER_SIZE;
+import static com.divroll.datafactory.transport.EntityStoreProtocol.LENGTH_SIZE;
+import static com.divroll.datafactory.transport.EntityStoreProtocol.MAX_FRAME_SIZE;
+
+/**
+ * Serves an {@linkplain EntityStore} over non-blocking sockets using the
+ * {@linkplain EntityStoreProtocol} framing. A single selector thread reads and writes all
+ * connections while requests are executed on the worker pool, so any number of requests can be
+ * outstanding on one connection and responses are sent back as soon as they are ready.
+ * Connections of clients built against another version of {@linkplain EntityStore} are refused
+ * at the handshake.
+ *
+ * <p>The server listens on {@code host} only, by default the RMI host name
+ * ({@code java.rmi.server.hostname}) or the loopback address when unset.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class NioEntityStoreServer implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(NioEntityStoreServer.class);
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  private final EntityStore entityStore;
+  private final String host;
+  private final int port;
+  private final ExecutorService workers;
+  private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+  private Selector selector;
+  private ServerSocketChannel serverChannel;
+  private Thread selectorThread;
+  private volatile boolean running;
+
+  public NioEntityStoreServer(EntityStore entityStore, int port, ExecutorService workers) {
+    this(entityStore, System.getProperty(Constants.JAVA_RMI_HOST_ENVIRONMENT, "localhost"), port,
+        workers);
+  }
+
+  /**
+   * @param host name or address of the interface to listen on
+   */
+  public NioEntityStoreServer(EntityStore entityStore, String host, int port,
+      ExecutorService workers) {
+    this.entityStore = entityStore;
+    this.host = host;
+    this.port = port;
+    this.workers = workers;
+  }
+
+  public synchronized void start() throws IOException {
+    if (running) {
+      return;
+    }
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.configureBlocking(false);
+    serverChannel.bind(new InetSocketAddress(host, port));
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    running = true;
+    selectorThread = new Thread(this::run, "datafactory-nio-" + port);
+    selectorThread.setDaemon(true);
+    selectorThread.start();
+    LOG.info("EntityStore NIO transport listening on " + host + ":" + port);
+  }
+
+  @Override public synchronized void close() throws IOException {
+    if (!running) {
+      return;
+    }
+    running = false;
+    selector.wakeup();
+    try {
+      selectorThread.join(5000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (SelectionKey key : selector.keys()) {
+      key.channel().close();
+    }
+    selector.close();
+    workers.shutdown();
+  }
+
+  public String getHost() {
+    return host;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  private void run() {
+    while (running) {
+      try {
+        selector.select();
+        Connection connection;
+        while ((connection = pendingWrites.poll()) != null) {
+          if (connection.key.isValid()) {
+            connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+          }
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          try {
+            if (!key.isValid()) {
+              continue;
+            }
+            if (key.isAcceptable()) {
+              accept();
+            } else {
+              if (key.isReadable()) {
+                ((Connection) key.attachment()).read();
+              }
+              if (key.isValid() && key.isWritable()) {
+                ((Connection) key.attachment()).write();
+              }
+            }
+          } catch (IOException e) {
+            LOG.warn("Closing connection: " + e.getMessage());
+            key.cancel();
+            key.channel().close();
+          }
+        }
+      } catch (IOException e) {
+        LOG.error("NIO transport selector failure: " + e.getMessage());
+      }
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = serverChannel.accept();
+    if (channel == null) {
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    Connection connection = new Connection(channel);
+    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+  }
+
+  private class Connection {
+    private final SocketChannel channel;
+    private final String client;
+    private final Queue<ByteBuffer> writes = new ConcurrentLinkedQueue<>();
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private SelectionKey key;
+    private boolean handshaken;
+    private volatile boolean refused;
+
+    Connection(SocketChannel channel) throws IOException {
+      this.channel = channel;
+      this.client = "nio:" + channel.getRemoteAddress();
+    }
+
+    void read() throws IOException {
+      if (refused) {
+        return;
+      }
+      if (channel.read(readBuffer) < 0) {
+        throw new IOException("Connection closed by peer");
+      }
+      readBuffer.flip();
+      while (readBuffer.remaining() >= LENGTH_SIZE) {
+        int length = readBuffer.getInt(readBuffer.position());
+        if (length < HEADER_SIZE || length > MAX_FRAME_SIZE) {
+          throw new IOException("Invalid frame length " + length);
+        }
+        if (readBuffer.remaining() < LENGTH_SIZE + length) {
+          if (readBuffer.capacity() < LENGTH_SIZE + length) {
+            ByteBuffer larger = ByteBuffer.allocate(LENGTH_SIZE + length);
+            larger.put(readBuffer);
+            readBuffer = larger;
+            return;
+          }
+          break;
+        }
+        readBuffer.position(readBuffer.position() + LENGTH_SIZE);
+        ByteBuffer body = readBuffer.slice();
+        body.limit(length);
+        readBuffer.position(readBuffer.position() + length);
+        EntityStoreProtocol.Frame frame = EntityStoreProtocol.decode(body);
+        if (handshaken) {
+          submit(frame);
+        } else if (!handshake(frame)) {
+          return;
+        }
+      }
+      readBuffer.compact();
+    }
+
+    /**
+     * Answer the handshake of the client, or refuse it and close the connection once the error
+     * is written.
+     *
+     * @return whether the handshake was accepted
+     */
+    boolean handshake(EntityStoreProtocol.Frame frame) throws IOException {
+      try {
+        EntityStoreProtocol.checkHandshake(frame);
+      } catch (IOException e) {
+        LOG.warn("Refusing connection " + client + ": " + e.getMessage());
+        refused = true;
+        respond(EntityStoreProtocol.encode(frame.requestId(), EntityStoreProtocol.ERROR,
+            frame.methodId(), e));
+        return false;
+      }
+      handshaken = true;
+      respond(EntityStoreProtocol.handshake());
+      return true;
+    }
+
+    void write() throws IOException {
+      ByteBuffer buffer;
+      while ((buffer = writes.peek()) != null) {
+        channel.write(buffer);
+        if (buffer.hasRemaining()) {
+          return;
+        }
+        writes.poll();
+      }
+      if (refused) {
+        throw new IOException("Connection " + client + " refused");
+      }
+      key.interestOps(SelectionKey.OP_READ);
+      if (!writes.isEmpty()) {
+        // A response was queued after the queue was drained
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      }
+    }
+
+    void submit(EntityStoreProtocol.Frame request) {
+      try {
+        workers.execute(() -> {
+          try {
+            respond(EntityStoreProtocol.dispatch(entityStore, client, request));
+          } catch (IOException e) {
+            LOG.error("Unable to encode response: " + e.getMessage());
+            fail(request, new IOException("Unable to encode response: " + e.getMessage()));
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        LOG.warn("NIO transport request rejected: " + e.getMessage());
+        fail(request, new RequestRejectedException("nio", "worker pool is saturated"));
+      }
+    }
+
+    /**
+     * Answer the request with an {@code ERROR} frame so the caller does not wait for a response
+     * that will never come. Should even that fail the connection is closed, which fails every
+     * request outstanding on it.
+     */
+    void fail(EntityStoreProtocol.Frame request, Exception error) {
+      try {
+        respond(EntityStoreProtocol.encode(request.requestId(), EntityStoreProtocol.ERROR,
+            request.methodId(), error));
+      } catch (IOException e) {
+        LOG.error("Unable to encode error response: " + e.getMessage());
+        close();
+      }
+    }
+
+    void respond(ByteBuffer response) {
+      writes.add(response);
+      pendingWrites.add(this);
+      selector.wakeup();
+    }
+
+    void close() {
+      try {
+        channel.close();
+      } catch (IOException ignore) {
+      }
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Memory mapped file connecting one client process to the {@linkplain
+ * SharedMemoryEntityStoreServer}. The file holds a header followed by the request ring, written
+ * by the client, and the response ring, written by the server:
+ *
+ * <pre>
+ * int  magic       set last by the client once the file is initialized
+ * int  capacity    capacity of each ring
+ * int  clientState {@code CLOSED} once the client is gone
+ * int  serverState {@code ATTACHED} once the server serves the channel, then {@code CLOSED}
+ * long heartbeat   last time the server was alive, in milliseconds
+ * long protocol    {@linkplain EntityStoreProtocol#INTERFACE_HASH} of the client, a server of
+ *                  another version refuses the channel by setting serverState {@code CLOSED}
+ * </pre>
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+final class SharedMemoryChannel {
+
+  static final String SUFFIX = ".ring";
+  static final int ATTACHED = 1;
+  static final int CLOSED = 2;
+
+  private static final int MAGIC = 0x44465348;
+  private static final int HEADER_SIZE = 128;
+  private static final int MAGIC_OFFSET = 0;
+  private static final int CAPACITY_OFFSET = 4;
+  private static final int CLIENT_STATE_OFFSET = 8;
+  private static final int SERVER_STATE_OFFSET = 12;
+  private static final int HEARTBEAT_OFFSET = 16;
+  private static final int PROTOCOL_OFFSET = 24;
+
+  private final File file;
+  private final MappedByteBuffer buffer;
+  private final MappedRingBuffer requests;
+  private final MappedRingBuffer responses;
+
+  private SharedMemoryChannel(File file, MappedByteBuffer buffer, int capacity) {
+    this.file = file;
+    this.buffer = buffer;
+    this.requests = new MappedRingBuffer(buffer, HEADER_SIZE, capacity);
+    this.responses =
+        new MappedRingBuffer(buffer, HEADER_SIZE + MappedRingBuffer.size(capacity), capacity);
+  }
+
+  /**
+   * Create the file of a new channel, called by the client.
+   */
+  static SharedMemoryChannel create(File file, int capacity) throws IOException {
+    MappedByteBuffer buffer = map(file, HEADER_SIZE + 2 * MappedRingBuffer.size(capacity));
+    buffer.putInt(CAPACITY_OFFSET, capacity);
+    buffer.putLong(PROTOCOL_OFFSET, EntityStoreProtocol.INTERFACE_HASH);
+    SharedMemoryChannel channel = new SharedMemoryChannel(file, buffer, capacity);
+    MappedMemory.putIntOrdered(channel.buffer, MAGIC_OFFSET, MAGIC);
+    return channel;
+  }
+
+  /**
+   * Open the file of a channel created by a client, called by the server.
+   *
+   * @return {@code null} if the client has not finished initializing the file
+   */
+  static SharedMemoryChannel open(File file) throws IOException {
+    if (file.length() < HEADER_SIZE) {
+      return null;
+    }
+    MappedByteBuffer header = map(file, HEADER_SIZE);
+    if (MappedMemory.getIntVolatile(header, MAGIC_OFFSET) != MAGIC) {
+      return null;
+    }
+    int capacity = header.getInt(CAPACITY_OFFSET);
+    return new SharedMemoryChannel(file,
+        map(file, HEADER_SIZE + 2 * MappedRingBuffer.size(capacity)), capacity);
+  }
+
+  private static MappedByteBuffer map(File file, int size) throws IOException {
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+      return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  File file() {
+    return file;
+  }
+
+  MappedRingBuffer requests() {
+    return requests;
+  }
+
+  MappedRingBuffer responses() {
+    return responses;
+  }
+
+  int clientState() {
+    return MappedMemory.getIntVolatile(buffer, CLIENT_STATE_OFFSET);
+  }
+
+  void clientState(int state) {
+    MappedMemory.putIntOrdered(buffer, CLIENT_STATE_OFFSET, state);
+  }
+
+  int serverState() {
+    return MappedMemory.getIntVolatile(buffer, SERVER_STATE_OFFSET);
+  }
+
+  void serverState(int state) {
+    MappedMemory.putIntOrdered(buffer, SERVER_STATE_OFFSET, state);
+  }
+
+  long protocol() {
+    return buffer.getLong(PROTOCOL_OFFSET);
+  }
+
+  long heartbeat() {
+    return MappedMemory.getLongVolatile(buffer, HEARTBEAT_OFFSET);
+  }
+
+  void heartbeat(long time) {
+    MappedMemory.putLongOrdered(buffer, HEARTBEAT_OFFSET, time);
+  }
+
+  /**
+   * Wait for the other side, spinning first for latency then backing off to parking so an idle
+   * channel does not burn a core.
+   *
+   * @param idleCount number of consecutive times nothing was available
+   */
+  static void idle(int idleCount) {
+    if (idleCount < 100) {
+      return;
+    } else if (idleCount < 200) {
+      Thread.yield();
+    } else {
+      LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(idleCount < 1000 ? 20 : 200));
+    }
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.transport;
+
+import com.divroll.datafactory.Constants;
+import com.divroll.datafactory.repositories.EntityStore;
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.divroll.datafactory.transport.EntityStoreProtocol.ERROR;
+import static com.divroll.datafactory.transport.EntityStoreProtocol.REQUEST;
+
+/**
+ * Client of the {@linkplain SharedMemoryEntityStoreServer} for processes running on the same host
+ * as the server. The client creates its own {@linkplain SharedMemoryChannel} on first use, calls
+ * made through {@linkplain #getEntityStore()} are multiplexed over it like with the
+ * {@linkplain NioEntityStoreClient}. When the server stops heart beating the pending calls fail
+ * and the next call creates a new channel. A call that gets no response within the timeout,
+ * {@code datafactory.transport.timeout} milliseconds by default, fails with a
+ * {@linkplain RemoteException}.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class SharedMemoryEntityStoreClient implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SharedMemoryEntityStoreClient.class);
+  private static final long CONNECT_TIMEOUT = 5000L;
+  private static final long HEARTBEAT_TIMEOUT =
+      20 * SharedMemoryEntityStoreServer.HEARTBEAT_INTERVAL;
+
+  private final File directory;
+  private final int capacity;
+  private final long timeout;
+  private final EntityStore entityStore;
+  private final AtomicLong requestIds = new AtomicLong();
+  // Requests waiting for a response, by the channel they were written to
+  private final Map<SharedMemoryChannel, Map<Long, CompletableFuture<EntityStoreProtocol.Frame>>>
+      pending = new ConcurrentHashMap<>();
+  private final Object writeLock = new Object();
+
+  private volatile SharedMemoryChannel channel;
+
+  /**
+   * @param directory directory the server scans for channels
+   * @param capacity  capacity in bytes of each ring of the channel, a power of two
+   */
+  public SharedMemoryEntityStoreClient(File directory, int capacity) {
+    this(directory, capacity, Long.valueOf(System.getProperty(
+        Constants.DATAFACTORY_TRANSPORT_TIMEOUT_ENVIRONMENT,
+        Constants.DATAFACTORY_TRANSPORT_TIMEOUT_DEFAULT)));
+  }
+
+  /**
+   * @param directory directory the server scans for channels
+   * @param capacity  capacity in bytes of each ring of the channel, a power of two
+   * @param timeout   milliseconds to wait for the response of a call
+   */
+  public SharedMemoryEntityStoreClient(File directory, int capacity, long timeout) {
+    this.directory = directory;
+    this.capacity = capacity;
+    this.timeout = timeout;
+    this.entityStore = (EntityStore) Proxy.newProxyInstance(EntityStore.class.getClassLoader(),
+        new Class[] {EntityStore.class}, (proxy, method, args) -> {
+          if (method.getDeclaringClass() == Object.class) {
+            return invokeObjectMethod(proxy, method, args);
+          }
+          return invoke(method, args);
+        });
+  }
+
+  public EntityStore getEntityStore() {
+    return entityStore;
+  }
+
+  @Override public synchronized void close() {
+    if (channel != null) {
+      disconnect(channel, new ConnectException("Client closed"));
+    }
+  }
+
+  private Object invoke(Method method, Object[] args) throws Throwable {
+    long requestId = requestIds.incrementAndGet();
+    CompletableFuture<EntityStoreProtocol.Frame> future = new CompletableFuture<>();
+    Map<Long, CompletableFuture<EntityStoreProtocol.Frame>> requests = null;
+    try {
+      ByteBuffer frame = EntityStoreProtocol.encode(requestId, REQUEST,
+          EntityStoreProtocol.methodId(method), args != null ? args : new Object[0]);
+      if (frame.remaining() > capacity) {
+        throw new RemoteException("Request of " + frame.remaining()
+            + " bytes exceeds the shared memory ring capacity of " + capacity);
+      }
+      SharedMemoryChannel sharedMemoryChannel = connect();
+      requests = register(sharedMemoryChannel, requestId, future);
+      synchronized (writeLock) {
+        int idleCount = 0;
+        while (!sharedMemoryChannel.requests().offer(frame)) {
+          if (channel != sharedMemoryChannel) {
+            throw new ConnectException("Shared memory channel closed");
+          }
+          SharedMemoryChannel.idle(idleCount++);
+        }
+      }
+      EntityStoreProtocol.Frame response = future.get(timeout, TimeUnit.MILLISECONDS);
+      Object payload = response.payload();
+      if (response.kind() == ERROR) {
+        throw (Throwable) payload;
+      }
+      return payload;
+    } catch (RemoteException e) {
+      throw e;
+    } catch (ExecutionException e) {
+      throw new RemoteException("EntityStore call failed", e.getCause());
+    } catch (TimeoutException e) {
+      throw new RemoteException("EntityStore call timed out after " + timeout + " ms");
+    } catch (IOException e) {
+      throw new RemoteException("EntityStore call failed", e);
+    } finally {
+      if (requests != null) {
+        requests.remove(requestId);
+      }
+    }
+  }
+
+  /**
+   * Wait for the response of a request about to be written to the channel, so only the loss of
+   * that channel fails the call.
+   *
+   * @return the requests pending on the channel
+   * @throws ConnectException if the channel is already closed, the request was not sent
+   */
+  private synchronized Map<Long, CompletableFuture<EntityStoreProtocol.Frame>> register(
+      SharedMemoryChannel sharedMemoryChannel, long requestId,
+      CompletableFuture<EntityStoreProtocol.Frame> future) throws ConnectException {
+    Map<Long, CompletableFuture<EntityStoreProtocol.Frame>> requests =
+        pending.get(sharedMemoryChannel);
+    if (channel != sharedMemoryChannel || requests == null) {
+      throw new ConnectException("Shared memory channel closed");
+    }
+    requests.put(requestId, future);
+    return requests;
+  }
+
+  private synchronized SharedMemoryChannel connect() throws IOException {
+    if (channel == null) {
+      if (!directory.isDirectory()) {
+        throw new ConnectException("No shared memory server at " + directory);
+      }
+      File file = new File(directory, UUID.randomUUID() + SharedMemoryChannel.SUFFIX);
+      file.deleteOnExit();
+      SharedMemoryChannel sharedMemoryChannel = SharedMemoryChannel.create(file, capacity);
+      long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+      int idleCount = 0;
+      while (sharedMemoryChannel.serverState() != SharedMemoryChannel.ATTACHED) {
+        if (sharedMemoryChannel.serverState() == SharedMemoryChannel.CLOSED) {
+          sharedMemoryChannel.clientState(SharedMemoryChannel.CLOSED);
+          file.delete();
+          throw new ConnectException("Shared memory server at " + directory
+              + " refused " + file + ", EntityStore interface mismatch");
+        }
+        if (System.currentTimeMillis() > deadline) {
+          sharedMemoryChannel.clientState(SharedMemoryChannel.CLOSED);
+          file.delete();
+          throw new ConnectException("No shared memory server picked up " + file);
+        }
+        SharedMemoryChannel.idle(idleCount++);
+      }
+      pending.put(sharedMemoryChannel, new ConcurrentHashMap<>());
+      channel = sharedMemoryChannel;
+      Thread reader = new Thread(() -> read(sharedMemoryChannel),
+          "datafactory-shm-client-" + file.getName());
+      reader.setDaemon(true);
+      reader.start();
+    }
+    return channel;
+  }
+
+  private void read(SharedMemoryChannel sharedMemoryChannel) {
+    Map<Long, CompletableFuture<EntityStoreProtocol.Frame>> requests =
+        pending.get(sharedMemoryChannel);
+    int idleCount = 0;
+    while (channel == sharedMemoryChannel) {
+      ByteBuffer body = sharedMemoryChannel.responses().poll();
+      if (body != null) {
+        idleCount = 0;
+        EntityStoreProtocol.Frame frame = EntityStoreProtocol.decode(body);
+        CompletableFuture<EntityStoreProtocol.Frame> future = requests.get(frame.requestId());
+        if (future != null) {
+          future.complete(frame);
+        }
+        continue;
+      }
+      if (sharedMemoryChannel.serverState() == SharedMemoryChannel.CLOSED
+          || System.currentTimeMillis() - sharedMemoryChannel.heartbeat() > HEARTBEAT_TIMEOUT) {
+        LOG.warn("Shared memory server at " + directory + " is gone");
+        disconnect(sharedMemoryChannel, new ConnectException("Shared memory server is gone"));
+        return;
+      }
+      SharedMemoryChannel.idle(idleCount++);
+    }
+  }
+
+  private synchronized void disconnect(SharedMemoryChannel sharedMemoryChannel,
+      IOException cause) {
+    if (channel == sharedMemoryChannel) {
+      channel = null;
+      sharedMemoryChannel.clientState(SharedMemoryChannel.CLOSED);
+      if (sharedMemoryChannel.serverState() != SharedMemoryChannel.ATTACHED) {
+        sharedMemoryChannel.file().delete();
+      }
+      pending.remove(sharedMemoryChannel).values()
+          .forEach(future -> future.completeExceptionally(cause));
+    }
+  }
+
+  private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+    switch (method.getName()) {
+      case "equals":
+        return proxy == args[0];
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      default:
+        return "SharedMemoryEntityStoreClient[" + directory + "]";
+    }
+  }
+}
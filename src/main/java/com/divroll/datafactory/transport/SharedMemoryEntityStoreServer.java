@@ -0,0 +1,204 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.transport;
+
+import com.divroll.datafactory.repositories.EntityStore;
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Serves {@linkplain EntityStore} requests of clients running on the same host through memory
+ * mapped files, skipping the loopback network stack. Clients create their
+ * {@linkplain SharedMemoryChannel} in {@code directory}, the server picks new channels up, polls
+ * their request rings from one thread per channel and executes the requests on {@code workers}.
+ * Frames are the same as the ones of the {@linkplain NioEntityStoreServer}, see
+ * {@linkplain EntityStoreProtocol}, and channels of clients built against another version of
+ * {@linkplain EntityStore} are refused.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class SharedMemoryEntityStoreServer implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SharedMemoryEntityStoreServer.class);
+  static final long HEARTBEAT_INTERVAL = 100L;
+
+  private final EntityStore entityStore;
+  private final File directory;
+  private final ExecutorService workers;
+  private final Map<File, SharedMemoryChannel> channels = new ConcurrentHashMap<>();
+
+  private volatile boolean running;
+  private Thread scanner;
+
+  public SharedMemoryEntityStoreServer(EntityStore entityStore, File directory,
+      ExecutorService workers) {
+    this.entityStore = entityStore;
+    this.directory = directory;
+    this.workers = workers;
+  }
+
+  public synchronized void start() throws IOException {
+    if (running) {
+      return;
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create directory " + directory);
+    }
+    running = true;
+    scanner = new Thread(this::scan, "datafactory-shm-scanner");
+    scanner.setDaemon(true);
+    scanner.start();
+  }
+
+  @Override public synchronized void close() {
+    running = false;
+    if (scanner != null) {
+      scanner.interrupt();
+      scanner = null;
+    }
+    channels.values().forEach(channel -> channel.serverState(SharedMemoryChannel.CLOSED));
+    channels.clear();
+    workers.shutdown();
+  }
+
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * @return number of clients currently connected
+   */
+  public int getChannelCount() {
+    return channels.size();
+  }
+
+  private void scan() {
+    while (running) {
+      File[] files = directory.listFiles((dir, name) -> name.endsWith(SharedMemoryChannel.SUFFIX));
+      if (files != null) {
+        for (File file : files) {
+          if (!channels.containsKey(file)) {
+            attach(file);
+          }
+        }
+      }
+      long now = System.currentTimeMillis();
+      channels.values().forEach(channel -> channel.heartbeat(now));
+      try {
+        Thread.sleep(HEARTBEAT_INTERVAL / 4);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  private void attach(File file) {
+    SharedMemoryChannel channel;
+    try {
+      channel = SharedMemoryChannel.open(file);
+    } catch (IOException e) {
+      LOG.warn("Unable to open shared memory channel " + file + ": " + e.getMessage());
+      return;
+    }
+    if (channel == null || channel.clientState() == SharedMemoryChannel.CLOSED
+        || channel.serverState() == SharedMemoryChannel.CLOSED) {
+      return;
+    }
+    if (channel.protocol() != EntityStoreProtocol.INTERFACE_HASH) {
+      LOG.warn("Refusing shared memory channel " + file + ", EntityStore interface mismatch");
+      channel.serverState(SharedMemoryChannel.CLOSED);
+      return;
+    }
+    channel.heartbeat(System.currentTimeMillis());
+    channels.put(file, channel);
+    Thread thread = new Thread(() -> serve(channel), "datafactory-shm-" + file.getName());
+    thread.setDaemon(true);
+    thread.start();
+    channel.serverState(SharedMemoryChannel.ATTACHED);
+  }
+
+  private void serve(SharedMemoryChannel channel) {
+    int idleCount = 0;
+    try {
+      while (running && channel.clientState() != SharedMemoryChannel.CLOSED) {
+        ByteBuffer body = channel.requests().poll();
+        if (body == null) {
+          SharedMemoryChannel.idle(idleCount++);
+          continue;
+        }
+        idleCount = 0;
+        EntityStoreProtocol.Frame request = EntityStoreProtocol.decode(body);
+        try {
+          workers.execute(() -> respond(channel, request));
+        } catch (RejectedExecutionException e) {
+          respond(channel, request);
+        }
+      }
+    } catch (RuntimeException e) {
+      LOG.error("Shared memory channel " + channel.file() + " failed: " + e.getMessage());
+      channel.serverState(SharedMemoryChannel.CLOSED);
+    } finally {
+      channels.remove(channel.file());
+      if (channel.clientState() == SharedMemoryChannel.CLOSED && !channel.file().delete()) {
+        LOG.warn("Unable to delete shared memory channel " + channel.file());
+      }
+    }
+  }
+
+  private void respond(SharedMemoryChannel channel, EntityStoreProtocol.Frame request) {
+    ByteBuffer response;
+    try {
+      response = EntityStoreProtocol.dispatch(entityStore,
+          "shm:" + channel.file().getName(), request);
+      if (response.remaining() > channel.responses().capacity()) {
+        response = EntityStoreProtocol.encode(request.requestId(), EntityStoreProtocol.ERROR,
+            request.methodId(), new IOException("Response of " + response.remaining()
+                + " bytes exceeds the shared memory ring capacity"));
+      }
+    } catch (IOException e) {
+      LOG.error("Unable to encode response: " + e.getMessage());
+      try {
+        response = EntityStoreProtocol.encode(request.requestId(), EntityStoreProtocol.ERROR,
+            request.methodId(), new IOException("Unable to encode response: " + e.getMessage()));
+      } catch (IOException ignore) {
+        // Closing the channel fails the calls of the client instead of leaving them waiting
+        channel.serverState(SharedMemoryChannel.CLOSED);
+        return;
+      }
+    }
+    // Responses of concurrent workers share the single producer side of the ring
+    synchronized (channel) {
+      int idleCount = 0;
+      while (!channel.responses().offer(response)) {
+        if (!running || channel.clientState() == SharedMemoryChannel.CLOSED) {
+          return;
+        }
+        SharedMemoryChannel.idle(idleCount++);
+      }
+    }
+  }
+}
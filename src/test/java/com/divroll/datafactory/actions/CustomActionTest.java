@@ -22,10 +22,13 @@ import com.divroll.datafactory.builders.DataFactoryEntity;
 import com.divroll.datafactory.builders.DataFactoryEntityBuilder;
 import com.divroll.datafactory.builders.queries.EntityQuery;
 import com.divroll.datafactory.builders.queries.EntityQueryBuilder;
+import com.divroll.datafactory.database.impl.DatabaseManagerImpl;
 import com.divroll.datafactory.repositories.EntityStore;
+import jetbrains.exodus.entitystore.Entity;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 /**
  * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
@@ -56,4 +59,27 @@ public class CustomActionTest {
     DataFactoryEntity updatedEntity = entityStore.getEntity(entityQuery).get();
     assertEquals(3000, updatedEntity.propertyMap().get("likes"));
   }
+
+  @Test
+  public void testLinkOfCustomActionIsRemovedWithTarget() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    EntityStore entityStore = DataFactory.getInstance().getEntityStore();
+    DataFactoryEntity room = entityStore.saveEntity(new DataFactoryEntityBuilder()
+        .environment(environment)
+        .entityType("Room")
+        .build()).get();
+    DataFactoryEntity guest = entityStore.saveEntity(new DataFactoryEntityBuilder()
+        .environment(environment)
+        .entityType("Guest")
+        .addActions(new AddLinkAction("room", room.entityId()))
+        .build()).get();
+    entityStore.removeEntity(new EntityQueryBuilder()
+        .environment(environment)
+        .entityId(room.entityId())
+        .build());
+    DatabaseManagerImpl.getInstance().transactPersistentEntityStore(environment, true, txn -> {
+      Entity referrer = txn.getEntity(txn.toEntityId(guest.entityId()));
+      assertNull(referrer.getLink("room"));
+    });
+  }
 }
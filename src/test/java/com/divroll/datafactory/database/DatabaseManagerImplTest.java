@@ -0,0 +1,211 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.database;
+
+import com.divroll.datafactory.TestEnvironment;
+import com.divroll.datafactory.database.impl.DatabaseManagerImpl;
+import com.divroll.datafactory.database.impl.LogCacheBudget;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import jetbrains.exodus.entitystore.PersistentEntityStore;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class DatabaseManagerImplTest {
+
+  @Test
+  public void testConcurrentFirstAccessOpensOnce() throws Exception {
+    DatabaseManager manager = DatabaseManagerImpl.getInstance();
+    String[] environments = new String[4];
+    for (int i = 0; i < environments.length; i++) {
+      environments[i] = TestEnvironment.getEnvironment();
+    }
+    int openBefore = manager.getOpenEnvironmentCount();
+
+    int threads = 16;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<PersistentEntityStore>> futures = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      String environment = environments[i % environments.length];
+      futures.add(executor.submit(() -> {
+        start.await();
+        return manager.getPersistentEntityStore(environment, false);
+      }));
+    }
+    start.countDown();
+    for (int i = 0; i < threads; i++) {
+      assertSame(futures.get(i % environments.length).get(), futures.get(i).get());
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(openBefore + environments.length, manager.getOpenEnvironmentCount());
+
+    PersistentEntityStore closed = futures.get(0).get();
+    manager.closeEnvironment(environments[0]);
+    assertEquals(openBefore + environments.length - 1, manager.getOpenEnvironmentCount());
+
+    PersistentEntityStore reopened = manager.getPersistentEntityStore(environments[0], false);
+    assertNotSame(closed, reopened);
+    assertEquals(openBefore + environments.length, manager.getOpenEnvironmentCount());
+    for (String environment : environments) {
+      manager.closeEnvironment(environment);
+    }
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsedEnvironment() throws Exception {
+    DatabaseManagerImpl manager = DatabaseManagerImpl.getInstance();
+    manager.closeEnvironments();
+    String first = TestEnvironment.getEnvironment();
+    String second = TestEnvironment.getEnvironment();
+    String third = TestEnvironment.getEnvironment();
+    manager.configureEviction(2, 0);
+    try {
+      long misses = manager.getEnvironmentMissCount();
+      long hits = manager.getEnvironmentHitCount();
+      long evictions = manager.getEnvironmentEvictionCount();
+      manager.transactPersistentEntityStore(first, false,
+          txn -> txn.newEntity("Room").setProperty("name", "first"));
+      Thread.sleep(5);
+      manager.transactPersistentEntityStore(second, false, txn -> txn.newEntity("Room"));
+      Thread.sleep(5);
+      manager.transactPersistentEntityStore(first, true, txn -> txn.getAll("Room"));
+      assertEquals(2, manager.getOpenEnvironmentCount());
+
+      // The snapshot keeps the second environment busy, so it is not evicted in its turn
+      ReadSnapshot snapshot = manager.openReadSnapshot(second);
+      manager.transactPersistentEntityStore(third, false, txn -> txn.newEntity("Room"));
+      assertEquals(2, manager.getOpenEnvironmentCount());
+      assertEquals(evictions + 1, manager.getEnvironmentEvictionCount());
+      assertEquals(1L, (long) snapshot.compute(txn -> txn.getAll("Room").size()));
+      snapshot.close();
+
+      // The evicted environment reopens transparently with its data
+      manager.transactPersistentEntityStore(first, true, txn ->
+          assertEquals("first", txn.getAll("Room").getFirst().getProperty("name")));
+      assertEquals(2, manager.getOpenEnvironmentCount());
+      assertEquals(misses + 4, manager.getEnvironmentMissCount());
+      assertEquals(hits + 2, manager.getEnvironmentHitCount());
+    } finally {
+      manager.configureEviction(0, 0);
+      manager.closeEnvironments();
+    }
+  }
+
+  @Test
+  public void testEvictsIdleEnvironment() throws Exception {
+    DatabaseManagerImpl manager = DatabaseManagerImpl.getInstance();
+    String environment = TestEnvironment.getEnvironment();
+    manager.configureEviction(0, 50);
+    try {
+      manager.transactPersistentEntityStore(environment, false, txn -> txn.newEntity("Room"));
+      int openBefore = manager.getOpenEnvironmentCount();
+      long deadline = System.currentTimeMillis() + 5000;
+      while (manager.getOpenEnvironmentCount() > 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertTrue(openBefore > 0);
+      assertEquals(0, manager.getOpenEnvironmentCount());
+      manager.transactPersistentEntityStore(environment, true,
+          txn -> assertEquals(1L, txn.getAll("Room").size()));
+    } finally {
+      manager.configureEviction(0, 0);
+      manager.closeEnvironment(environment);
+    }
+  }
+
+  @Test
+  public void testLogCacheBudget() throws Exception {
+    DatabaseManagerImpl manager = DatabaseManagerImpl.getInstance();
+    manager.closeEnvironments();
+    long mb = 1024 * 1024;
+    manager.configureLogCache(new LogCacheBudget(LogCacheBudget.Mode.QUOTA, 4 * mb, 2 * mb));
+    try {
+      String busy = TestEnvironment.getEnvironment();
+      String quiet = TestEnvironment.getEnvironment();
+      String other = TestEnvironment.getEnvironment();
+      manager.transactPersistentEntityStore(busy, false, txn -> txn.newEntity("Room"));
+      assertEquals(2 * mb, (long) manager.getLogCacheSizes().get(busy));
+
+      // The first environment left room for the second one
+      manager.transactPersistentEntityStore(busy, true, txn -> txn.getAll("Room"));
+      manager.transactPersistentEntityStore(quiet, false, txn -> txn.newEntity("Room"));
+      assertEquals(2, manager.getOpenEnvironmentCount());
+      assertEquals(2 * mb, (long) manager.getLogCacheSizes().get(quiet));
+
+      // Opening a third takes the budget over, the least used one is closed
+      manager.transactPersistentEntityStore(other, false, txn -> txn.newEntity("Room"));
+      Map<String, Long> sizes = manager.getLogCacheSizes();
+      assertEquals(2, sizes.size());
+      assertEquals(2 * mb, (long) sizes.get(busy));
+      assertEquals(2 * mb, (long) sizes.get(other));
+    } finally {
+      manager.configureLogCache(LogCacheBudget.fromSystemProperties());
+      manager.closeEnvironments();
+    }
+  }
+
+  @Test
+  public void testLogCacheRebalance() throws Exception {
+    DatabaseManagerImpl manager = DatabaseManagerImpl.getInstance();
+    manager.closeEnvironments();
+    long mb = 1024 * 1024;
+    manager.configureLogCache(
+        new LogCacheBudget(LogCacheBudget.Mode.QUOTA, 8 * mb, mb, 500));
+    try {
+      String quiet = TestEnvironment.getEnvironment();
+      String busy = TestEnvironment.getEnvironment();
+      manager.transactPersistentEntityStore(quiet, false, txn -> txn.newEntity("Room"));
+      assertEquals(4 * mb, (long) manager.getLogCacheSizes().get(quiet));
+      manager.transactPersistentEntityStore(busy, false, txn -> txn.newEntity("Room"));
+      for (int i = 0; i < 100; i++) {
+        manager.transactPersistentEntityStore(busy, true, txn -> txn.getAll("Room"));
+      }
+
+      // Rebalanced, the quiet environment gives up most of its quota and reopens with less
+      long deadline = System.currentTimeMillis() + 5000;
+      while (manager.getLogCacheSizes().containsKey(quiet)
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50);
+      }
+      assertFalse(manager.getLogCacheSizes().containsKey(quiet));
+      manager.transactPersistentEntityStore(quiet, true,
+          txn -> assertEquals(1L, txn.getAll("Room").size()));
+      assertEquals(mb, (long) manager.getLogCacheSizes().get(quiet));
+    } finally {
+      manager.configureLogCache(LogCacheBudget.fromSystemProperties());
+      manager.closeEnvironments();
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.database;
+
+import com.divroll.datafactory.database.impl.LogCacheBudget;
+import java.util.Arrays;
+import java.util.HashSet;
+import jetbrains.exodus.env.EnvironmentConfig;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class LogCacheBudgetTest {
+
+  private static final long MB = 1024 * 1024;
+
+  @Test
+  public void testQuotasFollowAccessFrequency() {
+    LogCacheBudget budget = new LogCacheBudget(LogCacheBudget.Mode.QUOTA, 8 * MB, MB);
+    budget.recordAccess("a");
+    budget.recordAccess("a");
+    budget.recordAccess("a");
+    budget.recordAccess("b");
+
+    // The first environment gets a fair share, not the whole budget
+    EnvironmentConfig a = new EnvironmentConfig();
+    budget.configure("a", a);
+    assertFalse(a.isLogCacheShared());
+    assertEquals(4 * MB, (long) a.getMemoryUsage());
+
+    EnvironmentConfig b = new EnvironmentConfig();
+    budget.configure("b", b);
+    assertEquals(2 * MB, (long) b.getMemoryUsage());
+    assertEquals(0, budget.getOverBudgetBytes());
+
+    // Reopened, the frequently used environment is still held to a fair share
+    budget.release("a");
+    budget.configure("a", a);
+    assertEquals(8 * MB / 3, (long) a.getMemoryUsage());
+    assertEquals(0, budget.getOverBudgetBytes());
+    assertEquals(2, budget.getQuotas().size());
+  }
+
+  @Test
+  public void testFairShareLeavesRoom() {
+    LogCacheBudget budget = new LogCacheBudget(LogCacheBudget.Mode.QUOTA, 8 * MB, MB);
+    for (String dir : new String[] {"a", "b", "c"}) {
+      budget.recordAccess(dir);
+      budget.configure(dir, new EnvironmentConfig());
+      assertEquals(0, budget.getOverBudgetBytes());
+    }
+    budget.recordAccess("d");
+    budget.configure("d", new EnvironmentConfig());
+    assertEquals(MB, budget.getOverBudgetBytes());
+  }
+
+  @Test
+  public void testMinimumQuota() {
+    LogCacheBudget budget = new LogCacheBudget(LogCacheBudget.Mode.QUOTA, 4 * MB, MB);
+    for (int i = 0; i < 99; i++) {
+      budget.recordAccess("busy");
+    }
+    EnvironmentConfig busy = new EnvironmentConfig();
+    budget.configure("busy", busy);
+    assertEquals(2 * MB, (long) busy.getMemoryUsage());
+    EnvironmentConfig quiet = new EnvironmentConfig();
+    budget.configure("quiet", quiet);
+    assertEquals(MB, (long) quiet.getMemoryUsage());
+    assertEquals(0, budget.getOverBudgetBytes());
+    budget.configure("quieter", new EnvironmentConfig());
+    budget.configure("quietest", new EnvironmentConfig());
+    assertEquals(MB, budget.getOverBudgetBytes());
+  }
+
+  @Test
+  public void testRebalance() throws Exception {
+    LogCacheBudget budget = new LogCacheBudget(LogCacheBudget.Mode.QUOTA, 8 * MB, MB, 500);
+    for (int i = 0; i < 100; i++) {
+      budget.recordAccess("a");
+    }
+    budget.recordAccess("b");
+    budget.configure("a", new EnvironmentConfig());
+    budget.configure("b", new EnvironmentConfig());
+    assertEquals(4 * MB, (long) budget.getQuotas().get("a"));
+    assertEquals(MB, (long) budget.getQuotas().get("b"));
+    assertTrue(budget.rebalance().isEmpty());
+
+    // Once the other is used more, both are far from their quotas
+    for (int i = 0; i < 1000; i++) {
+      budget.recordAccess("b");
+    }
+    assertEquals(new HashSet<>(Arrays.asList("a", "b")), budget.rebalance());
+  }
+
+  @Test
+  public void testAccessCountsDecay() throws Exception {
+    LogCacheBudget budget = new LogCacheBudget(LogCacheBudget.Mode.QUOTA, 8 * MB, MB, 500);
+    for (int i = 0; i < 100; i++) {
+      budget.recordAccess("a");
+      budget.recordAccess("b");
+    }
+    budget.configure("a", new EnvironmentConfig());
+    budget.configure("b", new EnvironmentConfig());
+    budget.release("b");
+    Thread.sleep(600);
+    budget.rebalance();
+    assertEquals(50, budget.getAccessCount("a"));
+    // Counts of closed environments are dropped
+    assertEquals(0, budget.getAccessCount("b"));
+  }
+
+  @Test
+  public void testSharedCache() {
+    LogCacheBudget budget = new LogCacheBudget(LogCacheBudget.Mode.SHARED, 8 * MB, MB);
+    EnvironmentConfig config = new EnvironmentConfig();
+    budget.configure("a", config);
+    assertTrue(config.isLogCacheShared());
+    assertEquals(8 * MB, (long) config.getMemoryUsage());
+    assertEquals(0, budget.getOverBudgetBytes());
+    assertTrue(budget.getQuotas().isEmpty());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testQuotaNeedsBudget() {
+    new LogCacheBudget(LogCacheBudget.Mode.QUOTA, 0, MB);
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.database;
+
+import com.divroll.datafactory.TestEnvironment;
+import com.divroll.datafactory.database.impl.DatabaseManagerImpl;
+import java.util.List;
+import java.util.stream.Collectors;
+import jetbrains.exodus.entitystore.Entity;
+import jetbrains.exodus.entitystore.PersistentStoreTransaction;
+import jetbrains.exodus.env.Environment;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class ReverseLinkIndexTest {
+
+  @Test
+  public void testIndexFollowsLinks() {
+    DatabaseManager manager = DatabaseManagerImpl.getInstance();
+    String environment = TestEnvironment.getEnvironment();
+    manager.transactPersistentEntityStore(environment, false, txn -> {
+      assertTrue(ReverseLinkIndex.isBuilt(txn));
+      Entity room = txn.newEntity("Room");
+      Entity first = txn.newEntity("Guest");
+      Entity second = txn.newEntity("Guest");
+      ReverseLinkIndex.addLink(first, "room", room, txn);
+      ReverseLinkIndex.addLink(second, "room", room, txn);
+      ReverseLinkIndex.setLink(room, "owner", first, txn);
+      assertEquals(2, ReverseLinkIndex.findReferrers(room, txn).size());
+      assertEquals("owner", ReverseLinkIndex.findReferrers(first, txn).get(0).getLinkName());
+
+      // Setting the link moves its entry to the new target
+      ReverseLinkIndex.setLink(room, "owner", second, txn);
+      assertTrue(ReverseLinkIndex.findReferrers(first, txn).isEmpty());
+      assertEquals(room.getId().toString(),
+          ReverseLinkIndex.findReferrers(second, txn).get(0).getEntityId());
+
+      ReverseLinkIndex.deleteLink(first, "room", room, txn);
+      List<String> referrers = ReverseLinkIndex.findReferrers(room, txn).stream()
+          .map(ReverseLinkIndex.Referrer::getEntityId)
+          .collect(Collectors.toList());
+      assertEquals(1, referrers.size());
+      assertEquals(second.getId().toString(), referrers.get(0));
+
+      ReverseLinkIndex.deleteLinks(second, txn);
+      assertTrue(ReverseLinkIndex.findReferrers(room, txn).isEmpty());
+    });
+  }
+
+  @Test
+  public void testRebuild() {
+    DatabaseManager manager = DatabaseManagerImpl.getInstance();
+    String environment = TestEnvironment.getEnvironment();
+    manager.transactPersistentEntityStore(environment, false, txn -> {
+      Entity room = txn.newEntity("Room");
+      Entity guest = txn.newEntity("Guest");
+      // Links made without the index, as in environments created before it
+      guest.addLink("room", room);
+      room.addLink("guests", guest);
+      Environment env = manager.getPersistentEntityStore(environment, false).getEnvironment();
+      env.removeStore("datafactory.reverseLinks",
+          ((PersistentStoreTransaction) txn).getEnvironmentTransaction());
+    });
+    manager.transactPersistentEntityStore(environment, false, txn -> {
+      Entity room = txn.getAll("Room").getFirst();
+      Entity guest = txn.getAll("Guest").getFirst();
+      assertFalse(ReverseLinkIndex.isBuilt(txn));
+      assertTrue(ReverseLinkIndex.findReferrers(room, txn).isEmpty());
+
+      assertEquals(2L, ReverseLinkIndex.rebuild(txn));
+      assertTrue(ReverseLinkIndex.isBuilt(txn));
+      assertEquals(guest.getId().toString(),
+          ReverseLinkIndex.findReferrers(room, txn).get(0).getEntityId());
+      assertEquals("guests", ReverseLinkIndex.findReferrers(guest, txn).get(0).getLinkName());
+    });
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories;
+
+import com.divroll.datafactory.DataFactory;
+import com.divroll.datafactory.TestEnvironment;
+import com.divroll.datafactory.builders.DataFactoryEntity;
+import com.divroll.datafactory.builders.DataFactoryEntityBuilder;
+import com.divroll.datafactory.builders.queries.EntityQueryBuilder;
+import com.divroll.datafactory.exceptions.RequestRejectedException;
+import io.vavr.control.Option;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class AsyncEntityStoreTest {
+
+  @Test
+  public void testSaveAndGetEntitiesAsync() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      int maxInFlight = 4;
+      AsyncEntityStore entityStore =
+          DataFactory.getInstance().getAsyncEntityStore(executor, maxInFlight);
+      AtomicInteger maxObserved = new AtomicInteger();
+      List<CompletableFuture<Option<DataFactoryEntity>>> futures = new ArrayList<>();
+      for (int i = 0; i < 50; i++) {
+        if (i == 1) {
+          // Let the first save open the environment
+          futures.get(0).join();
+        }
+        futures.add(entityStore.saveEntity(new DataFactoryEntityBuilder()
+            .environment(environment)
+            .entityType("Foo")
+            .putPropertyMap("index", i)
+            .build()).whenComplete((entity, throwable) ->
+            maxObserved.accumulateAndGet(entityStore.inFlight(), Math::max)));
+      }
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+      for (int i = 0; i < futures.size(); i++) {
+        DataFactoryEntity saved = futures.get(i).get().get();
+        assertNotNull(saved.entityId());
+        assertEquals(i, saved.propertyMap().get("index"));
+      }
+      assertTrue(maxObserved.get() <= maxInFlight);
+      assertEquals(0, entityStore.pending());
+
+      Long count = entityStore.getEntities(new EntityQueryBuilder()
+          .environment(environment)
+          .entityType("Foo")
+          .build()).get().get().count();
+      assertEquals(Long.valueOf(50), count);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testFailureCompletesExceptionally() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      AsyncEntityStore entityStore = DataFactory.getInstance().getAsyncEntityStore(executor, 1);
+      CompletableFuture<Option<DataFactoryEntity>> future =
+          entityStore.getEntity(new EntityQueryBuilder()
+              .environment(TestEnvironment.getEnvironment())
+              .build());
+      assertTrue(future.handle((entity, throwable) -> throwable != null).get());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testRejectedCallFailsWithoutBlocking() throws Exception {
+    AsyncEntityStore entityStore = DataFactory.getInstance().getAsyncEntityStore(task -> {
+      throw new RejectedExecutionException("saturated");
+    }, 1);
+    CompletableFuture<Boolean> future = entityStore.exists(new EntityQueryBuilder()
+        .environment(TestEnvironment.getEnvironment())
+        .entityType("Foo")
+        .build());
+    try {
+      future.join();
+      fail("Rejected call should fail");
+    } catch (CompletionException e) {
+      assertTrue(e.getCause() instanceof RequestRejectedException);
+      assertTrue(((RequestRejectedException) e.getCause()).isRetryable());
+    }
+    assertEquals(0, entityStore.inFlight());
+    assertEquals(0, entityStore.pending());
+  }
+}
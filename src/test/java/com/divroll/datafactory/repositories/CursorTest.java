@@ -0,0 +1,150 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories;
+
+import com.divroll.datafactory.DataFactory;
+import com.divroll.datafactory.TestEnvironment;
+import com.divroll.datafactory.builders.DataFactoryEntities;
+import com.divroll.datafactory.builders.DataFactoryEntity;
+import com.divroll.datafactory.builders.DataFactoryEntityBuilder;
+import com.divroll.datafactory.builders.queries.EntityQueryBuilder;
+import com.divroll.datafactory.exceptions.DataFactoryException;
+import com.divroll.datafactory.repositories.impl.ClientContext;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class CursorTest {
+
+  @Test
+  public void testCursorStreamsSnapshot() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    EntityStore entityStore = DataFactory.getInstance().getEntityStore();
+    DataFactoryEntity[] entities = new DataFactoryEntity[250];
+    for (int i = 0; i < entities.length; i++) {
+      entities[i] = new DataFactoryEntityBuilder()
+          .environment(environment)
+          .entityType("Room")
+          .putPropertyMap("index", i)
+          .build();
+    }
+    entityStore.saveEntities(entities);
+
+    String cursorId = entityStore.openCursor(new EntityQueryBuilder()
+        .environment(environment)
+        .entityType("Room")
+        .build());
+
+    // Writes after the cursor is opened are not visible to it
+    entityStore.saveEntity(new DataFactoryEntityBuilder()
+        .environment(environment)
+        .entityType("Room")
+        .putPropertyMap("index", 250)
+        .build());
+
+    Set<String> seen = new HashSet<>();
+    int batches = 0;
+    while (true) {
+      // Each batch is read from a different thread than the one that opened the snapshot
+      DataFactoryEntities batch = CompletableFuture.supplyAsync(() -> {
+        try {
+          return entityStore.nextBatch(cursorId, 100).get();
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }).join();
+      assertEquals(250L, batch.count().longValue());
+      batch.entities().forEach(entity -> seen.add(entity.entityId()));
+      batches++;
+      if (batch.entities().size() < 100) {
+        break;
+      }
+    }
+    assertEquals(3, batches);
+    assertEquals(250, seen.size());
+    assertFalse(entityStore.closeCursor(cursorId));
+  }
+
+  @Test
+  public void testCloseCursor() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    EntityStore entityStore = DataFactory.getInstance().getEntityStore();
+    entityStore.saveEntity(new DataFactoryEntityBuilder()
+        .environment(environment)
+        .entityType("Room")
+        .putPropertyMap("index", 0)
+        .build());
+    String cursorId = entityStore.openCursor(new EntityQueryBuilder()
+        .environment(environment)
+        .entityType("Room")
+        .build());
+    assertTrue(entityStore.closeCursor(cursorId));
+    try {
+      entityStore.nextBatch(cursorId, 10);
+      fail("Closed cursor must not be readable");
+    } catch (DataFactoryException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testCursorBelongsToClient() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    EntityStore entityStore = DataFactory.getInstance().getEntityStore();
+    entityStore.saveEntity(new DataFactoryEntityBuilder()
+        .environment(environment)
+        .entityType("Room")
+        .putPropertyMap("index", 0)
+        .build());
+    ClientContext.enter("nio:owner");
+    String cursorId;
+    try {
+      cursorId = entityStore.openCursor(new EntityQueryBuilder()
+          .environment(environment)
+          .entityType("Room")
+          .build());
+    } finally {
+      ClientContext.exit();
+    }
+    ClientContext.enter("nio:other");
+    try {
+      entityStore.nextBatch(cursorId, 10);
+      fail("Cursor of another client must not be readable");
+    } catch (DataFactoryException e) {
+      assertFalse(entityStore.closeCursor(cursorId));
+    } finally {
+      ClientContext.exit();
+    }
+    ClientContext.enter("nio:owner");
+    try {
+      assertEquals(1, entityStore.nextBatch(cursorId, 10).get().entities().size());
+    } finally {
+      ClientContext.exit();
+    }
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories;
+
+import com.divroll.datafactory.Constants;
+import com.divroll.datafactory.TestEnvironment;
+import com.divroll.datafactory.builders.DataFactoryEntity;
+import com.divroll.datafactory.builders.DataFactoryEntityBuilder;
+import com.divroll.datafactory.database.impl.DatabaseManagerImpl;
+import com.divroll.datafactory.indexers.impl.LuceneIndexerImpl;
+import com.divroll.datafactory.repositories.impl.EntityStoreClientImpl;
+import com.divroll.datafactory.repositories.impl.EntityStoreImpl;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class EntityStoreClientTest {
+
+  private static final int REGISTRY_PORT = 3099;
+
+  @Test
+  public void testStubIsCachedAndRebound() throws Exception {
+    System.setProperty(Constants.JAVA_RMI_HOST_ENVIRONMENT, "localhost");
+    String environment = TestEnvironment.getEnvironment();
+    Registry registry = LocateRegistry.createRegistry(REGISTRY_PORT);
+    EntityStoreImpl server =
+        new EntityStoreImpl(DatabaseManagerImpl.getInstance(), LuceneIndexerImpl.getInstance());
+    registry.rebind(EntityStore.class.getName(), server);
+    try {
+      EntityStoreClientImpl client = new EntityStoreClientImpl("localhost", REGISTRY_PORT);
+      for (int i = 0; i < 3; i++) {
+        DataFactoryEntity saved = client.saveEntity(new DataFactoryEntityBuilder()
+            .environment(environment)
+            .entityType("Foo")
+            .putPropertyMap("foo", "bar")
+            .build()).get();
+        assertNotNull(saved.entityId());
+      }
+      assertEquals(1, client.getLookupCount());
+      assertEquals(0, client.getReconnectCount());
+
+      // Simulate a server restart, the client should transparently look up the new stub
+      UnicastRemoteObject.unexportObject(server, true);
+      server =
+          new EntityStoreImpl(DatabaseManagerImpl.getInstance(), LuceneIndexerImpl.getInstance());
+      registry.rebind(EntityStore.class.getName(), server);
+
+      DataFactoryEntity saved = client.saveEntity(new DataFactoryEntityBuilder()
+          .environment(environment)
+          .entityType("Foo")
+          .putPropertyMap("foo", "baz")
+          .build()).get();
+      assertEquals("baz", saved.propertyMap().get("foo"));
+      assertEquals(2, client.getLookupCount());
+      assertEquals(1, client.getReconnectCount());
+    } finally {
+      UnicastRemoteObject.unexportObject(server, true);
+      UnicastRemoteObject.unexportObject(registry, true);
+    }
+  }
+}
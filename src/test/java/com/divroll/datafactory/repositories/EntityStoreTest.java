@@ -16,6 +16,7 @@
  */
 package com.divroll.datafactory.repositories;
 
+import com.divroll.datafactory.Constants;
 import com.divroll.datafactory.DataFactory;
 import com.divroll.datafactory.TestEnvironment;
 import com.divroll.datafactory.actions.ImmutableBlobRemoveAction;
@@ -23,19 +24,31 @@ import com.divroll.datafactory.actions.ImmutableBlobRenameAction;
 import com.divroll.datafactory.actions.ImmutableBlobRenameRegexAction;
 import com.divroll.datafactory.actions.ImmutableLinkAction;
 import com.divroll.datafactory.builders.DataFactoryBlobBuilder;
+import com.divroll.datafactory.builders.DataFactoryEntities;
 import com.divroll.datafactory.builders.DataFactoryEntity;
 import com.divroll.datafactory.builders.DataFactoryEntityBuilder;
+import com.divroll.datafactory.builders.ResponseMode;
 import com.divroll.datafactory.builders.queries.BlobQueryBuilder;
 import com.divroll.datafactory.builders.queries.EntityQuery;
 import com.divroll.datafactory.builders.queries.EntityQueryBuilder;
+import com.divroll.datafactory.builders.queries.FieldQueryBuilder;
+import com.divroll.datafactory.builders.queries.LinkQueryBuilder;
 import com.divroll.datafactory.conditions.PropertyStartsWithConditionBuilder;
+import com.divroll.datafactory.exceptions.PartialFailureException;
 import com.divroll.datafactory.exceptions.UnsatisfiedConditionException;
+import com.divroll.datafactory.operations.GetEntitiesOperationBuilder;
+import com.divroll.datafactory.operations.Operation;
+import com.divroll.datafactory.operations.OperationResult;
+import com.divroll.datafactory.operations.OperationResults;
+import com.divroll.datafactory.operations.SaveEntityOperationBuilder;
 import com.google.common.io.ByteSource;
 import com.healthmarketscience.rmiio.RemoteInputStreamClient;
 import com.healthmarketscience.rmiio.SimpleRemoteInputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import jetbrains.exodus.entitystore.EntityRemovedInDatabaseException;
 import org.apache.commons.io.IOUtils;
 import org.junit.Test;
@@ -44,6 +57,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -468,4 +482,337 @@ public class EntityStoreTest {
         .build()).get();
     assertNotNull(dataFactoryEntity);
   }
+
+  @Test
+  public void testExecute() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    EntityStore entityStore = DataFactory.getInstance().getEntityStore();
+    DataFactoryEntity saved = entityStore.saveEntity(new DataFactoryEntityBuilder()
+        .environment(environment)
+        .entityType("Foo")
+        .putPropertyMap("foo", "fooBar")
+        .build()).get();
+    EntityQuery query = new EntityQueryBuilder()
+        .environment(environment)
+        .entityType("Foo")
+        .build();
+    OperationResults operationResults = entityStore.execute(new Operation[] {
+        new GetEntitiesOperationBuilder().query(query).build(),
+        new SaveEntityOperationBuilder().entity(new DataFactoryEntityBuilder()
+            .environment(environment)
+            .entityId(saved.entityId())
+            .putPropertyMap("checked", true)
+            .addConditions(new PropertyStartsWithConditionBuilder()
+                .propertyName("foo")
+                .startsWith("fooBar")
+                .build())
+            .build()).build(),
+        new SaveEntityOperationBuilder().entity(new DataFactoryEntityBuilder()
+            .environment(environment)
+            .entityType("Foo")
+            .putPropertyMap("foo", "baz")
+            .build()).build(),
+        new GetEntitiesOperationBuilder().query(query).build()
+    }).get();
+    List<OperationResult> results = operationResults.results();
+    assertEquals(4, results.size());
+    assertEquals(Long.valueOf(1), results.get(0).entities().count());
+    assertEquals(true, results.get(1).entities().entities().get(0).propertyMap().get("checked"));
+    assertNotNull(results.get(2).entities().entities().get(0).entityId());
+    // The last read sees the writes of the batch
+    assertEquals(Long.valueOf(2), results.get(3).entities().count());
+  }
+
+  @Test
+  public void testExecuteRollsBackOnFailure() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    EntityStore entityStore = DataFactory.getInstance().getEntityStore();
+    DataFactoryEntity saved = entityStore.saveEntity(new DataFactoryEntityBuilder()
+        .environment(environment)
+        .entityType("Foo")
+        .putPropertyMap("foo", "fooBar")
+        .build()).get();
+    try {
+      entityStore.execute(new Operation[] {
+          new SaveEntityOperationBuilder().entity(new DataFactoryEntityBuilder()
+              .environment(environment)
+              .entityType("Foo")
+              .putPropertyMap("foo", "baz")
+              .build()).build(),
+          new SaveEntityOperationBuilder().entity(new DataFactoryEntityBuilder()
+              .environment(environment)
+              .entityId(saved.entityId())
+              .putPropertyMap("checked", true)
+              .addConditions(new PropertyStartsWithConditionBuilder()
+                  .propertyName("foo")
+                  .startsWith("fooBaz")
+                  .build())
+              .build()).build()
+      });
+      fail("Batch with an unsatisfied condition must fail");
+    } catch (UnsatisfiedConditionException e) {
+      // expected
+    }
+    assertEquals(Long.valueOf(1), entityStore.getEntities(new EntityQueryBuilder()
+        .environment(environment)
+        .entityType("Foo")
+        .build()).get().count());
+  }
+
+  @Test
+  public void testGetEntitiesWithFields() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    EntityStore entityStore = DataFactory.getInstance().getEntityStore();
+    DataFactoryEntity saved = entityStore.saveEntity(new DataFactoryEntityBuilder()
+        .environment(environment)
+        .entityType("Foo")
+        .putPropertyMap("name", "foo")
+        .putPropertyMap("age", 30)
+        .putPropertyMap("bio", "A long description")
+        .build()).get();
+
+    DataFactoryEntity included = entityStore.getEntity(new EntityQueryBuilder()
+        .environment(environment)
+        .entityId(saved.entityId())
+        .fields(new FieldQueryBuilder()
+            .addInclude("name", "age", "missing")
+            .build())
+        .build()).get();
+    assertEquals(2, included.propertyMap().size());
+    assertEquals("foo", included.propertyMap().get("name"));
+    assertEquals(30, included.propertyMap().get("age"));
+
+    entityStore.getEntities(new EntityQueryBuilder()
+        .environment(environment)
+        .entityType("Foo")
+        .fields(new FieldQueryBuilder()
+            .addExclude("bio")
+            .build())
+        .build()).get().entities().forEach(entity -> {
+      assertFalse(entity.propertyMap().containsKey("bio"));
+      assertEquals("foo", entity.propertyMap().get("name"));
+    });
+  }
+
+  @Test
+  public void testCountAndExists() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    EntityStore entityStore = DataFactory.getInstance().getEntityStore();
+    DataFactoryEntity[] entities = new DataFactoryEntity[5];
+    for (int i = 0; i < entities.length; i++) {
+      entities[i] = new DataFactoryEntityBuilder()
+          .environment(environment)
+          .entityType("Foo")
+          .putPropertyMap("foo", i < 2 ? "fooBar" + i : "baz" + i)
+          .build();
+    }
+    DataFactoryEntity saved = entityStore.saveEntities(entities).get().entities().get(0);
+
+    assertEquals(5L, entityStore.count(new EntityQueryBuilder()
+        .environment(environment)
+        .entityType("Foo")
+        .max(1)
+        .build()).longValue());
+    EntityQuery startsWith = new EntityQueryBuilder()
+        .environment(environment)
+        .entityType("Foo")
+        .addConditions(new PropertyStartsWithConditionBuilder()
+            .propertyName("foo")
+            .startsWith("fooBar")
+            .build())
+        .build();
+    assertEquals(2L, entityStore.count(startsWith).longValue());
+    assertTrue(entityStore.exists(startsWith));
+    assertFalse(entityStore.exists(new EntityQueryBuilder()
+        .environment(environment)
+        .entityType("Bar")
+        .build()));
+
+    EntityQuery byId = new EntityQueryBuilder()
+        .environment(environment)
+        .entityId(saved.entityId())
+        .build();
+    assertTrue(entityStore.exists(byId));
+    assertEquals(1L, entityStore.count(byId).longValue());
+    EntityQuery missing = new EntityQueryBuilder()
+        .environment(environment)
+        .entityId(saved.entityId().split("-")[0] + "-999999")
+        .build();
+    assertFalse(entityStore.exists(missing));
+    assertEquals(0L, entityStore.count(missing).longValue());
+  }
+
+  @Test
+  public void testSaveEntitiesWithResponseMode() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    EntityStore entityStore = DataFactory.getInstance().getEntityStore();
+    DataFactoryEntity[] entities = new DataFactoryEntity[3];
+    for (int i = 0; i < entities.length; i++) {
+      entities[i] = new DataFactoryEntityBuilder()
+          .environment(environment)
+          .entityType("Foo")
+          .putPropertyMap("foo", "bar" + i)
+          .build();
+    }
+
+    DataFactoryEntities ids = entityStore.saveEntities(entities, ResponseMode.ID).get();
+    assertEquals(3, ids.entities().size());
+    for (int i = 0; i < entities.length; i++) {
+      DataFactoryEntity saved = ids.entities().get(i);
+      assertNotNull(saved.entityId());
+      assertEquals("Foo", saved.entityType());
+      assertTrue(saved.propertyMap().isEmpty());
+      assertEquals("bar" + i, entityStore.getEntity(new EntityQueryBuilder()
+          .environment(environment)
+          .entityId(saved.entityId())
+          .build()).get().propertyMap().get("foo"));
+    }
+
+    assertTrue(entityStore.saveEntities(entities, ResponseMode.NONE).get().entities().isEmpty());
+    assertTrue(entityStore.saveEntity(entities[0], ResponseMode.NONE).isEmpty());
+    assertEquals(7L, entityStore.count(new EntityQueryBuilder()
+        .environment(environment)
+        .entityType("Foo")
+        .build()).longValue());
+  }
+
+  @Test
+  public void testGetEntitiesByIds() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    EntityStore entityStore = DataFactory.getInstance().getEntityStore();
+    DataFactoryEntity[] entities = new DataFactoryEntity[150];
+    for (int i = 0; i < entities.length; i++) {
+      entities[i] = new DataFactoryEntityBuilder()
+          .environment(environment)
+          .entityType(i % 2 == 0 ? "Foo" : "Bar")
+          .putPropertyMap("index", i)
+          .build();
+    }
+    List<DataFactoryEntity> saved =
+        entityStore.saveEntities(entities, ResponseMode.ID).get().entities();
+
+    // Ids of any type, in reverse order, more than the default max and one missing
+    List<String> entityIds = new ArrayList<>();
+    for (int i = saved.size() - 1; i >= 0; i--) {
+      entityIds.add(saved.get(i).entityId());
+    }
+    entityIds.add(saved.get(0).entityId().split("-")[0] + "-999999");
+    EntityQuery query = new EntityQueryBuilder()
+        .environment(environment)
+        .entityIds(entityIds)
+        .build();
+    DataFactoryEntities found = entityStore.getEntities(query).get();
+    assertEquals(150L, found.count().longValue());
+    assertEquals(150, found.entities().size());
+    for (int i = 0; i < 150; i++) {
+      assertEquals(149 - i, found.entities().get(i).propertyMap().get("index"));
+    }
+    assertEquals(150L, entityStore.count(query).longValue());
+    assertTrue(entityStore.exists(query));
+  }
+
+  @Test
+  public void testRemoveEntitiesByIds() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    EntityStore entityStore = DataFactory.getInstance().getEntityStore();
+    DataFactoryEntity[] entities = new DataFactoryEntity[25];
+    for (int i = 0; i < entities.length; i++) {
+      entities[i] = new DataFactoryEntityBuilder()
+          .environment(environment)
+          .entityType("Foo")
+          .putPropertyMap("index", i)
+          .build();
+    }
+    List<DataFactoryEntity> foos =
+        entityStore.saveEntities(entities, ResponseMode.ID).get().entities();
+    DataFactoryEntity bar = entityStore.saveEntity(new DataFactoryEntityBuilder()
+        .environment(environment)
+        .entityType("Bar")
+        .addActions(ImmutableLinkAction.builder()
+            .linkName("foos")
+            .otherEntityId(foos.get(0).entityId())
+            .isSet(false)
+            .build())
+        .addActions(ImmutableLinkAction.builder()
+            .linkName("foos")
+            .otherEntityId(foos.get(24).entityId())
+            .isSet(false)
+            .build())
+        .build()).get();
+
+    List<String> entityIds = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      entityIds.add(foos.get(i).entityId());
+    }
+    System.setProperty(Constants.DATAFACTORY_REMOVE_BATCH_ENVIRONMENT, "8");
+    try {
+      assertTrue(entityStore.removeEntities(new EntityQuery[] {new EntityQueryBuilder()
+          .environment(environment)
+          .entityIds(entityIds)
+          .build()}));
+    } finally {
+      System.clearProperty(Constants.DATAFACTORY_REMOVE_BATCH_ENVIRONMENT);
+    }
+
+    EntityQuery fooQuery = new EntityQueryBuilder()
+        .environment(environment)
+        .entityType("Foo")
+        .build();
+    assertEquals(5L, entityStore.count(fooQuery).longValue());
+    assertFalse(entityStore.exists(new EntityQueryBuilder()
+        .environment(environment)
+        .entityId(foos.get(0).entityId())
+        .build()));
+    // The link to the removed entity is gone, the link to the remaining one is kept
+    DataFactoryEntity linked = entityStore.getEntity(new EntityQueryBuilder()
+        .environment(environment)
+        .entityId(bar.entityId())
+        .addLinkQueries(new LinkQueryBuilder()
+            .linkName("foos")
+            .build())
+        .build()).get();
+    assertEquals(1, linked.links().get("foos").size());
+    assertEquals(foos.get(24).entityId(), linked.links().get("foos").iterator().next().entityId());
+
+    // Removal by type still removes every entity of the type
+    assertTrue(entityStore.removeEntity(fooQuery));
+    assertFalse(entityStore.exists(fooQuery));
+  }
+
+  @Test
+  public void testSaveEntitiesReportsPartialFailure() throws Exception {
+    EntityStore entityStore = DataFactory.getInstance().getEntityStore();
+    String first = TestEnvironment.getEnvironment();
+    String broken = TestEnvironment.getEnvironment();
+    String last = TestEnvironment.getEnvironment();
+    DataFactoryEntity[] entities = new DataFactoryEntity[3];
+    for (int i = 0; i < entities.length; i++) {
+      entities[i] = new DataFactoryEntityBuilder()
+          .environment(Arrays.asList(first, broken, last).get(i))
+          .entityType("Foo")
+          .putPropertyMap("foo", "bar")
+          .build();
+    }
+    entities[1] = new DataFactoryEntityBuilder()
+        .from(entities[1])
+        .addActions(ImmutableLinkAction.builder()
+            .linkName("baz")
+            .otherEntityId("0-1000")
+            .isSet(true)
+            .build())
+        .build();
+    try {
+      entityStore.saveEntities(entities);
+      fail("Save to " + broken + " should fail");
+    } catch (PartialFailureException e) {
+      assertEquals(Arrays.asList(first, last), e.getCommittedEnvironments());
+      assertTrue(e.getFailedEnvironments().containsKey(broken));
+    }
+    for (String environment : Arrays.asList(first, broken, last)) {
+      assertEquals(environment.equals(broken) ? 0L : 1L, entityStore.count(new EntityQueryBuilder()
+          .environment(environment)
+          .entityType("Foo")
+          .build()).longValue());
+    }
+  }
 }
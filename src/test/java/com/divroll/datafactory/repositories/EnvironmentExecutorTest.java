@@ -0,0 +1,86 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories;
+
+import com.divroll.datafactory.exceptions.DataFactoryException;
+import com.divroll.datafactory.exceptions.PartialFailureException;
+import com.divroll.datafactory.repositories.impl.EnvironmentExecutor;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class EnvironmentExecutorTest {
+
+  @Test
+  public void testRunsEnvironmentsInParallel() throws Exception {
+    EnvironmentExecutor executor = new EnvironmentExecutor(4);
+    List<String> environments = Arrays.asList("a", "b", "c", "d");
+    // Every environment waits for all the others, which only works if they run at the same time
+    CyclicBarrier barrier = new CyclicBarrier(environments.size());
+    executor.run(environments, dir -> {
+      try {
+        barrier.await(5, TimeUnit.SECONDS);
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+
+  @Test
+  public void testReportsPartialFailure() throws Exception {
+    for (int parallelism : new int[] {1, 4}) {
+      EnvironmentExecutor executor = new EnvironmentExecutor(parallelism);
+      try {
+        executor.run(Arrays.asList("a", "b", "c"), dir -> {
+          if (dir.equals("b")) {
+            throw new DataFactoryException("b is broken");
+          }
+        });
+        fail("Failure of b should be reported");
+      } catch (PartialFailureException e) {
+        assertEquals(Arrays.asList("a", "c"), e.getCommittedEnvironments());
+        assertEquals(Collections.singleton("b"), e.getFailedEnvironments().keySet());
+        assertTrue(e.getFailedEnvironments().get("b").contains("b is broken"));
+      }
+    }
+  }
+
+  @Test
+  public void testRethrowsFailureOfSingleEnvironment() throws Exception {
+    EnvironmentExecutor executor = new EnvironmentExecutor(4);
+    try {
+      executor.run(Collections.singletonList("a"), dir -> {
+        throw new IllegalStateException("a is broken");
+      });
+      fail("Failure of a should be thrown");
+    } catch (IllegalStateException e) {
+      assertEquals("a is broken", e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories;
+
+import com.divroll.datafactory.TestEnvironment;
+import com.divroll.datafactory.database.DatabaseManager;
+import com.divroll.datafactory.database.impl.DatabaseManagerImpl;
+import com.divroll.datafactory.exceptions.DataFactoryException;
+import com.divroll.datafactory.repositories.impl.GroupCommitter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class GroupCommitterTest {
+
+  @Test
+  public void testConcurrentWritesShareTransactions() throws Exception {
+    DatabaseManager manager = DatabaseManagerImpl.getInstance();
+    String environment = TestEnvironment.getEnvironment();
+    GroupCommitter committer = new GroupCommitter(manager, 64, 50);
+    int threads = 16;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      int index = i;
+      futures.add(executor.submit(() -> {
+        start.await();
+        committer.commit(environment,
+            txn -> txn.newEntity("Room").setProperty("index", index));
+        return null;
+      }));
+    }
+    start.countDown();
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+    AtomicLong count = new AtomicLong();
+    manager.transactPersistentEntityStore(environment, true,
+        txn -> count.set(txn.getAll("Room").size()));
+    assertEquals(threads, count.get());
+    assertEquals(threads, committer.getRequestCount());
+    assertTrue(committer.getCommitCount() < threads);
+  }
+
+  @Test
+  public void testFailedRequestRollsBackOnlyItself() throws Exception {
+    DatabaseManager manager = DatabaseManagerImpl.getInstance();
+    String environment = TestEnvironment.getEnvironment();
+    GroupCommitter committer = new GroupCommitter(manager, 64, 200);
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> futures = new ArrayList<>();
+    for (String name : new String[] {"first", "failing", "last"}) {
+      futures.add(executor.submit(() -> {
+        start.await();
+        committer.commit(environment, txn -> {
+          txn.newEntity("Room").setProperty("name", name);
+          if (name.equals("failing")) {
+            throw new DataFactoryException("Condition not satisfied");
+          }
+        });
+        return null;
+      }));
+    }
+    start.countDown();
+    for (int i = 0; i < futures.size(); i++) {
+      try {
+        futures.get(i).get();
+        assertTrue(i != 1);
+      } catch (ExecutionException e) {
+        assertEquals(1, i);
+        assertTrue(e.getCause() instanceof DataFactoryException);
+      }
+    }
+    executor.shutdown();
+
+    manager.transactPersistentEntityStore(environment, true, txn -> {
+      assertEquals(2L, txn.getAll("Room").size());
+      assertEquals(1L, txn.find("Room", "name", "first").size());
+      assertEquals(1L, txn.find("Room", "name", "last").size());
+      assertEquals(0L, txn.find("Room", "name", "failing").size());
+    });
+    assertEquals(2, committer.getRequestCount());
+  }
+
+  @Test
+  public void testFullGroupEndsLinger() throws Exception {
+    DatabaseManager manager = DatabaseManagerImpl.getInstance();
+    String environment = TestEnvironment.getEnvironment();
+    GroupCommitter committer = new GroupCommitter(manager, 4, 10000);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    long start = System.currentTimeMillis();
+    List<Future<?>> futures = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      futures.add(executor.submit(() -> {
+        committer.commit(environment, txn -> txn.newEntity("Room"));
+        return null;
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get(5, TimeUnit.SECONDS);
+    }
+    executor.shutdown();
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    assertEquals(1, committer.getCommitCount());
+    assertEquals(4, committer.getRequestCount());
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories;
+
+import com.divroll.datafactory.Constants;
+import com.divroll.datafactory.TestEnvironment;
+import com.divroll.datafactory.builders.DataFactoryEntity;
+import com.divroll.datafactory.builders.DataFactoryEntityBuilder;
+import com.divroll.datafactory.builders.queries.EntityQuery;
+import com.divroll.datafactory.builders.queries.EntityQueryBuilder;
+import com.divroll.datafactory.builders.queries.FieldQueryBuilder;
+import com.divroll.datafactory.database.impl.DatabaseManagerImpl;
+import com.divroll.datafactory.indexers.impl.LuceneIndexerImpl;
+import com.divroll.datafactory.repositories.impl.EntityStoreClientImpl;
+import com.divroll.datafactory.repositories.impl.EntityStoreImpl;
+import com.divroll.datafactory.repositories.impl.NearCache;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class NearCacheTest {
+
+  private static final int REGISTRY_PORT = 3499;
+
+  @Test
+  public void testCachedEntityIsInvalidatedByServer() throws Exception {
+    System.setProperty(Constants.JAVA_RMI_HOST_ENVIRONMENT, "localhost");
+    String environment = TestEnvironment.getEnvironment();
+    Registry registry = LocateRegistry.createRegistry(REGISTRY_PORT);
+    EntityStoreImpl server =
+        new EntityStoreImpl(DatabaseManagerImpl.getInstance(), LuceneIndexerImpl.getInstance());
+    registry.rebind(EntityStore.class.getName(), server);
+    NearCache nearCache = new NearCache(100, 0);
+    try {
+      EntityStoreClientImpl client =
+          new EntityStoreClientImpl("localhost", REGISTRY_PORT, 0, nearCache);
+      DataFactoryEntity saved = client.saveEntity(new DataFactoryEntityBuilder()
+          .environment(environment)
+          .entityType("Foo")
+          .putPropertyMap("foo", "bar")
+          .build()).get();
+      assertTrue(nearCache.isAttached());
+
+      EntityQuery query = new EntityQueryBuilder()
+          .environment(environment)
+          .entityId(saved.entityId())
+          .build();
+      for (int i = 0; i < 10; i++) {
+        assertEquals("bar", client.getEntity(query).get().propertyMap().get("foo"));
+      }
+      assertEquals(1, nearCache.getMissCount());
+      assertEquals(9, nearCache.getHitCount());
+
+      // Another writer updates the entity, the server pushes the invalidation to the client
+      server.saveEntity(new DataFactoryEntityBuilder()
+          .environment(environment)
+          .entityId(saved.entityId())
+          .putPropertyMap("foo", "baz")
+          .build());
+      await().atMost(5, TimeUnit.SECONDS).until(() -> nearCache.size() == 0);
+      assertEquals("baz", client.getEntity(query).get().propertyMap().get("foo"));
+
+      // Writes through the client are invalidated locally right away
+      client.saveEntity(new DataFactoryEntityBuilder()
+          .environment(environment)
+          .entityId(saved.entityId())
+          .putPropertyMap("foo", "qux")
+          .build());
+      assertEquals("qux", client.getEntity(query).get().propertyMap().get("foo"));
+    } finally {
+      nearCache.close();
+      UnicastRemoteObject.unexportObject(server, true);
+      UnicastRemoteObject.unexportObject(registry, true);
+    }
+  }
+
+  @Test
+  public void testHealthCheckRegistersDroppedListener() throws Exception {
+    System.setProperty(Constants.JAVA_RMI_HOST_ENVIRONMENT, "localhost");
+    String environment = TestEnvironment.getEnvironment();
+    Registry registry = LocateRegistry.createRegistry(REGISTRY_PORT);
+    EntityStoreImpl server =
+        new EntityStoreImpl(DatabaseManagerImpl.getInstance(), LuceneIndexerImpl.getInstance());
+    registry.rebind(EntityStore.class.getName(), server);
+    NearCache nearCache = new NearCache(100, 0);
+    try {
+      EntityStoreClientImpl client =
+          new EntityStoreClientImpl("localhost", REGISTRY_PORT, 0, nearCache);
+      DataFactoryEntity saved = client.saveEntity(new DataFactoryEntityBuilder()
+          .environment(environment)
+          .entityType("Foo")
+          .putPropertyMap("foo", "bar")
+          .build()).get();
+      EntityQuery query = new EntityQueryBuilder()
+          .environment(environment)
+          .entityId(saved.entityId())
+          .build();
+      assertEquals("bar", client.getEntity(query).get().propertyMap().get("foo"));
+
+      // The server drops the listener, e.g. after failing to reach it once
+      assertTrue(client.removeInvalidationListener(nearCache.listener()));
+      server.saveEntity(new DataFactoryEntityBuilder()
+          .environment(environment)
+          .entityId(saved.entityId())
+          .putPropertyMap("foo", "baz")
+          .build());
+      assertEquals(1, nearCache.size());
+
+      // The stub is still valid but the listener is registered again and the cache cleared
+      assertTrue(client.checkHealth());
+      assertTrue(nearCache.isAttached());
+      assertEquals(0, nearCache.size());
+      assertEquals("baz", client.getEntity(query).get().propertyMap().get("foo"));
+      assertFalse(client.addInvalidationListener(nearCache.listener()));
+    } finally {
+      nearCache.close();
+      UnicastRemoteObject.unexportObject(server, true);
+      UnicastRemoteObject.unexportObject(registry, true);
+    }
+  }
+
+  @Test
+  public void testOnlyWholeEntitiesByIdAreCacheable() {
+    EntityQuery byId = new EntityQueryBuilder()
+        .environment(TestEnvironment.getEnvironment())
+        .entityId("0-1")
+        .build();
+    assertTrue(NearCache.isCacheable(byId));
+    assertFalse(NearCache.isCacheable(new EntityQueryBuilder()
+        .from(byId)
+        .fields(new FieldQueryBuilder()
+            .addInclude("foo")
+            .build())
+        .build()));
+    assertFalse(NearCache.isCacheable(new EntityQueryBuilder()
+        .from(byId)
+        .addEntityIds("0-1", "0-2")
+        .build()));
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories;
+
+import com.divroll.datafactory.exceptions.RequestRejectedException;
+import com.divroll.datafactory.repositories.impl.RequestDispatcher;
+import com.divroll.datafactory.repositories.impl.RequestDispatcher.Lane;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class RequestDispatcherTest {
+
+  @Test
+  public void testRejectsWhenQueueIsFull() throws Exception {
+    RequestDispatcher dispatcher = new RequestDispatcher(1, 1, 1, 0, 10000);
+    CountDownLatch running = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> call(dispatcher, () -> {
+      running.countDown();
+      release.await();
+      return "first";
+    }));
+    running.await();
+    CompletableFuture<String> second =
+        CompletableFuture.supplyAsync(() -> call(dispatcher, () -> "second"));
+    while (dispatcher.getQueueDepth(Lane.INTERACTIVE) < 1) {
+      Thread.sleep(1);
+    }
+
+    try {
+      dispatcher.call(Lane.INTERACTIVE, () -> "third");
+      fail("Request should be rejected when the queue is full");
+    } catch (RequestRejectedException e) {
+      assertTrue(e.isRetryable());
+      assertEquals("interactive", e.getLane());
+    }
+    // The bulk lane is not affected by the saturated interactive lane
+    assertEquals("bulk", dispatcher.call(Lane.BULK, () -> "bulk"));
+
+    release.countDown();
+    assertEquals("first", first.get());
+    assertEquals("second", second.get());
+    assertEquals(0, dispatcher.getQueueDepth(Lane.INTERACTIVE));
+    assertEquals(0, dispatcher.getActiveCount(Lane.INTERACTIVE));
+    assertEquals(2, dispatcher.getAdmittedCount(Lane.INTERACTIVE));
+    assertEquals(1, dispatcher.getRejectedCount(Lane.INTERACTIVE));
+    assertTrue(dispatcher.getMaxWaitMillis(Lane.INTERACTIVE) > 0);
+  }
+
+  @Test
+  public void testRejectsAfterTimeout() throws Exception {
+    RequestDispatcher dispatcher = new RequestDispatcher(1, 0, 1, 1, 50);
+    CountDownLatch running = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> call(dispatcher,
+        Lane.BULK, () -> {
+          running.countDown();
+          release.await();
+          return "first";
+        }));
+    running.await();
+    try {
+      dispatcher.call(Lane.BULK, () -> "second");
+      fail("Request should be rejected after waiting too long");
+    } catch (RequestRejectedException e) {
+      assertEquals("bulk", e.getLane());
+    }
+    release.countDown();
+    assertEquals("first", first.get());
+  }
+
+  @Test
+  public void testNestedCallsAreNotQueued() throws Exception {
+    RequestDispatcher dispatcher = new RequestDispatcher(1, 0, 1, 0, 0);
+    String result = dispatcher.call(Lane.INTERACTIVE,
+        () -> dispatcher.call(Lane.BULK, () -> dispatcher.call(Lane.INTERACTIVE, () -> "nested")));
+    assertEquals("nested", result);
+    assertEquals(1, dispatcher.getAdmittedCount(Lane.INTERACTIVE));
+    assertEquals(0, dispatcher.getAdmittedCount(Lane.BULK));
+  }
+
+  @FunctionalInterface
+  private interface Blocking<T> {
+    T call() throws Exception;
+  }
+
+  private static <T> T call(RequestDispatcher dispatcher, Blocking<T> request) {
+    return call(dispatcher, Lane.INTERACTIVE, request);
+  }
+
+  private static <T> T call(RequestDispatcher dispatcher, Lane lane, Blocking<T> request) {
+    try {
+      return dispatcher.call(lane, () -> {
+        try {
+          return request.call();
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      });
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,243 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories;
+
+import com.divroll.datafactory.Constants;
+import com.divroll.datafactory.DataFactory;
+import com.divroll.datafactory.TestEnvironment;
+import com.divroll.datafactory.actions.ImmutableLinkAction;
+import com.divroll.datafactory.builders.DataFactoryEntities;
+import com.divroll.datafactory.builders.DataFactoryEntity;
+import com.divroll.datafactory.builders.DataFactoryEntityBuilder;
+import com.divroll.datafactory.builders.queries.EntityQuery;
+import com.divroll.datafactory.builders.queries.EntityQueryBuilder;
+import com.divroll.datafactory.builders.queries.LinkQueryBuilder;
+import com.divroll.datafactory.database.impl.DatabaseManagerImpl;
+import com.divroll.datafactory.exceptions.DataFactoryException;
+import com.divroll.datafactory.indexers.impl.LuceneIndexerImpl;
+import com.divroll.datafactory.repositories.impl.EntityStoreImpl;
+import com.divroll.datafactory.repositories.impl.ShardRouter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class ShardingTest {
+
+  private static final int SHARDS = 4;
+
+  @Test
+  public void testScatterGather() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    EntityStore entityStore = shardedEntityStore(environment);
+    EntityStore unsharded = DataFactory.getInstance().getEntityStore();
+    String single = TestEnvironment.getEnvironment();
+    DataFactoryEntity[] entities = new DataFactoryEntity[40];
+    DataFactoryEntity[] copies = new DataFactoryEntity[40];
+    for (int i = 0; i < entities.length; i++) {
+      // Saved out of order so the pages have to be merged
+      int index = (i * 7) % entities.length;
+      entities[i] = new DataFactoryEntityBuilder()
+          .environment(environment)
+          .entityType("Room")
+          .putPropertyMap("index", index)
+          .build();
+      copies[i] = new DataFactoryEntityBuilder()
+          .from(entities[i])
+          .environment(single)
+          .build();
+    }
+    List<DataFactoryEntity> saved = entityStore.saveEntities(entities).get().entities();
+    unsharded.saveEntities(copies);
+    assertEquals(40, saved.size());
+    for (DataFactoryEntity entity : saved) {
+      assertEquals(environment, entity.environment());
+      assertTrue(entity.entityId().contains(":"));
+    }
+
+    ShardRouter router = new ShardRouter(Collections.singletonMap(environment, SHARDS));
+    for (int shard = 0; shard < SHARDS; shard++) {
+      assertEquals(10L, unsharded.count(new EntityQueryBuilder()
+          .environment(router.getDirectory(environment, shard))
+          .entityType("Room")
+          .build()).longValue());
+    }
+
+    for (boolean ascending : new boolean[] {true, false}) {
+      DataFactoryEntities page = entityStore.getEntities(new EntityQueryBuilder()
+          .environment(environment)
+          .entityType("Room")
+          .sort("index")
+          .sortAscending(ascending)
+          .offset(5)
+          .max(10)
+          .build()).get();
+      DataFactoryEntities expected = unsharded.getEntities(new EntityQueryBuilder()
+          .environment(single)
+          .entityType("Room")
+          .sort("index")
+          .sortAscending(ascending)
+          .offset(5)
+          .max(10)
+          .build()).get();
+      assertEquals(40L, page.count().longValue());
+      assertEquals(indexes(expected), indexes(page));
+      assertEquals(ascending ? 5 : 34, indexes(page).get(0).intValue());
+    }
+
+    DataFactoryEntity first = saved.get(0);
+    DataFactoryEntity found = entityStore.getEntity(new EntityQueryBuilder()
+        .environment(environment)
+        .entityId(first.entityId())
+        .build()).get();
+    assertEquals(first.entityId(), found.entityId());
+    assertEquals(first.propertyMap().get("index"), found.propertyMap().get("index"));
+
+    DataFactoryEntities byIds = entityStore.getEntities(new EntityQueryBuilder()
+        .environment(environment)
+        .entityIds(Arrays.asList(saved.get(3).entityId(), saved.get(0).entityId(),
+            saved.get(2).entityId()))
+        .build()).get();
+    assertEquals(Arrays.asList(saved.get(3).entityId(), saved.get(0).entityId(),
+        saved.get(2).entityId()), entityIds(byIds));
+  }
+
+  @Test
+  public void testRouting() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    EntityStore entityStore = shardedEntityStore(environment);
+    List<String> shards = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      DataFactoryEntity saved = entityStore.saveEntity(new DataFactoryEntityBuilder()
+          .environment(environment)
+          .entityType("Room")
+          .putPropertyMap(Constants.NAMESPACE_PROPERTY, "tenant")
+          .putPropertyMap("index", i)
+          .build()).get();
+      shards.add(saved.entityId().substring(0, saved.entityId().indexOf(':')));
+    }
+    // Entities of a name space stay together
+    assertEquals(1, shards.stream().distinct().count());
+
+    DataFactoryEntity room = entityStore.saveEntity(new DataFactoryEntityBuilder()
+        .environment(environment)
+        .entityType("Room")
+        .build()).get();
+    DataFactoryEntity guest = entityStore.saveEntity(new DataFactoryEntityBuilder()
+        .environment(environment)
+        .entityType("Guest")
+        .addActions(ImmutableLinkAction.builder()
+            .linkName("room")
+            .otherEntityId(room.entityId())
+            .isSet(true)
+            .build())
+        .build()).get();
+    // New entities follow the entities they link to
+    assertEquals(room.entityId().substring(0, 2), guest.entityId().substring(0, 2));
+    DataFactoryEntity linked = entityStore.getEntity(new EntityQueryBuilder()
+        .environment(environment)
+        .entityId(guest.entityId())
+        .addLinkQueries(new LinkQueryBuilder()
+            .linkName("room")
+            .build())
+        .build()).get();
+    assertEquals(room.entityId(), linked.links().get("room").iterator().next().entityId());
+
+    EntityQuery roomQuery = new EntityQueryBuilder()
+        .environment(environment)
+        .entityType("Room")
+        .build();
+    assertEquals(9L, entityStore.count(roomQuery).longValue());
+    assertTrue(entityStore.removeEntity(new EntityQueryBuilder()
+        .environment(environment)
+        .entityId(room.entityId())
+        .build()));
+    assertEquals(8L, entityStore.count(roomQuery).longValue());
+    assertEquals(8L, entityStore.count(new EntityQueryBuilder()
+        .environment(environment)
+        .entityType("Room")
+        .nameSpace("tenant")
+        .build()).longValue());
+
+    EntityQuery guestQuery = new EntityQueryBuilder()
+        .environment(environment)
+        .entityType("Guest")
+        .build();
+    assertTrue(entityStore.exists(guestQuery));
+    assertTrue(entityStore.removeEntity(guestQuery));
+    assertFalse(entityStore.exists(guestQuery));
+
+    try {
+      entityStore.openCursor(roomQuery);
+      fail("Cursors span a single environment");
+    } catch (DataFactoryException e) {
+      // expected
+    }
+  }
+
+  private static EntityStore shardedEntityStore(String environment) throws Exception {
+    System.setProperty(Constants.DATAFACTORY_SHARDS_ENVIRONMENT, environment + "=" + SHARDS);
+    try {
+      return new EntityStoreImpl(DatabaseManagerImpl.getInstance(),
+          LuceneIndexerImpl.getInstance());
+    } finally {
+      System.clearProperty(Constants.DATAFACTORY_SHARDS_ENVIRONMENT);
+    }
+  }
+
+  private static List<Integer> indexes(DataFactoryEntities entities) {
+    List<Integer> indexes = new ArrayList<>();
+    entities.entities().forEach(entity -> indexes.add((Integer) entity.propertyMap().get("index")));
+    return indexes;
+  }
+
+  private static List<String> entityIds(DataFactoryEntities entities) {
+    List<String> entityIds = new ArrayList<>();
+    entities.entities().forEach(entity -> entityIds.add(entity.entityId()));
+    return entityIds;
+  }
+
+  @Test
+  public void testScatterIsBounded() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    ShardRouter router = new ShardRouter(Collections.singletonMap(environment, 8), 2);
+    Thread caller = Thread.currentThread();
+    List<Thread> threads = router.scatter(environment, shard -> Thread.currentThread());
+    assertEquals(8, threads.size());
+    assertSame(caller, threads.get(0));
+    assertTrue(new HashSet<>(threads.subList(1, threads.size())).size() <= 2);
+    assertFalse(threads.subList(1, threads.size()).contains(caller));
+
+    // Without a pool every shard runs on the calling thread
+    ShardRouter sequential = new ShardRouter(Collections.singletonMap(environment, 3), 1);
+    assertEquals(Arrays.asList(caller, caller, caller),
+        sequential.scatter(environment, shard -> Thread.currentThread()));
+  }
+}
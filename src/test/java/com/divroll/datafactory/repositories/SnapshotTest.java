@@ -0,0 +1,151 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories;
+
+import com.divroll.datafactory.DataFactory;
+import com.divroll.datafactory.TestEnvironment;
+import com.divroll.datafactory.builders.DataFactoryEntities;
+import com.divroll.datafactory.builders.DataFactoryEntity;
+import com.divroll.datafactory.builders.DataFactoryEntityBuilder;
+import com.divroll.datafactory.builders.queries.EntityQuery;
+import com.divroll.datafactory.builders.queries.EntityQueryBuilder;
+import com.divroll.datafactory.exceptions.DataFactoryException;
+import com.divroll.datafactory.repositories.impl.ClientContext;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class SnapshotTest {
+
+  @Test
+  public void testSnapshotSessionIsConsistent() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    EntityStore entityStore = DataFactory.getInstance().getEntityStore();
+    entityStore.saveEntities(rooms(environment, 0, 30));
+
+    String snapshotId = entityStore.openSnapshot(environment);
+    // Writes after the session is opened are not visible to it, and are not held up by it
+    entityStore.saveEntities(rooms(environment, 30, 5));
+
+    EntityQuery all = new EntityQueryBuilder()
+        .environment(environment)
+        .entityType("Room")
+        .build();
+    assertEquals(30L, entityStore.count(snapshotId, all).longValue());
+    assertEquals(35L, entityStore.count(all).longValue());
+
+    Set<Object> seen = new HashSet<>();
+    for (int page = 0; page < 3; page++) {
+      DataFactoryEntities entities = entityStore.getEntities(snapshotId, new EntityQueryBuilder()
+          .environment(environment)
+          .entityType("Room")
+          .offset(page * 10)
+          .max(10)
+          .build()).get();
+      assertEquals(10, entities.entities().size());
+      entities.entities().forEach(entity -> seen.add(entity.propertyMap().get("index")));
+    }
+    assertEquals(30, seen.size());
+    assertFalse(seen.contains(30));
+
+    assertTrue(entityStore.closeSnapshot(snapshotId));
+    assertFalse(entityStore.closeSnapshot(snapshotId));
+    try {
+      entityStore.count(snapshotId, all);
+      fail("Closed snapshot must not be readable");
+    } catch (DataFactoryException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testSnapshotOfOtherEnvironment() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    EntityStore entityStore = DataFactory.getInstance().getEntityStore();
+    String snapshotId = entityStore.openSnapshot(environment);
+    try {
+      entityStore.count(snapshotId, new EntityQueryBuilder()
+          .environment(TestEnvironment.getEnvironment())
+          .entityType("Room")
+          .build());
+      fail("Queries of another environment must be rejected");
+    } catch (DataFactoryException e) {
+      // expected
+    } finally {
+      entityStore.closeSnapshot(snapshotId);
+    }
+  }
+
+  private static DataFactoryEntity[] rooms(String environment, int from, int count) {
+    DataFactoryEntity[] entities = new DataFactoryEntity[count];
+    for (int i = 0; i < count; i++) {
+      entities[i] = new DataFactoryEntityBuilder()
+          .environment(environment)
+          .entityType("Room")
+          .putPropertyMap("index", from + i)
+          .build();
+    }
+    return entities;
+  }
+
+  @Test
+  public void testSnapshotBelongsToClient() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    EntityStore entityStore = DataFactory.getInstance().getEntityStore();
+    entityStore.saveEntity(new DataFactoryEntityBuilder()
+        .environment(environment)
+        .entityType("Room")
+        .build());
+    EntityQuery query = new EntityQueryBuilder()
+        .environment(environment)
+        .entityType("Room")
+        .build();
+    ClientContext.enter("nio:owner");
+    String snapshotId;
+    try {
+      snapshotId = entityStore.openSnapshot(environment);
+    } finally {
+      ClientContext.exit();
+    }
+    ClientContext.enter("nio:other");
+    try {
+      entityStore.count(snapshotId, query);
+      fail("Snapshot of another client must not be readable");
+    } catch (DataFactoryException e) {
+      assertFalse(entityStore.closeSnapshot(snapshotId));
+    } finally {
+      ClientContext.exit();
+    }
+    ClientContext.enter("nio:owner");
+    try {
+      assertEquals(1L, entityStore.count(snapshotId, query).longValue());
+      assertTrue(entityStore.closeSnapshot(snapshotId));
+    } finally {
+      ClientContext.exit();
+    }
+  }
+}
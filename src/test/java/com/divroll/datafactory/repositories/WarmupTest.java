@@ -0,0 +1,124 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories;
+
+import com.divroll.datafactory.TestEnvironment;
+import com.divroll.datafactory.builders.DataFactoryEntityBuilder;
+import com.divroll.datafactory.builders.queries.EntityQuery;
+import com.divroll.datafactory.builders.queries.EntityQueryBuilder;
+import com.divroll.datafactory.database.impl.DatabaseManagerImpl;
+import com.divroll.datafactory.indexers.impl.LuceneIndexerImpl;
+import com.divroll.datafactory.repositories.impl.EntityStoreImpl;
+import com.divroll.datafactory.repositories.impl.HotQueryRecorder;
+import com.divroll.datafactory.repositories.impl.Warmup;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class WarmupTest {
+
+  @Test
+  public void testRecordingSurvivesRestart() throws Exception {
+    File file = new File("/tmp/test/warmup-" + UUID.randomUUID() + ".bin");
+    String first = TestEnvironment.getEnvironment();
+    String second = TestEnvironment.getEnvironment();
+    EntityQuery rooms = new EntityQueryBuilder()
+        .environment(first)
+        .entityType("Room")
+        .build();
+    EntityQuery guests = new EntityQueryBuilder()
+        .environment(second)
+        .entityType("Guest")
+        .build();
+    HotQueryRecorder recorder = new HotQueryRecorder(10, 10, file);
+    recorder.record(guests);
+    // Every page of a query counts as the query
+    for (int i = 0; i < 3; i++) {
+      recorder.record(new EntityQueryBuilder()
+          .from(rooms)
+          .offset(i * 10)
+          .max(10)
+          .build());
+    }
+    // Lookups by id are not worth replaying
+    recorder.record(new EntityQueryBuilder()
+        .environment(second)
+        .entityId("0-0")
+        .build());
+    recorder.save();
+
+    HotQueryRecorder restarted = new HotQueryRecorder(10, 10, file);
+    restarted.load();
+    assertEquals(Arrays.asList(rooms, guests), restarted.getQueries());
+    assertEquals(Arrays.asList(second, first), restarted.getEnvironments());
+  }
+
+  @Test
+  public void testWarmupOpensEnvironmentsAndReplaysQueries() throws Exception {
+    DatabaseManagerImpl manager = DatabaseManagerImpl.getInstance();
+    EntityStoreImpl entityStore =
+        new EntityStoreImpl(manager, LuceneIndexerImpl.getInstance());
+    String environment = TestEnvironment.getEnvironment();
+    String empty = TestEnvironment.getEnvironment();
+    entityStore.saveEntity(new DataFactoryEntityBuilder()
+        .environment(environment)
+        .entityType("Room")
+        .putPropertyMap("index", 0)
+        .build());
+    manager.closeEnvironment(environment);
+    assertFalse(manager.getLogCacheSizes().containsKey(environment));
+
+    Warmup warmup = new Warmup(Arrays.asList(environment, empty), Arrays.asList(
+        new EntityQueryBuilder()
+            .environment(environment)
+            .entityType("Room")
+            .build(),
+        // Queries without a type fail, the warm-up goes on
+        new EntityQueryBuilder()
+            .environment(empty)
+            .build()));
+    assertFalse(warmup.isDone());
+    warmup.run(entityStore, manager, 2);
+
+    assertTrue(warmup.isDone());
+    assertEquals(4, warmup.getTotal());
+    assertEquals(4, warmup.getCompleted());
+    assertEquals(1, warmup.getFailed());
+    assertTrue(manager.getLogCacheSizes().containsKey(environment));
+    assertTrue(manager.getLogCacheSizes().containsKey(empty));
+  }
+
+  @Test
+  public void testEmptyWarmupIsDone() throws Exception {
+    Warmup warmup = new Warmup(Collections.emptyList(), Collections.emptyList());
+    warmup.run(new EntityStoreImpl(DatabaseManagerImpl.getInstance(),
+        LuceneIndexerImpl.getInstance()), DatabaseManagerImpl.getInstance(), 1);
+    assertTrue(warmup.isDone());
+    assertEquals(0, warmup.getTotal());
+  }
+}
@@ -0,0 +1,266 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.repositories;
+
+import com.divroll.datafactory.DataFactory;
+import com.divroll.datafactory.TestEnvironment;
+import com.divroll.datafactory.builders.DataFactoryEntity;
+import com.divroll.datafactory.builders.DataFactoryEntityBuilder;
+import com.divroll.datafactory.conditions.PropertyStartsWithConditionBuilder;
+import com.divroll.datafactory.exceptions.DataFactoryException;
+import com.divroll.datafactory.exceptions.PartialFailureException;
+import com.divroll.datafactory.exceptions.RequestRejectedException;
+import com.divroll.datafactory.exceptions.UnsatisfiedConditionException;
+import com.divroll.datafactory.repositories.impl.ShardRouter;
+import com.divroll.datafactory.repositories.impl.WriteBatcherImpl;
+import io.vavr.control.Option;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class WriteBatcherTest {
+
+  @Test
+  public void testSavesAreCoalesced() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    AtomicInteger calls = new AtomicInteger();
+    EntityStore entityStore = countingStore(calls);
+    // Let the first save open the environment
+    entityStore.saveEntity(entity(environment, -1));
+    calls.set(0);
+
+    ExecutorService callers = Executors.newFixedThreadPool(8);
+    ExecutorService senders = Executors.newFixedThreadPool(2);
+    try (WriteBatcher batcher = new WriteBatcherImpl(entityStore, senders, 50, 20)) {
+      List<CompletableFuture<Option<DataFactoryEntity>>> futures = new ArrayList<>();
+      List<CompletableFuture<Void>> submitted = new ArrayList<>();
+      for (int i = 0; i < 200; i++) {
+        int index = i;
+        CompletableFuture<Option<DataFactoryEntity>> future = new CompletableFuture<>();
+        futures.add(future);
+        submitted.add(CompletableFuture.runAsync(() ->
+            batcher.saveEntity(entity(environment, index)).whenComplete((saved, throwable) -> {
+              if (throwable != null) {
+                future.completeExceptionally(throwable);
+              } else {
+                future.complete(saved);
+              }
+            }), callers));
+      }
+      CompletableFuture.allOf(submitted.toArray(new CompletableFuture[0])).join();
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+      for (int i = 0; i < futures.size(); i++) {
+        DataFactoryEntity saved = futures.get(i).get().get();
+        assertNotNull(saved.entityId());
+        assertEquals(i, saved.propertyMap().get("index"));
+      }
+      assertEquals(0, batcher.pending());
+    } finally {
+      callers.shutdown();
+      senders.shutdown();
+    }
+    assertTrue("Expected batched calls but got " + calls.get(), calls.get() < 200);
+  }
+
+  @Test
+  public void testFailureOnlyFailsItsCaller() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    EntityStore entityStore = DataFactory.getInstance().getEntityStore();
+    DataFactoryEntity existing = entityStore.saveEntity(entity(environment, 0)).get();
+    ExecutorService senders = Executors.newSingleThreadExecutor();
+    try (WriteBatcher batcher = new WriteBatcherImpl(entityStore, senders, 3, 1000)) {
+      CompletableFuture<Option<DataFactoryEntity>> first = batcher.saveEntity(
+          entity(environment, 1));
+      CompletableFuture<Option<DataFactoryEntity>> failing = batcher.saveEntity(
+          new DataFactoryEntityBuilder()
+              .environment(environment)
+              .entityId(existing.entityId())
+              .putPropertyMap("index", 2)
+              .addConditions(new PropertyStartsWithConditionBuilder()
+                  .propertyName("foo")
+                  .startsWith("fooBaz")
+                  .build())
+              .build());
+      CompletableFuture<Option<DataFactoryEntity>> last = batcher.saveEntity(
+          entity(environment, 3));
+      assertEquals(1, first.join().get().propertyMap().get("index"));
+      assertEquals(3, last.join().get().propertyMap().get("index"));
+      try {
+        failing.join();
+        fail("Entity with an unsatisfied condition must not be saved");
+      } catch (CompletionException e) {
+        assertTrue(e.getCause() instanceof UnsatisfiedConditionException);
+      }
+    } finally {
+      senders.shutdown();
+    }
+  }
+
+  @Test
+  public void testFailureAfterSendFailsTheBatch() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    AtomicInteger singleSaves = new AtomicInteger();
+    EntityStore entityStore = (EntityStore) Proxy.newProxyInstance(
+        EntityStore.class.getClassLoader(), new Class<?>[] {EntityStore.class},
+        (proxy, method, args) -> {
+          if (method.getName().equals("saveEntity")) {
+            singleSaves.incrementAndGet();
+          }
+          throw new RemoteException("Connection reset after the batch was sent");
+        });
+    ExecutorService senders = Executors.newSingleThreadExecutor();
+    try (WriteBatcher batcher = new WriteBatcherImpl(entityStore, senders, 2, 1000)) {
+      CompletableFuture<Option<DataFactoryEntity>> first =
+          batcher.saveEntity(entity(environment, 1));
+      CompletableFuture<Option<DataFactoryEntity>> second =
+          batcher.saveEntity(entity(environment, 2));
+      for (CompletableFuture<Option<DataFactoryEntity>> future : Arrays.asList(first, second)) {
+        try {
+          future.join();
+          fail("Failed batch must fail its callers");
+        } catch (CompletionException e) {
+          assertTrue(e.getCause() instanceof RemoteException);
+        }
+      }
+    } finally {
+      senders.shutdown();
+    }
+    assertEquals(0, singleSaves.get());
+  }
+
+  @Test
+  public void testLingerTimerOnlyFlushesItsOwnBatch() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    EntityStore entityStore = DataFactory.getInstance().getEntityStore();
+    ExecutorService senders = Executors.newSingleThreadExecutor();
+    try (WriteBatcher batcher = new WriteBatcherImpl(entityStore, senders, 2, 500)) {
+      // The first batch fills up and is sent right away, its linger timer is still scheduled
+      batcher.saveEntity(entity(environment, 1));
+      batcher.saveEntity(entity(environment, 2)).join();
+      Thread.sleep(300);
+      CompletableFuture<Option<DataFactoryEntity>> next =
+          batcher.saveEntity(entity(environment, 3));
+      Thread.sleep(300);
+      assertEquals(1, batcher.pending());
+      assertEquals(3, next.join().get().propertyMap().get("index"));
+    } finally {
+      senders.shutdown();
+    }
+  }
+
+  @Test
+  public void testRejectedBatchIsNotSent() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    AtomicInteger calls = new AtomicInteger();
+    EntityStore entityStore = countingStore(calls);
+    ExecutorService senders = Executors.newSingleThreadExecutor();
+    senders.shutdown();
+    try (WriteBatcher batcher = new WriteBatcherImpl(entityStore, senders, 1, 1000)) {
+      try {
+        batcher.saveEntity(entity(environment, 1)).join();
+        fail("Batch rejected by the executor must fail");
+      } catch (CompletionException e) {
+        assertTrue(e.getCause() instanceof RequestRejectedException);
+      }
+    }
+    assertEquals(0, calls.get());
+  }
+
+  @Test
+  public void testPartialFailureOfShards() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    ShardRouter router = new ShardRouter(Collections.singletonMap(environment, 2), 1);
+    List<DataFactoryEntity> retried = new ArrayList<>();
+    EntityStore entityStore = (EntityStore) Proxy.newProxyInstance(
+        EntityStore.class.getClassLoader(), new Class<?>[] {EntityStore.class},
+        (proxy, method, args) -> {
+          if (method.getName().equals("saveEntity")) {
+            retried.add((DataFactoryEntity) args[0]);
+            return Option.of(args[0]);
+          }
+          throw new PartialFailureException(
+              Collections.singletonList(router.getDirectory(environment, 0)),
+              Collections.singletonMap(router.getDirectory(environment, 1),
+                  new DataFactoryException("Condition not satisfied")));
+        });
+    ExecutorService senders = Executors.newSingleThreadExecutor();
+    try (WriteBatcher batcher =
+        new WriteBatcherImpl(entityStore, senders, 3, 1000, router)) {
+      CompletableFuture<Option<DataFactoryEntity>> committed = batcher.saveEntity(
+          new DataFactoryEntityBuilder().from(entity(environment, 1)).entityId("0:1-1").build());
+      CompletableFuture<Option<DataFactoryEntity>> rolledBack = batcher.saveEntity(
+          new DataFactoryEntityBuilder().from(entity(environment, 2)).entityId("1:1-2").build());
+      CompletableFuture<Option<DataFactoryEntity>> unknown =
+          batcher.saveEntity(entity(environment, 3));
+      assertTrue(committed.join().isEmpty());
+      assertEquals("1:1-2", rolledBack.join().get().entityId());
+      try {
+        unknown.join();
+        fail("Entity of an unknown shard must fail");
+      } catch (CompletionException e) {
+        assertTrue(e.getCause() instanceof PartialFailureException);
+      }
+      assertEquals(1, retried.size());
+    } finally {
+      senders.shutdown();
+    }
+  }
+
+  private static DataFactoryEntity entity(String environment, int index) {
+    return new DataFactoryEntityBuilder()
+        .environment(environment)
+        .entityType("Foo")
+        .putPropertyMap("foo", "fooBar")
+        .putPropertyMap("index", index)
+        .build();
+  }
+
+  private static EntityStore countingStore(AtomicInteger calls) throws Exception {
+    EntityStore entityStore = DataFactory.getInstance().getEntityStore();
+    return (EntityStore) Proxy.newProxyInstance(EntityStore.class.getClassLoader(),
+        new Class<?>[] {EntityStore.class}, (proxy, method, args) -> {
+          if (method.getName().startsWith("save")) {
+            calls.incrementAndGet();
+          }
+          try {
+            return method.invoke(entityStore, args);
+          } catch (InvocationTargetException e) {
+            throw e.getCause();
+          }
+        });
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.transport;
+
+import com.divroll.datafactory.actions.ImmutableLinkAction;
+import com.divroll.datafactory.builders.DataFactoryEntities;
+import com.divroll.datafactory.builders.DataFactoryEntitiesBuilder;
+import com.divroll.datafactory.builders.DataFactoryEntity;
+import com.divroll.datafactory.builders.DataFactoryEntityBuilder;
+import com.divroll.datafactory.builders.queries.EntityQuery;
+import com.divroll.datafactory.builders.queries.EntityQueryBuilder;
+import com.divroll.datafactory.builders.queries.FieldQueryBuilder;
+import com.divroll.datafactory.conditions.PropertyEqualConditionBuilder;
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import io.vavr.control.Option;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the compact codec, including a size and time comparison with default serialization.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class CompactCodecTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CompactCodecTest.class);
+
+  private static final int ITERATIONS = 2000;
+
+  @Test
+  public void testEntityRoundTrip() throws Exception {
+    DataFactoryEntity entity = new DataFactoryEntityBuilder()
+        .environment("/tmp/datafactory")
+        .entityType("Room")
+        .nameSpace("tenant")
+        .entityId("3-1024")
+        .putPropertyMap("name", "Lobby")
+        .putPropertyMap("floor", -1)
+        .putPropertyMap("area", 120.5)
+        .putPropertyMap("visits", Long.MAX_VALUE)
+        .putPropertyMap("open", true)
+        .putLinks("building", new DataFactoryEntityBuilder()
+            .environment("/tmp/datafactory")
+            .entityType("Building")
+            .entityId("2-7")
+            .putPropertyMap("name", "Tower")
+            .build())
+        .blobNames("photo")
+        .linkNames("building", "owner")
+        .addActions(ImmutableLinkAction.builder()
+            .linkName("owner")
+            .otherEntityId("1-0")
+            .isSet(true)
+            .build())
+        .build();
+    assertEquals(entity, roundTrip(entity));
+
+    DataFactoryEntity withNulls = new DataFactoryEntityBuilder()
+        .environment("/tmp/datafactory")
+        .entityId("not-a-numeric-id")
+        .blobs(null)
+        .links(null)
+        .actions(null)
+        .build();
+    DataFactoryEntity decoded = roundTrip(withNulls);
+    assertEquals(withNulls, decoded);
+    assertNull(decoded.links());
+    assertNull(decoded.blobNames());
+  }
+
+  @Test
+  public void testQueryRoundTrip() throws Exception {
+    EntityQuery query = new EntityQueryBuilder()
+        .environment("/tmp/datafactory")
+        .entityType("Room")
+        .addEntityIds("3-1", "3-2", "custom")
+        .first(true)
+        .offset(10)
+        .max(20)
+        .sort("name")
+        .sortAscending(false)
+        .fields(new FieldQueryBuilder()
+            .addInclude("name", "floor")
+            .build())
+        .addConditions(new PropertyEqualConditionBuilder()
+            .propertyName("name")
+            .propertyValue("Lobby")
+            .build())
+        .build();
+    assertEquals(query, roundTrip(query));
+  }
+
+  @Test
+  public void testPageIsSmallerAndFaster() throws Exception {
+    Option<DataFactoryEntities> page = Option.of(page(100));
+    assertEquals(page, roundTrip(page));
+
+    byte[] java = serialize(page, false);
+    byte[] compact = serialize(page, true);
+    LOG.info("Default serialization: " + java.length + " bytes per page");
+    LOG.info("Compact serialization: " + compact.length + " bytes per page");
+    assertTrue(compact.length < java.length * 2 / 3);
+
+    // Warm up both paths
+    time(page, false);
+    time(page, true);
+    long javaTime = time(page, false);
+    long compactTime = time(page, true);
+    LOG.info("Default serialization: " + (javaTime / ITERATIONS) + " us per page round trip");
+    LOG.info("Compact serialization: " + (compactTime / ITERATIONS) + " us per page round trip");
+  }
+
+  private static DataFactoryEntities page(int size) {
+    DataFactoryEntitiesBuilder builder = new DataFactoryEntitiesBuilder();
+    for (int i = 0; i < size; i++) {
+      builder.addEntities(new DataFactoryEntityBuilder()
+          .environment("/var/lib/datafactory/production")
+          .entityType("Room")
+          .entityId("3-" + i)
+          .putPropertyMap("name", "Room " + i)
+          .putPropertyMap("floor", i % 10)
+          .putPropertyMap("capacity", 4L)
+          .putPropertyMap("rating", 4.5)
+          .putPropertyMap("available", i % 2 == 0)
+          .putPropertyMap("dateCreated", "2020-01-01T00:00Z")
+          .putPropertyMap("dateUpdated", "2020-01-02T00:00Z")
+          .build());
+    }
+    return builder.offset(0).max(size).count(1000L).build();
+  }
+
+  /**
+   * @return elapsed microseconds to encode and decode the object {@code ITERATIONS} times
+   */
+  private static long time(Object object, boolean compact) throws Exception {
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      EntityStoreProtocol.deserialize(serialize(object, compact));
+    }
+    return (System.nanoTime() - start) / 1000;
+  }
+
+  private static byte[] serialize(Object object, boolean compact) throws IOException {
+    if (compact) {
+      return EntityStoreProtocol.serialize(object);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(object);
+    }
+    return bytes.toByteArray();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T roundTrip(T object) throws IOException {
+    byte[] bytes = EntityStoreProtocol.serialize(object);
+    return (T) EntityStoreProtocol.deserialize(bytes);
+  }
+}
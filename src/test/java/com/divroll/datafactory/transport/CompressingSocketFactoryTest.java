@@ -0,0 +1,127 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.transport;
+
+import com.divroll.datafactory.Constants;
+import com.divroll.datafactory.TestEnvironment;
+import com.divroll.datafactory.builders.DataFactoryEntities;
+import com.divroll.datafactory.builders.DataFactoryEntity;
+import com.divroll.datafactory.builders.DataFactoryEntityBuilder;
+import com.divroll.datafactory.builders.queries.EntityQueryBuilder;
+import com.divroll.datafactory.database.impl.DatabaseManagerImpl;
+import com.divroll.datafactory.indexers.impl.LuceneIndexerImpl;
+import com.divroll.datafactory.repositories.EntityStore;
+import com.divroll.datafactory.repositories.impl.EntityStoreClientImpl;
+import com.divroll.datafactory.repositories.impl.EntityStoreImpl;
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class CompressingSocketFactoryTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CompressingSocketFactoryTest.class);
+  private static final int RMI_PORT = 3399;
+
+  @Test
+  public void testStreamRoundTrip() throws Exception {
+    byte[] redundant = new byte[200 * 1024];
+    for (int i = 0; i < redundant.length; i++) {
+      redundant[i] = (byte) (i % 16);
+    }
+    byte[] random = new byte[10 * 1024];
+    new Random(42).nextBytes(random);
+    byte[] small = "small".getBytes();
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CompressingSocket.CompressingOutputStream out =
+        new CompressingSocket.CompressingOutputStream(bytes, 1024);
+    out.write(redundant);
+    out.flush();
+    out.write(random);
+    out.flush();
+    out.write(small);
+    out.flush();
+    assertTrue(bytes.size() < redundant.length);
+
+    DataInputStream in = new DataInputStream(new CompressingSocket.DecompressingInputStream(
+        new ByteArrayInputStream(bytes.toByteArray())));
+    byte[] read = new byte[redundant.length];
+    in.readFully(read);
+    assertArrayEquals(redundant, read);
+    read = new byte[random.length];
+    in.readFully(read);
+    assertArrayEquals(random, read);
+    read = new byte[small.length];
+    in.readFully(read);
+    assertArrayEquals(small, read);
+    assertEquals(-1, in.read());
+  }
+
+  @Test
+  public void testCompressedRmiPage() throws Exception {
+    System.setProperty(Constants.JAVA_RMI_HOST_ENVIRONMENT, "localhost");
+    String environment = TestEnvironment.getEnvironment();
+    EntityStoreImpl store = new EntityStoreImpl(DatabaseManagerImpl.getInstance(),
+        LuceneIndexerImpl.getInstance(), 0, new CompressingRMIClientSocketFactory(1024),
+        new CompressingRMIServerSocketFactory(1024));
+    Registry registry = LocateRegistry.createRegistry(RMI_PORT);
+    registry.rebind(EntityStore.class.getName(), store);
+    try {
+      DataFactoryEntity[] entities = new DataFactoryEntity[1000];
+      for (int i = 0; i < entities.length; i++) {
+        entities[i] = new DataFactoryEntityBuilder()
+            .environment(environment)
+            .entityType("Room")
+            .putPropertyMap("name", "Room " + i)
+            .putPropertyMap("description", "A room with a view of the bay")
+            .build();
+      }
+      EntityStore entityStore = new EntityStoreClientImpl("localhost", RMI_PORT);
+      entityStore.saveEntities(entities);
+      CompressionStats.reset();
+      DataFactoryEntities page = entityStore.getEntities(new EntityQueryBuilder()
+          .environment(environment)
+          .entityType("Room")
+          .max(1000)
+          .build()).get();
+      assertEquals(1000, page.entities().size());
+      LOG.info("Compression ratio " + CompressionStats.compressionRatio() + " ("
+          + CompressionStats.rawBytes() + " raw, " + CompressionStats.wireBytes() + " wire bytes)");
+      assertTrue(CompressionStats.compressedBlocks() > 0);
+      assertTrue(CompressionStats.compressionRatio() > 2.0);
+    } finally {
+      UnicastRemoteObject.unexportObject(store, true);
+      UnicastRemoteObject.unexportObject(registry, true);
+    }
+  }
+}
@@ -0,0 +1,255 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.transport;
+
+import com.divroll.datafactory.Constants;
+import com.divroll.datafactory.TestEnvironment;
+import com.divroll.datafactory.builders.DataFactoryEntity;
+import com.divroll.datafactory.builders.DataFactoryEntityBuilder;
+import com.divroll.datafactory.builders.queries.EntityQueryBuilder;
+import com.divroll.datafactory.database.impl.DatabaseManagerImpl;
+import com.divroll.datafactory.exceptions.RequestRejectedException;
+import com.divroll.datafactory.indexers.impl.LuceneIndexerImpl;
+import com.divroll.datafactory.repositories.EntityStore;
+import com.divroll.datafactory.repositories.impl.EntityStoreClientImpl;
+import com.divroll.datafactory.repositories.impl.EntityStoreImpl;
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import java.awt.Point;
+import java.io.DataInputStream;
+import java.io.InvalidClassException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Loopback tests of the NIO transport, including a throughput comparison with Java RMI.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class NioEntityStoreTransportTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(NioEntityStoreTransportTest.class);
+
+  private static final int NIO_PORT = 3299;
+  private static final int RMI_PORT = 3199;
+  private static final int THREADS = 8;
+  private static final int OPERATIONS = 250;
+
+  @Test
+  public void testSaveAndGetEntity() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    EntityStoreImpl store =
+        new EntityStoreImpl(DatabaseManagerImpl.getInstance(), LuceneIndexerImpl.getInstance());
+    NioEntityStoreServer server =
+        new NioEntityStoreServer(store, NIO_PORT, Executors.newFixedThreadPool(4));
+    server.start();
+    NioEntityStoreClient client = new NioEntityStoreClient("localhost", NIO_PORT);
+    try {
+      EntityStore entityStore = client.getEntityStore();
+      DataFactoryEntity saved = entityStore.saveEntity(new DataFactoryEntityBuilder()
+          .environment(environment)
+          .entityType("Foo")
+          .putPropertyMap("foo", "bar")
+          .build()).get();
+      assertNotNull(saved.entityId());
+      DataFactoryEntity fetched = entityStore.getEntity(new EntityQueryBuilder()
+          .environment(environment)
+          .entityId(saved.entityId())
+          .build()).get();
+      assertEquals("bar", fetched.propertyMap().get("foo"));
+      try {
+        entityStore.getEntity(new EntityQueryBuilder().environment(environment).build());
+        fail("Server side exception should be propagated");
+      } catch (IllegalArgumentException e) {
+        assertEquals("Either entity ID or entity type must be present", e.getMessage());
+      }
+    } finally {
+      client.close();
+      server.close();
+      UnicastRemoteObject.unexportObject(store, true);
+    }
+  }
+
+  @Test
+  public void testThroughputComparedToRmi() throws Exception {
+    System.setProperty(Constants.JAVA_RMI_HOST_ENVIRONMENT, "localhost");
+    String environment = TestEnvironment.getEnvironment();
+    EntityStoreImpl store =
+        new EntityStoreImpl(DatabaseManagerImpl.getInstance(), LuceneIndexerImpl.getInstance());
+    Registry registry = LocateRegistry.createRegistry(RMI_PORT);
+    registry.rebind(EntityStore.class.getName(), store);
+    NioEntityStoreServer server =
+        new NioEntityStoreServer(store, NIO_PORT, Executors.newFixedThreadPool(THREADS));
+    server.start();
+    NioEntityStoreClient client = new NioEntityStoreClient("localhost", NIO_PORT);
+    try {
+      // Warm up both paths and open the environment
+      run(new EntityStoreClientImpl("localhost", RMI_PORT), environment, 1, 20);
+      run(client.getEntityStore(), environment, 1, 20);
+
+      long rmi = run(new EntityStoreClientImpl("localhost", RMI_PORT), environment, THREADS,
+          OPERATIONS);
+      long nio = run(client.getEntityStore(), environment, THREADS, OPERATIONS);
+      int total = THREADS * OPERATIONS * 2;
+      LOG.info("RMI transport: " + total + " operations in " + rmi + " ms ("
+          + (total * 1000L / Math.max(rmi, 1)) + " ops/s)");
+      LOG.info("NIO transport: " + total + " operations in " + nio + " ms ("
+          + (total * 1000L / Math.max(nio, 1)) + " ops/s)");
+    } finally {
+      client.close();
+      server.close();
+      UnicastRemoteObject.unexportObject(store, true);
+      UnicastRemoteObject.unexportObject(registry, true);
+    }
+  }
+
+  @Test
+  public void testRejectedRequestIsAnswered() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    EntityStoreImpl store =
+        new EntityStoreImpl(DatabaseManagerImpl.getInstance(), LuceneIndexerImpl.getInstance());
+    ExecutorService workers = Executors.newFixedThreadPool(1);
+    workers.shutdown();
+    NioEntityStoreServer server = new NioEntityStoreServer(store, NIO_PORT, workers);
+    server.start();
+    NioEntityStoreClient client = new NioEntityStoreClient("localhost", NIO_PORT, 10000);
+    try {
+      client.getEntityStore().getEntity(new EntityQueryBuilder()
+          .environment(environment)
+          .entityType("Foo")
+          .build());
+      fail("Request rejected by the server should fail");
+    } catch (RequestRejectedException e) {
+      assertTrue(e.isRetryable());
+    } finally {
+      client.close();
+      server.close();
+      UnicastRemoteObject.unexportObject(store, true);
+    }
+  }
+
+  @Test
+  public void testCallTimesOut() throws Exception {
+    try (ServerSocket silent = new ServerSocket(NIO_PORT)) {
+      NioEntityStoreClient client = new NioEntityStoreClient("localhost", NIO_PORT, 200);
+      try {
+        client.getEntityStore().getEntity(new EntityQueryBuilder()
+            .environment(TestEnvironment.getEnvironment())
+            .entityType("Foo")
+            .build());
+        fail("Call without a response should time out");
+      } catch (RemoteException e) {
+        assertTrue(e.getMessage().contains("timed out"));
+      } finally {
+        client.close();
+      }
+    }
+  }
+
+  @Test
+  public void testInterfaceMismatchIsRefused() throws Exception {
+    EntityStoreImpl store =
+        new EntityStoreImpl(DatabaseManagerImpl.getInstance(), LuceneIndexerImpl.getInstance());
+    NioEntityStoreServer server =
+        new NioEntityStoreServer(store, NIO_PORT, Executors.newFixedThreadPool(1));
+    server.start();
+    try (Socket socket = new Socket("localhost", NIO_PORT)) {
+      ByteBuffer handshake = EntityStoreProtocol.encode(0, EntityStoreProtocol.HANDSHAKE,
+          (short) 0, EntityStoreProtocol.INTERFACE_HASH + 1);
+      socket.getOutputStream().write(handshake.array());
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      byte[] body = new byte[in.readInt()];
+      in.readFully(body);
+      EntityStoreProtocol.Frame frame = EntityStoreProtocol.decode(ByteBuffer.wrap(body));
+      assertEquals(EntityStoreProtocol.ERROR, frame.kind());
+      assertTrue(((Throwable) frame.payload()).getMessage().contains("mismatch"));
+      assertEquals(-1, in.read());
+    } finally {
+      server.close();
+      UnicastRemoteObject.unexportObject(store, true);
+    }
+  }
+
+  @Test
+  public void testOnlyWhitelistedClassesAreDeserialized() throws Exception {
+    byte[] bytes = EntityStoreProtocol.serialize(new Point(1, 2));
+    try {
+      EntityStoreProtocol.deserialize(bytes);
+      fail("Class outside the whitelist should not be deserialized");
+    } catch (InvalidClassException e) {
+      assertTrue(e.getMessage().contains(Point.class.getName()));
+    }
+    System.setProperty(Constants.DATAFACTORY_TRANSPORT_WHITELIST_ENVIRONMENT, "java.awt.Point");
+    try {
+      assertEquals(new Point(1, 2), EntityStoreProtocol.deserialize(bytes));
+    } finally {
+      System.clearProperty(Constants.DATAFACTORY_TRANSPORT_WHITELIST_ENVIRONMENT);
+    }
+  }
+
+  /**
+   * Save and read back entities from {@code threads} concurrent callers.
+   *
+   * @return elapsed time in milliseconds
+   */
+  private static long run(EntityStore entityStore, String environment, int threads,
+      int operations) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    long start = System.currentTimeMillis();
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      futures.add(executor.submit(() -> {
+        for (int i = 0; i < operations; i++) {
+          DataFactoryEntity saved = entityStore.saveEntity(new DataFactoryEntityBuilder()
+              .environment(environment)
+              .entityType("Foo")
+              .putPropertyMap("index", i)
+              .build()).get();
+          DataFactoryEntity fetched = entityStore.getEntity(new EntityQueryBuilder()
+              .environment(environment)
+              .entityId(saved.entityId())
+              .build()).get();
+          assertEquals(i, fetched.propertyMap().get("index"));
+        }
+        return null;
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    return System.currentTimeMillis() - start;
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Divroll, Platform for Hosting Static Sites
+ * Copyright 2020, Divroll, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.divroll.datafactory.transport;
+
+import com.divroll.datafactory.Constants;
+import com.divroll.datafactory.TestEnvironment;
+import com.divroll.datafactory.builders.DataFactoryEntity;
+import com.divroll.datafactory.builders.DataFactoryEntityBuilder;
+import com.divroll.datafactory.builders.queries.EntityQueryBuilder;
+import com.divroll.datafactory.database.impl.DatabaseManagerImpl;
+import com.divroll.datafactory.indexers.impl.LuceneIndexerImpl;
+import com.divroll.datafactory.repositories.EntityStore;
+import com.divroll.datafactory.repositories.impl.EntityStoreClientImpl;
+import com.divroll.datafactory.repositories.impl.EntityStoreImpl;
+import com.godaddy.logging.Logger;
+import com.godaddy.logging.LoggerFactory;
+import java.io.File;
+import java.nio.file.Files;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the shared memory transport, including a latency comparison with loopback Java RMI.
+ *
+ * @author <a href="mailto:kerby@divroll.com">Kerby Martino</a>
+ * @version 0-SNAPSHOT
+ * @since 0-SNAPSHOT
+ */
+public class SharedMemoryTransportTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SharedMemoryTransportTest.class);
+
+  private static final int RMI_PORT = 3599;
+  private static final int CAPACITY = 1 << 20;
+  private static final int OPERATIONS = 1000;
+
+  @Test
+  public void testConcurrentCallsWrapAroundTheRing() throws Exception {
+    String environment = TestEnvironment.getEnvironment();
+    File directory = Files.createTempDirectory("datafactory-shm").toFile();
+    EntityStoreImpl store =
+        new EntityStoreImpl(DatabaseManagerImpl.getInstance(), LuceneIndexerImpl.getInstance());
+    SharedMemoryEntityStoreServer server =
+        new SharedMemoryEntityStoreServer(store, directory, Executors.newFixedThreadPool(4));
+    server.start();
+    // A small ring makes the frames wrap around its end many times
+    SharedMemoryEntityStoreClient client = new SharedMemoryEntityStoreClient(directory, 8192);
+    try {
+      EntityStore entityStore = client.getEntityStore();
+      run(entityStore, environment, 1, 1);
+      run(entityStore, environment, 8, 50);
+      assertEquals(1, server.getChannelCount());
+      try {
+        entityStore.getEntity(new EntityQueryBuilder().environment(environment).build());
+        fail("Server side exception should be propagated");
+      } catch (IllegalArgumentException e) {
+        assertEquals("Either entity ID or entity type must be present", e.getMessage());
+      }
+    } finally {
+      client.close();
+      server.close();
+      UnicastRemoteObject.unexportObject(store, true);
+    }
+  }
+
+  @Test
+  public void testCallFailsWithoutServer() throws Exception {
+    File directory = Files.createTempDirectory("datafactory-shm").toFile();
+    SharedMemoryEntityStoreClient client = new SharedMemoryEntityStoreClient(directory, CAPACITY);
+    try {
+      client.getEntityStore().saveEntity(new DataFactoryEntityBuilder()
+          .environment(TestEnvironment.getEnvironment())
+          .entityType("Foo")
+          .build());
+      fail("Call without a server should fail");
+    } catch (RemoteException e) {
+      assertNotNull(e.getMessage());
+    } finally {
+      client.close();
+    }
+  }
+
+  @Test
+  public void testLatencyComparedToRmi() throws Exception {
+    System.setProperty(Constants.JAVA_RMI_HOST_ENVIRONMENT, "localhost");
+    String environment = TestEnvironment.getEnvironment();
+    File directory = Files.createTempDirectory("datafactory-shm").toFile();
+    EntityStoreImpl store =
+        new EntityStoreImpl(DatabaseManagerImpl.getInstance(), LuceneIndexerImpl.getInstance());
+    Registry registry = LocateRegistry.createRegistry(RMI_PORT);
+    registry.rebind(EntityStore.class.getName(), store);
+    SharedMemoryEntityStoreServer server =
+        new SharedMemoryEntityStoreServer(store, directory, Executors.newFixedThreadPool(4));
+    server.start();
+    SharedMemoryEntityStoreClient client = new SharedMemoryEntityStoreClient(directory, CAPACITY);
+    try {
+      EntityStore rmiStore = new EntityStoreClientImpl("localhost", RMI_PORT);
+      // Warm up both paths and open the environment
+      run(rmiStore, environment, 1, 50);
+      run(client.getEntityStore(), environment, 1, 50);
+
+      long rmi = run(rmiStore, environment, 1, OPERATIONS);
+      long shm = run(client.getEntityStore(), environment, 1, OPERATIONS);
+      LOG.info("RMI transport: " + (rmi * 1000L / (OPERATIONS * 2)) + " us per call");
+      LOG.info("Shared memory transport: " + (shm * 1000L / (OPERATIONS * 2)) + " us per call");
+    } finally {
+      client.close();
+      server.close();
+      UnicastRemoteObject.unexportObject(store, true);
+      UnicastRemoteObject.unexportObject(registry, true);
+    }
+  }
+
+  /**
+   * Save and read back entities from {@code threads} concurrent callers.
+   *
+   * @return elapsed time in milliseconds
+   */
+  private static long run(EntityStore entityStore, String environment, int threads,
+      int operations) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    long start = System.currentTimeMillis();
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      futures.add(executor.submit(() -> {
+        for (int i = 0; i < operations; i++) {
+          DataFactoryEntity saved = entityStore.saveEntity(new DataFactoryEntityBuilder()
+              .environment(environment)
+              .entityType("Foo")
+              .putPropertyMap("index", i)
+              .build()).get();
+          DataFactoryEntity fetched = entityStore.getEntity(new EntityQueryBuilder()
+              .environment(environment)
+              .entityId(saved.entityId())
+              .build()).get();
+          assertEquals(i, fetched.propertyMap().get("index"));
+        }
+        return null;
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    return System.currentTimeMillis() - start;
+  }
+}